@@ -0,0 +1,276 @@
+package io.hdocdb;
+
+import org.apache.hadoop.hbase.client.Result;
+import org.ojai.base.DocumentReaderBase;
+import org.ojai.exceptions.TypeException;
+import org.ojai.types.ODate;
+import org.ojai.types.OInterval;
+import org.ojai.types.OTime;
+import org.ojai.types.OTimestamp;
+import org.ojai.util.Types;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+/**
+ * A reader over the document stored in a row, which reports its events directly from the
+ * cells of the row, so that neither the document nor the values of its fields are built.
+ *
+ * <p>Each cell is decoded only when the reader reaches it.  The contents of a packed array
+ * or map are read from the value of its cell, as they are by a reader over a document.
+ */
+class HCellReader extends DocumentReaderBase {
+
+    private final HCellWalker walker;
+    private HDocumentReader packed = null;
+    private int packedDepth = 0;
+    private EventType currentEvent = null;
+
+    HCellReader(Result result) {
+        this.walker = new HCellWalker(result);
+    }
+
+    @Override
+    public EventType next() {
+        currentEvent = packed != null ? nextPacked() : null;
+        if (currentEvent != null) return currentEvent;
+        HCellWalker.Event event = walker.next();
+        if (event == null) return null;
+        switch (event) {
+            case START_MAP:
+                currentEvent = EventType.START_MAP;
+                break;
+            case END_MAP:
+                currentEvent = EventType.END_MAP;
+                break;
+            case START_ARRAY:
+                currentEvent = EventType.START_ARRAY;
+                break;
+            case END_ARRAY:
+                currentEvent = EventType.END_ARRAY;
+                break;
+            case VALUE:
+                HValue value = walker.getValue();
+                if (value.getType().isScalar()) {
+                    currentEvent = Types.getEventTypeForType(value.getType());
+                } else {
+                    packed = new HDocumentReader(value);
+                    currentEvent = nextPacked();
+                }
+                break;
+        }
+        return currentEvent;
+    }
+
+    private EventType nextPacked() {
+        EventType event = packed.next();
+        if (event == EventType.START_MAP || event == EventType.START_ARRAY) {
+            packedDepth++;
+        } else if (event == EventType.END_MAP || event == EventType.END_ARRAY) {
+            packedDepth--;
+        } else if (event == null) {
+            packed = null;
+        }
+        return event;
+    }
+
+    /*
+     * Returns whether the current event is reported by the reader over a packed value,
+     * rather than by the walker, which reports the packed value itself being started or ended.
+     */
+    private boolean inPacked() {
+        if (packed == null) return false;
+        return packedDepth > 1
+                || packedDepth == 1 && currentEvent != EventType.START_MAP && currentEvent != EventType.START_ARRAY;
+    }
+
+    private HValue value() {
+        return packed != null ? packed.getCurrentValue() : walker.getValue();
+    }
+
+    /**
+     * @return the event emitted by the last call to {@link #next()}
+     */
+    @Override
+    public EventType getCurrentEvent() {
+        return currentEvent;
+    }
+
+    private void checkEventType(EventType event) throws TypeException {
+        if (currentEvent != event) {
+            throw new TypeException(String.format(
+                    "Event type mismatch. The operation requires %s, but found %s",
+                    event, currentEvent));
+        }
+    }
+
+    @Override
+    public boolean inMap() {
+        return inPacked() ? packed.inMap() : walker.inMap();
+    }
+
+    @Override
+    public int getArrayIndex() {
+        if (inPacked()) return packed.getArrayIndex();
+        if (walker.inMap()) {
+            throw new IllegalStateException("Not traversing an array!");
+        }
+        return walker.getArrayIndex();
+    }
+
+    @Override
+    public String getFieldName() {
+        if (inPacked()) return packed.getFieldName();
+        if (!walker.inMap()) {
+            throw new IllegalStateException("Not traversing a map!");
+        }
+        return walker.getFieldName();
+    }
+
+    @Override
+    public byte getByte() {
+        checkEventType(EventType.BYTE);
+        return value().getByte();
+    }
+
+    @Override
+    public short getShort() {
+        checkEventType(EventType.SHORT);
+        return value().getShort();
+    }
+
+    @Override
+    public int getInt() {
+        checkEventType(EventType.INT);
+        return value().getInt();
+    }
+
+    @Override
+    public long getLong() {
+        checkEventType(EventType.LONG);
+        return value().getLong();
+    }
+
+    @Override
+    public float getFloat() {
+        checkEventType(EventType.FLOAT);
+        return value().getFloat();
+    }
+
+    @Override
+    public double getDouble() {
+        checkEventType(EventType.DOUBLE);
+        return value().getDouble();
+    }
+
+    @Override
+    public BigDecimal getDecimal() {
+        checkEventType(EventType.DECIMAL);
+        return value().getDecimal();
+    }
+
+    @Override
+    public int getDecimalPrecision() {
+        BigDecimal d = getDecimal();
+        return d != null ? d.precision() : 0;
+    }
+
+    @Override
+    public int getDecimalScale() {
+        BigDecimal d = getDecimal();
+        return d != null ? d.scale() : 0;
+    }
+
+    @Override
+    public int getDecimalValueAsInt() {
+        BigDecimal d = getDecimal();
+        return d != null ? d.intValueExact() : 0;
+    }
+
+    @Override
+    public long getDecimalValueAsLong() {
+        BigDecimal d = getDecimal();
+        return d != null ? d.longValueExact() : 0;
+    }
+
+    @Override
+    public ByteBuffer getDecimalValueAsBytes() {
+        BigDecimal decimal = getDecimal();
+        if (decimal != null) {
+            BigInteger decimalInteger = decimal.unscaledValue();
+            return ByteBuffer.wrap(decimalInteger.toByteArray());
+        }
+        return null;
+    }
+
+    @Override
+    public boolean getBoolean() {
+        checkEventType(EventType.BOOLEAN);
+        return value().getBoolean();
+    }
+
+    @Override
+    public String getString() {
+        checkEventType(EventType.STRING);
+        return value().getString();
+    }
+
+    @Override
+    public long getTimestampLong() {
+        checkEventType(EventType.TIMESTAMP);
+        return value().getTimestampAsLong();
+    }
+
+    @Override
+    public OTimestamp getTimestamp() {
+        checkEventType(EventType.TIMESTAMP);
+        return value().getTimestamp();
+    }
+
+    @Override
+    public int getDateInt() {
+        checkEventType(EventType.DATE);
+        return value().getDateAsInt();
+    }
+
+    @Override
+    public ODate getDate() {
+        checkEventType(EventType.DATE);
+        return value().getDate();
+    }
+
+    @Override
+    public int getTimeInt() {
+        checkEventType(EventType.TIME);
+        return value().getTimeAsInt();
+    }
+
+    @Override
+    public OTime getTime() {
+        checkEventType(EventType.TIME);
+        return value().getTime();
+    }
+
+    @Override
+    public OInterval getInterval() {
+        checkEventType(EventType.INTERVAL);
+        return value().getInterval();
+    }
+
+    @Override
+    public int getIntervalDays() {
+        return getInterval().getDays();
+    }
+
+    @Override
+    public long getIntervalMillis() {
+        return getInterval().getTimeInMillis();
+    }
+
+    @Override
+    public ByteBuffer getBinary() {
+        checkEventType(EventType.BINARY);
+        return value().getBinary();
+    }
+}
@@ -0,0 +1,300 @@
+package io.hdocdb;
+
+import io.hdocdb.util.Codec;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.ojai.FieldPath;
+import org.ojai.FieldSegment;
+import org.ojai.store.exceptions.StoreException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Walks the cells of a row in document order, reporting the maps and arrays that the cells
+ * are nested in as they are entered and left, so that the document can be visited without
+ * first being built.
+ *
+ * <p>The qualifiers are ordered segment by segment, so that the elements of an array are
+ * visited in index order rather than in the order of their qualifiers.  Array indexes are
+ * reported by position, as they are by a reader over a document.  Where stale cells give
+ * a path both a value and nested fields, or both fields and elements, the newer cell wins,
+ * as when the row is read into an {@link HDocument}.
+ */
+class HCellWalker {
+
+    enum Event { START_MAP, END_MAP, START_ARRAY, END_ARRAY, VALUE }
+
+    private final Codec<HValueHolder> codec = new Codec<>();
+    private final HValue id;
+    private final List<Entry> entries;
+    private final Deque<Step> pending = new ArrayDeque<>();
+    private final List<Container> open = new ArrayList<>();
+    private int position = 0;
+    private boolean started = false;
+    private boolean finished = false;
+    private Step current;
+
+    HCellWalker(Result result) {
+        try {
+            byte[] rowKey = result.getRow();
+            this.id = rowKey != null ? codec.decode(rowKey, new HValueHolder()).getValue() : null;
+        } catch (Exception e) {
+            throw new StoreException(e);
+        }
+        this.entries = resolve(sort(result));
+    }
+
+    /**
+     * Returns whether the row is empty, in which case no events are reported.
+     */
+    boolean isEmpty() {
+        return id == null;
+    }
+
+    /**
+     * Moves to the next event, returning null once the closing of the document has been reported.
+     */
+    Event next() {
+        if (pending.isEmpty()) fill();
+        current = pending.poll();
+        return current != null ? current.event : null;
+    }
+
+    /**
+     * Returns whether the current value, or the current map or array, is within a map.
+     */
+    boolean inMap() {
+        return current.inMap;
+    }
+
+    /**
+     * Returns the field name of the current value, or of the current map or array, if it is within a map.
+     */
+    String getFieldName() {
+        return current.key;
+    }
+
+    /**
+     * Returns the position of the current value, or of the current map or array, if it is within an array.
+     */
+    int getArrayIndex() {
+        return current.index;
+    }
+
+    /**
+     * Returns the current value, which may be a packed array or map.
+     */
+    HValue getValue() {
+        return current.value;
+    }
+
+    private void fill() {
+        if (isEmpty() || finished) return;
+        if (!started) {
+            started = true;
+            pending.add(new Step(Event.START_MAP, true, null, -1, null));
+            pending.add(new Step(Event.VALUE, true, HDocument.ID, -1, id));
+        } else if (position < entries.size()) {
+            Entry entry = entries.get(position++);
+            Object[] segments = entry.segments;
+            int parentDepth = segments.length - 1;
+            int common = 0;
+            while (common < open.size() && common < parentDepth
+                    && open.get(common).segment.equals(segments[common])) {
+                common++;
+            }
+            close(common);
+            for (int i = common; i < parentDepth; i++) {
+                boolean array = segments[i + 1] instanceof Integer;
+                Step step = child(array ? Event.START_ARRAY : Event.START_MAP, segments[i], null);
+                open.add(new Container(segments[i], array, step));
+            }
+            child(Event.VALUE, segments[parentDepth], entry.decode(codec));
+        } else {
+            close(0);
+            pending.add(new Step(Event.END_MAP, true, null, -1, null));
+            finished = true;
+        }
+    }
+
+    private Step child(Event event, Object segment, HValue value) {
+        Container parent = open.isEmpty() ? null : open.get(open.size() - 1);
+        Step step = parent != null && parent.array
+                ? new Step(event, false, null, parent.size++, value)
+                : new Step(event, true, (String) segment, -1, value);
+        pending.add(step);
+        return step;
+    }
+
+    private void close(int depth) {
+        while (open.size() > depth) {
+            Container container = open.remove(open.size() - 1);
+            Step start = container.start;
+            pending.add(new Step(container.array ? Event.END_ARRAY : Event.END_MAP,
+                    start.inMap, start.key, start.index, null));
+        }
+    }
+
+    private static List<Entry> sort(Result result) {
+        List<Entry> entries = new ArrayList<>(result.size());
+        if (result.isEmpty()) return entries;
+        for (Cell cell : result.rawCells()) {
+            String path = Bytes.toString(cell.getQualifierArray(), cell.getQualifierOffset(), cell.getQualifierLength());
+            if (path.equals(HDocument.ID) || path.equals(HDocument.TS)) continue;
+            Object[] segments = parse(path);
+            if (segments != null) entries.add(new Entry(segments, cell));
+        }
+        entries.sort(Entry::compareTo);
+        return entries;
+    }
+
+    /*
+     * Drops the older of two cells that disagree on the shape of a path.  Cells that disagree
+     * are adjacent once sorted, as the shorter path sorts first and elements sort before fields.
+     */
+    private static List<Entry> resolve(List<Entry> entries) {
+        List<Entry> kept = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            boolean add = true;
+            while (!kept.isEmpty()) {
+                Entry last = kept.get(kept.size() - 1);
+                if (!last.conflictsWith(entry)) break;
+                if (entry.ts < last.ts) {
+                    add = false;
+                    break;
+                }
+                kept.remove(kept.size() - 1);
+            }
+            if (add) kept.add(entry);
+        }
+        return kept;
+    }
+
+    /*
+     * Returns the segments of the given path, as names and indexes, or null if the path
+     * can never be set in a document.
+     */
+    static Object[] parse(String path) {
+        List<Object> segments = new ArrayList<>(4);
+        int i = 0;
+        int n = path.length();
+        while (i < n) {
+            // a name, followed by any indexes
+            int start = i;
+            while (i < n && isNameChar(path.charAt(i))) i++;
+            if (i == start || Character.isDigit(path.charAt(start))) return parseFieldPath(path);
+            segments.add(path.substring(start, i));
+            while (i < n && path.charAt(i) == '[') {
+                int index = 0;
+                int digits = ++i;
+                while (i < n && path.charAt(i) >= '0' && path.charAt(i) <= '9' && i - digits < 9) {
+                    index = index * 10 + (path.charAt(i++) - '0');
+                }
+                if (i == digits || i == n || path.charAt(i) != ']') return parseFieldPath(path);
+                segments.add(index);
+                i++;
+            }
+            if (i < n && (path.charAt(i) != '.' || ++i == n)) return parseFieldPath(path);
+        }
+        return segments.isEmpty() ? null : segments.toArray();
+    }
+
+    private static boolean isNameChar(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_';
+    }
+
+    private static Object[] parseFieldPath(String path) {
+        List<Object> segments = new ArrayList<>(4);
+        for (FieldSegment segment : FieldPath.parseFrom(path)) {
+            if (segment.isIndexed()) {
+                int index = segment.getIndexSegment().getIndex();
+                if (index == -1 || segments.isEmpty()) return null;
+                segments.add(index);
+            } else {
+                segments.add(segment.getNameSegment().getName());
+            }
+        }
+        return segments.isEmpty() ? null : segments.toArray();
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+        final Object[] segments;
+        final Cell cell;
+        final long ts;
+
+        Entry(Object[] segments, Cell cell) {
+            this.segments = segments;
+            this.cell = cell;
+            this.ts = cell.getTimestamp();
+        }
+
+        HValue decode(Codec<HValueHolder> codec) {
+            try {
+                HValue value = HDocument.decodeValue(codec, CellUtil.cloneValue(cell));
+                value.setTs(ts);
+                return value;
+            } catch (Exception e) {
+                throw new StoreException(e);
+            }
+        }
+
+        boolean conflictsWith(Entry next) {
+            int common = 0;
+            int n = Math.min(segments.length, next.segments.length);
+            while (common < n && segments[common].equals(next.segments[common])) common++;
+            if (common == segments.length) return true;
+            return common < next.segments.length
+                    && (segments[common] instanceof Integer) != (next.segments[common] instanceof Integer);
+        }
+
+        public int compareTo(Entry other) {
+            int n = Math.min(segments.length, other.segments.length);
+            for (int i = 0; i < n; i++) {
+                Object a = segments[i];
+                Object b = other.segments[i];
+                int cmp;
+                if (a instanceof Integer) {
+                    cmp = b instanceof Integer ? Integer.compare((Integer) a, (Integer) b) : -1;
+                } else {
+                    cmp = b instanceof Integer ? 1 : ((String) a).compareTo((String) b);
+                }
+                if (cmp != 0) return cmp;
+            }
+            return Integer.compare(segments.length, other.segments.length);
+        }
+    }
+
+    private static final class Container {
+        final Object segment;
+        final boolean array;
+        final Step start;
+        int size = 0;
+
+        Container(Object segment, boolean array, Step start) {
+            this.segment = segment;
+            this.array = array;
+            this.start = start;
+        }
+    }
+
+    private static final class Step {
+        final Event event;
+        final boolean inMap;
+        final String key;
+        final int index;
+        final HValue value;
+
+        Step(Event event, boolean inMap, String key, int index, HValue value) {
+            this.event = event;
+            this.inMap = inMap;
+            this.key = key;
+            this.index = index;
+            this.value = value;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package io.hdocdb;
 
+import io.hdocdb.store.StorageMode;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Put;
 import org.ojai.FieldPath;
@@ -10,6 +11,8 @@ import java.util.Iterator;
 
 public abstract class HContainer extends HValue {
 
+    private boolean packed = false;
+
     public abstract int size();
 
     public abstract boolean isEmpty();
@@ -52,5 +55,20 @@ public abstract class HContainer extends HValue {
 
     public abstract void fillDelete(Delete delete, String family, FieldPath parentPath);
 
-    public abstract void fillPut(Put put, String family, FieldPath parentPath);
+    public void fillPut(Put put, String family, FieldPath parentPath) {
+        fillPut(put, family, parentPath, StorageMode.EXPANDED);
+    }
+
+    public abstract void fillPut(Put put, String family, FieldPath parentPath, StorageMode mode);
+
+    /**
+     * Returns whether this container was read from a single packed cell.
+     */
+    public boolean isPacked() {
+        return packed;
+    }
+
+    protected void setPacked(boolean packed) {
+        this.packed = packed;
+    }
 }
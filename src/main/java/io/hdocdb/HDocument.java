@@ -4,6 +4,7 @@ import com.google.common.base.Strings;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.primitives.*;
+import io.hdocdb.store.StorageMode;
 import io.hdocdb.util.Codec;
 import org.apache.hadoop.hbase.Cell;
 import org.apache.hadoop.hbase.CellUtil;
@@ -27,6 +28,7 @@ import org.ojai.types.OInterval;
 import org.ojai.types.OTime;
 import org.ojai.types.OTimestamp;
 
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.nio.ByteBuffer;
 import java.util.*;
@@ -59,8 +61,9 @@ public class HDocument extends HContainer implements Document, Map<String, Objec
                 //System.out.println("Get id " + getId());
                 for (Cell cell : result.listCells()) {
                     String path = Bytes.toString(CellUtil.cloneQualifier(cell));
-                    HValue value = codec.decode(CellUtil.cloneValue(cell), new HValueHolder()).getValue();
+                    HValue value = decodeValue(codec, CellUtil.cloneValue(cell));
                     value.setTs(cell.getTimestamp());
+                    if (value instanceof HContainer) ((HContainer) value).setPacked(true);
                     //System.out.println("Get ts " + cell.getTimestamp());
                     if (path.equals(TS)) {
                         setTs(value.getTimestampAsLong());
@@ -88,8 +91,9 @@ public class HDocument extends HContainer implements Document, Map<String, Objec
                     //System.out.println("Get id " + getId());
                 }
                 String path = Bytes.toString(CellUtil.cloneQualifier(cell));
-                HValue value = codec.decode(CellUtil.cloneValue(cell), new HValueHolder()).getValue();
+                HValue value = decodeValue(codec, CellUtil.cloneValue(cell));
                 value.setTs(cell.getTimestamp());
+                if (value instanceof HContainer) ((HContainer) value).setPacked(true);
                 //System.out.println("Get ts " + cell.getTimestamp());
                 if (path.equals(TS)) {
                     setTs(value.getTimestampAsLong());
@@ -103,6 +107,13 @@ public class HDocument extends HContainer implements Document, Map<String, Objec
         }
     }
 
+    static HValue decodeValue(Codec<HValueHolder> codec, byte[] bytes) throws IOException, ClassNotFoundException {
+        // counters are stored as raw longs so that they can be incremented by HBase;
+        // an encoded HValueHolder is never this short
+        if (bytes.length == Bytes.SIZEOF_LONG) return new HValue(Bytes.toLong(bytes));
+        return codec.decode(bytes, new HValueHolder()).getValue();
+    }
+
     /**
      * Sets the the "_id" field of this Document to the specified Value.
      *
@@ -1821,6 +1832,7 @@ public class HDocument extends HContainer implements Document, Map<String, Objec
         document.entries = entries;
         document.ts = this.ts;
         document.compareValueTimestamps = this.compareValueTimestamps;
+        document.setPacked(isPacked());
         document.type = this.type;
         document.value = this.value;
         return document;
@@ -1879,6 +1891,21 @@ public class HDocument extends HContainer implements Document, Map<String, Objec
         return null;
     }
 
+    /**
+     * Returns the value at the given path of field names, none of which may be
+     * an array or "_id", without parsing the path.
+     */
+    public HValue getHValue(String[] names) {
+        HDocument doc = this;
+        int last = names.length - 1;
+        for (int i = 0; i < last; i++) {
+            HValue value = (HValue) doc.entries.get(names[i]);
+            if (value == null || value.getType() != Type.MAP) return null;
+            doc = (HDocument) value;
+        }
+        return (HValue) doc.entries.get(names[last]);
+    }
+
     public HValue getHValue(Iterator<FieldSegment> path) {
         FieldSegment field = path.next();
         if (field == null) return null;
@@ -2004,10 +2031,14 @@ public class HDocument extends HContainer implements Document, Map<String, Objec
         }
     }
 
-    public void fillPut(Put put, String family, FieldPath path) {
+    public void fillPut(Put put, String family, FieldPath path, StorageMode mode) {
+        if (mode.isPacked(this, path)) {
+            fillCell(put, family, path);
+            return;
+        }
         for (Map.Entry<String, Value> entry : entries.entrySet()) {
             HValue value = (HValue) entry.getValue();
-            value.fillPut(put, family, value.getFullPath(path, entry.getKey()));
+            value.fillPut(put, family, value.getFullPath(path, entry.getKey()), mode);
         }
     }
 }
@@ -91,6 +91,13 @@ class HDocumentReader extends DocumentReaderBase {
         return currentEvent;
     }
 
+    /**
+     * @return the value of the current event, or the map or array that was started or ended
+     */
+    HValue getCurrentValue() {
+        return value;
+    }
+
     private void checkEventType(EventType event) throws TypeException {
         if (currentEvent != event) {
             throw new TypeException(String.format(
@@ -1,12 +1,18 @@
 package io.hdocdb;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Range;
+import io.hdocdb.execute.MultiGet;
 import io.hdocdb.execute.QueryInfo;
+import io.hdocdb.metrics.MetricsRegistry;
+import io.hdocdb.store.CompiledCondition;
 import io.hdocdb.store.HQueryCondition;
 import io.hdocdb.store.IndexQueries;
 import io.hdocdb.store.IndexQuery;
+import org.apache.hadoop.hbase.Cell;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
@@ -18,19 +24,24 @@ import org.ojai.DocumentReader;
 import org.ojai.DocumentStream;
 import org.ojai.Value;
 import org.ojai.exceptions.OjaiException;
+import org.ojai.json.JsonOptions;
 import org.ojai.store.QueryCondition;
 import org.ojai.store.exceptions.StoreException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
 import java.util.AbstractList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 
 public class HDocumentStream extends AbstractList<Document> implements DocumentStream {
 
@@ -38,17 +49,34 @@ public class HDocumentStream extends AbstractList<Document> implements DocumentS
 
     private static final int DEFAULT_STALE_INDEX_EXPIRY_MS = 5000;
     private static final ExecutorService executor = Executors.newCachedThreadPool();
+    private static final JsonFactory JSON_FACTORY = new JsonFactory()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
 
     private List<HDocument> documents;
     private ResultScanner scanner;
     private Result[] results;
+    private MultiGet multiGet;
     private Table table;
     private IndexQueries indexQueries;
     private boolean reindexArrays;
     private QueryCondition condition;
+    private CompiledCondition compiledCondition;
     private String[] paths;
     private int index = 0;
     private int staleIndexesRunningCount = 0;
+    private long scannedCount = 0;
+    private long returnedCount = 0;
+    private long bytesRead = 0;
+    private MetricsRegistry metrics = MetricsRegistry.NOOP;
+    private String metricsName;
+    private Consumer<HDocumentStream> completionListener;
+    private boolean completed = false;
+    private List<QueryInfo.Candidate> candidates = Collections.emptyList();
+    private String reason;
+    private long planNanos = 0;
+    private long fetchNanos = 0;
+    private long rowsRejected = 0;
+    private long staleIndexesFound = 0;
 
     public HDocumentStream(List<HDocument> documents, boolean reindexArrays, QueryCondition c, String... paths) {
         this.documents = documents;
@@ -71,6 +99,13 @@ public class HDocumentStream extends AbstractList<Document> implements DocumentS
         this.paths = paths;
     }
 
+    public HDocumentStream(MultiGet multiGet, boolean reindexArrays, QueryCondition c, String... paths) {
+        this.multiGet = multiGet;
+        this.reindexArrays = reindexArrays;
+        this.condition = c;
+        this.paths = paths;
+    }
+
     public HDocumentStream(Table table, IndexQueries indexQueries,
                            boolean reindexArrays, QueryCondition c, String... paths) {
         this.table = table;
@@ -126,12 +161,135 @@ public class HDocumentStream extends AbstractList<Document> implements DocumentS
         };
     }
 
+    /**
+     * Writes the remaining documents of this stream to the given output stream as UTF-8 JSON,
+     * either as an array or as one document per line, and returns the number of documents written.
+     *
+     * <p>When the documents are read directly from the table, each is written from the cells
+     * of its row without first being built.  Arrays are written without any gaps, whether
+     * or not this stream reindexes arrays.  The output stream is flushed but not closed.
+     */
+    public long writeJson(OutputStream out, JsonOptions options, boolean lines) {
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(out)) {
+            return writeJson(generator, options, lines);
+        } catch (IOException e) {
+            throw new StoreException(e);
+        }
+    }
+
+    /**
+     * Writes the remaining documents of this stream to the given writer as JSON,
+     * either as an array or as one document per line, and returns the number of documents written.
+     *
+     * @see #writeJson(OutputStream, JsonOptions, boolean)
+     */
+    public long writeJson(Writer writer, JsonOptions options, boolean lines) {
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(writer)) {
+            return writeJson(generator, options, lines);
+        } catch (IOException e) {
+            throw new StoreException(e);
+        }
+    }
+
+    private long writeJson(JsonGenerator generator, JsonOptions options, boolean lines) throws IOException {
+        HJsonWriter json = new HJsonWriter(generator, options);
+        if (lines) {
+            generator.setRootValueSeparator(null);
+        } else {
+            if (options.isPretty()) generator.useDefaultPrettyPrinter();
+            generator.writeStartArray();
+        }
+        long count = 0;
+        if (documents == null && indexQueries == null) {
+            // the rows are already filtered and projected, so they can be written as they are
+            Result result;
+            while ((result = fetch(null)) != null) {
+                if (json.write(result)) {
+                    returnedCount++;
+                    count++;
+                    if (lines) generator.writeRaw('\n');
+                }
+            }
+            complete();
+        } else {
+            for (Document doc : this) {
+                json.write((HDocument) doc);
+                count++;
+                if (lines) generator.writeRaw('\n');
+            }
+        }
+        if (!lines) generator.writeEndArray();
+        generator.flush();
+        return count;
+    }
+
+    /**
+     * Returns readers over the remaining documents of this stream.
+     *
+     * <p>When the documents are read directly from the table, each reader reports its events
+     * from the cells of the row, without first building the document.  Array indexes are
+     * reported by position, whether or not this stream reindexes arrays.
+     */
     public Iterable<DocumentReader> documentReaders() {
+        if (documents == null && indexQueries == null) {
+            // the rows are already filtered and projected, so they can be read as they are
+            return new CellReaderIterable();
+        }
         return new DocumentReaderIterable();
     }
 
     public void close() throws OjaiException {
         if (scanner != null) scanner.close();
+        if (multiGet != null) multiGet.close();
+        complete();
+    }
+
+    /**
+     * Reports the rows scanned and returned by this stream, under the given metric name,
+     * once the stream is exhausted or closed.
+     */
+    public void setMetrics(MetricsRegistry metrics, String name) {
+        this.metrics = metrics;
+        this.metricsName = name;
+    }
+
+    public void setExplanation(List<QueryInfo.Candidate> candidates, String reason, long planNanos) {
+        this.candidates = candidates;
+        this.reason = reason;
+        this.planNanos = planNanos;
+    }
+
+    public long getScannedCount() {
+        return scannedCount;
+    }
+
+    public long getReturnedCount() {
+        return returnedCount;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Sets a listener that is called once the stream is exhausted or closed.
+     */
+    public void setCompletionListener(Consumer<HDocumentStream> completionListener) {
+        this.completionListener = completionListener;
+    }
+
+    private void complete() {
+        if (completed) return;
+        completed = true;
+        if (metricsName != null) {
+            metrics.increment(metricsName + ".scanned", scannedCount);
+            metrics.increment(metricsName + ".returned", returnedCount);
+            metrics.increment(metricsName + ".bytesRead", bytesRead);
+            if (staleIndexesRunningCount > 0) {
+                metrics.increment(metricsName + ".staleIndexes", staleIndexesRunningCount);
+            }
+        }
+        if (completionListener != null) completionListener.accept(this);
     }
 
     /**
@@ -140,7 +298,7 @@ public class HDocumentStream extends AbstractList<Document> implements DocumentS
      * @return the document
      */
     public Document getQueryPlan() {
-        return new HDocument();
+        return explain().asDocument();
     }
 
     private HDocument next() throws IOException {
@@ -148,6 +306,11 @@ public class HDocumentStream extends AbstractList<Document> implements DocumentS
         while (doc != null && doc.isEmpty()) {
             doc = rawNext();
         }
+        if (doc != null) {
+            returnedCount++;
+        } else {
+            complete();
+        }
         return doc;
     }
 
@@ -156,35 +319,56 @@ public class HDocumentStream extends AbstractList<Document> implements DocumentS
             HDocument doc = index < documents.size() ? documents.get(index++) : null;
             return doc;
         } else {
-            Result result = null;
             IndexQuery indexQuery = null;
-            if (scanner != null) {
-                result = scanner.next();
-            } else if (results != null) {
-                result = index < results.length ? results[index++] : null;
-            } else if (indexQueries != null) {
-                if (index < indexQueries.size()) {
-                    indexQuery = indexQueries.get(index++);
-                    result = table.get(indexQuery.getQuery());
-                }
+            if (indexQueries != null && index < indexQueries.size()) {
+                indexQuery = indexQueries.get(index++);
             }
+            Result result = fetch(indexQuery);
             HDocument doc = result != null ? new HDocument(result) : null;
             if (indexQuery != null) doc = checkIndexedDocument(doc, indexQuery);
             return doc != null && reindexArrays ? doc.reindexArrays() : doc;
         }
     }
 
+    private Result fetch(IndexQuery indexQuery) throws IOException {
+        Result result = null;
+        long start = System.nanoTime();
+        if (scanner != null) {
+            result = scanner.next();
+        } else if (results != null) {
+            result = index < results.length ? results[index++] : null;
+        } else if (multiGet != null) {
+            result = multiGet.next();
+        } else if (indexQuery != null) {
+            result = table.get(indexQuery.getQuery());
+        }
+        fetchNanos += System.nanoTime() - start;
+        if (result != null) {
+            scannedCount++;
+            if (!result.isEmpty()) {
+                for (Cell cell : result.rawCells()) {
+                    bytesRead += cell.getQualifierLength() + cell.getValueLength();
+                }
+            }
+        }
+        return result;
+    }
+
     private HDocument checkIndexedDocument(HDocument doc, IndexQuery indexQuery) throws IOException {
         if (doc == null || doc.isEmpty()) {
+            staleIndexesFound++;
             // only delete after some expiry as there is a timing issue between
             // index creation and document creation
             if (indexQuery.getIndexTs() + DEFAULT_STALE_INDEX_EXPIRY_MS < System.currentTimeMillis()) {
                 deleteStaleIndex(indexQuery);
             }
-        } else if (!indexQueries.getConditionFromRanges().evaluate(doc)) {
+        } else if (!indexQueries.getCompiledConditionFromRanges().evaluate(doc)
+                || !indexQueries.getIndex().matchesFilter(doc)) {
+            staleIndexesFound++;
             deleteStaleIndex(indexQuery);
             doc = new HDocument();
-        } else if (condition != null && !((HQueryCondition) condition).evaluate(doc)) {
+        } else if (condition != null && !getCompiledCondition().evaluate(doc)) {
+            rowsRejected++;
             doc = new HDocument();
         } else {
             doc = project(doc);
@@ -193,6 +377,13 @@ public class HDocumentStream extends AbstractList<Document> implements DocumentS
 
     }
 
+    private CompiledCondition getCompiledCondition() {
+        if (compiledCondition == null) {
+            compiledCondition = ((HQueryCondition) condition).compile();
+        }
+        return compiledCondition;
+    }
+
     private void deleteStaleIndex(final IndexQuery indexQuery) throws IOException {
         staleIndexesRunningCount++;
         executor.submit(new Runnable() {
@@ -222,11 +413,28 @@ public class HDocumentStream extends AbstractList<Document> implements DocumentS
         return newDoc;
     }
 
+    /**
+     * Returns the plan of this stream, along with statistics for the part of the
+     * stream that has been read so far.
+     */
     public QueryInfo explain() {
-        return indexQueries != null
+        QueryInfo info = indexQueries != null
                 ? new QueryInfo(QueryInfo.QueryType.INDEX_SCAN, indexQueries.getIndex().getName(),
                     getIndexBounds(), indexQueries.size(), staleIndexesRunningCount)
                 : new QueryInfo(QueryInfo.QueryType.FULL_TABLE_SCAN);
+        info.setCandidates(candidates, reason);
+        if (indexQueries != null) {
+            info.setIndexRowsScanned(indexQueries.getIndexRowsScanned());
+            info.setIndexScanNanos(indexQueries.getIndexScanNanos());
+        }
+        info.setBaseRowsFetched(scannedCount);
+        info.setRowsRejected(rowsRejected);
+        info.setStaleIndexesFound(staleIndexesFound);
+        info.setRowsReturned(returnedCount);
+        info.setBytesRead(bytesRead);
+        info.setPlanNanos(planNanos);
+        info.setFetchNanos(fetchNanos);
+        return info;
     }
 
     private Map<String, String> getIndexBounds() {
@@ -275,6 +483,47 @@ public class HDocumentStream extends AbstractList<Document> implements DocumentS
         }
     }
 
+    final class CellReaderIterable implements Iterable<DocumentReader> {
+
+        public Iterator<DocumentReader> iterator() {
+            return new Iterator<>() {
+                Result result = null;
+                boolean done = false;
+
+                public boolean hasNext() {
+                    if (done) return false;
+                    if (result != null) return true;
+                    try {
+                        result = fetch(null);
+                        while (result != null && result.isEmpty()) {
+                            result = fetch(null);
+                        }
+                    } catch (IOException e) {
+                        throw new StoreException(e);
+                    }
+                    if (result != null) {
+                        returnedCount++;
+                    } else {
+                        done = true;
+                        complete();
+                    }
+                    return result != null;
+                }
+
+                public DocumentReader next() {
+                    if (!hasNext()) throw new NoSuchElementException();
+                    Result temp = result;
+                    result = null;
+                    return new HCellReader(temp);
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+
     /*
      * The following methods are for Nashorn integration
      */
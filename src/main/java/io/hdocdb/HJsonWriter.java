@@ -0,0 +1,182 @@
+package io.hdocdb;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.apache.hadoop.hbase.client.Result;
+import org.ojai.Value;
+import org.ojai.json.JsonOptions;
+import org.ojai.store.exceptions.StoreException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Writes documents as JSON, in the same form as {@link HDocument#asJsonString(JsonOptions)}.
+ *
+ * <p>A row is written directly from its cells, so that neither the document nor the values
+ * of its fields are built, other than the values of packed arrays and maps.
+ */
+class HJsonWriter {
+
+    private final JsonGenerator generator;
+    private final boolean withTags;
+
+    HJsonWriter(JsonGenerator generator, JsonOptions options) {
+        this.generator = generator;
+        this.withTags = options.isWithTags();
+    }
+
+    /**
+     * Writes the document stored in the given row, returning false if the row is empty.
+     */
+    boolean write(Result result) throws IOException {
+        HCellWalker walker = new HCellWalker(result);
+        if (walker.isEmpty()) return false;
+        HCellWalker.Event event;
+        while ((event = walker.next()) != null) {
+            switch (event) {
+                case START_MAP:
+                    writeFieldName(walker);
+                    generator.writeStartObject();
+                    break;
+                case START_ARRAY:
+                    writeFieldName(walker);
+                    generator.writeStartArray();
+                    break;
+                case END_MAP:
+                    generator.writeEndObject();
+                    break;
+                case END_ARRAY:
+                    generator.writeEndArray();
+                    break;
+                case VALUE:
+                    writeFieldName(walker);
+                    writeValue(walker.getValue());
+                    break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the given document.
+     */
+    void write(HDocument document) throws IOException {
+        writeValue(document);
+    }
+
+    private void writeFieldName(HCellWalker walker) throws IOException {
+        if (walker.inMap() && walker.getFieldName() != null) generator.writeFieldName(walker.getFieldName());
+    }
+
+    private void writeValue(HValue value) throws IOException {
+        switch (value.getType()) {
+            case NULL:
+                generator.writeNull();
+                break;
+            case BOOLEAN:
+                generator.writeBoolean(value.getBoolean());
+                break;
+            case STRING:
+                generator.writeString(value.getString());
+                break;
+            case BYTE:
+                startTag("$numberByte");
+                generator.writeNumber(value.getByte());
+                endTag();
+                break;
+            case SHORT:
+                startTag("$numberShort");
+                generator.writeNumber(value.getShort());
+                endTag();
+                break;
+            case INT:
+                startTag("$numberInt");
+                generator.writeNumber(value.getInt());
+                endTag();
+                break;
+            case LONG:
+                generator.writeNumber(value.getLong());
+                break;
+            case FLOAT:
+                startTag("$numberFloat");
+                generator.writeNumber(value.getFloat());
+                endTag();
+                break;
+            case DOUBLE:
+                generator.writeNumber(value.getDouble());
+                break;
+            case DECIMAL:
+                if (startTag("$decimal")) {
+                    generator.writeString(value.getDecimal().toString());
+                } else {
+                    generator.writeNumber(value.getDecimal());
+                }
+                endTag();
+                break;
+            case DATE:
+                startTag("$dateDay");
+                generator.writeString(value.getDate().toDateStr());
+                endTag();
+                break;
+            case TIME:
+                startTag("$time");
+                generator.writeString(value.getTime().toTimeStr());
+                endTag();
+                break;
+            case TIMESTAMP:
+                startTag("$date");
+                generator.writeString(value.getTimestamp().toUTCString());
+                endTag();
+                break;
+            case INTERVAL:
+                startTag("$interval");
+                generator.writeNumber(value.getInterval().getTimeInMillis());
+                endTag();
+                break;
+            case BINARY:
+                ByteBuffer buffer = value.getBinary().duplicate();
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                startTag("$binary");
+                generator.writeString(Base64.getEncoder().encodeToString(bytes));
+                endTag();
+                break;
+            case MAP:
+                generator.writeStartObject();
+                Iterator<Map.Entry<String, Value>> entries = ((HDocument) value).iterator();
+                while (entries.hasNext()) {
+                    Map.Entry<String, Value> entry = entries.next();
+                    generator.writeFieldName(entry.getKey());
+                    writeValue((HValue) entry.getValue());
+                }
+                generator.writeEndObject();
+                break;
+            case ARRAY:
+                generator.writeStartArray();
+                for (HValue element : ((HList) value).getHValues()) {
+                    writeValue(element);
+                }
+                generator.writeEndArray();
+                break;
+            default:
+                throw new StoreException("Invalid type " + value.getType());
+        }
+    }
+
+    /*
+     * Starts the object that tags a value with its type, if tags are written, returning whether it was started.
+     */
+    private boolean startTag(String tag) throws IOException {
+        if (!withTags) return false;
+        generator.writeStartObject();
+        generator.writeFieldName(tag);
+        return true;
+    }
+
+    private void endTag() throws IOException {
+        if (withTags) generator.writeEndObject();
+    }
+}
@@ -2,6 +2,7 @@ package io.hdocdb;
 
 import com.google.common.collect.Lists;
 import io.hdocdb.store.ConditionLeaf;
+import io.hdocdb.store.StorageMode;
 import io.hdocdb.util.FieldSegmentIterator;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Put;
@@ -175,6 +176,18 @@ public class HList extends HContainer implements List<Object> {
                     }
                 }
                 return false;
+            case IN:
+            case NOT_IN:
+                // use "any" semantics, as with the comparisons
+                boolean in = false;
+                List<Object> values = value.getList();
+                for (HValue element : elements.values()) {
+                    if (values.contains(element)) {
+                        in = true;
+                        break;
+                    }
+                }
+                return op == ConditionLeaf.CompareOp.IN && in || op == ConditionLeaf.CompareOp.NOT_IN && !in;
             default:
                 throw new IllegalArgumentException("[] not supported with op " + op);
         }
@@ -184,6 +197,7 @@ public class HList extends HContainer implements List<Object> {
         HList result = new HList();
         result.elements = this.elements;
         result.compareValueTimestamps = this.compareValueTimestamps;
+        result.setPacked(isPacked());
         result.type = this.type;
         result.value = this.value;
         return result;
@@ -406,10 +420,14 @@ public class HList extends HContainer implements List<Object> {
         }
     }
 
-    public void fillPut(Put put, String family, FieldPath path) {
+    public void fillPut(Put put, String family, FieldPath path, StorageMode mode) {
+        if (mode.isPacked(this, path)) {
+            fillCell(put, family, path);
+            return;
+        }
         for (Map.Entry<Integer, HValue> entry : elements.entrySet()) {
             HValue value = entry.getValue();
-            value.fillPut(put, family, value.getFullPath(path, entry.getKey()));
+            value.fillPut(put, family, value.getFullPath(path, entry.getKey()), mode);
         }
     }
 
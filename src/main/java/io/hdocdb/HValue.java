@@ -3,6 +3,7 @@ package io.hdocdb;
 import com.google.common.base.Strings;
 import com.google.common.primitives.*;
 import io.hdocdb.store.Order;
+import io.hdocdb.store.StorageMode;
 import io.hdocdb.util.Codec;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Put;
@@ -186,6 +187,16 @@ public class HValue implements Value, Comparable<HValue> {
         return null;
     }
 
+    /**
+     * Returns a scalar value of the given type from its raw bytes, as returned by {@link #getRawBytes()}.
+     */
+    public static HValue initFromRawBytes(Value.Type type, byte[] rawBytes) {
+        if (type == Type.MAP || type == Type.ARRAY) {
+            throw new IllegalArgumentException("Not a scalar type: " + type);
+        }
+        return new HValue(type, rawBytes);
+    }
+
     public static HValue initFromValue(Value value) {
         if (value == null) {
             return HValue.NULL;
@@ -820,6 +831,14 @@ public class HValue implements Value, Comparable<HValue> {
     }
 
     public void fillPut(Put put, String family, FieldPath path) {
+        fillCell(put, family, path);
+    }
+
+    public void fillPut(Put put, String family, FieldPath path, StorageMode mode) {
+        fillCell(put, family, path);
+    }
+
+    protected void fillCell(Put put, String family, FieldPath path) {
         try {
             Codec<HValueHolder> codec = new Codec<>();
             byte[] bytes = codec.encode(new HValueHolder(this));
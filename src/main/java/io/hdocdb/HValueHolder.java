@@ -7,11 +7,20 @@ import java.io.Externalizable;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
+import java.io.ObjectStreamConstants;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Objects;
 
 public class HValueHolder implements Externalizable {
 
+    /* The block size and stream header of an ObjectOutputStream */
+    private static final int MAX_BLOCK_SIZE = 1024;
+    private static final byte[] STREAM_HEADER = {
+            (byte) (ObjectStreamConstants.STREAM_MAGIC >>> 8), (byte) ObjectStreamConstants.STREAM_MAGIC,
+            (byte) (ObjectStreamConstants.STREAM_VERSION >>> 8), (byte) ObjectStreamConstants.STREAM_VERSION
+    };
+
     protected HValue value;
 
     public HValueHolder() {
@@ -45,6 +54,44 @@ public class HValueHolder implements Externalizable {
         return value != null ? value.hashCode() : 0;
     }
 
+    /**
+     * Returns the same bytes as encoding a scalar value of the given type with a {@link io.hdocdb.util.Codec},
+     * without creating the value or an object stream.
+     */
+    public static byte[] encode(Value.Type type, byte[] rawBytes) {
+        // the data written by writeExternal
+        byte[] data = new byte[1 + Integer.BYTES + rawBytes.length];
+        data[0] = type.getCode();
+        int len = rawBytes.length;
+        data[1] = (byte) (len >>> 24);
+        data[2] = (byte) (len >>> 16);
+        data[3] = (byte) (len >>> 8);
+        data[4] = (byte) len;
+        System.arraycopy(rawBytes, 0, data, 5, len);
+
+        // the stream header, followed by the data in blocks as written by an ObjectOutputStream
+        int blocks = (data.length + MAX_BLOCK_SIZE - 1) / MAX_BLOCK_SIZE;
+        byte[] bytes = new byte[STREAM_HEADER.length + blocks * 5 + data.length];
+        System.arraycopy(STREAM_HEADER, 0, bytes, 0, STREAM_HEADER.length);
+        int pos = STREAM_HEADER.length;
+        for (int off = 0; off < data.length; off += MAX_BLOCK_SIZE) {
+            int blockLen = Math.min(MAX_BLOCK_SIZE, data.length - off);
+            if (blockLen <= 0xFF) {
+                bytes[pos++] = ObjectStreamConstants.TC_BLOCKDATA;
+                bytes[pos++] = (byte) blockLen;
+            } else {
+                bytes[pos++] = ObjectStreamConstants.TC_BLOCKDATALONG;
+                bytes[pos++] = (byte) (blockLen >>> 24);
+                bytes[pos++] = (byte) (blockLen >>> 16);
+                bytes[pos++] = (byte) (blockLen >>> 8);
+                bytes[pos++] = (byte) blockLen;
+            }
+            System.arraycopy(data, off, bytes, pos, blockLen);
+            pos += blockLen;
+        }
+        return pos == bytes.length ? bytes : Arrays.copyOf(bytes, pos);
+    }
+
     public void readExternal(ObjectInput input) throws IOException {
         this.value = readValueExternal(input);
     }
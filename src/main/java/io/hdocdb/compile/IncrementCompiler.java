@@ -0,0 +1,113 @@
+package io.hdocdb.compile;
+
+import io.hdocdb.HDocument;
+import io.hdocdb.HValue;
+import io.hdocdb.HValueHolder;
+import io.hdocdb.execute.MutationPlan;
+import io.hdocdb.util.Codec;
+import org.apache.hadoop.hbase.DoNotRetryIOException;
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.RowMutations;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.filter.CompareFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.ojai.Document;
+import org.ojai.FieldPath;
+import org.ojai.Value;
+import org.ojai.store.exceptions.StoreException;
+import org.ojai.types.OTimestamp;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Compiles increments of counters, which are stored as raw longs so that
+ * HBase can apply them atomically without a prior read.
+ *
+ * If a document is given, the counters are instead rewritten from the values
+ * in the document, which is needed when they were not yet stored as counters.
+ */
+public class IncrementCompiler {
+
+    private Table table;
+    private String family;
+    private HValue id;
+    private Map<FieldPath, Long> increments;
+    private HDocument doc;
+
+    public IncrementCompiler(Table table, String family, Value id, Map<FieldPath, Long> increments, Document doc) {
+        this.table = table;
+        this.family = family;
+        this.id = HValue.initFromValue(id);
+        this.increments = increments;
+        this.doc = doc != null ? HValue.initFromDocument(doc) : null;
+    }
+
+    public MutationPlan compile() throws StoreException {
+        try {
+            final RowMutations mutations = constructMutations(id);
+
+            return new MutationPlan() {
+                public boolean execute() throws StoreException {
+                    try {
+                        if (doc != null) {
+                            Codec<HValueHolder> codec = new Codec<>();
+                            byte[] tsBytes = codec.encode(new HValueHolder(new HValue(new OTimestamp(doc.getTs()))));
+                            return table.checkAndMutate(mutations.getRow(), Bytes.toBytes(family),
+                                    Bytes.toBytes(HDocument.TS), CompareFilter.CompareOp.EQUAL, tsBytes, mutations);
+                        } else {
+                            table.mutateRow(mutations);
+                            return true;
+                        }
+                    } catch (DoNotRetryIOException e) {
+                        // an existing value is not stored as a counter
+                        if (doc == null) return false;
+                        throw new StoreException(e);
+                    } catch (IOException e) {
+                        throw new StoreException(e);
+                    }
+                }
+            };
+        } catch (Exception e) {
+            throw new StoreException(e);
+        }
+    }
+
+    private RowMutations constructMutations(HValue id) throws IOException {
+        Codec<HValueHolder> codec = new Codec<>();
+        byte[] idBytes = codec.encode(new HValueHolder(id));
+        RowMutations mutations = new RowMutations(idBytes);
+        Put put = new Put(idBytes);
+        long now = System.currentTimeMillis();
+        // always change "_ts", so that the check of a writer that read the same document fails
+        if (doc != null) now = Math.max(now, doc.getTs() + 1);
+        HValue ts = new HValue(new OTimestamp(now));
+        ts.fillPut(put, family, HDocument.TS_PATH);
+        if (doc != null) {
+            for (Map.Entry<FieldPath, Long> entry : increments.entrySet()) {
+                long value = getCurrentValue(entry.getKey()) + entry.getValue();
+                put.addColumn(Bytes.toBytes(family), Bytes.toBytes(entry.getKey().asPathString()), Bytes.toBytes(value));
+            }
+            mutations.add(put);
+        } else {
+            mutations.add(put);
+            Increment increment = new Increment(idBytes);
+            for (Map.Entry<FieldPath, Long> entry : increments.entrySet()) {
+                increment.addColumn(Bytes.toBytes(family), Bytes.toBytes(entry.getKey().asPathString()), entry.getValue());
+            }
+            mutations.add(increment);
+        }
+        return mutations;
+    }
+
+    private long getCurrentValue(FieldPath path) {
+        HValue value = doc.getHValue(path);
+        if (value == null) return 0L;
+        Object obj = value.getObject();
+        if (!(obj instanceof Number)) {
+            throw new IllegalArgumentException("Cannot increment non-number");
+        }
+        return ((Number) obj).longValue();
+    }
+}
@@ -5,6 +5,7 @@ import io.hdocdb.HValue;
 import io.hdocdb.HValueHolder;
 import io.hdocdb.execute.MutationPlan;
 import io.hdocdb.store.Index;
+import io.hdocdb.store.StorageMode;
 import io.hdocdb.util.Codec;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Table;
@@ -23,15 +24,17 @@ public class InsertCompiler {
     private Table table;
     private Table indexTable;
     private String family;
+    private StorageMode mode;
     private Collection<Index> indexes;
     private HValue id;
     private HDocument doc;
 
-    public InsertCompiler(Table table, Table indexTable, String family, Collection<Index> indexes,
-                          Value id, Document doc) {
+    public InsertCompiler(Table table, Table indexTable, String family, StorageMode mode,
+                          Collection<Index> indexes, Value id, Document doc) {
         this.table = table;
         this.indexTable = indexTable;
         this.family = family;
+        this.mode = mode;
         this.indexes = indexes;
         this.id = HValue.initFromValue(id);
         this.doc = doc != null ? HValue.initFromDocument(doc) : null;
@@ -65,7 +68,7 @@ public class InsertCompiler {
         long now = System.currentTimeMillis();
         HValue ts = new HValue(new OTimestamp(now));
         ts.fillPut(put, family, HDocument.TS_PATH);
-        doc.fillPut(put, family, FieldPath.EMPTY);
+        doc.fillPut(put, family, FieldPath.EMPTY, mode);
         return put;
     }
 
@@ -2,7 +2,9 @@ package io.hdocdb.compile;
 
 import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import io.hdocdb.HDocument;
+import io.hdocdb.HList;
 import io.hdocdb.HValue;
 import io.hdocdb.HValueHolder;
 import io.hdocdb.execute.MutationPlan;
@@ -15,14 +17,15 @@ import org.apache.hadoop.hbase.util.OrderedBytes;
 import org.apache.hadoop.hbase.util.PositionedByteRange;
 import org.apache.hadoop.hbase.util.SimplePositionedMutableByteRange;
 import org.ojai.Document;
-import org.ojai.FieldPath;
 import org.ojai.Value;
 import org.ojai.store.exceptions.StoreException;
 import org.ojai.types.OTimestamp;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
 public class InsertIndexCompiler {
 
@@ -30,12 +33,24 @@ public class InsertIndexCompiler {
     private Collection<Index> indexes;
     private HValue id;
     private HDocument doc;
+    private boolean partialDocument;
 
     public InsertIndexCompiler(Table indexTable, Collection<Index> indexes, Value id, Document doc) {
+        this(indexTable, indexes, id, doc, false);
+    }
+
+    /**
+     * @param partialDocument whether the document may only contain some of its fields, as with
+     *                        updates that do not read the document, in which case no entries
+     *                        are written for partial indexes
+     */
+    public InsertIndexCompiler(Table indexTable, Collection<Index> indexes, Value id, Document doc,
+                               boolean partialDocument) {
         this.indexTable = indexTable;
         this.indexes = indexes;
         this.id = HValue.initFromValue(id);
         this.doc = doc != null ? HValue.initFromDocument(doc) : null;
+        this.partialDocument = partialDocument;
     }
 
     public MutationPlan compile() throws StoreException {
@@ -67,32 +82,84 @@ public class InsertIndexCompiler {
         }
     }
 
+    /**
+     * Returns the index puts without executing them, so that they can be batched with others.
+     */
+    public List<Put> compilePuts() throws StoreException {
+        try {
+            return constructIndexPuts(id);
+        } catch (IOException e) {
+            throw new StoreException(e);
+        }
+    }
+
     private List<Put> constructIndexPuts(HValue id) throws IOException {
         List<Put> batch = Lists.newArrayList();
         if (doc == null) return batch;
         for (Index index : indexes) {
             if (index.getState() != Index.State.INACTIVE && index.getState() != Index.State.DROPPED) {
-                Put put = constructIndexPut(index, id);
-                if (put != null) batch.add(put);
+                constructIndexPuts(index, id, batch);
             }
         }
         return batch;
     }
 
-    private Put constructIndexPut(Index index, HValue id) throws IOException {
-        if (doc == null) return null;
-        PositionedByteRange indexKey = new SimplePositionedMutableByteRange(4096);
-        OrderedBytes.encodeString(indexKey, index.getName(), org.apache.hadoop.hbase.util.Order.ASCENDING);
+    private void constructIndexPuts(Index index, HValue id, List<Put> batch) throws IOException {
+        if (partialDocument) {
+            // the filter cannot be evaluated without the document, which is read
+            // for any update of the fields of a partial index
+            if (index.getFilter() != null) return;
+        } else if (!index.matchesFilter(doc)) {
+            return;
+        }
+        List<List<HValue>> fieldValues = Lists.newArrayList();
+        int numEntries = 1;
+        boolean hasValue = false;
         for (IndexFieldPath element : index.getFields()) {
-            FieldPath fieldPath = element.getPath();
-            String path = fieldPath.asPathString();
-            HValue value = doc.getHValue(fieldPath);
-            // currently we do not support sparse indexes
-            if (value == null || value.getType() != element.getType()) {
-                value = HValue.NULL;
+            List<HValue> values = getIndexValues(index, element);
+            if (values.get(0).getType() != Value.Type.NULL) hasValue = true;
+            numEntries *= values.size();
+            if (numEntries > Index.MAX_MULTIKEY_ENTRIES) {
+                throw new StoreException("Document " + id + " has more than " + Index.MAX_MULTIKEY_ENTRIES
+                        + " entries for index " + index.getName());
             }
-            OrderedBytes.encodeString(indexKey, path, org.apache.hadoop.hbase.util.Order.ASCENDING);
-            value.orderedEncode(indexKey, element.getOrder());
+            fieldValues.add(values);
+        }
+        if (index.isSparse() && !hasValue) return;
+
+        long now = System.currentTimeMillis();
+        // one entry for each combination of values, which is only one for an index that is not multikey
+        for (List<HValue> values : Lists.cartesianProduct(fieldValues)) {
+            batch.add(constructIndexPut(index, id, values, now));
+        }
+    }
+
+    /*
+     * Returns the values to index for the given field, which are the distinct elements of
+     * the indexed type for an array in a multikey index.  A missing value, or one of the
+     * wrong type, is indexed as null.
+     */
+    private List<HValue> getIndexValues(Index index, IndexFieldPath element) {
+        HValue value = doc.getHValue(element.getPath());
+        if (value != null && value.getType() == Value.Type.ARRAY && index.isMultikey()) {
+            Set<HValue> elements = Sets.newLinkedHashSet();
+            for (HValue e : ((HList) value).getHValues()) {
+                if (e != null && e.getType() == element.getType()) elements.add(e);
+            }
+            if (!elements.isEmpty()) return Lists.newArrayList(elements);
+        } else if (value != null && value.getType() == element.getType()) {
+            return Collections.singletonList(value);
+        }
+        return Collections.singletonList(HValue.NULL);
+    }
+
+    private Put constructIndexPut(Index index, HValue id, List<HValue> values, long now) throws IOException {
+        PositionedByteRange indexKey = new SimplePositionedMutableByteRange(4096);
+        OrderedBytes.encodeString(indexKey, index.getName(), org.apache.hadoop.hbase.util.Order.ASCENDING);
+        for (int i = 0; i < index.size(); i++) {
+            IndexFieldPath element = index.getField(i);
+            OrderedBytes.encodeString(indexKey, element.getPath().asPathString(), org.apache.hadoop.hbase.util.Order.ASCENDING);
+            values.get(i).orderedEncode(indexKey, element.getOrder());
         }
 
         // encode ID so indexKey is unique
@@ -106,7 +173,6 @@ public class InsertIndexCompiler {
         indexKey.setPosition(0);
         byte[] bytes = new byte[indexKey.getRemaining()];
         indexKey.get(bytes);
-        long now = System.currentTimeMillis();
         Put put = new Put(bytes, now);  // set timestamp so can be used in deletions
         HValue ts = new HValue(new OTimestamp(now));
         ts.fillPut(put, Index.DEFAULT_FAMILY, HDocument.TS_PATH);
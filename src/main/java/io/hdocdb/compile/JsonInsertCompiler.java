@@ -0,0 +1,378 @@
+package io.hdocdb.compile;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import io.hdocdb.HDocument;
+import io.hdocdb.HList;
+import io.hdocdb.HValue;
+import io.hdocdb.HValueHolder;
+import io.hdocdb.execute.BatchedMutation;
+import io.hdocdb.store.Index;
+import io.hdocdb.store.IndexFieldPath;
+import io.hdocdb.store.StorageMode;
+import io.hdocdb.util.Codec;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.RowMutations;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.ojai.FieldPath;
+import org.ojai.Value;
+import org.ojai.store.exceptions.StoreException;
+import org.ojai.types.ODate;
+import org.ojai.types.OInterval;
+import org.ojai.types.OTime;
+import org.ojai.types.OTimestamp;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Compiles the JSON objects read from a parser into the same mutations as an insert or replace
+ * of the equivalent document, without first building the document.
+ *
+ * <p>Each scalar value is encoded into its cell as it is read.  Only the values of packed arrays
+ * and maps, and the top-level fields that are read by an index, are also built as values, so
+ * that the packed cells and the index entries are computed as they are for a document.
+ */
+public class JsonInsertCompiler {
+
+    private Table indexTable;
+    private byte[] family;
+    private StorageMode mode;
+    private Collection<Index> indexes;
+    private JsonParser parser;
+    private String idField;
+    private Set<String> indexedFields = new HashSet<>();
+
+    private HValue id;
+    private HDocument projection;
+    private List<byte[]> qualifiers = new ArrayList<>();
+    private List<byte[]> values = new ArrayList<>();
+    private Value.Type scalarType;
+    private byte[] scalarBytes;
+
+    /**
+     * @param idField the top-level field whose value is the id of each document
+     */
+    public JsonInsertCompiler(Table indexTable, String family, StorageMode mode, Collection<Index> indexes,
+                              JsonParser parser, String idField) {
+        this.indexTable = indexTable;
+        this.family = Bytes.toBytes(family);
+        this.mode = mode;
+        this.indexes = indexes;
+        this.parser = parser;
+        this.idField = idField;
+        for (Index index : indexes) {
+            for (IndexFieldPath field : index.getFields()) {
+                indexedFields.add(getRootName(field.getPath()));
+            }
+            if (index.getFilter() != null) {
+                for (FieldPath path : index.getFilter().getConditionPaths()) {
+                    indexedFields.add(getRootName(path));
+                }
+            }
+        }
+    }
+
+    private static String getRootName(FieldPath path) {
+        return path.getRootSegment().getNameSegment().getName();
+    }
+
+    /**
+     * Compiles the object at the current token of the parser, leaving the parser at its end.
+     */
+    public BatchedMutation compile() throws StoreException {
+        try {
+            if (parser.currentToken() != JsonToken.START_OBJECT) {
+                throw new StoreException("Expected a JSON object at " + parser.getCurrentLocation());
+            }
+            id = null;
+            projection = null;
+            qualifiers.clear();
+            values.clear();
+            writeFields(new StringBuilder(), parser.nextToken(), true, false);
+            if (id == null) {
+                throw new StoreException("Document has no " + idField + " at " + parser.getCurrentLocation());
+            }
+            List<Put> indexPuts = new InsertIndexCompiler(indexTable, indexes, id,
+                    projection != null ? projection : new HDocument()).compilePuts();
+            return new BatchedMutation(indexPuts, constructMutations());
+        } catch (IOException e) {
+            throw new StoreException(e);
+        }
+    }
+
+    /*
+     * Writes the fields of an object, starting with the given token, up to the end of the object.
+     */
+    private void writeFields(StringBuilder path, JsonToken token, boolean root, boolean indexed) throws IOException {
+        int mark = path.length();
+        for (; token != JsonToken.END_OBJECT; token = parser.nextToken()) {
+            String key = parser.getCurrentName();
+            parser.nextToken();
+            if (root && key.equals(idField)) {
+                id = readValue();
+                // like the _id of a document, which is not one of its fields
+                if (!key.equals(HDocument.ID)) {
+                    appendKey(path, key);
+                    writeValue(path, id, indexedFields.contains(key));
+                }
+            } else if (root && key.equals(HDocument.ID)) {
+                // not stored, as the id is taken from another field
+                parser.skipChildren();
+            } else {
+                appendKey(path, key);
+                writeValue(path, root ? indexedFields.contains(key) : indexed);
+            }
+            path.setLength(mark);
+        }
+    }
+
+    private void appendKey(StringBuilder path, String key) {
+        int mark = path.length();
+        if (mark > 0) path.append('.');
+        path.append(key);
+        if (!isSimpleKey(key)) {
+            // the key is interpreted as a path, as when a document is written
+            String fullPath = FieldPath.parseFrom(path.toString()).asPathString();
+            path.setLength(0);
+            path.append(fullPath);
+        }
+    }
+
+    private static boolean isSimpleKey(String key) {
+        if (key.isEmpty() || Character.isDigit(key.charAt(0))) return false;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_')) return false;
+        }
+        return true;
+    }
+
+    /*
+     * Writes the value at the current token to the given path.
+     */
+    private void writeValue(StringBuilder path, boolean indexed) throws IOException {
+        JsonToken token = parser.currentToken();
+        if (token == JsonToken.START_ARRAY && mode.isPacked(Value.Type.ARRAY, false)
+                || token == JsonToken.START_OBJECT && mode.isPacked(Value.Type.MAP, false)) {
+            writeValue(path, readValue(), indexed);
+        } else if (token == JsonToken.START_ARRAY) {
+            int mark = path.length();
+            int index = 0;
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                path.append('[').append(index++).append(']');
+                writeValue(path, indexed);
+                path.setLength(mark);
+            }
+        } else if (token == JsonToken.START_OBJECT) {
+            JsonToken next = parser.nextToken();
+            if (next == JsonToken.FIELD_NAME && isExtendedType(parser.getCurrentName())) {
+                writeValue(path, readExtendedValue(), indexed);
+            } else {
+                writeFields(path, next, false, indexed);
+            }
+        } else {
+            readScalar();
+            addCell(path, HValueHolder.encode(scalarType, scalarBytes));
+            if (indexed) project(path, HValue.initFromRawBytes(scalarType, scalarBytes));
+        }
+    }
+
+    /*
+     * Writes an already read value to the given path, in a single cell.
+     */
+    private void writeValue(StringBuilder path, HValue value, boolean indexed) throws IOException {
+        if (value.getType() == Value.Type.MAP || value.getType() == Value.Type.ARRAY) {
+            if (!mode.isPacked(value.getType(), false)) {
+                // only ids are read before being written, and they are not expected to be containers
+                throw new StoreException("Unsupported value for " + path + ": " + value.getType());
+            }
+            addCell(path, new Codec<HValueHolder>().encode(new HValueHolder(value)));
+        } else {
+            addCell(path, HValueHolder.encode(value.getType(), value.getRawBytes()));
+        }
+        if (indexed) project(path, value);
+    }
+
+    private void addCell(StringBuilder path, byte[] value) {
+        qualifiers.add(Bytes.toBytes(path.toString()));
+        values.add(value);
+    }
+
+    /*
+     * Adds a value that is read by an index to the partial document used to compute the index entries.
+     */
+    private void project(StringBuilder path, HValue value) {
+        if (projection == null) projection = new HDocument();
+        projection.setHValue(FieldPath.parseFrom(path.toString()).iterator(), value);
+    }
+
+    /*
+     * Reads the value at the current token, leaving the parser at its end.
+     */
+    private HValue readValue() throws IOException {
+        JsonToken token = parser.currentToken();
+        if (token == JsonToken.START_ARRAY) {
+            HList list = new HList();
+            int index = 0;
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                list.set(index++, readValue());
+            }
+            return list;
+        } else if (token == JsonToken.START_OBJECT) {
+            JsonToken next = parser.nextToken();
+            if (next == JsonToken.FIELD_NAME && isExtendedType(parser.getCurrentName())) {
+                return readExtendedValue();
+            }
+            HDocument doc = new HDocument();
+            for (; next != JsonToken.END_OBJECT; next = parser.nextToken()) {
+                String key = parser.getCurrentName();
+                parser.nextToken();
+                doc.set(FieldPath.parseFrom(key), readValue());
+            }
+            return doc;
+        } else {
+            readScalar();
+            return HValue.initFromRawBytes(scalarType, scalarBytes);
+        }
+    }
+
+    /*
+     * Reads the scalar at the current token into its type and raw bytes.
+     */
+    private void readScalar() throws IOException {
+        JsonToken token = parser.currentToken();
+        switch (token) {
+            case VALUE_STRING:
+                scalarType = Value.Type.STRING;
+                scalarBytes = Bytes.toBytes(parser.getText());
+                break;
+            case VALUE_NUMBER_INT:
+                if (parser.getNumberType() == JsonParser.NumberType.BIG_INTEGER) {
+                    scalarType = Value.Type.DECIMAL;
+                    scalarBytes = Bytes.toBytes(new BigDecimal(parser.getBigIntegerValue()));
+                } else {
+                    scalarType = Value.Type.LONG;
+                    scalarBytes = Bytes.toBytes(parser.getLongValue());
+                }
+                break;
+            case VALUE_NUMBER_FLOAT:
+                scalarType = Value.Type.DOUBLE;
+                scalarBytes = Bytes.toBytes(parser.getDoubleValue());
+                break;
+            case VALUE_TRUE:
+            case VALUE_FALSE:
+                scalarType = Value.Type.BOOLEAN;
+                scalarBytes = Bytes.toBytes(token == JsonToken.VALUE_TRUE);
+                break;
+            case VALUE_NULL:
+                scalarType = Value.Type.NULL;
+                scalarBytes = new byte[0];
+                break;
+            default:
+                throw new StoreException("Unexpected " + token + " at " + parser.getCurrentLocation());
+        }
+    }
+
+    private static boolean isExtendedType(String name) {
+        switch (name) {
+            case "$numberLong":
+            case "$numberInt":
+            case "$numberShort":
+            case "$numberByte":
+            case "$numberFloat":
+            case "$decimal":
+            case "$numberDecimal":
+            case "$date":
+            case "$dateDay":
+            case "$time":
+            case "$interval":
+            case "$binary":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /*
+     * Reads a value written as an object with a single field that names its type,
+     * as in the extended JSON of OJAI, leaving the parser at the end of the object.
+     */
+    private HValue readExtendedValue() throws IOException {
+        String name = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+        String text = parser.getValueAsString();
+        if (text == null) throw new StoreException("Invalid " + name + " at " + parser.getCurrentLocation());
+        HValue value;
+        switch (name) {
+            case "$numberLong":
+                value = new HValue(Long.parseLong(text));
+                break;
+            case "$numberInt":
+                value = new HValue(Integer.parseInt(text));
+                break;
+            case "$numberShort":
+                value = new HValue(Short.parseShort(text));
+                break;
+            case "$numberByte":
+                value = new HValue(Byte.parseByte(text));
+                break;
+            case "$numberFloat":
+                value = new HValue(Float.parseFloat(text));
+                break;
+            case "$decimal":
+            case "$numberDecimal":
+                value = new HValue(new BigDecimal(text));
+                break;
+            case "$date":
+                value = token == JsonToken.VALUE_NUMBER_INT
+                        ? new HValue(new OTimestamp(parser.getLongValue()))
+                        : new HValue(OTimestamp.parse(text));
+                break;
+            case "$dateDay":
+                value = new HValue(ODate.parse(text));
+                break;
+            case "$time":
+                value = new HValue(OTime.parse(text));
+                break;
+            case "$interval":
+                value = new HValue(new OInterval(Long.parseLong(text)));
+                break;
+            case "$binary":
+                value = new HValue(ByteBuffer.wrap(Base64.getDecoder().decode(text)));
+                break;
+            default:
+                throw new StoreException("Unknown type " + name);
+        }
+        if (parser.nextToken() != JsonToken.END_OBJECT) {
+            throw new StoreException("Invalid " + name + " at " + parser.getCurrentLocation());
+        }
+        return value;
+    }
+
+    private RowMutations constructMutations() throws IOException {
+        Codec<HValueHolder> codec = new Codec<>();
+        byte[] idBytes = codec.encode(new HValueHolder(id));
+        RowMutations mutations = new RowMutations(idBytes);
+        long now = System.currentTimeMillis();
+        // first delete existing row, as with a replace
+        mutations.add(new Delete(idBytes, now));
+        Put put = new Put(idBytes, now+1);
+        put.addColumn(family, Bytes.toBytes(HDocument.ID), idBytes);
+        put.addColumn(family, Bytes.toBytes(HDocument.TS), codec.encode(new HValueHolder(new HValue(new OTimestamp(now)))));
+        for (int i = 0; i < qualifiers.size(); i++) {
+            put.addColumn(family, qualifiers.get(i), values.get(i));
+        }
+        mutations.add(put);
+        return mutations;
+    }
+}
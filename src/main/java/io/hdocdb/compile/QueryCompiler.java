@@ -2,12 +2,14 @@ package io.hdocdb.compile;
 
 import com.google.common.collect.Lists;
 import io.hdocdb.execute.QueryIndexPlan;
+import io.hdocdb.execute.QueryInfo;
 import io.hdocdb.execute.QueryPlan;
 import io.hdocdb.store.ConditionRange;
 import io.hdocdb.store.HDocumentFilter;
 import io.hdocdb.store.HQueryCondition;
 import io.hdocdb.store.Index;
 import io.hdocdb.store.IndexQueries;
+import io.hdocdb.store.PreparedCondition;
 import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.client.Table;
 import org.ojai.FieldPath;
@@ -34,26 +36,31 @@ public class QueryCompiler {
     private int limit;
     private QueryCondition condition;
     private String[] paths;
+    private QueryPlanCache planCache;
+    private List<QueryIndexPlan> candidatePlans;
+    private String reason;
+    private boolean fullIndexScan;
 
     public QueryCompiler(Table table, Table indexTable, String family, Collection<Index> indexes, boolean reindexArrays,
                          String indexName, QueryCondition condition, String... paths) {
-        this.table = table;
-        this.indexTable = indexTable;
-        this.family = family;
-        this.indexes = indexes;
-        this.reindexArrays = reindexArrays;
-        this.indexName = indexName;
-        this.limit = -1;
-        this.condition = condition;
-        this.paths = paths;
+        this(table, indexTable, family, indexes, null, reindexArrays, indexName, -1, condition, paths);
     }
 
     public QueryCompiler(Table table, Table indexTable, String family, Collection<Index> indexes, boolean reindexArrays,
                          String indexName, int limit, QueryCondition condition, String... paths) {
+        this(table, indexTable, family, indexes, null, reindexArrays, indexName, limit, condition, paths);
+    }
+
+    /**
+     * @param planCache the cache of previously chosen plans, or null to always choose a new plan
+     */
+    public QueryCompiler(Table table, Table indexTable, String family, Collection<Index> indexes, QueryPlanCache planCache,
+                         boolean reindexArrays, String indexName, int limit, QueryCondition condition, String... paths) {
         this.table = table;
         this.indexTable = indexTable;
         this.family = family;
         this.indexes = indexes;
+        this.planCache = planCache;
         this.reindexArrays = reindexArrays;
         this.indexName = indexName;
         this.limit = limit;
@@ -63,41 +70,115 @@ public class QueryCompiler {
 
     public QueryPlan compile() throws StoreException {
         try {
+            long start = System.nanoTime();
+            QueryPlan queryPlan;
             // currently we don't use indexes for projections without conditions
-            QueryIndexPlan plan = chooseBestPlan();
+            QueryIndexPlan plan = choosePlan();
+            long planNanos = System.nanoTime() - start;
             if (plan != null) {
                 Index index = plan.getIndex();
 
                 LOG.debug("Using index {}", index.getName());
 
                 IndexQueries indexQueries = plan.execute();
-                return new QueryPlan(table, indexQueries, reindexArrays, condition, paths);
+                queryPlan = new QueryPlan(table, indexQueries, reindexArrays, condition, paths);
             } else {
                 Scan scan = constructScan();
-                return new QueryPlan(table, scan, reindexArrays, condition, paths);
+                queryPlan = new QueryPlan(table, scan, reindexArrays, condition, paths);
 
             }
+            queryPlan.setExplanation(getCandidates(), reason, planNanos);
+            return queryPlan;
         } catch (IOException e) {
             throw new StoreException(e);
         }
     }
 
+    private QueryIndexPlan choosePlan() {
+        PreparedCondition prepared = condition instanceof PreparedCondition ? (PreparedCondition) condition : null;
+        if (planCache == null && prepared == null) return chooseBestPlan();
+        QueryPlanCache.Key key = QueryPlanCache.newKey((HQueryCondition) condition, paths, indexName, indexes);
+        // a prepared condition keeps its own plan, so it does not depend on the shared cache
+        QueryPlanCache.Entry entry = prepared != null ? prepared.getPlan(key) : null;
+        if (entry == null && planCache != null) entry = planCache.get(key);
+        if (entry != null) {
+            QueryIndexPlan plan = entry.getIndexName() != null ? bindCachedPlan(entry) : null;
+            if (plan != null || entry.getIndexName() == null) {
+                reason = (prepared != null ? "prepared: " : "cached: ") + entry.getReason();
+                if (prepared != null) prepared.setPlan(key, entry);
+                return plan;
+            }
+        }
+        QueryIndexPlan plan = chooseBestPlan();
+        entry = new QueryPlanCache.Entry(plan != null ? plan.getIndex().getName() : null, fullIndexScan, reason);
+        if (planCache != null) planCache.put(key, entry);
+        if (prepared != null) prepared.setPlan(key, entry);
+        return plan;
+    }
+
+    /*
+     * Computes the ranges of the cached index from the values of the condition,
+     * or returns null if the cached index can no longer be used.
+     */
+    private QueryIndexPlan bindCachedPlan(QueryPlanCache.Entry entry) {
+        Index index = null;
+        for (Index i : indexes) {
+            if (i.getName().equals(entry.getIndexName()) && i.getState() == Index.State.ACTIVE) {
+                index = i;
+                break;
+            }
+        }
+        if (index == null) return null;
+        if (entry.isFullIndexScan()) {
+            if (!index.isComplete()) return null;
+            return new QueryIndexCompiler(indexTable, index, condition, paths).compile();
+        }
+        try {
+            Map<FieldPath, ConditionRange> candidateRanges = ((HQueryCondition)condition).getConditionRanges();
+            QueryIndexPlan plan = new QueryIndexCompiler(indexTable, index, candidateRanges, condition, paths).compile();
+            if (plan.isEmpty() || !isUsable(plan)) return null;
+            candidatePlans = Lists.newArrayList(plan);
+            return plan;
+        } catch (Exception e) {
+            // the values do not produce valid ranges, so choose a new plan
+            return null;
+        }
+    }
+
     private QueryIndexPlan chooseBestPlan() {
-        if (Index.NONE.equals(indexName)) return null;
+        if (Index.NONE.equals(indexName)) {
+            reason = "indexes were disabled for the query";
+            return null;
+        }
 
         List<QueryIndexPlan> plans = getIndexPlans();
-        if (plans == null) return null;
+        candidatePlans = plans;
+        if (plans == null) {
+            reason = "the condition cannot be converted to index ranges";
+            return null;
+        }
 
         Index index = getNamedIndex();
         if (index != null) {
             for (QueryIndexPlan plan : plans) {
                 if (plan.getIndex().equals(index)) {
+                    reason = "index " + index.getName() + " was requested";
                     return plan;
                 }
             }
+            if (!index.isComplete()) {
+                reason = "index " + index.getName() + " was requested but does not have entries for every "
+                        + "document matching the condition";
+                return null;
+            }
             // this forces a full scan of the index
+            reason = "index " + index.getName() + " was requested but does not match the condition, so it is fully scanned";
+            fullIndexScan = true;
             return new QueryIndexCompiler(indexTable, index, condition, paths).compile();
         } else if (plans.isEmpty()) {
+            reason = condition == null
+                    ? "the query has no condition"
+                    : "no active index matches the condition";
             return null;
         } else {
             QueryIndexPlan bestPlan = null;
@@ -107,10 +188,21 @@ public class QueryCompiler {
                     bestPlan = plan;
                 }
             }
+            reason = "index " + bestPlan.getIndex().getName() + " matches the most fields (" + bestPlan.size() + ")";
             return bestPlan;
         }
     }
 
+    private List<QueryInfo.Candidate> getCandidates() {
+        List<QueryInfo.Candidate> candidates = Lists.newArrayList();
+        if (candidatePlans != null) {
+            for (QueryIndexPlan plan : candidatePlans) {
+                candidates.add(new QueryInfo.Candidate(plan.getIndex().getName(), plan.size(), plan.getIndexBounds()));
+            }
+        }
+        return candidates;
+    }
+
     private List<QueryIndexPlan> getIndexPlans() throws IllegalStateException {
         List<QueryIndexPlan> plans = Lists.newArrayList();
         if (condition != null) {
@@ -120,7 +212,7 @@ public class QueryCompiler {
                     if (index.getState() == Index.State.ACTIVE) {
                         QueryIndexPlan plan = new QueryIndexCompiler(
                                 indexTable, index, candidateRanges, condition, paths).compile();
-                        if (!plan.isEmpty()) plans.add(plan);
+                        if (!plan.isEmpty() && isUsable(plan)) plans.add(plan);
                     }
                 }
             } catch (Exception e) {
@@ -132,6 +224,17 @@ public class QueryCompiler {
 
     }
 
+    /*
+     * A sparse or partial index only has entries for some documents, so it can only be used
+     * if every document matching the condition has an entry.
+     */
+    private boolean isUsable(QueryIndexPlan plan) {
+        Index index = plan.getIndex();
+        if (index.isComplete()) return true;
+        if (index.isSparse() && !plan.getRanges().get(0).impliesExistence()) return false;
+        return ((HQueryCondition) condition).implies(index.getFilter());
+    }
+
     private Index getNamedIndex() {
         if (indexName == null) return null;
         for (Index index : indexes) {
@@ -2,12 +2,14 @@ package io.hdocdb.compile;
 
 import com.google.common.collect.Lists;
 import io.hdocdb.execute.QueryIndexPlan;
+import io.hdocdb.store.ConditionLeaf;
 import io.hdocdb.store.ConditionRange;
 import io.hdocdb.store.Index;
 import io.hdocdb.store.IndexFieldPath;
 import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.client.Table;
 import org.ojai.FieldPath;
+import org.ojai.Value;
 import org.ojai.store.QueryCondition;
 
 import java.util.List;
@@ -36,6 +38,7 @@ public class QueryIndexCompiler {
         this.ranges = Lists.newArrayList();
         for (IndexFieldPath element : index.getFields()) {
             ConditionRange range = candidateRanges.get(element.getPath());
+            if (range != null && index.isMultikey()) range = getElementRange(range);
             if (range != null) {
                 this.ranges.add(range);
             } else {
@@ -48,6 +51,33 @@ public class QueryIndexCompiler {
         this.paths = paths;
     }
 
+    /*
+     * With "any" semantics, each condition on an array may be matched by a different element,
+     * so a multikey index can only be scanned with the range of one condition, which must
+     * be matched by an element.  The remaining conditions are checked against the document.
+     */
+    private static ConditionRange getElementRange(ConditionRange range) {
+        ConditionLeaf best = null;
+        for (ConditionLeaf condition : range.getConditions()) {
+            if (!isElementCondition(condition)) continue;
+            // prefer an equality
+            if (best == null || condition.getOp() == ConditionLeaf.CompareOp.EQ
+                    && best.getOp() != ConditionLeaf.CompareOp.EQ) {
+                best = condition;
+            }
+        }
+        return best != null ? new ConditionRange(range.getField(), best.getRange(), best) : null;
+    }
+
+    private static boolean isElementCondition(ConditionLeaf condition) {
+        // negations and empty arrays cannot be found by scanning the elements
+        if (!condition.impliesExistence() || condition.getValue() == null) return false;
+        if (condition.getOp() == ConditionLeaf.CompareOp.IN) return true;
+        Value.Type type = condition.getValue().getType();
+        // a whole array or map is compared with the array itself
+        return type != Value.Type.ARRAY && type != Value.Type.MAP;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
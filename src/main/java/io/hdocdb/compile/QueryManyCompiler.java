@@ -0,0 +1,64 @@
+package io.hdocdb.compile;
+
+import io.hdocdb.HValue;
+import io.hdocdb.HValueHolder;
+import io.hdocdb.execute.MultiGet;
+import io.hdocdb.execute.QueryPlan;
+import io.hdocdb.store.HDocumentFilter;
+import io.hdocdb.util.Codec;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Table;
+import org.ojai.Value;
+import org.ojai.store.exceptions.StoreException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+public class QueryManyCompiler {
+
+    private Table table;
+    private String family;
+    private boolean reindexArrays;
+    private Collection<? extends Value> ids;
+    private byte[][] startKeys;
+    private MultiGet.Fetcher fetcher;
+    private String[] paths;
+
+    public QueryManyCompiler(Table table, String family, boolean reindexArrays,
+                             Collection<? extends Value> ids, byte[][] startKeys, MultiGet.Fetcher fetcher,
+                             String... paths) {
+        this.table = table;
+        this.family = family;
+        this.reindexArrays = reindexArrays;
+        this.ids = ids;
+        this.startKeys = startKeys;
+        this.fetcher = fetcher;
+        this.paths = paths;
+    }
+
+    public QueryPlan compile() throws StoreException {
+        try {
+            MultiGet multiGet = new MultiGet(fetcher, constructGets(), startKeys,
+                    MultiGet.DEFAULT_BATCH_SIZE, MultiGet.DEFAULT_PARALLELISM);
+            return new QueryPlan(table, multiGet, reindexArrays, null, paths);
+        } catch (IOException e) {
+            throw new StoreException(e);
+        }
+    }
+
+    private List<Get> constructGets() throws IOException {
+        Codec<HValueHolder> codec = new Codec<>();
+        List<Get> gets = new ArrayList<>(ids.size());
+        for (Value id : ids) {
+            Get get = new Get(codec.encode(new HValueHolder(HValue.initFromValue(id))));
+            if (paths != null && paths.length > 0) {
+                get.setFilter(new HDocumentFilter(null, false, paths));
+            }
+            gets.add(get);
+        }
+        return gets;
+    }
+
+}
@@ -21,15 +21,22 @@ public class QueryOneCompiler {
     private HValue id;
     private QueryCondition condition;
     private String[] paths;
+    private boolean includeAncestors;
 
     public QueryOneCompiler(Table table, String family,
                             boolean reindexArrays, Value id, QueryCondition condition, String... paths) {
+        this(table, family, reindexArrays, id, condition, false, paths);
+    }
+
+    public QueryOneCompiler(Table table, String family, boolean reindexArrays, Value id,
+                            QueryCondition condition, boolean includeAncestors, String... paths) {
         this.table = table;
         this.family = family;
         this.reindexArrays = reindexArrays;
         this.id = HValue.initFromValue(id);
         this.condition = condition;
         this.paths = paths;
+        this.includeAncestors = includeAncestors;
     }
 
     public QueryPlan compile() throws StoreException {
@@ -45,7 +52,7 @@ public class QueryOneCompiler {
         byte[] idBytes = codec.encode(new HValueHolder(id));
         Get get = new Get(idBytes);
         if (condition != null || (paths != null && paths.length > 0)) {
-            get.setFilter(new HDocumentFilter(condition, paths));
+            get.setFilter(new HDocumentFilter(condition, includeAncestors, paths));
         }
         return get;
     }
@@ -0,0 +1,137 @@
+package io.hdocdb.compile;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.hdocdb.store.HQueryCondition;
+import io.hdocdb.store.Index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the choice of plan made by {@link QueryCompiler}, keyed by the shape of the
+ * condition (its structure and value types, but not its values), the projection,
+ * the requested index and the definitions and states of the indexes.
+ *
+ * On a hit only the index ranges of the chosen plan are computed from the values of
+ * the condition, instead of a plan for every active index.
+ */
+public class QueryPlanCache {
+
+    private final Cache<Key, Entry> plans;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    public QueryPlanCache(int maximumSize) {
+        this.plans = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .build();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long size() {
+        return plans.size();
+    }
+
+    public void invalidateAll() {
+        plans.invalidateAll();
+    }
+
+    Entry get(Key key) {
+        Entry entry = plans.getIfPresent(key);
+        if (entry != null) {
+            hitCount.incrementAndGet();
+        } else {
+            missCount.incrementAndGet();
+        }
+        return entry;
+    }
+
+    void put(Key key, Entry entry) {
+        plans.put(key, entry);
+    }
+
+    static Key newKey(HQueryCondition condition, String[] paths, String indexName, Collection<Index> indexes) {
+        List<String> indexStates = new ArrayList<>();
+        for (Index index : indexes) {
+            indexStates.add(index.getName() + ":" + index.getState() + ":" + index.getPaths() + ":"
+                    + index.isSparse() + ":" + index.isMultikey() + ":" + index.getFilter());
+        }
+        return new Key(condition != null ? condition.getShape(true) : "",
+                paths != null ? Arrays.asList(paths) : Collections.emptyList(), indexName, indexStates);
+    }
+
+    public static final class Key {
+        private final String shape;
+        private final List<String> paths;
+        private final String indexName;
+        private final List<String> indexStates;
+
+        Key(String shape, List<String> paths, String indexName, List<String> indexStates) {
+            this.shape = shape;
+            this.paths = paths;
+            this.indexName = indexName;
+            this.indexStates = indexStates;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Key key = (Key) o;
+
+            if (!shape.equals(key.shape)) return false;
+            if (!paths.equals(key.paths)) return false;
+            if (!Objects.equals(indexName, key.indexName)) return false;
+            return indexStates.equals(key.indexStates);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = shape.hashCode();
+            result = 31 * result + paths.hashCode();
+            result = 31 * result + Objects.hashCode(indexName);
+            result = 31 * result + indexStates.hashCode();
+            return result;
+        }
+    }
+
+    public static final class Entry {
+        // the chosen index, or null for a full table scan
+        private final String indexName;
+        // whether the chosen index does not match the condition and is fully scanned
+        private final boolean fullIndexScan;
+        private final String reason;
+
+        Entry(String indexName, boolean fullIndexScan, String reason) {
+            this.indexName = indexName;
+            this.fullIndexScan = fullIndexScan;
+            this.reason = reason;
+        }
+
+        String getIndexName() {
+            return indexName;
+        }
+
+        boolean isFullIndexScan() {
+            return fullIndexScan;
+        }
+
+        String getReason() {
+            return reason;
+        }
+    }
+}
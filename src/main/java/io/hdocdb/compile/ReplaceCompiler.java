@@ -3,8 +3,10 @@ package io.hdocdb.compile;
 import io.hdocdb.HDocument;
 import io.hdocdb.HValue;
 import io.hdocdb.HValueHolder;
+import io.hdocdb.execute.BatchedMutation;
 import io.hdocdb.execute.MutationPlan;
 import io.hdocdb.store.Index;
+import io.hdocdb.store.StorageMode;
 import io.hdocdb.util.Codec;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Put;
@@ -20,22 +22,25 @@ import org.ojai.types.OTimestamp;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.List;
 
 public class ReplaceCompiler {
 
     private Table table;
     private Table indexTable;
     private String family;
+    private StorageMode mode;
     private Collection<Index> indexes;
     private HValue id;
     private HDocument newDoc;
     private HDocument oldDoc;
 
-    public ReplaceCompiler(Table table, Table indexTable, String family, Collection<Index> indexes,
-                           Value id, Document newDoc, Document oldDoc) {
+    public ReplaceCompiler(Table table, Table indexTable, String family, StorageMode mode,
+                           Collection<Index> indexes, Value id, Document newDoc, Document oldDoc) {
         this.table = table;
         this.indexTable = indexTable;
         this.family = family;
+        this.mode = mode;
         this.indexes = indexes;
         this.id = HValue.initFromValue(id);
         this.newDoc = newDoc != null ? HValue.initFromDocument(newDoc) : null;
@@ -81,6 +86,19 @@ public class ReplaceCompiler {
         }
     }
 
+    /**
+     * Returns the mutations without executing them, so that they can be batched with others.
+     */
+    public BatchedMutation compileBatched() throws StoreException {
+        if (oldDoc != null) throw new IllegalStateException("A replace that checks the existing document cannot be batched");
+        try {
+            List<Put> indexPuts = new InsertIndexCompiler(indexTable, indexes, id, newDoc).compilePuts();
+            return new BatchedMutation(indexPuts, constructMutations(id));
+        } catch (IOException e) {
+            throw new StoreException(e);
+        }
+    }
+
     private RowMutations constructMutations(HValue id) throws IOException {
         Codec<HValueHolder> codec = new Codec<>();
         byte[] idBytes = codec.encode(new HValueHolder(id));
@@ -93,9 +111,10 @@ public class ReplaceCompiler {
         // See https://issues.apache.org/jira/browse/HBASE-8626
         Put put = new Put(idBytes, now+1);
         id.fillPut(put, family, HDocument.ID_PATH);
-        HValue ts = new HValue(new OTimestamp(now));
+        // always change "_ts", so that the check of a writer that read the same document fails
+        HValue ts = new HValue(new OTimestamp(oldDoc != null ? Math.max(now, oldDoc.getTs() + 1) : now));
         ts.fillPut(put, family, HDocument.TS_PATH);
-        newDoc.fillPut(put, family, FieldPath.EMPTY);
+        newDoc.fillPut(put, family, FieldPath.EMPTY, mode);
         mutations.add(put);
         return mutations;
     }
@@ -3,9 +3,11 @@ package io.hdocdb.compile;
 import io.hdocdb.HDocument;
 import io.hdocdb.HValue;
 import io.hdocdb.HValueHolder;
+import io.hdocdb.execute.BatchedMutation;
 import io.hdocdb.execute.MutationPlan;
 import io.hdocdb.store.HDocumentMutation;
 import io.hdocdb.store.Index;
+import io.hdocdb.store.StorageMode;
 import io.hdocdb.util.Codec;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.RowMutations;
@@ -20,22 +22,25 @@ import org.ojai.types.OTimestamp;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.List;
 
 public class UpdateCompiler {
 
     private Table table;
     private Table indexTable;
     private String family;
+    private StorageMode mode;
     private Collection<Index> indexes;
     private HValue id;
     private DocumentMutation mutation;
     private HDocument doc;
 
-    public UpdateCompiler(Table table, Table indexTable, String family, Collection<Index> indexes,
-                          Value id, DocumentMutation m, Document doc) {
+    public UpdateCompiler(Table table, Table indexTable, String family, StorageMode mode,
+                          Collection<Index> indexes, Value id, DocumentMutation m, Document doc) {
         this.table = table;
         this.indexTable = indexTable;
         this.family = family;
+        this.mode = mode;
         this.indexes = indexes;
         this.id = HValue.initFromValue(id);
         this.mutation = m;
@@ -44,8 +49,11 @@ public class UpdateCompiler {
 
     public MutationPlan compile() throws StoreException {
         try {
-            HDocument sourceDoc = doc != null ? doc : ((HDocumentMutation)mutation).asDocument();
-            MutationPlan indexPlan = new InsertIndexCompiler(indexTable, indexes, id, sourceDoc).compile();
+            // the filters of partial indexes can only be applied to a document that was read
+            HDocument sourceDoc = doc != null
+                    ? ((HDocumentMutation)mutation).applyTo(doc)
+                    : ((HDocumentMutation)mutation).asDocument();
+            MutationPlan indexPlan = new InsertIndexCompiler(indexTable, indexes, id, sourceDoc, doc == null).compile();
             final RowMutations mutations = constructMutations(id);
 
             return new MutationPlan() {
@@ -71,16 +79,32 @@ public class UpdateCompiler {
         }
     }
 
+    /**
+     * Returns the mutations without executing them, so that they can be batched with others.
+     */
+    public BatchedMutation compileBatched() throws StoreException {
+        if (doc != null) throw new IllegalStateException("A read-modify-write update cannot be batched");
+        try {
+            HDocument sourceDoc = ((HDocumentMutation)mutation).asDocument();
+            List<Put> indexPuts = new InsertIndexCompiler(indexTable, indexes, id, sourceDoc, true).compilePuts();
+            return new BatchedMutation(indexPuts, constructMutations(id));
+        } catch (IOException e) {
+            throw new StoreException(e);
+        }
+    }
+
     private RowMutations constructMutations(HValue id) throws IOException {
         Codec<HValueHolder> codec = new Codec<>();
         byte[] idBytes = codec.encode(new HValueHolder(id));
         RowMutations mutations = new RowMutations(idBytes);
         Put put = new Put(idBytes);
         long now = System.currentTimeMillis();
+        // always change "_ts", so that the check of a writer that read the same document fails
+        if (doc != null) now = Math.max(now, doc.getTs() + 1);
         HValue ts = new HValue(new OTimestamp(now));
         ts.fillPut(put, family, HDocument.TS_PATH);
         mutations.add(put);
-        ((HDocumentMutation)mutation).fillMutations(mutations, family, doc);
+        ((HDocumentMutation)mutation).fillMutations(mutations, family, doc, mode);
         return mutations;
     }
 
@@ -0,0 +1,29 @@
+package io.hdocdb.execute;
+
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.RowMutations;
+
+import java.util.List;
+
+/**
+ * The index puts and row mutations of a non-conditional write,
+ * which can be applied together with those of other writes.
+ */
+public class BatchedMutation {
+
+    private List<Put> indexPuts;
+    private RowMutations mutations;
+
+    public BatchedMutation(List<Put> indexPuts, RowMutations mutations) {
+        this.indexPuts = indexPuts;
+        this.mutations = mutations;
+    }
+
+    public List<Put> getIndexPuts() {
+        return indexPuts;
+    }
+
+    public RowMutations getMutations() {
+        return mutations;
+    }
+}
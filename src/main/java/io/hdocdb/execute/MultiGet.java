@@ -0,0 +1,129 @@
+package io.hdocdb.execute;
+
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Fetches the rows for a list of gets, returning their results in the order of the gets.
+ *
+ * <p>The gets are grouped into batches by the region that holds their row, so that each
+ * batch is served by a single region server.  The batches are fetched in parallel, in the
+ * order in which their first get appears, with at most a fixed number of batches ahead of
+ * the one being read.  Each batch is fetched by a {@link Fetcher}, which is expected to run it
+ * on a thread owned by the database, with a table of its own, as tables are not thread-safe.
+ */
+public class MultiGet implements Closeable {
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final int DEFAULT_PARALLELISM = 8;
+
+    /**
+     * Starts fetching the results of a batch of gets.
+     */
+    public interface Fetcher {
+        Future<Result[]> fetch(List<Get> gets);
+    }
+
+    private final Fetcher fetcher;
+    private final int parallelism;
+    private final List<List<Get>> batches = new ArrayList<>();
+    private final int[] batchOf;
+    private final int[] offsetOf;
+    private final int[] remaining;
+    private final Future<Result[]>[] futures;
+    private final Result[][] results;
+    private int submitted = 0;
+    private int position = 0;
+    private boolean closed = false;
+
+    @SuppressWarnings("unchecked")
+    public MultiGet(Fetcher fetcher, List<Get> gets, byte[][] startKeys, int batchSize, int parallelism) {
+        this.fetcher = fetcher;
+        this.parallelism = parallelism;
+        this.batchOf = new int[gets.size()];
+        this.offsetOf = new int[gets.size()];
+        // the batch that is being filled for each region
+        int[] open = new int[startKeys.length];
+        Arrays.fill(open, -1);
+        for (int i = 0; i < gets.size(); i++) {
+            Get get = gets.get(i);
+            int region = Arrays.binarySearch(startKeys, get.getRow(), Bytes.BYTES_COMPARATOR);
+            if (region < 0) region = Math.max(-region - 2, 0);
+            int batch = open[region];
+            if (batch == -1 || batches.get(batch).size() >= batchSize) {
+                batch = batches.size();
+                batches.add(new ArrayList<>(batchSize));
+                open[region] = batch;
+            }
+            batchOf[i] = batch;
+            offsetOf[i] = batches.get(batch).size();
+            batches.get(batch).add(get);
+        }
+        this.remaining = new int[batches.size()];
+        for (int i = 0; i < remaining.length; i++) {
+            remaining[i] = batches.get(i).size();
+        }
+        this.futures = new Future[batches.size()];
+        this.results = new Result[batches.size()][];
+    }
+
+    /**
+     * Returns the result of the next get, which is empty if its row does not exist,
+     * or null once all of the results have been returned.
+     */
+    public Result next() throws IOException {
+        if (closed || position >= batchOf.length) return null;
+        int batch = batchOf[position];
+        Result result = await(batch)[offsetOf[position]];
+        position++;
+        if (--remaining[batch] == 0) {
+            // the batch has been read, so its results can be released
+            results[batch] = null;
+        }
+        return result;
+    }
+
+    private Result[] await(int batch) throws IOException {
+        if (results[batch] != null) return results[batch];
+        while (submitted < batches.size() && submitted < batch + parallelism) {
+            List<Get> gets = batches.get(submitted);
+            futures[submitted++] = fetcher.fetch(gets);
+        }
+        try {
+            results[batch] = futures[batch].get();
+            futures[batch] = null;
+            return results[batch];
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while fetching rows");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Cancels any batches that are still being fetched.
+     */
+    public void close() {
+        closed = true;
+        for (int i = 0; i < futures.length; i++) {
+            if (futures[i] != null) {
+                futures[i].cancel(true);
+                futures[i] = null;
+            }
+            results[i] = null;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package io.hdocdb.execute;
 
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import io.hdocdb.HDocument;
 import io.hdocdb.HValue;
 import io.hdocdb.HValueHolder;
@@ -31,6 +32,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class QueryIndexPlan {
 
@@ -65,6 +67,17 @@ public class QueryIndexPlan {
         return ranges.size();
     }
 
+    /**
+     * Returns the bounds of the index scan, keyed by the indexed path.
+     */
+    public Map<String, String> getIndexBounds() {
+        Map<String, String> bounds = Maps.newLinkedHashMap();
+        for (int i = 0; i < ranges.size(); i++) {
+            bounds.put(index.getField(i).getPath().asPathString(), ranges.get(i).getRange().toString());
+        }
+        return bounds;
+    }
+
     public boolean isEmpty() {
         return ranges.isEmpty();
     }
@@ -90,6 +103,8 @@ public class QueryIndexPlan {
 
     public IndexQueries execute() {
         try {
+            long start = System.nanoTime();
+            long rowsScanned = 0;
             if (ranges.size() > 0) {
                 setupRangeScan();
             } else {
@@ -99,10 +114,11 @@ public class QueryIndexPlan {
             Codec<HValueHolder> codec = new Codec<>();
             // a list of point gets
             IndexQueries indexQueries = new IndexQueries(indexTable, index, ranges);
-            // a list of docs
-            Map<HValue, HDocument> docs = Maps.newHashMap();
+            // the ids already fetched, as a multikey index has an entry for each element of an array
+            Set<HValue> ids = Sets.newHashSet();
             try (ResultScanner indexResult = indexTable.getScanner(scan)) {
                 for (Result result : indexResult) {
+                    rowsScanned++;
                     byte[] indexRowKey = result.getRow();
 
                     boolean skip = false;
@@ -138,14 +154,17 @@ public class QueryIndexPlan {
                     HValue indexTsValue = codec.decode(CellUtil.cloneValue(indexTsCell), new HValueHolder()).getValue();
                     long indexTs = indexTsValue.getTimestampAsLong();
 
-                    if (indexQueries.getConditionFromRanges().evaluate(doc)) {
-                        if (docs.containsKey(id)) continue;
-                        docs.put(id, doc);
+                    if (indexQueries.getCompiledConditionFromRanges().evaluate(doc)) {
+                        if (!ids.add(id)) continue;
                         Get get = new Get(idBytes);
                         String[] allPaths = condition != null
                             ? Paths.asPathStrings(((HQueryCondition)condition).getConditionPaths(), paths)
                             : paths;
                         if (allPaths != null && allPaths.length > 0) {
+                            // the filter of a partial index is also checked to determine if the index is stale
+                            if (index.getFilter() != null) {
+                                allPaths = Paths.asPathStrings(index.getFilter().getConditionPaths(), allPaths);
+                            }
                             // don't set a condition on the filter for the Get as we want to check
                             // the condition on the client to determine if the index is stale
                             get.setFilter(new HDocumentFilter(null, allPaths));
@@ -154,6 +173,7 @@ public class QueryIndexPlan {
                     }
                 }
             }
+            indexQueries.setScanStatistics(rowsScanned, System.nanoTime() - start);
             return indexQueries;
         } catch (ClassNotFoundException | IOException e) {
             throw new StoreException(e);
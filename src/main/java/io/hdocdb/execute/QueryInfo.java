@@ -3,6 +3,9 @@ package io.hdocdb.execute;
 import io.hdocdb.HDocument;
 import org.ojai.Document;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 public class QueryInfo {
@@ -12,11 +15,59 @@ public class QueryInfo {
         INDEX_SCAN
     }
 
+    /**
+     * An index plan that was considered for the query.
+     */
+    public static class Candidate {
+
+        private String indexName;
+        private int matchingFields;
+        private Map<String, String> indexBounds;
+
+        public Candidate(String indexName, int matchingFields, Map<String, String> indexBounds) {
+            this.indexName = indexName;
+            this.matchingFields = matchingFields;
+            this.indexBounds = indexBounds;
+        }
+
+        public String getIndexName() {
+            return indexName;
+        }
+
+        public int getMatchingFields() {
+            return matchingFields;
+        }
+
+        public Map<String, String> getIndexBounds() {
+            return indexBounds;
+        }
+
+        public Document asDocument() {
+            Document doc = new HDocument();
+            doc.set("indexName", indexName);
+            doc.set("matchingFields", matchingFields);
+            doc.set("indexBounds", indexBounds);
+            return doc;
+        }
+    }
+
     private QueryType type;
     private String indexName;
     private Map<String, String> indexBounds;
     private int scannedIndexesCount;
     private int staleIndexesRunningCount;
+    private List<Candidate> candidates = Collections.emptyList();
+    private String reason;
+    // runtime statistics, which cover only the part of the stream that has been read
+    private long indexRowsScanned;
+    private long baseRowsFetched;
+    private long rowsRejected;
+    private long staleIndexesFound;
+    private long rowsReturned;
+    private long bytesRead;
+    private long planNanos;
+    private long indexScanNanos;
+    private long fetchNanos;
 
     public QueryInfo(QueryType type) {
         this.type = type;
@@ -51,6 +102,116 @@ public class QueryInfo {
         return staleIndexesRunningCount;
     }
 
+    /**
+     * Returns the index plans that were considered, whether or not they were chosen.
+     */
+    public List<Candidate> getCandidates() {
+        return candidates;
+    }
+
+    /**
+     * Returns why the plan was chosen over the other candidates.
+     */
+    public String getReason() {
+        return reason;
+    }
+
+    public void setCandidates(List<Candidate> candidates, String reason) {
+        this.candidates = candidates;
+        this.reason = reason;
+    }
+
+    /**
+     * Returns the number of index rows read by the index scan.
+     */
+    public long getIndexRowsScanned() {
+        return indexRowsScanned;
+    }
+
+    public void setIndexRowsScanned(long indexRowsScanned) {
+        this.indexRowsScanned = indexRowsScanned;
+    }
+
+    /**
+     * Returns the number of rows fetched from the table.  For a full table scan,
+     * rows that do not match the condition are filtered on the server and are not counted.
+     */
+    public long getBaseRowsFetched() {
+        return baseRowsFetched;
+    }
+
+    public void setBaseRowsFetched(long baseRowsFetched) {
+        this.baseRowsFetched = baseRowsFetched;
+    }
+
+    /**
+     * Returns the number of fetched rows that did not match the rest of the condition.
+     */
+    public long getRowsRejected() {
+        return rowsRejected;
+    }
+
+    public void setRowsRejected(long rowsRejected) {
+        this.rowsRejected = rowsRejected;
+    }
+
+    /**
+     * Returns the number of index entries that referred to a missing or changed document.
+     */
+    public long getStaleIndexesFound() {
+        return staleIndexesFound;
+    }
+
+    public void setStaleIndexesFound(long staleIndexesFound) {
+        this.staleIndexesFound = staleIndexesFound;
+    }
+
+    public long getRowsReturned() {
+        return rowsReturned;
+    }
+
+    public void setRowsReturned(long rowsReturned) {
+        this.rowsReturned = rowsReturned;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public void setBytesRead(long bytesRead) {
+        this.bytesRead = bytesRead;
+    }
+
+    /**
+     * Returns the time spent choosing the plan, excluding the index scan.
+     */
+    public long getPlanNanos() {
+        return planNanos;
+    }
+
+    public void setPlanNanos(long planNanos) {
+        this.planNanos = planNanos;
+    }
+
+    public long getIndexScanNanos() {
+        return indexScanNanos;
+    }
+
+    public void setIndexScanNanos(long indexScanNanos) {
+        this.indexScanNanos = indexScanNanos;
+    }
+
+    /**
+     * Returns the time spent fetching rows from the table.
+     */
+    public long getFetchNanos() {
+        return fetchNanos;
+    }
+
+    public void setFetchNanos(long fetchNanos) {
+        this.fetchNanos = fetchNanos;
+    }
+
     public Document asDocument() {
         Document doc = new HDocument();
         if (type == QueryType.FULL_TABLE_SCAN) {
@@ -61,8 +222,24 @@ public class QueryInfo {
             doc.set("indexBounds", indexBounds);
             doc.set("staleIndexesRunningCount", staleIndexesRunningCount);
         }
+        if (reason != null) doc.set("reason", reason);
+        List<Object> candidateDocs = new ArrayList<>();
+        for (Candidate candidate : candidates) {
+            candidateDocs.add(candidate.asDocument());
+        }
+        doc.set("candidates", candidateDocs);
+        Document stats = new HDocument();
+        stats.set("indexRowsScanned", indexRowsScanned);
+        stats.set("baseRowsFetched", baseRowsFetched);
+        stats.set("rowsRejected", rowsRejected);
+        stats.set("staleIndexesFound", staleIndexesFound);
+        stats.set("rowsReturned", rowsReturned);
+        stats.set("bytesRead", bytesRead);
+        stats.set("planNanos", planNanos);
+        stats.set("indexScanNanos", indexScanNanos);
+        stats.set("fetchNanos", fetchNanos);
+        doc.set("stats", stats);
         return doc;
     }
 
 }
-
@@ -11,16 +11,22 @@ import org.ojai.store.QueryCondition;
 import org.ojai.store.exceptions.StoreException;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 
 public class QueryPlan {
 
     private Table table;
     private Get get;
+    private MultiGet multiGet;
     private IndexQueries indexQueries;
     private Scan scan;
     private boolean reindexArrays;
     private QueryCondition condition;
     private String[] paths;
+    private List<QueryInfo.Candidate> candidates = Collections.emptyList();
+    private String reason;
+    private long planNanos;
 
     public QueryPlan(Table table, Get get, boolean reindexArrays, QueryCondition c, String... paths) {
         this.table = table;
@@ -30,6 +36,14 @@ public class QueryPlan {
         this.paths = paths;
     }
 
+    public QueryPlan(Table table, MultiGet multiGet, boolean reindexArrays, QueryCondition c, String... paths) {
+        this.table = table;
+        this.multiGet = multiGet;
+        this.reindexArrays = reindexArrays;
+        this.condition = c;
+        this.paths = paths;
+    }
+
     public QueryPlan(Table table, IndexQueries indexQueries,
                      boolean reindexArrays, QueryCondition c, String... paths) {
         this.table = table;
@@ -47,17 +61,35 @@ public class QueryPlan {
         this.paths = paths;
     }
 
+    /**
+     * Records how this plan was chosen, to be reported by {@link HDocumentStream#explain()}.
+     */
+    public void setExplanation(List<QueryInfo.Candidate> candidates, String reason, long planNanos) {
+        this.candidates = candidates;
+        this.reason = reason;
+        this.planNanos = planNanos;
+    }
+
+    public boolean isIndexScan() {
+        return indexQueries != null;
+    }
+
     public DocumentStream execute() throws StoreException {
         try {
+            HDocumentStream stream;
             if (get != null) {
-                return new HDocumentStream(new Result[]{table.get(get)}, reindexArrays, condition, paths);
+                stream = new HDocumentStream(new Result[]{table.get(get)}, reindexArrays, condition, paths);
+            } else if (multiGet != null) {
+                stream = new HDocumentStream(multiGet, reindexArrays, condition, paths);
             } else if (scan != null) {
-                return new HDocumentStream(table.getScanner(scan), reindexArrays, condition, paths);
+                stream = new HDocumentStream(table.getScanner(scan), reindexArrays, condition, paths);
             } else if (indexQueries != null) {
-                return new HDocumentStream(table, indexQueries, reindexArrays, condition, paths);
+                stream = new HDocumentStream(table, indexQueries, reindexArrays, condition, paths);
             } else {
                 throw new IllegalStateException();
             }
+            stream.setExplanation(candidates, reason, planNanos);
+            return stream;
         } catch (IOException e) {
             throw new StoreException(e);
         }
@@ -0,0 +1,31 @@
+package io.hdocdb.metrics;
+
+import com.codahale.metrics.MetricRegistry;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records metrics in a Dropwizard {@link MetricRegistry}, using a timer for each
+ * latency and a counter for each count, so that they can be exported by any of
+ * the Dropwizard reporters.
+ */
+public class DropwizardMetricsRegistry implements MetricsRegistry {
+
+    private final MetricRegistry registry;
+
+    public DropwizardMetricsRegistry(MetricRegistry registry) {
+        this.registry = registry;
+    }
+
+    public MetricRegistry getRegistry() {
+        return registry;
+    }
+
+    public void recordLatency(String name, long durationNanos) {
+        registry.timer(name).update(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void increment(String name, long delta) {
+        registry.counter(name).inc(delta);
+    }
+}
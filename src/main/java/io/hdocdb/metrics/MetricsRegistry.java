@@ -0,0 +1,32 @@
+package io.hdocdb.metrics;
+
+/**
+ * Receives the latencies and counts recorded by collections, queries and index maintenance.
+ *
+ * Metric names are dot-separated, starting with "hdocdb" and the name of the table,
+ * such as "hdocdb.users.update".  Implementations must be thread-safe.
+ */
+public interface MetricsRegistry {
+
+    MetricsRegistry NOOP = new MetricsRegistry() {
+        public void recordLatency(String name, long durationNanos) {
+        }
+
+        public void increment(String name, long delta) {
+        }
+    };
+
+    /**
+     * Records the duration of one operation in the latency histogram with the given name.
+     */
+    void recordLatency(String name, long durationNanos);
+
+    /**
+     * Adds the given delta to the counter with the given name.
+     */
+    void increment(String name, long delta);
+
+    static String name(String... names) {
+        return "hdocdb." + String.join(".", names);
+    }
+}
@@ -0,0 +1,348 @@
+package io.hdocdb.store;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import io.hdocdb.compile.JsonInsertCompiler;
+import io.hdocdb.compile.ReplaceCompiler;
+import io.hdocdb.execute.BatchedMutation;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellComparator;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.KeyValueUtil;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Table;
+import org.ojai.Document;
+import org.ojai.DocumentStream;
+import org.ojai.Value;
+import org.ojai.store.exceptions.StoreException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Populates an empty collection and its indexes without writing through the region servers.
+ *
+ * <p>Each document is compiled into the same cells and index entries as an insert or replace.
+ * The cells of each table are sorted in memory and spilled to sorted runs in a local working
+ * directory, which are merged by {@link #finish()} and bulk loaded into the collection table
+ * and its index table.  The index entries are loaded first, as with other writes.
+ *
+ * <p>A bulk load does not replace existing documents, so each id should be loaded only once,
+ * and documents should not be written to the collection until the load has finished.
+ */
+public class BulkLoader implements Closeable {
+
+    /* The size of the cells held in memory before they are spilled to a sorted run */
+    public static final long DEFAULT_SPILL_BYTES = 256L * 1024 * 1024;
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final HDocumentDB db;
+    private final Table table;
+    private final Table indexTable;
+    private final String family;
+    private final StorageMode mode;
+    private final Collection<Index> indexes;
+    private final File workDir;
+    private final long spillBytes;
+    private final Runs rows = new Runs("rows");
+    private final Runs indexRows = new Runs("index");
+    private long count = 0;
+    private boolean finished = false;
+
+    BulkLoader(HDocumentDB db, Table table, Table indexTable, String family, StorageMode mode,
+               Collection<Index> indexes, File workDir, long spillBytes) {
+        this.db = db;
+        this.table = table;
+        this.indexTable = indexTable;
+        this.family = family;
+        this.mode = mode;
+        this.indexes = indexes;
+        this.workDir = workDir;
+        this.spillBytes = spillBytes;
+        if (!workDir.isDirectory() && !workDir.mkdirs()) {
+            throw new StoreException("Could not create " + workDir);
+        }
+    }
+
+    /**
+     * Adds a document, using its "_id" field as its id.
+     */
+    public void add(Document doc) throws StoreException {
+        Value id = doc.getId();
+        if (id == null) throw new IllegalStateException("id is null");
+        add(id, doc);
+    }
+
+    /**
+     * Adds a document with the given id.
+     */
+    public void add(Value id, Document doc) throws StoreException {
+        checkNotFinished();
+        add(new ReplaceCompiler(table, indexTable, family, mode, indexes, id, doc, null).compileBatched());
+    }
+
+    /**
+     * Adds the documents of a stream, using the "_id" field of each as its id.
+     *
+     * @return the number of documents added
+     */
+    public long addAll(DocumentStream stream) throws StoreException {
+        long added = 0;
+        for (Document doc : stream) {
+            add(doc);
+            added++;
+        }
+        return added;
+    }
+
+    /**
+     * Adds the documents of a stream of JSON objects, such as newline-delimited JSON.
+     * Each object is parsed directly into its cells, as with {@link HDocumentCollection#loadJson}.
+     *
+     * @param in         the JSON objects, which is not closed
+     * @param fieldAsKey the top-level field whose value is the id of each document
+     * @return the number of documents added
+     */
+    public long addJson(InputStream in, String fieldAsKey) throws StoreException {
+        checkNotFinished();
+        long added = 0;
+        try (JsonParser parser = JSON_FACTORY.createParser(in)) {
+            parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            JsonInsertCompiler compiler = new JsonInsertCompiler(indexTable, family, mode, indexes, parser, fieldAsKey);
+            while (parser.nextToken() != null) {
+                add(compiler.compile());
+                added++;
+            }
+            return added;
+        } catch (IOException e) {
+            throw new StoreException(e);
+        }
+    }
+
+    /**
+     * Merges the sorted runs and bulk loads them into the index table and the collection table.
+     *
+     * @return the number of documents loaded
+     */
+    public long finish() throws StoreException {
+        checkNotFinished();
+        finished = true;
+        try {
+            db.bulkLoad(indexTable.getName(), indexRows.merge());
+            db.bulkLoad(table.getName(), rows.merge());
+            return count;
+        } catch (IOException e) {
+            throw new StoreException(e);
+        } finally {
+            indexRows.clear();
+            rows.clear();
+        }
+    }
+
+    /**
+     * Removes any sorted runs that remain in the working directory.
+     */
+    public void close() {
+        finished = true;
+        indexRows.clear();
+        rows.clear();
+    }
+
+    private void add(BatchedMutation mutation) {
+        try {
+            for (Put put : mutation.getIndexPuts()) {
+                indexRows.add(put);
+            }
+            // the delete that precedes a replace is not needed, as the collection starts empty
+            for (Mutation m : mutation.getMutations().getMutations()) {
+                if (m instanceof Put) rows.add((Put) m);
+            }
+            count++;
+        } catch (IOException e) {
+            throw new StoreException(e);
+        }
+    }
+
+    private void checkNotFinished() {
+        if (finished) throw new IllegalStateException("Bulk load has already finished");
+    }
+
+    /*
+     * The cells of one table, as a buffer of cells in memory and a list of sorted runs on disk.
+     */
+    private class Runs {
+        private final String name;
+        private final List<KeyValue> buffer = new ArrayList<>();
+        private final List<File> files = new ArrayList<>();
+        private final List<RunReader> readers = new ArrayList<>();
+        private long bufferBytes = 0;
+
+        Runs(String name) {
+            this.name = name;
+        }
+
+        void add(Put put) throws IOException {
+            for (List<Cell> cells : put.getFamilyCellMap().values()) {
+                for (Cell cell : cells) {
+                    KeyValue kv = cell instanceof KeyValue ? (KeyValue) cell : KeyValueUtil.copyToNewKeyValue(cell);
+                    buffer.add(kv);
+                    bufferBytes += kv.getLength();
+                }
+            }
+            if (bufferBytes >= spillBytes) spill();
+        }
+
+        private void spill() throws IOException {
+            if (buffer.isEmpty()) return;
+            buffer.sort(CellComparator.getInstance());
+            File file = File.createTempFile(name + "-", ".run", workDir);
+            files.add(file);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+                for (KeyValue kv : buffer) {
+                    KeyValueUtil.write(kv, out);
+                }
+                // a zero length marks the end of the run
+                out.writeInt(0);
+            }
+            buffer.clear();
+            bufferBytes = 0;
+        }
+
+        /*
+         * Returns the cells of all of the runs, in order.  The cells that are still
+         * in memory are sorted in place rather than being spilled.
+         */
+        Iterator<Cell> merge() throws IOException {
+            buffer.sort(CellComparator.getInstance());
+            List<Iterator<KeyValue>> sources = new ArrayList<>(files.size() + 1);
+            for (File file : files) {
+                RunReader reader = new RunReader(file);
+                readers.add(reader);
+                sources.add(reader);
+            }
+            sources.add(buffer.iterator());
+            return new MergingIterator(sources);
+        }
+
+        /*
+         * Closes the readers of the runs, which remain open if the merge did not complete,
+         * and removes the runs.
+         */
+        void clear() {
+            buffer.clear();
+            bufferBytes = 0;
+            for (RunReader reader : readers) {
+                reader.close();
+            }
+            readers.clear();
+            for (File file : files) {
+                try {
+                    Files.deleteIfExists(file.toPath());
+                } catch (IOException e) {
+                    // noop
+                }
+            }
+            files.clear();
+        }
+    }
+
+    private static class RunReader implements Iterator<KeyValue>, Closeable {
+        private final DataInputStream in;
+        private KeyValue next;
+
+        RunReader(File file) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                advance();
+            } catch (StoreException e) {
+                close();
+                throw e;
+            }
+        }
+
+        private void advance() {
+            try {
+                next = KeyValueUtil.create(in);
+                if (next == null) in.close();
+            } catch (IOException e) {
+                throw new StoreException(e);
+            }
+        }
+
+        public void close() {
+            next = null;
+            try {
+                in.close();
+            } catch (IOException e) {
+                // noop
+            }
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public KeyValue next() {
+            if (next == null) throw new NoSuchElementException();
+            KeyValue kv = next;
+            advance();
+            return kv;
+        }
+    }
+
+    private static class MergingIterator implements Iterator<Cell> {
+        private final PriorityQueue<Head> heads = new PriorityQueue<>();
+
+        MergingIterator(List<Iterator<KeyValue>> sources) {
+            for (int i = 0; i < sources.size(); i++) {
+                Iterator<KeyValue> source = sources.get(i);
+                if (source.hasNext()) heads.add(new Head(source.next(), source, i));
+            }
+        }
+
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        public Cell next() {
+            Head head = heads.poll();
+            if (head == null) throw new NoSuchElementException();
+            if (head.source.hasNext()) heads.add(new Head(head.source.next(), head.source, head.order));
+            return head.kv;
+        }
+    }
+
+    private static class Head implements Comparable<Head> {
+        final KeyValue kv;
+        final Iterator<KeyValue> source;
+        final int order;
+
+        Head(KeyValue kv, Iterator<KeyValue> source, int order) {
+            this.kv = kv;
+            this.source = source;
+            this.order = order;
+        }
+
+        public int compareTo(Head other) {
+            int cmp = CellComparator.getInstance().compare(kv, other.kv);
+            return cmp != 0 ? cmp : Integer.compare(order, other.order);
+        }
+    }
+}
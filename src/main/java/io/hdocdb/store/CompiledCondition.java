@@ -0,0 +1,423 @@
+package io.hdocdb.store;
+
+import io.hdocdb.HDocument;
+import io.hdocdb.HList;
+import io.hdocdb.HValue;
+import org.ojai.FieldPath;
+import org.ojai.FieldSegment;
+import org.ojai.Value.Type;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A condition compiled for evaluation against many documents, with the same
+ * results as {@link ConditionNode#evaluate}.
+ *
+ * Field paths without arrays are split into their names once, comparisons are
+ * specialized for the type of their value so that document values are not
+ * converted to objects, IN and NOT_IN use hash sets, and the comparisons of an
+ * AND on the same field share a single lookup of the field, with redundant
+ * bounds folded away.
+ */
+public abstract class CompiledCondition {
+
+    public static final CompiledCondition TRUE = new CompiledCondition() {
+        public boolean evaluate(HDocument document) {
+            return true;
+        }
+    };
+
+    public static final CompiledCondition FALSE = new CompiledCondition() {
+        public boolean evaluate(HDocument document) {
+            return false;
+        }
+    };
+
+    public abstract boolean evaluate(HDocument document);
+
+    public static CompiledCondition compile(ConditionNode node) {
+        if (node == null) return TRUE;
+        if (node.isLeaf()) return compileLeaf((ConditionLeaf) node);
+        ConditionParent parent = (ConditionParent) node;
+        boolean and = parent.getType() == ConditionParent.BooleanOp.AND;
+        List<CompiledCondition> children = new ArrayList<>();
+        if (and) {
+            // comparisons on the same field share a single lookup of the field
+            Map<FieldPath, List<Leaf>> leaves = new LinkedHashMap<>();
+            for (ConditionNode child : parent.getChildren()) {
+                if (child.isLeaf()) {
+                    Leaf leaf = compileLeaf((ConditionLeaf) child);
+                    leaves.computeIfAbsent(leaf.field.getPath(), k -> new ArrayList<>()).add(leaf);
+                } else {
+                    children.add(compile(child));
+                }
+            }
+            List<CompiledCondition> fields = new ArrayList<>();
+            for (List<Leaf> group : leaves.values()) {
+                group = foldBounds(group);
+                fields.add(group.size() == 1 ? group.get(0) : new SameField(group));
+            }
+            // leaves are cheaper than nested blocks, so evaluate them first
+            fields.addAll(children);
+            children = fields;
+        } else {
+            for (ConditionNode child : parent.getChildren()) {
+                children.add(compile(child));
+            }
+        }
+        if (children.isEmpty()) return and ? TRUE : FALSE;
+        if (children.size() == 1) return children.get(0);
+        CompiledCondition[] array = children.toArray(new CompiledCondition[0]);
+        return and ? new And(array) : new Or(array);
+    }
+
+    private static Leaf compileLeaf(ConditionLeaf leaf) {
+        Field field = new Field(leaf.getField());
+        switch (leaf.getOp()) {
+            case EQ:
+            case NE:
+                return new Equals(field, leaf.getOp(), leaf.getValue());
+            case LT:
+            case LE:
+            case GE:
+            case GT:
+                return new Compare(field, leaf.getOp(), leaf.getValue());
+            case IN:
+            case NOT_IN:
+                return new In(field, leaf.getOp(), leaf.getValue());
+            default:
+                return new Interpreted(field, leaf);
+        }
+    }
+
+    /*
+     * Keeps only the tightest lower and upper bound of each type.  A tighter bound
+     * implies a looser one, even for arrays where each bound may match a different element.
+     */
+    private static List<Leaf> foldBounds(List<Leaf> group) {
+        if (group.size() == 1) return group;
+        List<Leaf> result = new ArrayList<>();
+        Map<Type, Compare> lower = new LinkedHashMap<>();
+        Map<Type, Compare> upper = new LinkedHashMap<>();
+        for (Leaf leaf : group) {
+            if (leaf instanceof Compare && ((Compare) leaf).kind != Compare.OTHER) {
+                Compare compare = (Compare) leaf;
+                Map<Type, Compare> bounds = compare.isLower() ? lower : upper;
+                Compare other = bounds.get(compare.value.getType());
+                if (other == null || compare.isTighterThan(other)) {
+                    bounds.put(compare.value.getType(), compare);
+                }
+            } else {
+                result.add(leaf);
+            }
+        }
+        result.addAll(0, upper.values());
+        result.addAll(0, lower.values());
+        return result;
+    }
+
+    /*
+     * The location of a field, split into names if it does not contain arrays or "_id".
+     */
+    private static final class Field {
+        private final FieldPath path;
+        private final String[] names;
+
+        Field(FieldPath path) {
+            this.path = path;
+            List<String> names = new ArrayList<>();
+            for (FieldSegment segment = path.getRootSegment(); segment != null; segment = segment.getChild()) {
+                if (!segment.isNamed()) {
+                    names = null;
+                    break;
+                }
+                String name = segment.getNameSegment().getName();
+                if (name == null || name.isEmpty() || name.equals(HDocument.ID)) {
+                    names = null;
+                    break;
+                }
+                names.add(name);
+            }
+            this.names = names != null && !names.isEmpty() ? names.toArray(new String[0]) : null;
+        }
+
+        FieldPath getPath() {
+            return path;
+        }
+
+        HValue get(HDocument document) {
+            if (document == null) return HValue.NULL;
+            HValue value = names != null ? document.getHValue(names) : document.getHValue(path);
+            return value != null ? value : HValue.NULL;
+        }
+    }
+
+    private static final class And extends CompiledCondition {
+        private final CompiledCondition[] children;
+
+        And(CompiledCondition[] children) {
+            this.children = children;
+        }
+
+        public boolean evaluate(HDocument document) {
+            for (CompiledCondition child : children) {
+                if (!child.evaluate(document)) return false;
+            }
+            return true;
+        }
+    }
+
+    private static final class Or extends CompiledCondition {
+        private final CompiledCondition[] children;
+
+        Or(CompiledCondition[] children) {
+            this.children = children;
+        }
+
+        public boolean evaluate(HDocument document) {
+            for (CompiledCondition child : children) {
+                if (child.evaluate(document)) return true;
+            }
+            return false;
+        }
+    }
+
+    /*
+     * Leaves on the same field of an AND, which look up the field once.
+     */
+    private static final class SameField extends CompiledCondition {
+        private final Field field;
+        private final Leaf[] leaves;
+
+        SameField(List<Leaf> leaves) {
+            this.field = leaves.get(0).field;
+            this.leaves = leaves.toArray(new Leaf[0]);
+        }
+
+        public boolean evaluate(HDocument document) {
+            HValue value = field.get(document);
+            for (Leaf leaf : leaves) {
+                if (!leaf.test(value)) return false;
+            }
+            return true;
+        }
+    }
+
+    private abstract static class Leaf extends CompiledCondition {
+        protected final Field field;
+        protected final ConditionLeaf.CompareOp op;
+        protected final HValue value;
+
+        Leaf(Field field, ConditionLeaf.CompareOp op, HValue value) {
+            this.field = field;
+            this.op = op;
+            this.value = value;
+        }
+
+        public boolean evaluate(HDocument document) {
+            return test(field.get(document));
+        }
+
+        boolean test(HValue fieldValue) {
+            // handle []
+            if (fieldValue.getType() == Type.ARRAY) {
+                return ((HList) fieldValue).evaluate(op, value);
+            }
+            return testScalar(fieldValue);
+        }
+
+        abstract boolean testScalar(HValue fieldValue);
+    }
+
+    private static final class Equals extends Leaf {
+        private final boolean negate;
+        // most scalars are equal exactly when their bytes are equal
+        private final boolean compareBytes;
+        private final byte[] bytes;
+
+        Equals(Field field, ConditionLeaf.CompareOp op, HValue value) {
+            super(field, op, value);
+            Type type = value.getType();
+            this.negate = op == ConditionLeaf.CompareOp.NE;
+            this.compareBytes = type != Type.NULL && type != Type.FLOAT && type != Type.DOUBLE
+                    && type != Type.INTERVAL && type != Type.MAP && type != Type.ARRAY;
+            this.bytes = compareBytes ? value.getRawBytes() : null;
+        }
+
+        boolean testScalar(HValue fieldValue) {
+            boolean equals = compareBytes
+                    ? fieldValue.getType() == value.getType() && Arrays.equals(bytes, fieldValue.getRawBytes())
+                    : value.equals(fieldValue);
+            return equals != negate;
+        }
+    }
+
+    private static final class Compare extends Leaf {
+        static final int INTEGRAL = 0;
+        static final int FLOATING = 1;
+        static final int STRING = 2;
+        static final int BOOLEAN = 3;
+        static final int OTHER = 4;
+
+        private final int kind;
+        private final long longValue;
+        private final double doubleValue;
+        private final String stringValue;
+        private final boolean booleanValue;
+
+        Compare(Field field, ConditionLeaf.CompareOp op, HValue value) {
+            super(field, op, value);
+            Type type = value.getType();
+            switch (type) {
+                case BYTE:
+                case SHORT:
+                case INT:
+                case LONG:
+                case DATE:
+                case TIME:
+                case TIMESTAMP:
+                    kind = INTEGRAL;
+                    break;
+                case FLOAT:
+                case DOUBLE:
+                    kind = FLOATING;
+                    break;
+                case STRING:
+                    kind = STRING;
+                    break;
+                case BOOLEAN:
+                    kind = BOOLEAN;
+                    break;
+                default:
+                    kind = OTHER;
+                    break;
+            }
+            this.longValue = kind == INTEGRAL ? toLong(value) : 0L;
+            this.doubleValue = kind == FLOATING ? toDouble(value) : 0.0;
+            this.stringValue = kind == STRING ? value.getString() : null;
+            this.booleanValue = kind == BOOLEAN && value.getBoolean();
+        }
+
+        boolean isLower() {
+            return op == ConditionLeaf.CompareOp.GT || op == ConditionLeaf.CompareOp.GE;
+        }
+
+        boolean isTighterThan(Compare other) {
+            int compare = compareTo(other.value);
+            if (compare == 0) {
+                // a strict bound is tighter than an inclusive one
+                return op == ConditionLeaf.CompareOp.GT || op == ConditionLeaf.CompareOp.LT;
+            }
+            return isLower() ? compare > 0 : compare < 0;
+        }
+
+        boolean testScalar(HValue fieldValue) {
+            if (fieldValue.getType() != value.getType() || fieldValue.getType() == Type.NULL) return false;
+            // the value of this leaf is on the left
+            int compare = compareTo(fieldValue);
+            switch (op) {
+                case LT:
+                    return compare > 0;
+                case LE:
+                    return compare >= 0;
+                case GE:
+                    return compare <= 0;
+                default:
+                    return compare < 0;
+            }
+        }
+
+        /*
+         * Compares the value of this leaf with a value of the same type.
+         */
+        private int compareTo(HValue other) {
+            switch (kind) {
+                case INTEGRAL:
+                    return Long.compare(longValue, toLong(other));
+                case FLOATING:
+                    return Double.compare(doubleValue, toDouble(other));
+                case STRING:
+                    return stringValue.compareTo(other.getString());
+                case BOOLEAN:
+                    return Boolean.compare(booleanValue, other.getBoolean());
+                default:
+                    return value.compareTo(other);
+            }
+        }
+
+        private static long toLong(HValue value) {
+            switch (value.getType()) {
+                case BYTE:
+                    return value.getByte();
+                case SHORT:
+                    return value.getShort();
+                case INT:
+                    return value.getInt();
+                case DATE:
+                    return value.getDateAsInt();
+                case TIME:
+                    return value.getTimeAsInt();
+                case TIMESTAMP:
+                    return value.getTimestampAsLong();
+                default:
+                    return value.getLong();
+            }
+        }
+
+        private static double toDouble(HValue value) {
+            return value.getType() == Type.FLOAT ? value.getFloat() : value.getDouble();
+        }
+    }
+
+    private static final class In extends Leaf {
+        private final boolean negate;
+        private final Set<Object> values = new HashSet<>();
+        private final boolean containsNull;
+
+        In(Field field, ConditionLeaf.CompareOp op, HValue value) {
+            super(field, op, value);
+            this.negate = op == ConditionLeaf.CompareOp.NOT_IN;
+            boolean containsNull = false;
+            for (HValue element : ((HList) value.getList()).getHValues()) {
+                if (element.getType() == Type.NULL) {
+                    containsNull = true;
+                } else {
+                    values.add(element.getObject());
+                }
+            }
+            this.containsNull = containsNull;
+        }
+
+        boolean testScalar(HValue fieldValue) {
+            boolean in = fieldValue.getType() == Type.NULL ? containsNull : values.contains(fieldValue.getObject());
+            return in != negate;
+        }
+    }
+
+    /*
+     * Any other leaf, which is evaluated by the leaf itself.
+     */
+    private static final class Interpreted extends Leaf {
+        private final ConditionLeaf leaf;
+
+        Interpreted(Field field, ConditionLeaf leaf) {
+            super(field, leaf.getOp(), leaf.getValue());
+            this.leaf = leaf;
+        }
+
+        @Override
+        boolean test(HValue fieldValue) {
+            return leaf.evaluate(fieldValue);
+        }
+
+        boolean testScalar(HValue fieldValue) {
+            return leaf.evaluate(fieldValue);
+        }
+    }
+}
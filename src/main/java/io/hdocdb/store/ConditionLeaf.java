@@ -15,9 +15,11 @@ import org.ojai.Value.Type;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.regex.Pattern;
 
 public class ConditionLeaf extends ConditionNode {
 
@@ -81,6 +83,8 @@ public class ConditionLeaf extends ConditionNode {
     private CompareOp op;
     private HValue value;
     private Type type;
+    // the compiled pattern of MATCHES and LIKE conditions
+    private transient Pattern pattern;
 
     public ConditionLeaf() {
         this(FieldPath.EMPTY, CompareOp.NONE, HValue.NULL);
@@ -124,6 +128,14 @@ public class ConditionLeaf extends ConditionNode {
         return this.value;
     }
 
+    /*
+     * Replaces the value of this leaf, used to bind the parameters of a prepared condition.
+     */
+    void setValue(HValue value) {
+        this.value = value;
+        this.pattern = null;
+    }
+
     public Type getType() {
         return this.type;
     }
@@ -140,6 +152,23 @@ public class ConditionLeaf extends ConditionNode {
         return sb.toString();
     }
 
+    public String getShape(boolean withTypes) {
+        StringBuilder sb = new StringBuilder();
+        sb.append('(');
+        sb.append(this.field.asPathString());
+        sb.append(' ');
+        sb.append(this.op);
+        sb.append(' ');
+        if (this.value != null) {
+            sb.append('?');
+            if (withTypes) sb.append(':').append(this.value.getType());
+        } else {
+            sb.append(this.type);
+        }
+        sb.append(')');
+        return sb.toString();
+    }
+
     public Set<FieldPath> getConditionPaths() {
         return ImmutableSet.of(getField());
     }
@@ -178,9 +207,10 @@ public class ConditionLeaf extends ConditionNode {
             case NOT_IN:
                 return Range.all();  // need to scan all
             case MATCHES:
-            case NOT_MATCHES:
-                return Range.all();
+                return ConditionPatterns.getPrefixRange(ConditionPatterns.getRegexPrefix(value.getString()));
             case LIKE:
+                return ConditionPatterns.getPrefixRange(ConditionPatterns.getLikePrefix(value.getString()));
+            case NOT_MATCHES:
             case NOT_LIKE:
                 return Range.all();
             case TYPE_OF:
@@ -191,12 +221,108 @@ public class ConditionLeaf extends ConditionNode {
         }
     }
 
+    /*
+     * Returns whether every document matching this leaf has a value for its field.
+     */
+    public boolean impliesExistence() {
+        switch (op) {
+            case LT:
+            case LE:
+            case EQ:
+            case GE:
+            case GT:
+            case MATCHES:
+            case LIKE:
+                return value.getType() != Type.NULL;
+            case IN:
+                return !value.getList().contains(HValue.NULL);
+            case TYPE_OF:
+                return type != Type.NULL;
+            default:
+                return false;
+        }
+    }
+
+    /*
+     * Returns whether every document matching this leaf also matches the given leaf.
+     * May return false if it cannot be determined.
+     */
+    public boolean implies(ConditionLeaf that) {
+        if (!getField().equals(that.getField())) return false;
+        if (op == that.op && Objects.equals(value, that.value) && type == that.type) return true;
+        if (!impliesExistence()) return false;
+        switch (that.op) {
+            case NE:
+                // exists
+                return that.value.getType() == Type.NULL;
+            case LT:
+            case LE:
+            case EQ:
+            case GE:
+            case GT:
+                return enclosedBy(that);
+            case IN:
+                List<Object> values = that.value.getList();
+                if (op == CompareOp.EQ) return values.contains(value);
+                return op == CompareOp.IN && values.containsAll(value.getList());
+            case TYPE_OF:
+                return that.type == getImpliedType();
+            default:
+                return false;
+        }
+    }
+
+    private boolean enclosedBy(ConditionLeaf that) {
+        Type impliedType = getImpliedType();
+        // a type test has no range
+        if (value == null || impliedType == null || impliedType != that.value.getType()) return false;
+        try {
+            Range<HValue> range = getRange();
+            Range<HValue> thatRange = that.getRange();
+            return range != null && thatRange != null && thatRange.encloses(range);
+        } catch (IllegalArgumentException e) {
+            // values of different types
+            return false;
+        }
+    }
+
+    /*
+     * Returns the type of every value matching this leaf, or null if it can have different types.
+     */
+    private Type getImpliedType() {
+        switch (op) {
+            case TYPE_OF:
+                return type;
+            case MATCHES:
+            case LIKE:
+                return Type.STRING;
+            case IN:
+                Type listType = null;
+                for (HValue element : ((HList) value.getList()).getHValues()) {
+                    if (listType != null && listType != element.getType()) return null;
+                    listType = element.getType();
+                }
+                return listType;
+            default:
+                Type valueType = value.getType();
+                // an array or map may be compared with the elements of an array
+                return valueType == Type.ARRAY || valueType == Type.MAP ? null : valueType;
+        }
+    }
+
     public boolean evaluate(Document document) {
+        return evaluate(document != null ? HValue.initFromValue(document.getValue(getField())) : HValue.NULL);
+    }
+
+    /*
+     * Evaluates this leaf against the value of its field.
+     */
+    boolean evaluate(HValue value) {
         CompareOp op = getOp();
-        HValue value = document != null ? HValue.initFromValue(document.getValue(getField())) : HValue.NULL;
         Value.Type valueType = value != null ? value.getType() : Type.NULL;
         // handle []
         if (valueType == Type.ARRAY) {
+            if (isPatternOp()) return evaluatePattern((HList) value);
             return ((HList) value).evaluate(op, getValue());
         }
         switch (op) {
@@ -225,13 +351,11 @@ public class ConditionLeaf extends ConditionNode {
                 boolean in = getValue().getList().contains(value);
                 return op == CompareOp.IN && in || op == CompareOp.NOT_IN && !in;
             case MATCHES:
-            case NOT_MATCHES:
-                // TODO regex
-                throw new UnsupportedOperationException();
             case LIKE:
+                return valueType == Type.STRING && getPattern().matcher(value.getString()).matches();
+            case NOT_MATCHES:
             case NOT_LIKE:
-                // TODO like
-                throw new UnsupportedOperationException();
+                return valueType == Type.STRING && !getPattern().matcher(value.getString()).matches();
             case TYPE_OF:
                 return valueType == getType();
             case NOT_TYPE_OF:
@@ -241,6 +365,34 @@ public class ConditionLeaf extends ConditionNode {
         }
     }
 
+    private boolean isPatternOp() {
+        return op == CompareOp.MATCHES || op == CompareOp.NOT_MATCHES
+                || op == CompareOp.LIKE || op == CompareOp.NOT_LIKE;
+    }
+
+    /*
+     * Uses "any" semantics for arrays, as with the other operators.
+     */
+    private boolean evaluatePattern(HList list) {
+        boolean matches = false;
+        for (HValue element : list.getHValues()) {
+            if (element.getType() == Type.STRING && getPattern().matcher(element.getString()).matches()) {
+                matches = true;
+                break;
+            }
+        }
+        return op == CompareOp.MATCHES || op == CompareOp.LIKE ? matches : !matches;
+    }
+
+    private Pattern getPattern() {
+        if (pattern == null) {
+            pattern = op == CompareOp.MATCHES || op == CompareOp.NOT_MATCHES
+                    ? ConditionPatterns.getRegexPattern(value.getString())
+                    : ConditionPatterns.getLikePattern(value.getString());
+        }
+        return pattern;
+    }
+
     public void readExternal(ObjectInput input) throws IOException {
         String path = input.readUTF();
         int opType = input.readInt();
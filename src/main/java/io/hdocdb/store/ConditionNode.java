@@ -20,4 +20,17 @@ public abstract class ConditionNode implements Externalizable {
     public abstract Map<FieldPath, ConditionRange> getConditionRanges() throws IllegalStateException;
 
     public abstract boolean evaluate(Document document);
+
+    /**
+     * Returns the structure of this condition with its values replaced by "?",
+     * so that conditions that differ only in their values have the same shape.
+     */
+    public String getShape() {
+        return getShape(false);
+    }
+
+    /**
+     * Returns the shape of this condition, optionally including the type of each value.
+     */
+    public abstract String getShape(boolean withTypes);
 }
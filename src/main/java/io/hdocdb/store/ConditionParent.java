@@ -10,6 +10,7 @@ import org.ojai.FieldPath;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -104,6 +105,16 @@ public class ConditionParent extends ConditionNode {
         return sb.toString();
     }
 
+    public String getShape(boolean withTypes) {
+        // the order of the children does not affect the result
+        List<String> shapes = Lists.newArrayList();
+        for (ConditionNode child : children) {
+            shapes.add(child.getShape(withTypes));
+        }
+        Collections.sort(shapes);
+        return type + "(" + String.join(", ", shapes) + ")";
+    }
+
     public Set<FieldPath> getConditionPaths() {
         Set<FieldPath> paths = Sets.newHashSet();
         for (ConditionNode child : getChildren()) {
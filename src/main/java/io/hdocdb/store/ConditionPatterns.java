@@ -0,0 +1,154 @@
+package io.hdocdb.store;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Range;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import io.hdocdb.HValue;
+
+import java.util.regex.Pattern;
+
+/**
+ * Compiles the patterns of MATCHES and LIKE conditions, and derives index ranges
+ * from their literal prefixes.
+ *
+ * LIKE expressions are stored with '\' as their escape character.  Compiled patterns
+ * are cached, so that a filter deserialized for every scan on a region server does
+ * not compile its patterns again.
+ */
+final class ConditionPatterns {
+
+    private static final int MAX_CACHED_PATTERNS = 1000;
+    private static final char ESCAPE = '\\';
+    private static final String REGEX_META_CHARS = "\\[](){}.*+?^$|";
+
+    private static final LoadingCache<String, Pattern> REGEX_PATTERNS = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_PATTERNS)
+            .build(CacheLoader.from(Pattern::compile));
+
+    private static final LoadingCache<String, Pattern> LIKE_PATTERNS = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_PATTERNS)
+            .build(CacheLoader.from(ConditionPatterns::compileLike));
+
+    private ConditionPatterns() {
+    }
+
+    static Pattern getRegexPattern(String regex) {
+        return get(REGEX_PATTERNS, regex);
+    }
+
+    static Pattern getLikePattern(String likeExpression) {
+        return get(LIKE_PATTERNS, likeExpression);
+    }
+
+    private static Pattern get(LoadingCache<String, Pattern> patterns, String key) {
+        try {
+            return patterns.getUnchecked(key);
+        } catch (UncheckedExecutionException e) {
+            // rethrow PatternSyntaxException
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Converts a LIKE expression with the given escape character, or none,
+     * to one that uses '\' as its escape character.
+     */
+    static String toLikeExpression(String likeExpression, Character escapeChar) {
+        StringBuilder sb = new StringBuilder(likeExpression.length());
+        for (int i = 0; i < likeExpression.length(); i++) {
+            char c = likeExpression.charAt(i);
+            if (escapeChar != null && c == escapeChar) {
+                if (++i == likeExpression.length()) {
+                    throw new IllegalArgumentException("LIKE expression ends with escape character: " + likeExpression);
+                }
+                sb.append(ESCAPE).append(likeExpression.charAt(i));
+            } else if (c == ESCAPE) {
+                sb.append(ESCAPE).append(ESCAPE);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static Pattern compileLike(String likeExpression) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < likeExpression.length(); i++) {
+            char c = likeExpression.charAt(i);
+            if (c == ESCAPE && i + 1 < likeExpression.length()) {
+                literal.append(likeExpression.charAt(++i));
+            } else if (c == '%' || c == '_') {
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                regex.append(c == '%' ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) regex.append(Pattern.quote(literal.toString()));
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    /**
+     * Returns the literal prefix that every string matching the LIKE expression starts with.
+     */
+    static String getLikePrefix(String likeExpression) {
+        StringBuilder prefix = new StringBuilder();
+        for (int i = 0; i < likeExpression.length(); i++) {
+            char c = likeExpression.charAt(i);
+            if (c == ESCAPE && i + 1 < likeExpression.length()) {
+                prefix.append(likeExpression.charAt(++i));
+            } else if (c == '%' || c == '_') {
+                break;
+            } else {
+                prefix.append(c);
+            }
+        }
+        return prefix.toString();
+    }
+
+    /**
+     * Returns the literal prefix that every string matching the regular expression
+     * starts with, which is empty if it cannot be determined.
+     */
+    static String getRegexPrefix(String regex) {
+        // an alternation may not share the prefix
+        if (regex.indexOf('|') >= 0) return "";
+        StringBuilder prefix = new StringBuilder();
+        int i = regex.startsWith("^") ? 1 : 0;
+        for (; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\' && i + 1 < regex.length() && !Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                c = regex.charAt(++i);
+            } else if (REGEX_META_CHARS.indexOf(c) >= 0) {
+                // a quantifier may make the previous character optional
+                if ((c == '*' || c == '?' || c == '{') && prefix.length() > 0) {
+                    prefix.setLength(prefix.length() - 1);
+                }
+                break;
+            }
+            prefix.append(c);
+        }
+        return prefix.toString();
+    }
+
+    /**
+     * Returns the range of strings that start with the given prefix, or all values
+     * if the prefix is empty.
+     */
+    static Range<HValue> getPrefixRange(String prefix) {
+        if (prefix.isEmpty()) return Range.all();
+        int last = prefix.length() - 1;
+        char c = prefix.charAt(last);
+        // avoid incrementing into or past the surrogates
+        if (c >= Character.MIN_SURROGATE - 1) return Range.atLeast(new HValue(prefix));
+        String upper = prefix.substring(0, last) + (char) (c + 1);
+        return Range.closedOpen(new HValue(prefix), new HValue(upper));
+    }
+}
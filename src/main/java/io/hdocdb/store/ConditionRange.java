@@ -50,6 +50,16 @@ public class ConditionRange {
         return conditions;
     }
 
+    /*
+     * Returns whether every document matching the conditions has a value for the field.
+     */
+    public boolean impliesExistence() {
+        for (ConditionLeaf condition : conditions) {
+            if (condition.impliesExistence()) return true;
+        }
+        return false;
+    }
+
     public void addCondition(ConditionLeaf condition) {
         conditions.add(condition);
     }
@@ -0,0 +1,28 @@
+package io.hdocdb.store;
+
+import com.google.common.base.Ticker;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.client.mock.EmbeddedHTable;
+
+import java.io.IOException;
+
+/**
+ * A document database that runs in-process without an HBase cluster,
+ * storing its tables in {@link EmbeddedHTable} instances.
+ */
+public class EmbeddedHDocumentDB extends InMemoryHDocumentDB {
+
+    public EmbeddedHDocumentDB() throws IOException {
+        super();
+    }
+
+    public EmbeddedHDocumentDB(Ticker ticker) throws IOException {
+        super(ticker);
+    }
+
+    @Override
+    protected Table newTable(TableName name, int maxVersions) {
+        return new EmbeddedHTable(name, maxVersions, DEFAULT_FAMILY);
+    }
+}
@@ -1,20 +1,33 @@
 package io.hdocdb.store;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
 import com.google.common.collect.ImmutableList;
 import io.hdocdb.HDocument;
+import io.hdocdb.HDocumentStream;
 import io.hdocdb.HValue;
+import io.hdocdb.HValueHolder;
 import io.hdocdb.compile.*;
+import io.hdocdb.execute.BatchedMutation;
 import io.hdocdb.execute.MutationPlan;
+import io.hdocdb.execute.QueryInfo;
 import io.hdocdb.execute.QueryPlan;
+import io.hdocdb.metrics.MetricsRegistry;
+import io.hdocdb.util.Codec;
 import io.hdocdb.util.Paths;
 import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Row;
 import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.ojai.Document;
 import org.ojai.DocumentStream;
 import org.ojai.FieldPath;
 import org.ojai.Value;
 import org.ojai.store.DocumentMutation;
 import org.ojai.store.DocumentStore;
+import org.ojai.store.MutationOp;
 import org.ojai.store.Query;
 import org.ojai.store.QueryCondition;
 import org.ojai.store.QueryResult;
@@ -22,25 +35,53 @@ import org.ojai.store.exceptions.DocumentExistsException;
 import org.ojai.store.exceptions.DocumentNotFoundException;
 import org.ojai.store.exceptions.MultiOpException;
 import org.ojai.store.exceptions.StoreException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class HDocumentCollection implements DocumentStore {
 
-    private static final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private static final Logger LOG = LoggerFactory.getLogger(HDocumentCollection.class);
+
+    /* How many times an asynchronous index build or drop is attempted */
+    protected static final int INDEX_COMMAND_ATTEMPTS = 3;
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    /* The maximum number of query plans cached per collection */
+    public static final int DEFAULT_PLAN_CACHE_SIZE = 1000;
+    /* The number of documents written together when loading JSON */
+    public static final int DEFAULT_LOAD_BATCH_SIZE = 1000;
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
 
     private HDocumentDB db;
     private Table table;
     private Table indexTable;
     private String family;
+    private RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+    private final AtomicLong conflictCount = new AtomicLong();
+    private final AtomicLong retriesExhaustedCount = new AtomicLong();
+    private volatile WriteBuffer writeBuffer;
+    private volatile SlowQueryLog slowQueryLog;
+    private volatile QueryPlanCache planCache = new QueryPlanCache(DEFAULT_PLAN_CACHE_SIZE);
 
     protected HDocumentCollection(HDocumentDB db, Table table, Table indexTable, String family) {
         this.db = db;
@@ -61,6 +102,146 @@ public class HDocumentCollection implements DocumentStore {
         return table.getName();
     }
 
+    public StorageMode getStorageMode() {
+        return getDB().getStorageMode(table.getName());
+    }
+
+    /**
+     * Sets how arrays and sub-documents are laid out in cells by subsequent writes.
+     * Documents that were written in a different mode can still be read and updated.
+     *
+     * The mode is stored in the catalog, so it applies to every client of the collection.
+     * This returns once the other clients have observed the new mode, as with a change
+     * to the state of an index.
+     *
+     * @param storageMode the storage mode to use for writes
+     */
+    public void setStorageMode(StorageMode storageMode) {
+        getDB().setStorageMode(table.getName(), storageMode);
+    }
+
+    public Set<FieldPath> getCounterFields() {
+        return getDB().getCounterFields(table.getName());
+    }
+
+    /**
+     * Sets the fields that are stored as counters. Integral increments of a counter
+     * are applied atomically by HBase without first reading the document, so concurrent
+     * increments never conflict with each other. Counters are always read back as longs.
+     * A value that was written as part of a document is converted to a counter the
+     * first time it is incremented.
+     *
+     * A counter that is indexed, or that lies inside of a packed cell, is still
+     * incremented with a read-modify-write.
+     *
+     * The counter fields are stored in the catalog, so they apply to every client of
+     * the collection.  This returns once the other clients have observed them.
+     *
+     * @param fields the fields (in dot separated notation) to store as counters
+     */
+    public void setCounterFields(String... fields) {
+        Set<FieldPath> paths = new HashSet<>();
+        for (String field : fields) {
+            paths.add(FieldPath.parseFrom(field));
+        }
+        getDB().setCounterFields(table.getName(), paths);
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Sets how read-modify-write updates are retried when the document changes
+     * between the read and the write. Use {@link RetryPolicy#NONE} to fail on
+     * the first conflict.
+     *
+     * @param retryPolicy the retry policy to use for updates
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Returns the number of times an update found that the document had changed.
+     */
+    public long getConflictCount() {
+        return conflictCount.get();
+    }
+
+    /**
+     * Returns the number of updates that failed after exhausting their retries.
+     */
+    public long getRetriesExhaustedCount() {
+        return retriesExhaustedCount.get();
+    }
+
+    public WriteBuffer getWriteBuffer() {
+        return writeBuffer;
+    }
+
+    /**
+     * Enables buffering of non-conditional writes, that is, of insertOrReplace() and of
+     * updates that do not need to read the document.  Concurrent writes are coalesced
+     * into batches, so that they share the cost of each round trip.  Synchronous calls
+     * still return only after their write has been applied; use
+     * {@link #insertOrReplaceAsync(Value, Document)} and
+     * {@link #updateAsync(Value, DocumentMutation)} to avoid waiting.
+     *
+     * @param maxBatchSize    the maximum number of writes in a batch
+     * @param flushIntervalMs the maximum time a write waits for other writes to join its batch
+     * @param queueCapacity   the maximum number of pending writes, after which writers block
+     */
+    public synchronized void enableWriteBuffer(int maxBatchSize, long flushIntervalMs, int queueCapacity) {
+        disableWriteBuffer();
+        this.writeBuffer = new WriteBuffer(table, indexTable, maxBatchSize, flushIntervalMs, queueCapacity);
+    }
+
+    /**
+     * Flushes any buffered writes and disables write buffering.
+     */
+    public synchronized void disableWriteBuffer() throws StoreException {
+        WriteBuffer buffer = writeBuffer;
+        if (buffer == null) return;
+        writeBuffer = null;
+        buffer.close();
+    }
+
+    /**
+     * Returns the cache of query plans, or null if plans are not cached.
+     */
+    public QueryPlanCache getPlanCache() {
+        return planCache;
+    }
+
+    /**
+     * Sets the maximum number of cached query plans, discarding the current ones.
+     * A size of zero disables the cache.
+     */
+    public void setPlanCacheSize(int size) {
+        this.planCache = size > 0 ? new QueryPlanCache(size) : null;
+    }
+
+    public SlowQueryLog getSlowQueryLog() {
+        return slowQueryLog;
+    }
+
+    /**
+     * Records queries that take at least the given time, from planning until their
+     * stream is exhausted or closed, along with their plan and row counts.
+     *
+     * @param thresholdMs the minimum elapsed time of a query to be recorded
+     * @param sampleRate  the fraction of slow queries that are recorded, between 0 and 1
+     * @param capacity    the maximum number of entries kept in memory
+     */
+    public void enableSlowQueryLog(long thresholdMs, double sampleRate, int capacity) {
+        this.slowQueryLog = new SlowQueryLog(table.getName().getNameAsString(), thresholdMs, sampleRate, capacity);
+    }
+
+    public void disableSlowQueryLog() {
+        this.slowQueryLog = null;
+    }
+
     /**
      * Returns {@code true} if this Document store does not support any write
      * operations like insert/update/delete, etc.
@@ -76,7 +257,8 @@ public class HDocumentCollection implements DocumentStore {
      *                        buffered operation resulted in an error.
      */
     public void flush() throws StoreException {
-        // noop
+        WriteBuffer buffer = writeBuffer;
+        if (buffer != null) buffer.flush();
     }
 
     public boolean isEmpty() {
@@ -189,10 +371,15 @@ public class HDocumentCollection implements DocumentStore {
     }
 
     protected Document findById(Value _id, boolean reindexArrays, String... paths) throws StoreException {
-        QueryPlan plan = new QueryOneCompiler(table, family, reindexArrays, _id, null, paths).compile();
-        DocumentStream stream = plan.execute();
-        Iterator<Document> documents = stream.iterator();
-        return documents.hasNext() ? documents.next() : null;
+        long start = System.nanoTime();
+        try {
+            QueryPlan plan = new QueryOneCompiler(table, family, reindexArrays, _id, null, paths).compile();
+            DocumentStream stream = withMetrics(plan.execute(), "findById");
+            Iterator<Document> documents = stream.iterator();
+            return documents.hasNext() ? documents.next() : null;
+        } finally {
+            recordLatency("findById", start);
+        }
     }
 
     public Document findById(Value _id, FieldPath... paths) throws StoreException {
@@ -212,10 +399,15 @@ public class HDocumentCollection implements DocumentStore {
     }
 
     public Document findById(Value _id, QueryCondition c, String... paths) throws StoreException {
-        QueryPlan plan = new QueryOneCompiler(table, family, true, _id, c, paths).compile();
-        DocumentStream stream = plan.execute();
-        Iterator<Document> documents = stream.iterator();
-        return documents.hasNext() ? documents.next() : null;
+        long start = System.nanoTime();
+        try {
+            QueryPlan plan = new QueryOneCompiler(table, family, true, _id, c, paths).compile();
+            DocumentStream stream = withMetrics(plan.execute(), "findById");
+            Iterator<Document> documents = stream.iterator();
+            return documents.hasNext() ? documents.next() : null;
+        } finally {
+            recordLatency("findById", start);
+        }
     }
 
     public Document findById(String _id, QueryCondition c, String... fields) throws StoreException {
@@ -230,6 +422,110 @@ public class HDocumentCollection implements DocumentStore {
         return findById(new HValue(_id), c, fields);
     }
 
+    /**
+     * Returns the Documents with the given {@code "_id"} fields, in the order of the given ids.
+     * Ids for which no document exists are skipped.
+     *
+     * @param _ids values to be used as the _ids of the documents
+     * @return a DocumentStream of the documents with the given ids
+     * @throws StoreException the store exception
+     */
+    public DocumentStream findByIds(Collection<? extends Value> _ids) throws StoreException {
+        return findByIds(_ids, (String[]) null);
+    }
+
+    /**
+     * Returns the Documents with the given {@code "_id"} fields, in the order of the given ids.
+     * Ids for which no document exists are skipped.
+     * The Documents will contain only those field paths that are specified in the
+     * argument. If no path parameter is specified then it returns full documents.
+     *
+     * <p>The ids are fetched in batches of gets, grouped by the region that holds them,
+     * and the batches are fetched in parallel while the stream is read.
+     *
+     * @param _ids values to be used as the _ids of the documents
+     * @param paths list of fields that should be returned in the read documents
+     * @return a DocumentStream of the documents with the given ids
+     * @throws StoreException the store exception
+     */
+    public DocumentStream findByIds(Collection<? extends Value> _ids, String... paths) throws StoreException {
+        long start = System.nanoTime();
+        try {
+            TableName tableName = table.getName();
+            byte[][] startKeys = db.getStartKeys(tableName);
+            QueryPlan plan = new QueryManyCompiler(table, family, true, _ids, startKeys,
+                    gets -> db.fetch(tableName, gets), paths).compile();
+            return withMetrics(plan.execute(), "findByIds");
+        } catch (IOException e) {
+            throw new StoreException(e);
+        } finally {
+            incrementMetric("findByIds.ids", _ids.size());
+            recordLatency("findByIds", start);
+        }
+    }
+
+    public DocumentStream findByIds(Collection<? extends Value> _ids, FieldPath... paths) throws StoreException {
+        return findByIds(_ids, Paths.asPathStrings(paths));
+    }
+
+    /**
+     * Returns whether a document with the given {@code "_id"} field exists.
+     * Only the "_ts" cell of the row is checked, and no cells are returned.
+     *
+     * @param _id value to be used as the _id for this document
+     * @return whether the document exists
+     * @throws StoreException the store exception
+     */
+    public boolean exists(Value _id) throws StoreException {
+        long start = System.nanoTime();
+        try {
+            return table.exists(constructExistsGet(_id));
+        } catch (IOException e) {
+            throw new StoreException(e);
+        } finally {
+            recordLatency("exists", start);
+        }
+    }
+
+    public boolean exists(String _id) throws StoreException {
+        return exists(new HValue(_id));
+    }
+
+    /**
+     * Returns whether documents with the given {@code "_id"} fields exist,
+     * checking all of them in a single batch.
+     *
+     * @param _ids values to be used as the _ids of the documents
+     * @return whether each document exists, in the order of the given ids
+     * @throws StoreException the store exception
+     */
+    public boolean[] existsAll(List<? extends Value> _ids) throws StoreException {
+        long start = System.nanoTime();
+        try {
+            List<Get> gets = new ArrayList<>(_ids.size());
+            for (Value _id : _ids) {
+                gets.add(constructExistsGet(_id));
+            }
+            return table.exists(gets);
+        } catch (IOException e) {
+            throw new StoreException(e);
+        } finally {
+            incrementMetric("existsAll.ids", _ids.size());
+            recordLatency("existsAll", start);
+        }
+    }
+
+    /*
+     * Every write of a document, including an upsert, sets its "_ts" cell,
+     * so it is the only cell that needs to be checked.
+     */
+    private Get constructExistsGet(Value _id) throws IOException {
+        Codec<HValueHolder> codec = new Codec<>();
+        Get get = new Get(codec.encode(new HValueHolder(HValue.initFromValue(_id))));
+        get.addColumn(Bytes.toBytes(family), Bytes.toBytes(HDocument.TS));
+        return get;
+    }
+
     /**
      * <p>Executes the specified query on the DocumentStore and return a QueryResult.
      * <p>The returned QueryResult must be closed after retrieving the documents.
@@ -384,14 +680,56 @@ public class HDocumentCollection implements DocumentStore {
         return findWithIndex(indexName, limit, c, Paths.asPathStrings(paths));
     }
 
+    /**
+     * Returns the plan that would be used for the given query, along with the
+     * other plans that were considered.  Index scans are performed while planning,
+     * but no documents are fetched.
+     */
+    public QueryInfo explain(QueryCondition c, String... paths) throws StoreException {
+        try (DocumentStream stream = getDocumentStream(null, c, paths)) {
+            return ((HDocumentStream) stream).explain();
+        }
+    }
+
+    /**
+     * Executes the given query, discarding the documents, and returns its plan along with
+     * the rows scanned, fetched, rejected and returned, and the time spent in each stage.
+     */
+    public QueryInfo explainAnalyze(QueryCondition c, String... paths) throws StoreException {
+        try (DocumentStream stream = getDocumentStream(null, c, paths)) {
+            for (Document ignored : stream) {
+                // only the statistics are needed
+            }
+            return ((HDocumentStream) stream).explain();
+        }
+    }
+
     private DocumentStream getDocumentStream(String indexName, QueryCondition c, String... paths) {
-        QueryPlan plan = new QueryCompiler(table, indexTable, family, getIndexes(), true, indexName, c, paths).compile();
-        return plan.execute();
+        long start = System.nanoTime();
+        QueryPlan plan = new QueryCompiler(table, indexTable, family, getIndexes(), planCache, true, indexName, -1, c, paths).compile();
+        return execute(plan, c, paths, start);
     }
 
     private DocumentStream getDocumentStream(String indexName, int limit, QueryCondition c, String... paths) {
-        QueryPlan plan = new QueryCompiler(table, indexTable, family, getIndexes(), true, indexName, limit, c, paths).compile();
-        return plan.execute();
+        long start = System.nanoTime();
+        QueryPlan plan = new QueryCompiler(table, indexTable, family, getIndexes(), planCache, true, indexName, limit, c, paths).compile();
+        return execute(plan, c, paths, start);
+    }
+
+    private DocumentStream execute(QueryPlan plan, QueryCondition c, String[] paths, long start) {
+        try {
+            incrementMetric(plan.isIndexScan() ? "find.indexScan" : "find.fullTableScan", 1L);
+            DocumentStream stream = withMetrics(plan.execute(), "find");
+            SlowQueryLog log = slowQueryLog;
+            if (log != null) {
+                ((HDocumentStream) stream).setCompletionListener(s ->
+                        log.record((HQueryCondition) c, paths, s.explain(), System.nanoTime() - start));
+            }
+            return stream;
+        } finally {
+            // the documents are read lazily, so this only covers planning and opening the stream
+            recordLatency("find", start);
+        }
     }
 
     /**
@@ -427,10 +765,38 @@ public class HDocumentCollection implements DocumentStore {
      * @throws StoreException the store exception
      */
     public void insertOrReplace(Value _id, Document doc) throws StoreException {
-        MutationPlan plan = new ReplaceCompiler(table, indexTable, family, getIndexes(), _id, doc, null).compile();
-        if (!plan.execute()) {
-            throw new StoreException("Could not insert or replace, it may have changed: " + _id);
+        if (writeBuffer != null) {
+            WriteBuffer.join(insertOrReplaceAsync(_id, doc));
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            MutationPlan plan = new ReplaceCompiler(table, indexTable, family, getStorageMode(), getIndexes(), _id, doc, null).compile();
+            if (!plan.execute()) {
+                incrementMetric("insertOrReplace.failures", 1L);
+                throw new StoreException("Could not insert or replace, it may have changed: " + _id);
+            }
+        } finally {
+            recordLatency("insertOrReplace", start);
+        }
+    }
+
+    /**
+     * Inserts or replaces a document through the write buffer, if it is enabled.
+     * The write is visible to other operations once the returned future completes.
+     *
+     * @param _id document id
+     * @param doc the document to insert or replace
+     * @return a future that completes once the write has been applied
+     */
+    public CompletableFuture<Void> insertOrReplaceAsync(Value _id, Document doc) throws StoreException {
+        WriteBuffer buffer = writeBuffer;
+        if (buffer == null) {
+            insertOrReplace(_id, doc);
+            return CompletableFuture.completedFuture(null);
         }
+        BatchedMutation mutation = new ReplaceCompiler(table, indexTable, family, getStorageMode(), getIndexes(), _id, doc, null).compileBatched();
+        return buffer.submit(mutation);
     }
 
     public void insertOrReplace(String _id, Document doc) throws StoreException {
@@ -541,10 +907,24 @@ public class HDocumentCollection implements DocumentStore {
      * @throws StoreException the store exception
      */
     public void update(Value _id, DocumentMutation m) throws StoreException {
-        Document doc = ((HDocumentMutation)m).isReadModifyWrite() ? findById(_id, false) : null;
-        MutationPlan plan = new UpdateCompiler(table, indexTable, family, getIndexes(), _id, m, doc).compile();
-        if (!plan.execute()) {
-            throw new StoreException("Could not update, it may have changed: " + _id);
+        long start = System.nanoTime();
+        try {
+            if (incrementCounters(_id, m)) return;
+            HDocumentMutation mutation = (HDocumentMutation) m;
+            boolean readModifyWrite = isReadModifyWrite(mutation);
+            if (!readModifyWrite && writeBuffer != null) {
+                WriteBuffer.join(updateAsync(_id, m));
+                return;
+            }
+            for (int attempt = 1; ; attempt++) {
+                // only read back what is needed to (re)apply the mutation
+                Document doc = readModifyWrite ? findForUpdate(_id, null, mutation) : null;
+                MutationPlan plan = new UpdateCompiler(table, indexTable, family, getStorageMode(), getIndexes(), _id, m, doc).compile();
+                if (plan.execute()) return;
+                backoff(attempt, "Could not update, it may have changed: " + _id);
+            }
+        } finally {
+            recordLatency("update", start);
         }
     }
 
@@ -552,6 +932,25 @@ public class HDocumentCollection implements DocumentStore {
         update(new HValue(_id), m);
     }
 
+    /**
+     * Applies a mutation through the write buffer, if it is enabled and the mutation
+     * does not need to read the document; otherwise the mutation is applied directly.
+     * The write is visible to other operations once the returned future completes.
+     *
+     * @param _id document id
+     * @param m   a mutation object specifying the mutation operations on the document
+     * @return a future that completes once the mutation has been applied
+     */
+    public CompletableFuture<Void> updateAsync(Value _id, DocumentMutation m) throws StoreException {
+        WriteBuffer buffer = writeBuffer;
+        if (buffer == null || isReadModifyWrite((HDocumentMutation)m)) {
+            update(_id, m);
+            return CompletableFuture.completedFuture(null);
+        }
+        BatchedMutation mutation = new UpdateCompiler(table, indexTable, family, getStorageMode(), getIndexes(), _id, m, null).compileBatched();
+        return buffer.submit(mutation);
+    }
+
     public void update(org.graalvm.polyglot.Value condition, org.graalvm.polyglot.Value m) throws StoreException {
         update(condition, m, false);
     }
@@ -563,7 +962,7 @@ public class HDocumentCollection implements DocumentStore {
         HDocumentMutation mutation = new HDocumentMutation(m);
         DocumentStream stream = find(c);
         for (Document doc : stream) {
-            MutationPlan plan = new UpdateCompiler(table, indexTable, family, getIndexes(), doc.getId(), mutation, doc).compile();
+            MutationPlan plan = new UpdateCompiler(table, indexTable, family, getStorageMode(), getIndexes(), doc.getId(), mutation, doc).compile();
             plan.execute();
             if (!multi) break;
         }
@@ -580,9 +979,15 @@ public class HDocumentCollection implements DocumentStore {
      * @throws StoreException the store exception
      */
     public void delete(Value _id) throws StoreException {
-        MutationPlan plan = new DeleteCompiler(table, family, _id, null).compile();
-        if (!plan.execute()) {
-            throw new StoreException("Could not delete, it may have changed: " + _id);
+        long start = System.nanoTime();
+        try {
+            MutationPlan plan = new DeleteCompiler(table, family, _id, null).compile();
+            if (!plan.execute()) {
+                incrementMetric("delete.failures", 1L);
+                throw new StoreException("Could not delete, it may have changed: " + _id);
+            }
+        } finally {
+            recordLatency("delete", start);
         }
     }
 
@@ -659,9 +1064,15 @@ public class HDocumentCollection implements DocumentStore {
      * @throws DocumentExistsException when a document with id already exists in DocumentStore
      */
     public void insert(Value _id, Document doc) throws StoreException {
-        MutationPlan plan = new InsertCompiler(table, indexTable, family, getIndexes(), _id, doc).compile();
-        if (!plan.execute()) {
-            throw new DocumentExistsException("Could not insert: " + _id);
+        long start = System.nanoTime();
+        try {
+            MutationPlan plan = new InsertCompiler(table, indexTable, family, getStorageMode(), getIndexes(), _id, doc).compile();
+            if (!plan.execute()) {
+                incrementMetric("insert.failures", 1L);
+                throw new DocumentExistsException("Could not insert: " + _id);
+            }
+        } finally {
+            recordLatency("insert", start);
         }
     }
 
@@ -733,6 +1144,85 @@ public class HDocumentCollection implements DocumentStore {
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Inserts or replaces the documents of a stream of JSON objects, such as newline-delimited JSON,
+     * using the "_id" field of each as its id.
+     *
+     * @param in the JSON objects, which is not closed
+     * @return the number of documents loaded
+     */
+    public long loadJson(InputStream in) throws StoreException {
+        return loadJson(in, HDocument.ID, DEFAULT_LOAD_BATCH_SIZE);
+    }
+
+    /**
+     * Inserts or replaces the documents of a stream of JSON objects, such as newline-delimited JSON.
+     * Each object is parsed directly into the cells and index entries of its document, and the
+     * documents are written in batches.  Objects that were read before a failure may have been written.
+     *
+     * @param in         the JSON objects, which is not closed
+     * @param fieldAsKey the top-level field whose value is the id of each document
+     * @param batchSize  the number of documents written together
+     * @return the number of documents loaded
+     */
+    public long loadJson(InputStream in, String fieldAsKey, int batchSize) throws StoreException {
+        long start = System.nanoTime();
+        long count = 0;
+        try (JsonParser parser = JSON_FACTORY.createParser(in)) {
+            parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            JsonInsertCompiler compiler = new JsonInsertCompiler(indexTable, family, getStorageMode(), getIndexes(), parser, fieldAsKey);
+            List<BatchedMutation> batch = new ArrayList<>(batchSize);
+            while (parser.nextToken() != null) {
+                batch.add(compiler.compile());
+                if (batch.size() >= batchSize) {
+                    writeBatch(batch);
+                    count += batch.size();
+                    batch.clear();
+                }
+            }
+            writeBatch(batch);
+            count += batch.size();
+            return count;
+        } catch (IOException e) {
+            throw new StoreException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StoreException(e);
+        } finally {
+            incrementMetric("loadJson.documents", count);
+            recordLatency("loadJson", start);
+        }
+    }
+
+    private void writeBatch(List<BatchedMutation> batch) throws IOException, InterruptedException {
+        if (batch.isEmpty()) return;
+        List<Put> indexPuts = new ArrayList<>();
+        List<Row> mutations = new ArrayList<>(batch.size());
+        for (BatchedMutation mutation : batch) {
+            indexPuts.addAll(mutation.getIndexPuts());
+            mutations.add(mutation.getMutations());
+        }
+        // index entries are written first, as with other writes
+        if (!indexPuts.isEmpty()) {
+            Object[] results = new Object[indexPuts.size()];
+            indexTable.batch(indexPuts, results);
+            checkResults(results);
+        }
+        Object[] results = new Object[mutations.size()];
+        table.batch(mutations, results);
+        checkResults(results);
+    }
+
+    private static void checkResults(Object[] results) {
+        for (Object result : results) {
+            if (result == null) {
+                throw new StoreException("Failed to communicate with server");
+            } else if (result instanceof Throwable) {
+                throw new StoreException((Throwable) result);
+            }
+        }
+    }
+
     /**
      * Replaces a document in the DocumentStore. The document id is either explicitly specified
      * as parameter "id" or it is implicitly specified as the field "_id" in the
@@ -758,9 +1248,15 @@ public class HDocumentCollection implements DocumentStore {
      * @throws DocumentNotFoundException when a document with the id does not exist in DocumentStore
      */
     public void replace(Value _id, Document doc) throws StoreException {
-        MutationPlan plan = new ReplaceCompiler(table, indexTable, family, getIndexes(), _id, doc, new HDocument()).compile();
-        if (!plan.execute()) {
-            throw new DocumentNotFoundException("Could not replace: " + _id);
+        long start = System.nanoTime();
+        try {
+            MutationPlan plan = new ReplaceCompiler(table, indexTable, family, getStorageMode(), getIndexes(), _id, doc, new HDocument()).compile();
+            if (!plan.execute()) {
+                incrementMetric("replace.failures", 1L);
+                throw new DocumentNotFoundException("Could not replace: " + _id);
+            }
+        } finally {
+            recordLatency("replace", start);
         }
     }
 
@@ -869,12 +1365,7 @@ public class HDocumentCollection implements DocumentStore {
      * @throws StoreException the store exception
      */
     public void increment(Value _id, String field, byte inc) throws StoreException {
-        Document doc = findById(_id, false, field);
-        DocumentMutation m = new HDocumentMutation().increment(field, inc);
-        MutationPlan plan = new UpdateCompiler(table, indexTable, family, getIndexes(), _id, m, doc).compile();
-        if (!plan.execute()) {
-            throw new StoreException("Could not update, it may have changed: " + _id);
-        }
+        update(_id, new HDocumentMutation().increment(field, inc));
     }
 
     public void increment(String _id, String field, byte inc) throws StoreException {
@@ -882,12 +1373,7 @@ public class HDocumentCollection implements DocumentStore {
     }
 
     public void increment(Value _id, String field, short inc) throws StoreException {
-        Document doc = findById(_id, false, field);
-        DocumentMutation m = new HDocumentMutation().increment(field, inc);
-        MutationPlan plan = new UpdateCompiler(table, indexTable, family, getIndexes(), _id, m, doc).compile();
-        if (!plan.execute()) {
-            throw new StoreException("Could not update, it may have changed: " + _id);
-        }
+        update(_id, new HDocumentMutation().increment(field, inc));
     }
 
     public void increment(String _id, String field, short inc) throws StoreException {
@@ -895,12 +1381,7 @@ public class HDocumentCollection implements DocumentStore {
     }
 
     public void increment(Value _id, String field, int inc) throws StoreException {
-        Document doc = findById(_id, false, field);
-        DocumentMutation m = new HDocumentMutation().increment(field, inc);
-        MutationPlan plan = new UpdateCompiler(table, indexTable, family, getIndexes(), _id, m, doc).compile();
-        if (!plan.execute()) {
-            throw new StoreException("Could not update, it may have changed: " + _id);
-        }
+        update(_id, new HDocumentMutation().increment(field, inc));
     }
 
     public void increment(String _id, String field, int inc) throws StoreException {
@@ -908,12 +1389,7 @@ public class HDocumentCollection implements DocumentStore {
     }
 
     public void increment(Value _id, String field, long inc) throws StoreException {
-        Document doc = findById(_id, false, field);
-        DocumentMutation m = new HDocumentMutation().increment(field, inc);
-        MutationPlan plan = new UpdateCompiler(table, indexTable, family, getIndexes(), _id, m, doc).compile();
-        if (!plan.execute()) {
-            throw new StoreException("Could not update, it may have changed: " + _id);
-        }
+        update(_id, new HDocumentMutation().increment(field, inc));
     }
 
     public void increment(String _id, String field, long inc) throws StoreException {
@@ -921,12 +1397,7 @@ public class HDocumentCollection implements DocumentStore {
     }
 
     public void increment(Value _id, String field, float inc) throws StoreException {
-        Document doc = findById(_id, false, field);
-        DocumentMutation m = new HDocumentMutation().increment(field, inc);
-        MutationPlan plan = new UpdateCompiler(table, indexTable, family, getIndexes(), _id, m, doc).compile();
-        if (!plan.execute()) {
-            throw new StoreException("Could not update, it may have changed: " + _id);
-        }
+        update(_id, new HDocumentMutation().increment(field, inc));
     }
 
     public void increment(String _id, String field, float inc) throws StoreException {
@@ -934,12 +1405,7 @@ public class HDocumentCollection implements DocumentStore {
     }
 
     public void increment(Value _id, String field, double inc) throws StoreException {
-        Document doc = findById(_id, false, field);
-        DocumentMutation m = new HDocumentMutation().increment(field, inc);
-        MutationPlan plan = new UpdateCompiler(table, indexTable, family, getIndexes(), _id, m, doc).compile();
-        if (!plan.execute()) {
-            throw new StoreException("Could not update, it may have changed: " + _id);
-        }
+        update(_id, new HDocumentMutation().increment(field, inc));
     }
 
     public void increment(String _id, String field, double inc) throws StoreException {
@@ -947,18 +1413,108 @@ public class HDocumentCollection implements DocumentStore {
     }
 
     public void increment(Value _id, String field, BigDecimal inc) throws StoreException {
-        Document doc = findById(_id, false, field);
-        DocumentMutation m = new HDocumentMutation().increment(field, inc);
-        MutationPlan plan = new UpdateCompiler(table, indexTable, family, getIndexes(), _id, m, doc).compile();
-        if (!plan.execute()) {
-            throw new StoreException("Could not update, it may have changed: " + _id);
-        }
+        update(_id, new HDocumentMutation().increment(field, inc));
     }
 
     public void increment(String _id, String field, BigDecimal inc) throws StoreException {
         increment(new HValue(_id), field, inc);
     }
 
+    /*
+     * A mutation that changes a field indexed by a partial index, or used by its filter, is read
+     * first, so that the index entry is only written if the document matches the filter.
+     */
+    private boolean isReadModifyWrite(HDocumentMutation mutation) {
+        if (mutation.isReadModifyWrite(getStorageMode())) return true;
+        for (Index index : getIndexes()) {
+            if (index.getFilter() == null) continue;
+            Set<FieldPath> paths = new HashSet<>(index.getFilter().getConditionPaths());
+            for (IndexFieldPath field : index.getFields()) {
+                paths.add(field.getPath());
+            }
+            for (MutationOp op : mutation) {
+                if (op.getFieldPath() == null || paths.contains(op.getFieldPath())) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads only what is needed to evaluate the condition and to apply the mutation,
+     * along with the "_ts" cell that is used for the optimistic check.
+     */
+    private Document findForUpdate(Value _id, QueryCondition condition, HDocumentMutation mutation) throws StoreException {
+        List<FieldPath> paths = new ArrayList<>();
+        if (mutation != null) {
+            List<FieldPath> mutationPaths = mutation.getReadPaths();
+            if (mutationPaths == null) return findById(_id, false);
+            paths.addAll(mutationPaths);
+            // index entries are rebuilt from the document that is read, if it matches their filters
+            for (Index index : getIndexes()) {
+                for (IndexFieldPath field : index.getFields()) {
+                    paths.add(field.getPath());
+                }
+                if (index.getFilter() != null) {
+                    paths.addAll(index.getFilter().getConditionPaths());
+                }
+            }
+        }
+        if (condition != null && ((HQueryCondition)condition).getRoot() != null) {
+            paths.addAll(((HQueryCondition)condition).getConditionPaths());
+        }
+        if (paths.isEmpty()) paths.add(HDocument.TS_PATH);
+        QueryPlan plan = new QueryOneCompiler(table, family, false, _id, null, true,
+                Paths.asPathStrings(paths, (String[]) null)).compile();
+        Iterator<Document> documents = plan.execute().iterator();
+        return documents.hasNext() ? documents.next() : null;
+    }
+
+    private void backoff(int attempt, String message) throws StoreException {
+        conflictCount.incrementAndGet();
+        incrementMetric("conflicts", 1L);
+        if (!retryPolicy.shouldRetry(attempt)) {
+            retriesExhaustedCount.incrementAndGet();
+            incrementMetric("retriesExhausted", 1L);
+            throw new StoreException(message);
+        }
+        try {
+            Thread.sleep(retryPolicy.getBackoffMs(attempt));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StoreException(message, e);
+        }
+    }
+
+    private boolean incrementCounters(Value _id, DocumentMutation m) throws StoreException {
+        Set<FieldPath> counterFields = getCounterFields();
+        if (counterFields.isEmpty()) return false;
+        StorageMode storageMode = getStorageMode();
+        Map<FieldPath, Long> increments = ((HDocumentMutation)m).getCounterIncrements(
+                path -> isCounter(path, counterFields, storageMode));
+        if (increments == null) return false;
+        MutationPlan plan = new IncrementCompiler(table, family, _id, increments, null).compile();
+        if (plan.execute()) return true;
+        // some of the values are not stored as counters yet, so rewrite them
+        Document doc = findById(_id, false, Paths.asPathStrings(increments.keySet(), (String[]) null));
+        if (doc != null) {
+            plan = new IncrementCompiler(table, family, _id, increments, doc).compile();
+            if (plan.execute()) return true;
+        }
+        throw new StoreException("Could not update, it may have changed: " + _id);
+    }
+
+    private boolean isCounter(FieldPath path, Set<FieldPath> counterFields, StorageMode storageMode) {
+        if (!counterFields.contains(path)) return false;
+        if (storageMode.getPackedPath(path) != null) return false;
+        for (Index index : getIndexes()) {
+            for (IndexFieldPath field : index.getFields()) {
+                if (path.isAtOrBelow(field.getPath()) || path.isAtOrAbove(field.getPath())) return false;
+            }
+            if (index.getFilter() != null && index.getFilter().getConditionPaths().contains(path)) return false;
+        }
+        return true;
+    }
+
     /**
      * Atomically evaluates the condition on a given document and if the
      * condition holds true for the document then a mutation is applied on the document.
@@ -975,12 +1531,20 @@ public class HDocumentCollection implements DocumentStore {
      * @throws StoreException if the condition passes but the mutate fails
      */
     public boolean checkAndMutate(Value _id, QueryCondition condition, DocumentMutation m) throws StoreException {
-        Document doc = findById(_id, false);
-        if (((HQueryCondition)condition).evaluate(doc)) {
-            MutationPlan plan = new UpdateCompiler(table, indexTable, family, getIndexes(), _id, m, doc).compile();
-            return plan.execute();
+        long start = System.nanoTime();
+        try {
+            Document doc = findForUpdate(_id, condition, (HDocumentMutation)m);
+            if (((HQueryCondition)condition).evaluate(doc)) {
+                MutationPlan plan = new UpdateCompiler(table, indexTable, family, getStorageMode(), getIndexes(), _id, m, doc).compile();
+                if (plan.execute()) return true;
+                // the document changed after the condition was evaluated
+                incrementMetric("checkAndMutate.failures", 1L);
+                return false;
+            }
+            return false;
+        } finally {
+            recordLatency("checkAndMutate", start);
         }
-        return false;
     }
 
     public boolean checkAndMutate(String _id, QueryCondition condition, DocumentMutation m) throws StoreException {
@@ -1008,12 +1572,20 @@ public class HDocumentCollection implements DocumentStore {
      * @throws StoreException if the condition passes but the delete fails
      */
     public boolean checkAndDelete(Value _id, QueryCondition condition) throws StoreException {
-        Document doc = findById(_id, false);
-        if (((HQueryCondition)condition).evaluate(doc)) {
-            MutationPlan plan = new DeleteCompiler(table, family, _id, doc).compile();
-            return plan.execute();
+        long start = System.nanoTime();
+        try {
+            Document doc = findForUpdate(_id, condition, null);
+            if (((HQueryCondition)condition).evaluate(doc)) {
+                MutationPlan plan = new DeleteCompiler(table, family, _id, doc).compile();
+                if (plan.execute()) return true;
+                // the document changed after the condition was evaluated
+                incrementMetric("checkAndDelete.failures", 1L);
+                return false;
+            }
+            return false;
+        } finally {
+            recordLatency("checkAndDelete", start);
         }
-        return false;
     }
 
     public boolean checkAndDelete(String _id, QueryCondition condition) throws StoreException {
@@ -1041,12 +1613,20 @@ public class HDocumentCollection implements DocumentStore {
      * @throws StoreException if the condition passes but the replace fails
      */
     public boolean checkAndReplace(Value _id, QueryCondition condition, Document doc) throws StoreException {
-        Document oldDoc = findById(_id, false);
-        if (((HQueryCondition)condition).evaluate(oldDoc)) {
-            MutationPlan plan = new ReplaceCompiler(table, indexTable, family, getIndexes(), _id, doc, oldDoc).compile();
-            return plan.execute();
+        long start = System.nanoTime();
+        try {
+            Document oldDoc = findForUpdate(_id, condition, null);
+            if (((HQueryCondition)condition).evaluate(oldDoc)) {
+                MutationPlan plan = new ReplaceCompiler(table, indexTable, family, getStorageMode(), getIndexes(), _id, doc, oldDoc).compile();
+                if (plan.execute()) return true;
+                // the document changed after the condition was evaluated
+                incrementMetric("checkAndReplace.failures", 1L);
+                return false;
+            }
+            return false;
+        } finally {
+            recordLatency("checkAndReplace", start);
         }
-        return false;
     }
 
     public boolean checkAndReplace(String _id, QueryCondition condition, Document doc) throws StoreException {
@@ -1068,6 +1648,26 @@ public class HDocumentCollection implements DocumentStore {
         return new IndexBuilder(db, this, table, name);
     }
 
+    /**
+     * Returns a loader that populates this collection, which should be empty, and its indexes
+     * by bulk loading sorted cells rather than writing through the region servers.
+     * The indexes should be created before the loader.
+     *
+     * @param workDir the local directory in which the sorted runs of cells are spilled
+     */
+    public BulkLoader newBulkLoader(File workDir) {
+        return newBulkLoader(workDir, BulkLoader.DEFAULT_SPILL_BYTES);
+    }
+
+    /**
+     * @param workDir    the local directory in which the sorted runs of cells are spilled
+     * @param spillBytes the size of the cells held in memory before they are spilled
+     * @see #newBulkLoader(File)
+     */
+    public BulkLoader newBulkLoader(File workDir, long spillBytes) {
+        return new BulkLoader(db, table, indexTable, family, getStorageMode(), getIndexes(), workDir, spillBytes);
+    }
+
     public Index createIndex(String name, String path, Value.Type type) {
         return createIndex(name, path, type, Order.ASCENDING);
     }
@@ -1093,6 +1693,27 @@ public class HDocumentCollection implements DocumentStore {
         return getDB().getIndexes(table.getName()).values();
     }
 
+    private MetricsRegistry getMetrics() {
+        return getDB().getMetricsRegistry();
+    }
+
+    private String getMetricName(String op) {
+        return MetricsRegistry.name(table.getName().getNameAsString(), op);
+    }
+
+    private void recordLatency(String op, long start) {
+        getMetrics().recordLatency(getMetricName(op), System.nanoTime() - start);
+    }
+
+    private void incrementMetric(String op, long delta) {
+        getMetrics().increment(getMetricName(op), delta);
+    }
+
+    private DocumentStream withMetrics(DocumentStream stream, String op) {
+        ((HDocumentStream) stream).setMetrics(getMetrics(), getMetricName(op));
+        return stream;
+    }
+
     public int getIndexSize(String name) {
         return new QueryIndexCompiler(indexTable, getIndex(name), null, null).compile().execute().size();
     }
@@ -1110,7 +1731,8 @@ public class HDocumentCollection implements DocumentStore {
 
         Runnable runnable = new PopulateIndexCommand(index);
         if (async) {
-            executor.schedule(runnable, HDocumentDB.INDEX_STATE_CHANGE_DELAY_SECS, TimeUnit.SECONDS);
+            submitIndexCommand(runnable, "build index " + name,
+                    "it remains " + Index.State.BUILDING + " until populateIndex is called again");
         } else {
             runnable.run();
         }
@@ -1122,11 +1744,16 @@ public class HDocumentCollection implements DocumentStore {
             this.index = index;
         }
         public void run() {
+            // wait until all clients have seen the BUILDING state, so that they add index entries
+            getDB().awaitIndexStateChange(table.getName());
+            long start = System.nanoTime();
             DocumentStream documentStream = find();
             for (Document doc : documentStream) {
                 MutationPlan plan = new InsertIndexCompiler(indexTable, ImmutableList.of(index), doc.getId(), doc).compile();
                 plan.execute();
+                incrementMetric("index." + index.getName() + ".built", 1L);
             }
+            recordLatency("index." + index.getName() + ".build", start);
             getDB().updateIndexState(table.getName(), index.getName(), Index.State.ACTIVE);
         }
     }
@@ -1144,20 +1771,47 @@ public class HDocumentCollection implements DocumentStore {
 
         Runnable runnable = new DropIndexCommand(index);
         if (async) {
-            executor.schedule(runnable, HDocumentDB.INDEX_STATE_CHANGE_DELAY_SECS, TimeUnit.SECONDS);
+            submitIndexCommand(runnable, "drop index " + name,
+                    "it remains " + Index.State.INACTIVE + " until dropIndex is called again");
         } else {
             runnable.run();
         }
     }
 
+    /*
+     * Runs an index command in the background, retrying it if it fails, such as when a client
+     * does not acknowledge the change of the index state in time.  Nobody waits for the command,
+     * so a final failure is logged.
+     */
+    private void submitIndexCommand(Runnable command, String action, String recovery) {
+        executor.submit(() -> {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    command.run();
+                    return;
+                } catch (RuntimeException e) {
+                    if (attempt >= INDEX_COMMAND_ATTEMPTS) {
+                        LOG.error("Could not " + action + " of " + table.getName() + "; " + recovery, e);
+                        return;
+                    }
+                    LOG.warn("Could not " + action + " of " + table.getName() + ", retrying", e);
+                }
+            }
+        });
+    }
+
     class DropIndexCommand implements Runnable {
         Index index;
         public DropIndexCommand(Index index) {
             this.index = index;
         }
         public void run() {
+            // wait until all clients have seen the INACTIVE state, so that they no longer add index entries
+            getDB().awaitIndexStateChange(table.getName());
+            long start = System.nanoTime();
             MutationPlan plan = new DeleteIndexCompiler(indexTable, index).compile();
             plan.execute();
+            recordLatency("index." + index.getName() + ".drop", start);
             getDB().updateIndexState(table.getName(), index.getName(), Index.State.DROPPED);
         }
     }
@@ -1167,6 +1821,7 @@ public class HDocumentCollection implements DocumentStore {
      */
     public void close() throws StoreException {
         try {
+            disableWriteBuffer();
             table.close();
         } catch (IOException e) {
             throw new StoreException(e);
@@ -4,9 +4,18 @@ import com.google.common.base.Ticker;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.hdocdb.HDocument;
+import io.hdocdb.metrics.MetricsRegistry;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
 import org.apache.hadoop.hbase.HColumnDescriptor;
 import org.apache.hadoop.hbase.HTableDescriptor;
 import org.apache.hadoop.hbase.KeepDeletedCells;
@@ -14,23 +23,45 @@ import org.apache.hadoop.hbase.TableName;
 import org.apache.hadoop.hbase.client.Admin;
 import org.apache.hadoop.hbase.client.Connection;
 import org.apache.hadoop.hbase.client.ConnectionFactory;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.RegionLocator;
+import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.io.hfile.CacheConfig;
+import org.apache.hadoop.hbase.io.hfile.HFile;
+import org.apache.hadoop.hbase.io.hfile.HFileContextBuilder;
+import org.apache.hadoop.hbase.tool.BulkLoadHFiles;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.ojai.Document;
 import org.ojai.FieldPath;
 import org.ojai.Value;
 import org.ojai.store.QueryCondition;
 import org.ojai.store.exceptions.StoreException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-public class HDocumentDB extends AbstractMap<String, HDocumentCollection> {
+public class HDocumentDB extends AbstractMap<String, HDocumentCollection> implements Closeable {
 
     protected static final String CATALOG_TABLE = "_CATALOG_";
     protected static final String DEFAULT_FAMILY = "c";
@@ -38,22 +69,52 @@ public class HDocumentDB extends AbstractMap<String, HDocumentCollection> {
     protected static final int DEFAULT_INDEX_MAX_VERSIONS = 5;
     protected static final String INDEX_PREFIX = "_IDX_";
     protected static final String INDEXES_PATH = "indexes";
-
-    /* How often to refresh the index cache */
+    protected static final String VERSION_PATH = "version";
+    protected static final String STORAGE_MODE_PATH = "storageMode";
+    protected static final String COUNTERS_PATH = "counters";
+    protected static final String ACKS_PREFIX = "_ACKS_";
+    protected static final String CLIENTS_PATH = "clients";
+    protected static final String EXPIRES_PATH = "expires";
+
+    /* How often to check whether the index cache is out of date */
     protected static final int INDEX_CACHE_REFRESH_SECS = 1;
-    /* How long to wait before an index state change is propagated to other index caches */
-    protected static final int INDEX_STATE_CHANGE_DELAY_SECS = 2;
+    /* How long a client is waited for to acknowledge an index state change */
+    protected static final int CLIENT_LEASE_SECS = 30;
+    /* How often to check for acknowledgements of an index state change */
+    protected static final int ACK_POLL_MS = 100;
+    /* The directory of the default filesystem under which HFiles are staged for bulk loads */
+    public static final String BULKLOAD_STAGING_DIR = "hdocdb.bulkload.staging.dir";
+    protected static final String DEFAULT_BULKLOAD_STAGING_DIR = "/tmp/hdocdb-bulkload";
+    /* The size of HFile after which a bulk load starts another */
+    protected static final long MAX_BULKLOAD_FILE_BYTES = 1024L * 1024 * 1024;
+
+    private static final Logger LOG = LoggerFactory.getLogger(HDocumentDB.class);
 
     private Connection connection;
+    private boolean ownsConnection;
+    private Ticker ticker;
     private HDocumentCollection indexCollection;
-    private LoadingCache<TableName, Map<String, Index>> indexes;
+    private LoadingCache<TableName, CatalogEntry> indexes;
+    private volatile MetricsRegistry metricsRegistry = MetricsRegistry.NOOP;
+    private final String clientId = "client_" + UUID.randomUUID().toString().replace("-", "");
+    private final Map<TableName, Long> leaseRenewals = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("hdocdb-index-refresher").setDaemon(true).build());
+    // held while the indexes are being refreshed in the background
+    private final Object refreshLock = new Object();
+    private ScheduledFuture<?> refresh;
+    // fetches the batches of gets of findByIds in parallel
+    private final ExecutorService fetcher = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("hdocdb-fetcher-%d").setDaemon(true).build());
+    private boolean closed = false;
 
     public HDocumentDB(Configuration config) throws IOException {
-        this(ConnectionFactory.createConnection(config), Ticker.systemTicker());
+        this(config, Ticker.systemTicker());
     }
 
     public HDocumentDB(Configuration config, Ticker ticker) throws IOException {
         this(ConnectionFactory.createConnection(config), ticker);
+        this.ownsConnection = true;
     }
 
     public HDocumentDB(Connection connection) throws IOException {
@@ -62,16 +123,106 @@ public class HDocumentDB extends AbstractMap<String, HDocumentCollection> {
 
     public HDocumentDB(Connection connection, Ticker ticker) throws IOException {
         this.connection = connection;
+        this.ticker = ticker;
         this.indexCollection = getCollection(TableName.valueOf(CATALOG_TABLE), null);
         this.indexes = CacheBuilder.newBuilder()
                 .refreshAfterWrite(INDEX_CACHE_REFRESH_SECS, TimeUnit.SECONDS)
                 .ticker(ticker)
                 .build(new CacheLoader<>() {
                     @Override
-                    public Map<String, Index> load(TableName key) throws Exception {
-                        return convertIndexDocument(indexCollection.findById(key.toString()));
+                    public CatalogEntry load(TableName key) throws Exception {
+                        Document document = indexCollection.findById(key.toString());
+                        CatalogEntry entry = new CatalogEntry(getVersion(document), convertIndexDocument(document),
+                                convertStorageMode(document), convertCounterFields(document));
+                        acknowledge(key, entry.version, true);
+                        return entry;
+                    }
+
+                    @Override
+                    public ListenableFuture<CatalogEntry> reload(TableName key, CatalogEntry oldValue) throws Exception {
+                        // only read the version, and reload the indexes if it has changed
+                        long version = getVersion(indexCollection.findById(key.toString(), VERSION_PATH));
+                        if (version == oldValue.version) {
+                            acknowledge(key, version, false);
+                            return Futures.immediateFuture(oldValue);
+                        }
+                        return Futures.immediateFuture(load(key));
                     }
                 });
+        // refresh in the background so that idle clients still acknowledge index state changes
+        startRefresher();
+    }
+
+    /**
+     * Starts refreshing the cached indexes in the background, if it is not already started.
+     */
+    protected synchronized void startRefresher() {
+        if (closed || refresh != null) return;
+        refresh = refresher.scheduleWithFixedDelay(this::refreshIndexes,
+                INDEX_CACHE_REFRESH_SECS, INDEX_CACHE_REFRESH_SECS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops refreshing the cached indexes in the background, waiting for any refresh in progress,
+     * so that the catalog is not written to until the refresher is started again.
+     */
+    protected synchronized void stopRefresher() {
+        if (refresh == null) return;
+        refresh.cancel(false);
+        refresh = null;
+        synchronized (refreshLock) {
+            // wait for a refresh in progress
+        }
+    }
+
+    /**
+     * Stops refreshing the cached indexes and fetching rows in the background, and withdraws the leases
+     * of this client so that index state changes made by other clients do not wait for it.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) return;
+            stopRefresher();
+            closed = true;
+        }
+        refresher.shutdown();
+        fetcher.shutdown();
+        for (TableName tableName : leaseRenewals.keySet()) {
+            try {
+                indexCollection.update(ACKS_PREFIX + tableName.toString(),
+                        new HDocumentMutation().delete(CLIENTS_PATH + "." + clientId));
+            } catch (Exception e) {
+                LOG.warn("Could not withdraw lease for " + tableName, e);
+            }
+        }
+        leaseRenewals.clear();
+        if (ownsConnection) connection.close();
+    }
+
+    private static class CatalogEntry {
+        private final long version;
+        private final Map<String, Index> indexes;
+        private final StorageMode storageMode;
+        private final Set<FieldPath> counterFields;
+
+        CatalogEntry(long version, Map<String, Index> indexes, StorageMode storageMode, Set<FieldPath> counterFields) {
+            this.version = version;
+            this.indexes = indexes;
+            this.storageMode = storageMode;
+            this.counterFields = counterFields;
+        }
+    }
+
+    public MetricsRegistry getMetricsRegistry() {
+        return metricsRegistry;
+    }
+
+    /**
+     * Sets the registry that receives the metrics of all collections of this database.
+     */
+    public void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+        this.metricsRegistry = metricsRegistry != null ? metricsRegistry : MetricsRegistry.NOOP;
     }
 
     public HDocumentCollection createCollection(String name) {
@@ -144,7 +295,7 @@ public class HDocumentDB extends AbstractMap<String, HDocumentCollection> {
         try {
             dropTable(name);
             dropTable(getIndexTableName(name));
-            dropIndexes(name);
+            dropCatalogEntry(name, INDEXES_PATH, STORAGE_MODE_PATH, COUNTERS_PATH);
         } catch (IOException e) {
             throw new StoreException(e);
         }
@@ -158,14 +309,15 @@ public class HDocumentDB extends AbstractMap<String, HDocumentCollection> {
         try {
             indexes.refresh(tableName);
             // this may overwrite a dropped index with the same name
-            Index oldIndex = indexes.get(tableName).get(index.getName());
+            Index oldIndex = indexes.get(tableName).indexes.get(index.getName());
             if (oldIndex != null && oldIndex.getState() != Index.State.DROPPED) {
                 throw new StoreException("Index with name " + index.getName() + " already exists");
             }
 
             boolean success;
             HDocumentMutation mutation = new HDocumentMutation().setOrReplace(
-                    INDEXES_PATH + "." + index.getName(), index.asDocument());
+                    INDEXES_PATH + "." + index.getName(), index.asDocument())
+                    .increment(VERSION_PATH, 1L);
             if (oldIndex == null) {
                 success = indexCollection.checkAndMutate(tableName.toString(),
                         new HQueryCondition().notExists(INDEXES_PATH + "." + index.getName()),
@@ -181,7 +333,7 @@ public class HDocumentDB extends AbstractMap<String, HDocumentCollection> {
             }
 
             // update local cache
-            indexes.get(tableName).put(index.getName(), index);
+            indexes.get(tableName).indexes.put(index.getName(), index);
         } catch (Exception e) {
             throw new StoreException(e);
         }
@@ -190,7 +342,7 @@ public class HDocumentDB extends AbstractMap<String, HDocumentCollection> {
     protected void updateIndexState(TableName tableName, String indexName, Index.State newState) {
         try {
             indexes.refresh(tableName);
-            Index oldIndex = indexes.get(tableName).get(indexName);
+            Index oldIndex = indexes.get(tableName).indexes.get(indexName);
             if (oldIndex == null) {
                 throw new StoreException("Index with name " + indexName + " does not exist");
             }
@@ -226,7 +378,8 @@ public class HDocumentDB extends AbstractMap<String, HDocumentCollection> {
             }
 
             HDocumentMutation mutation = new HDocumentMutation().setOrReplace(
-                    INDEXES_PATH + "." + indexName + "." + Index.STATE_PATH, newState.toString());
+                    INDEXES_PATH + "." + indexName + "." + Index.STATE_PATH, newState.toString())
+                    .increment(VERSION_PATH, 1L);
             boolean success = indexCollection.checkAndMutate(tableName.toString(),
                     new HQueryCondition().is(INDEXES_PATH + "." + indexName + "." + Index.STATE_PATH,
                             QueryCondition.Op.EQUAL, oldState.toString()),
@@ -236,8 +389,10 @@ public class HDocumentDB extends AbstractMap<String, HDocumentCollection> {
             }
 
             // update local cache
-            Index index = indexes.get(tableName).get(indexName);
+            Index index = indexes.get(tableName).indexes.get(indexName);
             if (index != null) index.setState(newState);
+            // acknowledge the new version
+            indexes.refresh(tableName);
         } catch (Exception e) {
             throw new StoreException(e);
         }
@@ -245,17 +400,191 @@ public class HDocumentDB extends AbstractMap<String, HDocumentCollection> {
 
     public Map<String, Index> getIndexes(TableName tableName) {
         try {
-            return indexes.get(tableName);
+            return indexes.get(tableName).indexes;
         } catch (Exception e) {
             throw new StoreException(e);
         }
     }
 
     public void dropIndexes(TableName tableName) {
-        indexCollection.delete(tableName.toString());
+        dropCatalogEntry(tableName, INDEXES_PATH);
+    }
+
+    private void dropCatalogEntry(TableName tableName, String... paths) {
+        // keep the version so that it never goes backwards
+        if (indexCollection.findById(tableName.toString(), VERSION_PATH) != null) {
+            HDocumentMutation mutation = new HDocumentMutation();
+            for (String path : paths) {
+                mutation.delete(path);
+            }
+            indexCollection.update(tableName.toString(), mutation.increment(VERSION_PATH, 1L));
+        }
         indexes.invalidate(tableName);
     }
 
+    /**
+     * Returns the storage mode of the given table, which is kept in the catalog so that
+     * every client lays out its writes in the same way.
+     */
+    protected StorageMode getStorageMode(TableName tableName) {
+        // the catalog itself is always expanded
+        if (tableName.equals(indexCollection.getTableName())) return StorageMode.EXPANDED;
+        try {
+            return indexes.get(tableName).storageMode;
+        } catch (Exception e) {
+            throw new StoreException(e);
+        }
+    }
+
+    protected void setStorageMode(TableName tableName, StorageMode storageMode) {
+        if (tableName.equals(indexCollection.getTableName())) {
+            throw new StoreException("Cannot change the storage mode of the catalog");
+        }
+        try {
+            indexCollection.update(tableName.toString(), new HDocumentMutation()
+                    .setOrReplace(STORAGE_MODE_PATH, storageMode.toString())
+                    .increment(VERSION_PATH, 1L));
+            // acknowledge the new version
+            indexes.refresh(tableName);
+        } catch (Exception e) {
+            throw new StoreException(e);
+        }
+        awaitIndexStateChange(tableName);
+    }
+
+    /**
+     * Returns the counter fields of the given table, which are kept in the catalog so that
+     * no client overwrites a counter with a read-modify-write.
+     */
+    protected Set<FieldPath> getCounterFields(TableName tableName) {
+        if (tableName.equals(indexCollection.getTableName())) return Collections.emptySet();
+        try {
+            return indexes.get(tableName).counterFields;
+        } catch (Exception e) {
+            throw new StoreException(e);
+        }
+    }
+
+    protected void setCounterFields(TableName tableName, Set<FieldPath> counterFields) {
+        if (tableName.equals(indexCollection.getTableName())) {
+            throw new StoreException("Cannot set counter fields of the catalog");
+        }
+        try {
+            List<String> paths = counterFields.stream()
+                    .map(FieldPath::asPathString)
+                    .sorted()
+                    .collect(Collectors.toList());
+            indexCollection.update(tableName.toString(), new HDocumentMutation()
+                    .setOrReplace(COUNTERS_PATH, paths)
+                    .increment(VERSION_PATH, 1L));
+            // acknowledge the new version
+            indexes.refresh(tableName);
+        } catch (Exception e) {
+            throw new StoreException(e);
+        }
+        awaitIndexStateChange(tableName);
+    }
+
+    /**
+     * Waits until every client using the given table has observed the latest version of
+     * its catalog entry, such as the state of its indexes.  A client whose lease expires
+     * is assumed to have stopped, since it would reload the catalog entry before using the
+     * table again.
+     *
+     * @throws StoreException if a client with an unexpired lease has not acknowledged the
+     *                        change within one lease, in which case the change has been made
+     *                        but may not yet be observed by that client
+     */
+    protected void awaitIndexStateChange(TableName tableName) {
+        long version = getVersion(indexCollection.findById(tableName.toString(), VERSION_PATH));
+        long deadline = ticker.read() + TimeUnit.SECONDS.toNanos(CLIENT_LEASE_SECS);
+        try {
+            while (true) {
+                // leases are compared across clients, so they use the wall clock
+                long now = System.currentTimeMillis();
+                List<String> pending = Lists.newArrayList();
+                List<String> expired = Lists.newArrayList();
+                Document acks = indexCollection.findById(ACKS_PREFIX + tableName.toString());
+                Value clients = acks != null ? acks.getValue(CLIENTS_PATH) : null;
+                if (clients != null && clients.getType() == Value.Type.MAP) {
+                    for (Map.Entry<String, Value> entry : (HDocument) clients) {
+                        if (entry.getValue().getType() != Value.Type.MAP) continue;
+                        Document ack = (Document) entry.getValue();
+                        if (ack.getLong(EXPIRES_PATH) < now) {
+                            expired.add(entry.getKey());
+                        } else if (ack.getLong(VERSION_PATH) < version) {
+                            pending.add(entry.getKey());
+                        }
+                    }
+                }
+                if (!expired.isEmpty()) {
+                    HDocumentMutation mutation = new HDocumentMutation();
+                    for (String client : expired) {
+                        mutation.delete(CLIENTS_PATH + "." + client);
+                    }
+                    indexCollection.update(ACKS_PREFIX + tableName.toString(), mutation);
+                }
+                if (pending.isEmpty()) return;
+                if (ticker.read() > deadline) {
+                    throw new StoreException("Clients did not acknowledge the change to " + tableName + ": " + pending);
+                }
+                Thread.sleep(ACK_POLL_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StoreException(e);
+        }
+    }
+
+    private void acknowledge(TableName tableName, long version, boolean changed) {
+        long now = ticker.read();
+        long leaseNanos = TimeUnit.SECONDS.toNanos(CLIENT_LEASE_SECS);
+        Long lastRenewal = leaseRenewals.get(tableName);
+        // also renew the lease well before it expires
+        if (!changed && lastRenewal != null && lastRenewal + leaseNanos / 3 > now) return;
+        // the expiry is compared by other clients, so it uses the wall clock
+        Document ack = new HDocument()
+                .set(VERSION_PATH, version)
+                .set(EXPIRES_PATH, System.currentTimeMillis() + TimeUnit.NANOSECONDS.toMillis(leaseNanos));
+        indexCollection.update(ACKS_PREFIX + tableName.toString(),
+                new HDocumentMutation().setOrReplace(CLIENTS_PATH + "." + clientId, ack));
+        leaseRenewals.put(tableName, now);
+    }
+
+    private void refreshIndexes() {
+        synchronized (refreshLock) {
+            for (TableName tableName : indexes.asMap().keySet()) {
+                try {
+                    indexes.refresh(tableName);
+                } catch (Exception e) {
+                    LOG.warn("Could not refresh indexes for " + tableName, e);
+                }
+            }
+        }
+    }
+
+    private static long getVersion(Document document) {
+        if (document == null) return 0L;
+        Value version = document.getValue(VERSION_PATH);
+        return version != null && version.getType() == Value.Type.LONG ? version.getLong() : 0L;
+    }
+
+    private static StorageMode convertStorageMode(Document document) {
+        Value mode = document != null ? document.getValue(STORAGE_MODE_PATH) : null;
+        if (mode == null || mode.getType() != Value.Type.STRING) return StorageMode.EXPANDED;
+        return StorageMode.valueOf(mode.getString());
+    }
+
+    private static Set<FieldPath> convertCounterFields(Document document) {
+        Value counters = document != null ? document.getValue(COUNTERS_PATH) : null;
+        if (counters == null || counters.getType() != Value.Type.ARRAY) return Collections.emptySet();
+        Set<FieldPath> counterFields = new HashSet<>();
+        for (Object path : counters.getList()) {
+            counterFields.add(FieldPath.parseFrom(path.toString()));
+        }
+        return Collections.unmodifiableSet(counterFields);
+    }
+
     private Map<String, Index> convertIndexDocument(Document document) {
         Map<String, Index> indexMap = Maps.newHashMap();
         if (document == null) return indexMap;
@@ -302,6 +631,30 @@ public class HDocumentDB extends AbstractMap<String, HDocumentCollection> {
         return connection.getAdmin().listTableNames();
     }
 
+    /**
+     * Returns the start keys of the regions of a table, in order.
+     */
+    protected byte[][] getStartKeys(TableName name) throws IOException {
+        try (RegionLocator locator = connection.getRegionLocator(name)) {
+            return locator.getStartKeys();
+        }
+    }
+
+    /**
+     * Starts fetching the results of a batch of gets in the background, using a table of its own.
+     */
+    protected Future<Result[]> fetch(TableName name, List<Get> gets) throws StoreException {
+        try {
+            return fetcher.submit(() -> {
+                try (Table table = getTable(name)) {
+                    return table.get(gets);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            throw new StoreException("The database is closed", e);
+        }
+    }
+
     protected void dropTable(TableName name) throws IOException {
         if (tableExists(name)) {
             Admin admin = connection.getAdmin();
@@ -312,6 +665,79 @@ public class HDocumentDB extends AbstractMap<String, HDocumentCollection> {
         }
     }
 
+    /**
+     * Loads the given cells, which must be sorted, into an existing table without going through
+     * its region servers.  The cells are written to HFiles in a staging directory of the default
+     * filesystem, which are then handed to HBase and removed.
+     */
+    protected void bulkLoad(TableName name, Iterator<Cell> cells) throws IOException {
+        Configuration config = connection.getConfiguration();
+        FileSystem fs = FileSystem.get(config);
+        Path dir = new Path(config.get(BULKLOAD_STAGING_DIR, DEFAULT_BULKLOAD_STAGING_DIR),
+                name.getNameAsString().replace(':', '_') + "_" + UUID.randomUUID());
+        Map<String, HFileWriter> writers = Maps.newHashMap();
+        try {
+            try {
+                while (cells.hasNext()) {
+                    Cell cell = cells.next();
+                    String family = Bytes.toString(CellUtil.cloneFamily(cell));
+                    HFileWriter writer = writers.computeIfAbsent(family,
+                            f -> new HFileWriter(config, fs, new Path(dir, f)));
+                    writer.append(cell);
+                }
+            } finally {
+                for (HFileWriter writer : writers.values()) {
+                    writer.close();
+                }
+            }
+            if (!writers.isEmpty()) {
+                BulkLoadHFiles.create(config).bulkLoad(name, dir);
+            }
+        } finally {
+            fs.delete(dir, true);
+        }
+    }
+
+    /*
+     * Writes the cells of a family to HFiles, starting a new file at the next row once a file is large enough.
+     */
+    private static class HFileWriter {
+        private final Configuration config;
+        private final FileSystem fs;
+        private final Path dir;
+        private HFile.Writer writer;
+        private int fileCount = 0;
+        private long fileBytes = 0;
+        private Cell lastCell;
+
+        HFileWriter(Configuration config, FileSystem fs, Path dir) {
+            this.config = config;
+            this.fs = fs;
+            this.dir = dir;
+        }
+
+        void append(Cell cell) throws IOException {
+            if (writer != null && fileBytes >= MAX_BULKLOAD_FILE_BYTES && !CellUtil.matchingRows(lastCell, cell)) {
+                close();
+            }
+            if (writer == null) {
+                writer = HFile.getWriterFactory(config, CacheConfig.DISABLED)
+                        .withPath(fs, new Path(dir, String.format("hfile-%05d", fileCount++)))
+                        .withFileContext(new HFileContextBuilder().build())
+                        .create();
+                fileBytes = 0;
+            }
+            writer.append(cell);
+            fileBytes += cell.getRowLength() + cell.getQualifierLength() + cell.getValueLength();
+            lastCell = cell;
+        }
+
+        void close() throws IOException {
+            if (writer != null) writer.close();
+            writer = null;
+        }
+    }
+
     /*
      * The following methods are for Nashorn integration
      */
@@ -2,7 +2,9 @@ package io.hdocdb.store;
 
 import com.google.common.base.Predicate;
 import com.google.common.collect.Iterables;
+import io.hdocdb.HContainer;
 import io.hdocdb.HDocument;
+import io.hdocdb.HValue;
 import io.hdocdb.util.Codec;
 import org.apache.hadoop.hbase.Cell;
 import org.apache.hadoop.hbase.CellUtil;
@@ -10,6 +12,7 @@ import org.apache.hadoop.hbase.exceptions.DeserializationException;
 import org.apache.hadoop.hbase.filter.Filter;
 import org.apache.hadoop.hbase.filter.FilterBase;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.ojai.FieldPath;
 import org.ojai.store.QueryCondition;
 
 import javax.annotation.Nullable;
@@ -28,16 +31,27 @@ public class HDocumentFilter extends FilterBase implements Externalizable {
 
     private ConditionNode condition;
     private String[] paths;
+    private boolean includeAncestors;
+    private transient CompiledCondition compiledCondition;
 
     public HDocumentFilter() {
         this(null, (String[])null);
     }
 
     public HDocumentFilter(QueryCondition c, String... paths) {
+        this(c, false, paths);
+    }
+
+    /**
+     * @param includeAncestors whether to also keep cells that lie above the given paths,
+     *                         which is needed to type check a mutation at those paths
+     */
+    public HDocumentFilter(QueryCondition c, boolean includeAncestors, String... paths) {
         this.condition = c != null && ((HQueryCondition)c).getRoot() != null
                 ? ((HQueryCondition)c).getRoot()
                 : new ConditionLeaf();
         this.paths = paths != null ? paths : new String[0];
+        this.includeAncestors = includeAncestors;
     }
 
     @Override
@@ -54,14 +68,15 @@ public class HDocumentFilter extends FilterBase implements Externalizable {
     public void filterRowCells(List<Cell> kvs) {
         List<String> fieldPaths = Arrays.asList(paths);
         HDocument doc = new HDocument(kvs);
-        if (condition.evaluate(doc)) {
+        if (compiledCondition == null) compiledCondition = CompiledCondition.compile(condition);
+        if (compiledCondition.evaluate(doc)) {
             if (!fieldPaths.isEmpty()) {
                 Iterables.removeIf(kvs, new Predicate<>() {
                     @Override
                     public boolean apply(@Nullable Cell cell) {
                         String columnName = Bytes.toString(CellUtil.cloneQualifier(cell));
                         if (columnName.equals(HDocument.TS)) return false;
-                        return !matchesPaths(fieldPaths, columnName);
+                        return !matchesPaths(fieldPaths, columnName) && !containsPaths(doc, fieldPaths, columnName, includeAncestors);
                     }
                 });
             }
@@ -77,6 +92,20 @@ public class HDocumentFilter extends FilterBase implements Externalizable {
         return false;
     }
 
+    private static boolean containsPaths(HDocument doc, List<String> queryPaths, String path, boolean includeAncestors) {
+        for (String p : queryPaths) {
+            if (p.length() > path.length() && p.startsWith(path)
+                    && (p.charAt(path.length()) == '.' || p.charAt(path.length()) == '[')) {
+                if (includeAncestors) return true;
+                // a packed cell holds an entire array or sub-document,
+                // so keep it if the query path lies inside of it
+                HValue value = doc.getHValue(FieldPath.parseFrom(path));
+                return value instanceof HContainer && ((HContainer) value).isPacked();
+            }
+        }
+        return false;
+    }
+
     private static boolean matchesPath(String queryPath, String path) {
         if (queryPath.contains("[]")) {
             Matcher m = ARRAY_WILDCARD.matcher(queryPath);
@@ -107,6 +136,7 @@ public class HDocumentFilter extends FilterBase implements Externalizable {
         }
         this.condition = node;
         this.paths = paths;
+        this.includeAncestors = input.readBoolean();
     }
 
     public void writeExternal(ObjectOutput output) throws IOException {
@@ -116,6 +146,7 @@ public class HDocumentFilter extends FilterBase implements Externalizable {
         for (String path : paths) {
             output.writeUTF(path);
         }
+        output.writeBoolean(includeAncestors);
     }
 
     @Override
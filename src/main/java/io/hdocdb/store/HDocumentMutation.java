@@ -1,9 +1,12 @@
 package io.hdocdb.store;
 
 import com.google.common.collect.ImmutableList;
+import io.hdocdb.HContainer;
 import io.hdocdb.HDocument;
 import io.hdocdb.HList;
 import io.hdocdb.HValue;
+import io.hdocdb.HValueHolder;
+import io.hdocdb.util.Codec;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.RowMutations;
@@ -25,9 +28,12 @@ import java.io.IOException;
 import java.math.BigDecimal;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Predicate;
 
 /**
  * The DocumentMutation interface defines the APIs to perform mutation of a
@@ -222,6 +228,56 @@ public class HDocumentMutation implements DocumentMutation {
         return false;
     }
 
+    public boolean isReadModifyWrite(StorageMode mode) {
+        if (isReadModifyWrite()) return true;
+        for (MutationOp op : mutationOps) {
+            // a value inside of a packed cell can only be written by rewriting the entire cell
+            if (mode.getPackedPath(op.getFieldPath()) != null) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the paths that need to be read to apply this mutation,
+     * or null if the entire document needs to be read.
+     */
+    public List<FieldPath> getReadPaths() {
+        List<FieldPath> paths = new ArrayList<>();
+        for (MutationOp op : mutationOps) {
+            FieldPath path = op.getFieldPath();
+            if (path == null || path.asPathString().isEmpty()) return null;
+            paths.add(path);
+        }
+        return paths;
+    }
+
+    /**
+     * Returns the increments of this mutation, keyed by path, if every operation is an
+     * integral increment of a counter; otherwise returns null.
+     *
+     * @param isCounter whether a given path is stored as a counter
+     */
+    public Map<FieldPath, Long> getCounterIncrements(Predicate<FieldPath> isCounter) {
+        if (mutationOps.isEmpty()) return null;
+        Map<FieldPath, Long> increments = new LinkedHashMap<>();
+        for (MutationOp op : mutationOps) {
+            if (op.getType() != MutationOp.Type.INCREMENT || op.getOpValue() == null) return null;
+            switch (op.getOpValue().getType()) {
+                case BYTE:
+                case SHORT:
+                case INT:
+                case LONG:
+                    break;
+                default:
+                    return null;
+            }
+            if (!isCounter.test(op.getFieldPath())) return null;
+            Number inc = (Number) HValue.initFromValue(op.getOpValue()).getObject();
+            increments.merge(op.getFieldPath(), inc.longValue(), Long::sum);
+        }
+        return increments;
+    }
+
     public HDocument asDocument() {
         if (isReadModifyWrite()) return null;
         HDocument document = new HDocument();
@@ -231,6 +287,72 @@ public class HDocumentMutation implements DocumentMutation {
         return document;
     }
 
+    /**
+     * Returns a copy of the given document with this mutation applied, as it is stored
+     * once the mutation is written.  Only the fields that were read are present.
+     */
+    public HDocument applyTo(HDocument document) {
+        try {
+            HDocument result = (HDocument) copyOf(document);
+            for (MutationOp op : mutationOps) {
+                FieldPath path = op.getFieldPath();
+                HValue opValue = op.getOpValue() != null ? HValue.initFromValue(op.getOpValue()) : null;
+                switch (op.getType()) {
+                    case SET:
+                    case SET_OR_REPLACE:
+                        result.setHValue(path, opValue);
+                        break;
+                    case DELETE:
+                        result.removeHValue(path);
+                        break;
+                    case INCREMENT:
+                        if (opValue == null) throw new IllegalArgumentException("Null passed to " + op.getType());
+                        result.setHValue(path, increment(result.getHValue(path), opValue));
+                        break;
+                    case APPEND:
+                        if (opValue == null) throw new IllegalArgumentException("Null passed to " + op.getType());
+                        result.setHValue(path, append(result.getHValue(path), opValue));
+                        break;
+                    case MERGE:
+                        if (opValue == null) throw new IllegalArgumentException("Null passed to " + op.getType());
+                        for (Map.Entry<String, Value> entry : (HDocument) opValue.getMap()) {
+                            result.setHValue(FieldPath.parseFrom(path.asPathString() + "." + entry.getKey()),
+                                    HValue.initFromValue(entry.getValue()));
+                        }
+                        break;
+                }
+            }
+            return result;
+        } catch (IOException e) {
+            throw new StoreException(e);
+        }
+    }
+
+    private static HValue append(HValue oldValue, HValue appendValue) {
+        switch (appendValue.getType()) {
+            case ARRAY:
+                HList list = new HList();
+                int index = 0;
+                if (oldValue != null) {
+                    for (HValue value : ((HList) oldValue.getList()).getHValues()) {
+                        list.set(index++, value);
+                    }
+                }
+                for (HValue value : ((HList) appendValue.getList()).getHValues()) {
+                    list.set(index++, value);
+                }
+                return list;
+            case BINARY:
+                ByteBuffer oldBytes = oldValue != null ? oldValue.getBinary() : ByteBuffer.allocate(0);
+                ByteBuffer appendBytes = appendValue.getBinary();
+                return new HValue(ByteBuffer.allocate(oldBytes.limit() + appendBytes.limit()).put(oldBytes).put(appendBytes));
+            case STRING:
+                return new HValue((oldValue != null ? oldValue.getString() : "") + appendValue.getString());
+            default:
+                throw new IllegalArgumentException("Cannot append with " + appendValue.getType());
+        }
+    }
+
     /**
      * Sets the field at the given FieldPath to {@link Type#NULL NULL} Value.
      *
@@ -1999,27 +2121,33 @@ public class HDocumentMutation implements DocumentMutation {
     }
 
     public void fillMutations(RowMutations mutations, String family, HDocument document) {
+        fillMutations(mutations, family, document, StorageMode.EXPANDED);
+    }
+
+    public void fillMutations(RowMutations mutations, String family, HDocument document, StorageMode mode) {
         try {
+            // packed cells that have been rewritten by earlier ops, keyed by the path of the cell
+            Map<String, HValue> packedValues = new HashMap<>();
             for (MutationOp mutationOp : mutationOps) {
                 MutationOp.Type type = mutationOp.getType();
                 switch (type) {
                     case SET:
-                        fillSet(mutations, family, document, mutationOp);
+                        fillSet(mutations, family, document, mode, packedValues, mutationOp);
                         break;
                     case SET_OR_REPLACE:
-                        fillSetOrReplace(mutations, family, mutationOp);
+                        fillSetOrReplace(mutations, family, document, mode, packedValues, mutationOp);
                         break;
                     case DELETE:
-                        fillDelete(mutations, family, document, mutationOp);
+                        fillDelete(mutations, family, document, mode, packedValues, mutationOp);
                         break;
                     case INCREMENT:
-                        fillIncrement(mutations, family, document, mutationOp);
+                        fillIncrement(mutations, family, document, mode, packedValues, mutationOp);
                         break;
                     case APPEND:
-                        fillAppend(mutations, family, document, mutationOp);
+                        fillAppend(mutations, family, document, mode, packedValues, mutationOp);
                         break;
                     case MERGE:
-                        fillMerge(mutations, family, document, mutationOp);
+                        fillMerge(mutations, family, document, mode, packedValues, mutationOp);
                         break;
                 }
             }
@@ -2028,51 +2156,79 @@ public class HDocumentMutation implements DocumentMutation {
         }
     }
 
-    private void fillSet(RowMutations mutations, String family, HDocument document, MutationOp mutationOp) throws java.io.IOException {
+    private void fillSet(RowMutations mutations, String family, HDocument document, StorageMode mode,
+                         Map<String, HValue> packedValues, MutationOp mutationOp) throws IOException {
         FieldPath path = mutationOp.getFieldPath();
         HValue newValue = HValue.initFromValue(mutationOp.getOpValue());
         if (document != null) document.checkHValue(path, newValue);
-        HDocument doc = new HDocument();
-        doc.setHValue(path, newValue);
-        Put put = new Put(mutations.getRow());
-        doc.fillPut(put, family, FieldPath.EMPTY);
-        mutations.add(put);
+        fillValue(mutations, family, document, mode, packedValues, path, newValue);
     }
 
-    private void fillSetOrReplace(RowMutations mutations, String family, MutationOp mutationOp) throws java.io.IOException {
+    private void fillSetOrReplace(RowMutations mutations, String family, HDocument document, StorageMode mode,
+                                  Map<String, HValue> packedValues, MutationOp mutationOp) throws IOException {
         FieldPath path = mutationOp.getFieldPath();
-        HDocument doc = new HDocument();
-        doc.setHValue(path, HValue.initFromValue(mutationOp.getOpValue()));
-        Put put = new Put(mutations.getRow());
-        doc.fillPut(put, family, FieldPath.EMPTY);
-        mutations.add(put);
+        fillValue(mutations, family, document, mode, packedValues, path, HValue.initFromValue(mutationOp.getOpValue()));
     }
 
-    private void fillDelete(RowMutations mutations, String family, HDocument document, MutationOp mutationOp) throws IOException {
+    private void fillDelete(RowMutations mutations, String family, HDocument document, StorageMode mode,
+                            Map<String, HValue> packedValues, MutationOp mutationOp) throws IOException {
         FieldPath path = mutationOp.getFieldPath();
+        FieldPath packedPath = mode.getPackedPath(path);
+        if (packedPath != null) {
+            // the value lives inside of a packed cell, so rewrite the cell without it
+            HValue packedValue = getCurrentValue(document, mode, packedValues, packedPath);
+            if (packedValue instanceof HContainer) {
+                HDocument doc = new HDocument();
+                doc.setHValue(packedPath, copyOf(packedValue));
+                doc.removeHValue(path);
+                packedValues.put(packedPath.asPathString(), doc.getHValue(packedPath));
+                Put put = new Put(mutations.getRow());
+                doc.fillPut(put, family, FieldPath.EMPTY, mode);
+                mutations.add(put);
+            }
+            return;
+        }
         Delete delete = new Delete(mutations.getRow());
+        String cellPath = path.asPathString();
         if (document != null) {
             HValue value = document.getHValue(path);
-            if (value != null) value.fillDelete(delete, family, path);
+            if (value instanceof HContainer && ((HContainer) value).isPacked()) {
+                delete.addColumns(Bytes.toBytes(family), Bytes.toBytes(cellPath));
+            } else if (value != null) {
+                value.fillDelete(delete, family, path);
+            } else if (packedValues.get(cellPath) != null) {
+                // the packed cell was only written by an earlier op
+                delete.addColumns(Bytes.toBytes(family), Bytes.toBytes(cellPath));
+            }
         } else {
-            delete.addColumns(Bytes.toBytes(family), Bytes.toBytes(path.asPathString()));
+            delete.addColumns(Bytes.toBytes(family), Bytes.toBytes(cellPath));
+        }
+        if (packedValues.containsKey(cellPath)) {
+            packedValues.put(cellPath, null);
         }
         if (!delete.isEmpty()) {
             mutations.add(delete);
         }
     }
 
-    private void fillIncrement(RowMutations mutations, String family, HDocument document, MutationOp mutationOp) throws IOException {
+    private void fillIncrement(RowMutations mutations, String family, HDocument document, StorageMode mode,
+                               Map<String, HValue> packedValues, MutationOp mutationOp) throws IOException {
         if (mutationOp.getOpValue() == null) throw new IllegalArgumentException("Null passed to " + mutationOp.getType());
         FieldPath path = mutationOp.getFieldPath();
         HValue incrValue = HValue.initFromValue(mutationOp.getOpValue());
+        HValue oldValue = document != null ? document.checkHValue(path, incrValue) : null;
+        oldValue = getCurrentValue(oldValue, mode, packedValues, path);
+        HValue newValue = increment(oldValue, incrValue);
+        fillValue(mutations, family, document, mode, packedValues, path, newValue);
+    }
+
+    private static HValue increment(HValue oldValue, HValue incrValue) {
         Object incrObj = incrValue.getObject();
         if (!(incrObj instanceof Number)) {
             throw new IllegalArgumentException("Cannot increment with non-number");
         }
         Number incrNum = (Number)incrObj;
 
-        HValue oldValue = document != null ? document.checkHValue(path, incrValue) : null;
         HValue newValue;
         if (oldValue != null) {
             Object oldObj = oldValue.getObject();
@@ -2109,37 +2265,50 @@ public class HDocumentMutation implements DocumentMutation {
         } else {
             newValue = incrValue;
         }
-        HDocument doc = new HDocument();
-        doc.setHValue(path, newValue);
-        Put put = new Put(mutations.getRow());
-        doc.fillPut(put, family, FieldPath.EMPTY);
-        mutations.add(put);
+        return newValue;
     }
 
-    private void fillAppend(RowMutations mutations, String family, HDocument document, MutationOp mutationOp) throws IOException {
+    private void fillAppend(RowMutations mutations, String family, HDocument document, StorageMode mode,
+                            Map<String, HValue> packedValues, MutationOp mutationOp) throws IOException {
         if (mutationOp.getOpValue() == null) throw new IllegalArgumentException("Null passed to " + mutationOp.getType());
         FieldPath path = mutationOp.getFieldPath();
         HValue appendValue = HValue.initFromValue(mutationOp.getOpValue());
         HValue oldValue = document != null ? document.checkHValue(path, appendValue) : null;
+        oldValue = getCurrentValue(oldValue, mode, packedValues, path);
         switch (appendValue.getType()) {
             case ARRAY:
-                fillAppendArray(mutations, family, mutationOp, oldValue, appendValue);
+                fillAppendArray(mutations, family, document, mode, packedValues, mutationOp, oldValue, appendValue);
                 break;
             case BINARY:
-                fillAppendBinary(mutations, family, mutationOp, oldValue, appendValue);
+                fillAppendBinary(mutations, family, document, mode, packedValues, mutationOp, oldValue, appendValue);
                 break;
             case STRING:
-                fillAppendString(mutations, family, mutationOp, oldValue, appendValue);
+                fillAppendString(mutations, family, document, mode, packedValues, mutationOp, oldValue, appendValue);
                 break;
             default:
                 throw new IllegalArgumentException("Cannot append with " + appendValue.getType());
         }
     }
 
-    private void fillAppendArray(RowMutations mutations, String family, MutationOp mutationOp, Value oldValues, Value newValues) throws IOException {
+    private void fillAppendArray(RowMutations mutations, String family, HDocument document, StorageMode mode,
+                                 Map<String, HValue> packedValues, MutationOp mutationOp,
+                                 Value oldValues, Value newValues) throws IOException {
         FieldPath path = mutationOp.getFieldPath();
         HList oldList = oldValues != null ? (HList) oldValues.getList() : new HList();
         HList newList = newValues != null ? (HList) newValues.getList() : new HList();
+        if (mode != StorageMode.EXPANDED) {
+            // arrays are always packed (or inside of a packed cell), so write out the entire array
+            HList list = new HList();
+            int index = 0;
+            for (HValue oldValue : oldList.getHValues()) {
+                list.set(index++, oldValue);
+            }
+            for (HValue newValue : newList.getHValues()) {
+                list.set(index++, newValue);
+            }
+            fillValue(mutations, family, document, mode, packedValues, path, list);
+            return;
+        }
         HDocument doc = new HDocument();
         for (int i = 0; i < newList.size(); i++) {
             HValue newValue = newList.getHValue(i);
@@ -2150,44 +2319,109 @@ public class HDocumentMutation implements DocumentMutation {
         mutations.add(put);
     }
 
-    private void fillAppendBinary(RowMutations mutations, String family, MutationOp mutationOp, Value oldValue, Value appendValue) throws IOException {
+    private void fillAppendBinary(RowMutations mutations, String family, HDocument document, StorageMode mode,
+                                  Map<String, HValue> packedValues, MutationOp mutationOp,
+                                  Value oldValue, Value appendValue) throws IOException {
         FieldPath path = mutationOp.getFieldPath();
         ByteBuffer oldBytes = oldValue != null ? oldValue.getBinary() : ByteBuffer.allocate(0);
         ByteBuffer appendBytes = appendValue.getBinary();
         ByteBuffer newBytes = ByteBuffer.allocate(oldBytes.limit() + appendBytes.limit());
         newBytes.put(oldBytes).put(appendBytes);
         HValue newValue = new HValue(newBytes);
-        HDocument doc = new HDocument();
-        doc.setHValue(path, newValue);
-        Put put = new Put(mutations.getRow());
-        doc.fillPut(put, family, FieldPath.EMPTY);
-        mutations.add(put);
+        fillValue(mutations, family, document, mode, packedValues, path, newValue);
     }
 
-    private void fillAppendString(RowMutations mutations, String family, MutationOp mutationOp, Value oldValue, Value appendValue) throws IOException {
+    private void fillAppendString(RowMutations mutations, String family, HDocument document, StorageMode mode,
+                                  Map<String, HValue> packedValues, MutationOp mutationOp,
+                                  Value oldValue, Value appendValue) throws IOException {
         FieldPath path = mutationOp.getFieldPath();
         String oldString = oldValue != null ? oldValue.getString() : "";
         String appendString = appendValue.getString();
         HValue newValue = new HValue(oldString + appendString);
-        HDocument doc = new HDocument();
-        doc.setHValue(path, newValue);
-        Put put = new Put(mutations.getRow());
-        doc.fillPut(put, family, FieldPath.EMPTY);
-        mutations.add(put);
+        fillValue(mutations, family, document, mode, packedValues, path, newValue);
     }
 
-    private void fillMerge(RowMutations mutations, String family, HDocument document, MutationOp mutationOp) throws IOException {
+    private void fillMerge(RowMutations mutations, String family, HDocument document, StorageMode mode,
+                           Map<String, HValue> packedValues, MutationOp mutationOp) throws IOException {
         if (mutationOp.getOpValue() == null) throw new IllegalArgumentException("Null passed to " + mutationOp.getType());
         FieldPath path = mutationOp.getFieldPath();
         HValue newValues = HValue.initFromValue(mutationOp.getOpValue());
         if (document != null) document.checkHValue(path, newValues);
-        HDocument doc = new HDocument();
         for (Map.Entry<String, Value> entry : (HDocument) newValues.getMap()) {
-            doc.setHValue(FieldPath.parseFrom(path.asPathString() + "." + entry.getKey()), HValue.initFromValue(entry.getValue()));
+            fillValue(mutations, family, document, mode, packedValues,
+                    FieldPath.parseFrom(path.asPathString() + "." + entry.getKey()), HValue.initFromValue(entry.getValue()));
+        }
+    }
+
+    /*
+     * Writes the given value at the given path.  If the path lies inside of a packed cell,
+     * the entire cell is rewritten with the new value in place.
+     */
+    private void fillValue(RowMutations mutations, String family, HDocument document, StorageMode mode,
+                           Map<String, HValue> packedValues, FieldPath path, HValue newValue) throws IOException {
+        FieldPath packedPath = mode.getPackedPath(path);
+        FieldPath cellPath = packedPath != null ? packedPath : path;
+        HDocument doc = new HDocument();
+        if (packedPath != null) {
+            HValue packedValue = getCurrentValue(document, mode, packedValues, packedPath);
+            if (packedValue instanceof HContainer) doc.setHValue(packedPath, copyOf(packedValue));
+        }
+        doc.setHValue(path, newValue);
+        HValue cellValue = doc.getHValue(cellPath);
+        if (mode.isPacked(cellValue, cellPath)) {
+            packedValues.put(cellPath.asPathString(), cellValue);
+            fillDeleteExpanded(mutations, family, document, cellPath);
         }
         Put put = new Put(mutations.getRow());
-        doc.fillPut(put, family, FieldPath.EMPTY);
+        doc.fillPut(put, family, FieldPath.EMPTY, mode);
         mutations.add(put);
     }
 
+    /*
+     * Deletes the cells that were written under the given path when the
+     * document was stored in expanded mode.
+     */
+    private void fillDeleteExpanded(RowMutations mutations, String family, HDocument document, FieldPath path)
+            throws IOException {
+        HValue oldValue = document != null ? document.getHValue(path) : null;
+        if (oldValue instanceof HContainer && !((HContainer) oldValue).isPacked()) {
+            Delete delete = new Delete(mutations.getRow());
+            oldValue.fillDelete(delete, family, path);
+            if (!delete.isEmpty()) {
+                mutations.add(delete);
+            }
+        }
+    }
+
+    private HValue getCurrentValue(HDocument document, StorageMode mode, Map<String, HValue> packedValues,
+                                   FieldPath path) {
+        HValue oldValue = document != null ? document.getHValue(path) : null;
+        return getCurrentValue(oldValue, mode, packedValues, path);
+    }
+
+    /*
+     * Returns the value at the given path, taking into account any packed cells
+     * that have already been rewritten by earlier ops of this mutation.
+     */
+    private HValue getCurrentValue(HValue oldValue, StorageMode mode, Map<String, HValue> packedValues,
+                                   FieldPath path) {
+        FieldPath packedPath = mode.getPackedPath(path);
+        String cellPath = (packedPath != null ? packedPath : path).asPathString();
+        if (!packedValues.containsKey(cellPath)) return oldValue;
+        HValue packedValue = packedValues.get(cellPath);
+        if (packedValue == null) return null;
+        HDocument doc = new HDocument();
+        doc.setHValue(FieldPath.parseFrom(cellPath), packedValue);
+        return doc.getHValue(path);
+    }
+
+    private static HValue copyOf(HValue value) throws IOException {
+        try {
+            Codec<HValueHolder> codec = new Codec<>();
+            return codec.decode(codec.encode(new HValueHolder(value)), new HValueHolder()).getValue();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
 }
@@ -149,6 +149,21 @@ public class HQueryCondition implements QueryCondition {
         return root != null ? root.hashCode() : 0;
     }
 
+    /**
+     * Returns the structure of this condition without its values.
+     */
+    public String getShape() {
+        return getShape(false);
+    }
+
+    /**
+     * Returns the structure of this condition without its values, optionally
+     * including the type of each value.
+     */
+    public String getShape(boolean withTypes) {
+        return root != null ? root.getShape(withTypes) : "";
+    }
+
     public String toString() {
         return root != null ? root.toString() : "";
     }
@@ -406,6 +421,7 @@ public class HQueryCondition implements QueryCondition {
      * @throws PatternSyntaxException if the expression's syntax is invalid
      */
     public HQueryCondition matches(FieldPath path, String regex) {
+        ConditionPatterns.getRegexPattern(regex);
         return add(new ConditionLeaf(path, ConditionLeaf.CompareOp.MATCHES, new HValue(regex)));
     }
 
@@ -434,6 +450,7 @@ public class HQueryCondition implements QueryCondition {
      * @throws PatternSyntaxException if the expression's syntax is invalid
      */
     public HQueryCondition notMatches(FieldPath path, String regex) {
+        ConditionPatterns.getRegexPattern(regex);
         return add(new ConditionLeaf(path, ConditionLeaf.CompareOp.NOT_MATCHES, new HValue(regex)));
     }
 
@@ -460,7 +477,7 @@ public class HQueryCondition implements QueryCondition {
      * @return {@code this} for chained invocation
      */
     public HQueryCondition like(FieldPath path, String likeExpression) {
-        return add(new ConditionLeaf(path, ConditionLeaf.CompareOp.LIKE, new HValue(likeExpression)));
+        return like(path, likeExpression, null);
     }
 
     /**
@@ -488,8 +505,8 @@ public class HQueryCondition implements QueryCondition {
      * @return {@code this} for chained invocation
      */
     public HQueryCondition like(FieldPath path, String likeExpression, Character escapeChar) {
-        // TODO like
-        throw new UnsupportedOperationException();
+        String expression = ConditionPatterns.toLikeExpression(likeExpression, escapeChar);
+        return add(new ConditionLeaf(path, ConditionLeaf.CompareOp.LIKE, new HValue(expression)));
     }
 
     /**
@@ -515,7 +532,7 @@ public class HQueryCondition implements QueryCondition {
      * @return {@code this} for chained invocation
      */
     public HQueryCondition notLike(FieldPath path, String likeExpression) {
-        return add(new ConditionLeaf(path, ConditionLeaf.CompareOp.NOT_LIKE, new HValue(likeExpression)));
+        return notLike(path, likeExpression, null);
     }
 
     /**
@@ -543,8 +560,8 @@ public class HQueryCondition implements QueryCondition {
      * @return {@code this} for chained invocation
      */
     public HQueryCondition notLike(FieldPath path, String likeExpression, Character escapeChar) {
-        // TODO notLike
-        throw new UnsupportedOperationException();
+        String expression = ConditionPatterns.toLikeExpression(likeExpression, escapeChar);
+        return add(new ConditionLeaf(path, ConditionLeaf.CompareOp.NOT_LIKE, new HValue(expression)));
     }
 
     /**
@@ -1135,6 +1152,50 @@ public class HQueryCondition implements QueryCondition {
         return root.evaluate(document);
     }
 
+    /**
+     * Compiles this condition for evaluation against many documents.
+     */
+    public CompiledCondition compile() {
+        return CompiledCondition.compile(root);
+    }
+
+    /**
+     * Returns whether every document matching this condition also matches the given
+     * condition, such as the filter of a partial index.  The check is conservative,
+     * so it may return false if it cannot be determined.
+     */
+    public boolean implies(HQueryCondition condition) {
+        if (condition == null || condition.isEmpty()) return true;
+        if (root == null) return false;
+        return implies(root, condition.getRoot());
+    }
+
+    private static boolean implies(ConditionNode node, ConditionNode that) {
+        if (node.toString().equals(that.toString())) return true;
+        if (!that.isLeaf() && ((ConditionParent) that).getType() == ConditionParent.BooleanOp.AND) {
+            for (ConditionNode child : ((ConditionParent) that).getChildren()) {
+                if (!implies(node, child)) return false;
+            }
+            return true;
+        }
+        if (!node.isLeaf()) {
+            ConditionParent parent = (ConditionParent) node;
+            boolean and = parent.getType() == ConditionParent.BooleanOp.AND;
+            for (ConditionNode child : parent.getChildren()) {
+                // one conjunct or every disjunct must imply the condition
+                if (and == implies(child, that)) return and;
+            }
+            return !and;
+        }
+        if (!that.isLeaf()) {
+            for (ConditionNode child : ((ConditionParent) that).getChildren()) {
+                if (implies(node, child)) return true;
+            }
+            return false;
+        }
+        return ((ConditionLeaf) node).implies((ConditionLeaf) that);
+    }
+
     private HQueryCondition add(ConditionLeaf leaf) {
         if (this.root == null) {
             this.root = leaf;
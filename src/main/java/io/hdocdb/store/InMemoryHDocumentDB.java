@@ -1,17 +1,30 @@
 package io.hdocdb.store;
 
 import com.google.common.base.Ticker;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.TableName;
 import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.client.mock.EmbeddedHTable;
 import org.apache.hadoop.hbase.client.mock.MockHTable;
+import org.apache.hadoop.hbase.util.Bytes;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class InMemoryHDocumentDB extends HDocumentDB {
 
+    /* The number of rows written together by a bulk load */
+    private static final int BULKLOAD_BATCH_SIZE = 1000;
+
     private Map<TableName, Table> tables;
     private Ticker ticker;
 
@@ -28,12 +41,20 @@ public class InMemoryHDocumentDB extends HDocumentDB {
         return tables;
     }
 
+    /**
+     * Creates the table backing a document or index table.
+     * Called while the superclass is being constructed, so must not depend on subclass fields.
+     */
+    protected Table newTable(TableName name, int maxVersions) {
+        return new MockHTable(name, DEFAULT_FAMILY);
+    }
+
     protected void createTable(TableName name) throws IOException {
-        getTables().putIfAbsent(name, new MockHTable(name, DEFAULT_FAMILY));
+        getTables().computeIfAbsent(name, n -> newTable(n, HColumnDescriptor.DEFAULT_VERSIONS));
     }
 
     protected void createTable(TableName name, int maxVersions, boolean keepDeleted) throws IOException {
-        getTables().putIfAbsent(name, new MockHTable(name, DEFAULT_FAMILY));
+        getTables().computeIfAbsent(name, n -> newTable(n, maxVersions));
     }
 
     protected boolean tableExists(TableName name) throws IOException {
@@ -48,8 +69,42 @@ public class InMemoryHDocumentDB extends HDocumentDB {
         return tables.keySet().toArray(new TableName[0]);
     }
 
+    /**
+     * Returns the start key of the single region of an in-memory table.
+     */
+    protected byte[][] getStartKeys(TableName name) throws IOException {
+        return new byte[][]{HConstants.EMPTY_START_ROW};
+    }
+
+    /**
+     * Writes the given cells, which must be sorted, directly to the table, one row at a time.
+     */
+    protected void bulkLoad(TableName name, Iterator<Cell> cells) throws IOException {
+        Table table = getTable(name);
+        List<Put> puts = new ArrayList<>();
+        Put put = null;
+        while (cells.hasNext()) {
+            Cell cell = cells.next();
+            if (put == null || !Bytes.equals(put.getRow(), 0, put.getRow().length,
+                    cell.getRowArray(), cell.getRowOffset(), cell.getRowLength())) {
+                if (puts.size() >= BULKLOAD_BATCH_SIZE) {
+                    table.put(puts);
+                    puts.clear();
+                }
+                put = new Put(CellUtil.cloneRow(cell));
+                puts.add(put);
+            }
+            put.add(cell);
+        }
+        table.put(puts);
+    }
+
     protected void dropTable(TableName name) throws IOException {
         Table table = getTables().get(name);
-        if (table != null) ((MockHTable)table).clear();
+        if (table instanceof MockHTable) {
+            ((MockHTable)table).clear();
+        } else if (table instanceof EmbeddedHTable) {
+            ((EmbeddedHTable)table).clear();
+        }
     }
 }
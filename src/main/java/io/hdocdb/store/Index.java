@@ -4,11 +4,15 @@ import com.google.common.collect.Lists;
 import io.hdocdb.HDocument;
 import io.hdocdb.HList;
 import io.hdocdb.HValue;
+import io.hdocdb.util.Codec;
 import org.ojai.Document;
 import org.ojai.Value;
 import org.ojai.store.exceptions.StoreException;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.Objects;
 
 public class Index {
 
@@ -17,6 +21,11 @@ public class Index {
     public static final String NAME_PATH = "name";
     public static final String STATE_PATH = "state";
     public static final String FIELDS_PATH = "fields";
+    public static final String SPARSE_PATH = "sparse";
+    public static final String MULTIKEY_PATH = "multikey";
+    public static final String FILTER_PATH = "filter";
+    // the maximum number of entries of a multikey index for a single document
+    public static final int MAX_MULTIKEY_ENTRIES = 1000;
 
     public enum State {
         CREATED,
@@ -28,11 +37,28 @@ public class Index {
 
     private final String name;
     private final List<IndexFieldPath> elements;
+    private final boolean sparse;
+    private final boolean multikey;
+    private final HQueryCondition filter;
+    private transient CompiledCondition compiledFilter;
     private State state;
 
     public Index(String name, List<IndexFieldPath> elements) {
+        this(name, elements, false, false, null);
+    }
+
+    /**
+     * @param sparse   whether documents without any of the indexed fields are not indexed
+     * @param multikey whether an array is indexed with an entry for each of its elements
+     * @param filter   the condition that documents must match to be indexed, or null
+     */
+    public Index(String name, List<IndexFieldPath> elements, boolean sparse, boolean multikey,
+                 HQueryCondition filter) {
         this.name = name;
         this.elements = elements;
+        this.sparse = sparse;
+        this.multikey = multikey;
+        this.filter = filter != null && !filter.isEmpty() ? filter : null;
         this.state = State.CREATED;
     }
 
@@ -50,6 +76,12 @@ public class Index {
             IndexFieldPath path = new IndexFieldPath((Document) field);
             this.elements.add(path);
         }
+        Value sparse = document.getValue(SPARSE_PATH);
+        this.sparse = sparse != null && sparse.getType() == Value.Type.BOOLEAN && sparse.getBoolean();
+        Value multikey = document.getValue(MULTIKEY_PATH);
+        this.multikey = multikey != null && multikey.getType() == Value.Type.BOOLEAN && multikey.getBoolean();
+        Value filter = document.getValue(FILTER_PATH);
+        this.filter = filter != null && filter.getType() == Value.Type.BINARY ? decodeFilter(filter.getBinary()) : null;
         this.state = State.valueOf(document.getString(STATE_PATH));
     }
 
@@ -63,9 +95,37 @@ public class Index {
             fields.set(i++, field.asDocument());
         }
         doc.set(FIELDS_PATH, fields);
+        if (sparse) doc.set(SPARSE_PATH, true);
+        if (multikey) doc.set(MULTIKEY_PATH, true);
+        if (filter != null) doc.set(FILTER_PATH, encodeFilter(filter));
         return doc;
     }
 
+    /*
+     * The filter is stored as a flag for whether its root is a leaf, followed by the root.
+     */
+    private static ByteBuffer encodeFilter(HQueryCondition filter) {
+        try {
+            ConditionNode root = filter.getRoot();
+            byte[] bytes = new Codec<ConditionNode>().encode(root);
+            return ByteBuffer.allocate(bytes.length + 1).put((byte) (root.isLeaf() ? 1 : 0)).put(bytes).flip();
+        } catch (IOException e) {
+            throw new StoreException(e);
+        }
+    }
+
+    private static HQueryCondition decodeFilter(ByteBuffer buffer) {
+        try {
+            boolean isLeaf = buffer.get() == 1;
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            ConditionNode root = new Codec<ConditionNode>().decode(bytes, isLeaf ? new ConditionLeaf() : new ConditionParent());
+            return new HQueryCondition(root).build();
+        } catch (IOException | ClassNotFoundException e) {
+            throw new StoreException("Invalid index document", e);
+        }
+    }
+
     public String getName() {
         return name;
     }
@@ -90,6 +150,35 @@ public class Index {
         return paths;
     }
 
+    public boolean isSparse() {
+        return sparse;
+    }
+
+    public boolean isMultikey() {
+        return multikey;
+    }
+
+    public HQueryCondition getFilter() {
+        return filter;
+    }
+
+    /**
+     * Returns whether the given document matches the filter of this index, if any.
+     */
+    public boolean matchesFilter(HDocument document) {
+        if (filter == null) return true;
+        if (compiledFilter == null) compiledFilter = filter.compile();
+        return compiledFilter.evaluate(document);
+    }
+
+    /**
+     * Returns whether this index has an entry for every document, so that a full scan
+     * of the index finds every document.
+     */
+    public boolean isComplete() {
+        return !sparse && filter == null;
+    }
+
     public State getState() {
         return state;
     }
@@ -107,6 +196,10 @@ public class Index {
 
         if (!name.equals(index.name)) return false;
         if (!elements.equals(index.elements)) return false;
+        if (sparse != index.sparse) return false;
+        if (multikey != index.multikey) return false;
+        // conditions are compared by their string forms, as their nodes do not implement equals
+        if (!Objects.equals(Objects.toString(filter), Objects.toString(index.filter))) return false;
         return state == index.state;
 
     }
@@ -115,6 +208,9 @@ public class Index {
     public int hashCode() {
         int result = name.hashCode();
         result = 31 * result + elements.hashCode();
+        result = 31 * result + (sparse ? 1 : 0);
+        result = 31 * result + (multikey ? 1 : 0);
+        result = 31 * result + Objects.toString(filter).hashCode();
         result = 31 * result + state.hashCode();
         return result;
     }
@@ -4,6 +4,7 @@ import com.google.common.collect.Lists;
 import org.apache.hadoop.hbase.client.Table;
 import org.ojai.FieldPath;
 import org.ojai.Value;
+import org.ojai.store.QueryCondition;
 import org.ojai.store.exceptions.StoreException;
 
 import java.util.AbstractList;
@@ -17,6 +18,9 @@ public class IndexBuilder extends AbstractList<IndexFieldPath> {
     private final String name;
     private final List<IndexFieldPath> elements = Lists.newArrayList();
     private boolean async;
+    private boolean sparse;
+    private boolean multikey;
+    private HQueryCondition filter;
 
     public IndexBuilder(HDocumentDB db, HDocumentCollection collection, Table table, String name) {
         this.db = db;
@@ -27,7 +31,7 @@ public class IndexBuilder extends AbstractList<IndexFieldPath> {
     }
 
     public Index build() {
-        Index index = new Index(name, elements);
+        Index index = new Index(name, elements, sparse, multikey, filter);
         // we create the index first so that newly created rows will be subsequently indexed
         db.createIndex(table.getName(), index);
         collection.populateIndex(name, async);
@@ -60,8 +64,10 @@ public class IndexBuilder extends AbstractList<IndexFieldPath> {
 
     public IndexBuilder add(FieldPath path, Value.Type type, Order order) {
         if (type == Value.Type.ARRAY || type == Value.Type.MAP) {
-            throw new StoreException("Cannot support indexes on containers");
+            throw new StoreException("Cannot support indexes on containers, use a multikey index on the element type");
         }
+        // a path such as "a[].b" has a value for each element of the array
+        if (path.asPathString().contains("[]")) multikey = true;
         add(new IndexFieldPath(path, type, order));
         return this;
     }
@@ -71,6 +77,42 @@ public class IndexBuilder extends AbstractList<IndexFieldPath> {
         return this;
     }
 
+    /**
+     * Sets whether documents that have none of the indexed fields, with the indexed
+     * types, are left out of the index.  A sparse index is only used by queries whose
+     * condition requires the first indexed field.
+     */
+    public IndexBuilder setSparse(boolean sparse) {
+        this.sparse = sparse;
+        return this;
+    }
+
+    /**
+     * Sets whether an array is indexed with an entry for each of its distinct elements
+     * of the indexed type, rather than as null, so that queries with "any" semantics on
+     * the elements can use the index.  An index with a path such as "a[].b" is always
+     * multikey.  A document can have at most {@link Index#MAX_MULTIKEY_ENTRIES} entries.
+     */
+    public IndexBuilder setMultikey(boolean multikey) {
+        this.multikey = multikey;
+        return this;
+    }
+
+    /**
+     * Sets a condition that documents must match to be indexed.  A partial index is
+     * only used by queries whose condition implies the filter.
+     */
+    public IndexBuilder setFilter(QueryCondition filter) {
+        if (filter != null) {
+            if (!filter.isBuilt()) throw new IllegalArgumentException("filter is unbuilt");
+            if (filter.isEmpty()) throw new IllegalArgumentException("filter is empty");
+            this.filter = new HQueryCondition(((HQueryCondition) filter).getRoot().deepCopy()).build();
+        } else {
+            this.filter = null;
+        }
+        return this;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -12,6 +12,9 @@ public class IndexQueries extends AbstractList<IndexQuery> {
     private final Index index;
     private final List<ConditionRange> ranges;
     private final List<IndexQuery> queries;
+    private long indexRowsScanned = 0;
+    private long indexScanNanos = 0;
+    private CompiledCondition compiledConditionFromRanges;
 
     public IndexQueries(Table indexTable, Index index, List<ConditionRange> ranges) {
         this.indexTable = indexTable;
@@ -36,6 +39,23 @@ public class IndexQueries extends AbstractList<IndexQuery> {
         return queries;
     }
 
+    /**
+     * Returns the number of index rows that were scanned to produce these queries,
+     * including rows that did not match the ranges.
+     */
+    public long getIndexRowsScanned() {
+        return indexRowsScanned;
+    }
+
+    public long getIndexScanNanos() {
+        return indexScanNanos;
+    }
+
+    public void setScanStatistics(long indexRowsScanned, long indexScanNanos) {
+        this.indexRowsScanned = indexRowsScanned;
+        this.indexScanNanos = indexScanNanos;
+    }
+
     public IndexQuery get(int index) {
         return queries.get(index);
     }
@@ -52,6 +72,16 @@ public class IndexQueries extends AbstractList<IndexQuery> {
         return block;
     }
 
+    /**
+     * Returns the condition from the ranges, compiled once for evaluating many documents.
+     */
+    public CompiledCondition getCompiledConditionFromRanges() {
+        if (compiledConditionFromRanges == null) {
+            compiledConditionFromRanges = CompiledCondition.compile(getConditionFromRanges());
+        }
+        return compiledConditionFromRanges;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
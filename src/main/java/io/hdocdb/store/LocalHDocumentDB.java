@@ -0,0 +1,98 @@
+package io.hdocdb.store;
+
+import com.google.common.base.Ticker;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.client.mock.EmbeddedHTable;
+import org.ojai.store.exceptions.StoreException;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * An embedded document database whose tables are kept in a local directory,
+ * using a write-ahead log and periodic snapshots.  On startup the latest snapshot is
+ * loaded and the log written after it is replayed.
+ */
+public class LocalHDocumentDB extends EmbeddedHDocumentDB implements Closeable {
+
+    /* The size of the log after which a snapshot is taken */
+    protected static final long DEFAULT_SNAPSHOT_BYTES = 64L * 1024 * 1024;
+
+    private LocalStorage storage;
+
+    public LocalHDocumentDB(File dir) throws IOException {
+        this(dir, Ticker.systemTicker());
+    }
+
+    public LocalHDocumentDB(File dir, Ticker ticker) throws IOException {
+        this(dir, ticker, DEFAULT_SNAPSHOT_BYTES, false);
+    }
+
+    /**
+     * @param snapshotBytes the size of the log after which a snapshot is taken, or 0 to only take
+     *                      snapshots when {@link #snapshot()} is called
+     * @param sync whether each write is forced to disk, rather than only surviving a crash of the process
+     */
+    public LocalHDocumentDB(File dir, Ticker ticker, long snapshotBytes, boolean sync) throws IOException {
+        super(ticker);
+        // the catalog must not be written to while the log is replayed, as the write would not be logged
+        stopRefresher();
+        LocalStorage storage = new LocalStorage(dir, snapshotBytes, sync);
+        try {
+            storage.open((name, maxVersions) -> {
+                createTable(name, maxVersions, DEFAULT_INDEX_KEEP_DELETED);
+                return (EmbeddedHTable) getTable(name);
+            });
+            // tables created before now are either in the snapshot or log, or are created by every instance
+            for (TableName name : listTables()) {
+                storage.attach((EmbeddedHTable) getTable(name));
+            }
+        } catch (IOException | RuntimeException e) {
+            try {
+                super.close();
+            } finally {
+                storage.close();
+            }
+            throw e;
+        }
+        this.storage = storage;
+        startRefresher();
+    }
+
+    @Override
+    protected Table newTable(TableName name, int maxVersions) {
+        EmbeddedHTable table = (EmbeddedHTable) super.newTable(name, maxVersions);
+        if (storage != null) {
+            try {
+                storage.create(table);
+            } catch (IOException e) {
+                throw new StoreException(e);
+            }
+        }
+        return table;
+    }
+
+    @Override
+    protected void dropTable(TableName name) throws IOException {
+        Table table = getTable(name);
+        if (table != null) storage.truncate((EmbeddedHTable) table);
+    }
+
+    /**
+     * Writes a snapshot of all tables, after which the log written before it is deleted.
+     */
+    public void snapshot() throws IOException {
+        storage.snapshot();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            storage.close();
+        }
+    }
+}
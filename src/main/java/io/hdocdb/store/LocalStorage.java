@@ -0,0 +1,474 @@
+package io.hdocdb.store;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.mock.EmbeddedHTable;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Makes embedded tables durable with a write-ahead log and snapshots in a local directory.
+ *
+ * <p>Every change to a row is appended to the current log segment as the new cells of the row
+ * before it becomes visible.  A snapshot starts a new segment, then writes every row to a new
+ * snapshot file and deletes the older segments.  As logged rows replace rather than modify the
+ * rows before them, the segments after a snapshot can be replayed over it even though rows
+ * may have changed while it was written.  On startup the snapshot is memory-mapped and loaded,
+ * and the segments after it are replayed, stopping at the first incomplete or corrupt record.
+ *
+ * <p>Files are mapped in windows of at most 2 GB.  The rows loaded from a snapshot are copied
+ * onto the heap, one array per row, as the rows of an embedded table are arrays that each write
+ * replaces, and a mapping would keep a snapshot file in use after the next snapshot replaces it.
+ *
+ * <p>All tables share one log, so appending a change is serialized across tables; a change is
+ * only applied to its table after it is appended, so the log limits the write throughput of
+ * the whole database, and more so if each change is forced to disk.
+ */
+class LocalStorage implements EmbeddedHTable.Journal, Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LocalStorage.class);
+
+    private static final String SNAPSHOT_FILE = "snapshot";
+    private static final String SNAPSHOT_TEMP_FILE = "snapshot.tmp";
+    private static final String LOG_PREFIX = "wal-";
+    private static final String LOG_SUFFIX = ".log";
+    private static final int SNAPSHOT_MAGIC = 0x48444442;
+    /* The largest region of a file that can be mapped at once */
+    private static final long MAX_MAPPED_BYTES = Integer.MAX_VALUE;
+
+    private static final byte CREATE_TABLE = 1;
+    private static final byte TRUNCATE_TABLE = 2;
+    private static final byte WRITE_ROW = 3;
+
+    private final File dir;
+    private final long snapshotBytes;
+    private final boolean sync;
+    private final Map<TableName, EmbeddedHTable> tables = new ConcurrentHashMap<>();
+    /* Held shared while appending and applying a change, and exclusively while starting a segment */
+    private final ReadWriteLock segmentLock = new ReentrantReadWriteLock();
+    private final Object snapshotLock = new Object();
+    private final AtomicBoolean snapshotPending = new AtomicBoolean();
+    private final ExecutorService snapshotter = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("hdocdb-snapshotter").setDaemon(true).build());
+    private long segment;
+    private FileChannel channel;
+    private long segmentSize;
+
+    /**
+     * Creates the tables loaded during recovery, returning the existing table if there is one.
+     */
+    interface TableFactory {
+        EmbeddedHTable create(TableName name, int maxVersions) throws IOException;
+    }
+
+    /**
+     * @param snapshotBytes the size of the log segment after which a snapshot is taken in the background
+     * @param sync whether each change is forced to disk before it becomes visible, rather than only
+     *             written to the operating system
+     */
+    LocalStorage(File dir, long snapshotBytes, boolean sync) {
+        this.dir = dir;
+        this.snapshotBytes = snapshotBytes;
+        this.sync = sync;
+    }
+
+    /**
+     * Loads the snapshot and replays the log into tables created by the given factory,
+     * then starts a new log segment.
+     */
+    void open(TableFactory factory) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory " + dir);
+        }
+        long first = 0;
+        File snapshot = new File(dir, SNAPSHOT_FILE);
+        if (snapshot.exists()) {
+            first = loadSnapshot(snapshot, factory);
+        }
+        SortedMap<Long, File> segments = listSegments();
+        for (Map.Entry<Long, File> entry : segments.entrySet()) {
+            if (entry.getKey() < first) {
+                Files.deleteIfExists(entry.getValue().toPath());
+            } else {
+                replay(entry.getValue(), factory);
+            }
+        }
+        // never append after a segment that may end with an incomplete record
+        long next = Math.max(first, segments.isEmpty() ? 0 : segments.lastKey() + 1);
+        synchronized (this) {
+            startSegment(next);
+        }
+    }
+
+    /**
+     * Journals the changes to the given table from now on, recording that it was created.
+     */
+    void create(EmbeddedHTable table) throws IOException {
+        byte[] record = newRecord(CREATE_TABLE, table.getName(), out -> out.writeInt(table.getMaxVersions()));
+        segmentLock.readLock().lock();
+        try {
+            append(record);
+            tables.put(table.getName(), table);
+            table.setJournal(this);
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Journals the changes to the given table from now on, such as a table created during recovery.
+     */
+    void attach(EmbeddedHTable table) {
+        tables.put(table.getName(), table);
+        table.setJournal(this);
+    }
+
+    /**
+     * Removes all rows of the given table.
+     */
+    void truncate(EmbeddedHTable table) throws IOException {
+        byte[] record = newRecord(TRUNCATE_TABLE, table.getName(), out -> { });
+        segmentLock.readLock().lock();
+        try {
+            append(record);
+            table.clear();
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+        maybeSnapshot();
+    }
+
+    @Override
+    public void write(EmbeddedHTable table, byte[] row, byte[] cells, Runnable apply) throws IOException {
+        byte[] record = newRecord(WRITE_ROW, table.getName(), out -> {
+            writeBytes(out, row);
+            writeBytes(out, cells);
+        });
+        segmentLock.readLock().lock();
+        try {
+            append(record);
+            apply.run();
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+        maybeSnapshot();
+    }
+
+    /**
+     * Writes a snapshot of all tables, and deletes the log segments that it replaces.
+     */
+    void snapshot() throws IOException {
+        synchronized (snapshotLock) {
+            long first;
+            segmentLock.writeLock().lock();
+            try {
+                // every change before the new segment is applied, so it is seen by the snapshot
+                synchronized (this) {
+                    first = segment + 1;
+                    startSegment(first);
+                }
+            } finally {
+                segmentLock.writeLock().unlock();
+            }
+            File temp = new File(dir, SNAPSHOT_TEMP_FILE);
+            try (FileChannel snapshotChannel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(Channels.newOutputStream(snapshotChannel), 1 << 16));
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeLong(first);
+                for (EmbeddedHTable table : tables.values()) {
+                    out.writeBoolean(true);
+                    writeBytes(out, Bytes.toBytes(table.getName().getNameWithNamespaceInclAsString()));
+                    out.writeInt(table.getMaxVersions());
+                    for (Map.Entry<byte[], byte[]> row : table.rows()) {
+                        writeBytes(out, row.getKey());
+                        writeBytes(out, row.getValue());
+                    }
+                    out.writeInt(-1);
+                }
+                out.writeBoolean(false);
+                out.flush();
+                snapshotChannel.force(true);
+            }
+            Files.move(temp.toPath(), new File(dir, SNAPSHOT_FILE).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            for (Map.Entry<Long, File> entry : listSegments().headMap(first).entrySet()) {
+                Files.deleteIfExists(entry.getValue().toPath());
+            }
+        }
+    }
+
+    private void maybeSnapshot() {
+        if (snapshotBytes <= 0 || segmentSize < snapshotBytes || !snapshotPending.compareAndSet(false, true)) {
+            return;
+        }
+        snapshotter.execute(() -> {
+            try {
+                snapshot();
+            } catch (IOException e) {
+                LOG.error("Could not write snapshot to " + dir, e);
+            } finally {
+                snapshotPending.set(false);
+            }
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        snapshotter.shutdown();
+        try {
+            snapshotter.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (EmbeddedHTable table : tables.values()) {
+            table.setJournal(null);
+        }
+        synchronized (this) {
+            if (channel != null) {
+                channel.force(true);
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    /*
+     * Must be called while holding the segment lock exclusively, or before any change is journaled.
+     */
+    private void startSegment(long segment) throws IOException {
+        FileChannel next = FileChannel.open(segmentFile(segment).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        if (channel != null) {
+            channel.force(true);
+            channel.close();
+        }
+        this.segment = segment;
+        this.channel = next;
+        this.segmentSize = 0;
+    }
+
+    /*
+     * Serializes the changes of every table, so that records are not interleaved in the log.
+     */
+    private synchronized void append(byte[] record) throws IOException {
+        if (channel == null) throw new IOException("Storage in " + dir + " is closed");
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        if (sync) channel.force(false);
+        segmentSize += record.length;
+    }
+
+    private File segmentFile(long segment) {
+        return new File(dir, String.format("%s%016d%s", LOG_PREFIX, segment, LOG_SUFFIX));
+    }
+
+    private SortedMap<Long, File> listSegments() {
+        SortedMap<Long, File> segments = new TreeMap<>();
+        File[] files = dir.listFiles((d, name) -> name.startsWith(LOG_PREFIX) && name.endsWith(LOG_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                try {
+                    segments.put(Long.parseLong(name.substring(LOG_PREFIX.length(), name.length() - LOG_SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    LOG.warn("Ignoring unexpected file " + file);
+                }
+            }
+        }
+        return segments;
+    }
+
+    private interface RecordBody {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /*
+     * A record is its length, the CRC of its body, and the body: its type, table name, and arguments.
+     */
+    private static byte[] newRecord(byte type, TableName table, RecordBody body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeByte(type);
+        writeBytes(out, Bytes.toBytes(table.getNameWithNamespaceInclAsString()));
+        body.write(out);
+        out.flush();
+        byte[] record = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(record, 8, record.length - 8);
+        Bytes.putInt(record, 0, record.length - 8);
+        Bytes.putInt(record, 4, (int) crc.getValue());
+        return record;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static TableName readTableName(ByteBuffer buffer) {
+        return TableName.valueOf(Bytes.toString(readBytes(buffer)));
+    }
+
+    private static byte[] readBytes(MappedFile in) throws IOException {
+        int length = in.read(Bytes.SIZEOF_INT).getInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.read(length).get(bytes);
+        return bytes;
+    }
+
+    /*
+     * Returns the first log segment that is not contained in the snapshot.
+     */
+    private long loadSnapshot(File file, TableFactory factory) throws IOException {
+        try (MappedFile in = new MappedFile(file)) {
+            if (in.read(Bytes.SIZEOF_INT).getInt() != SNAPSHOT_MAGIC) throw new IOException("Invalid snapshot " + file);
+            long first = in.read(Bytes.SIZEOF_LONG).getLong();
+            while (in.read(1).get() != 0) {
+                TableName name = TableName.valueOf(Bytes.toString(readBytes(in)));
+                EmbeddedHTable table = factory.create(name, in.read(Bytes.SIZEOF_INT).getInt());
+                byte[] row;
+                while ((row = readBytes(in)) != null) {
+                    table.restoreRow(row, readBytes(in));
+                }
+            }
+            return first;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Invalid snapshot " + file, e);
+        }
+    }
+
+    private void replay(File file, TableFactory factory) throws IOException {
+        try (MappedFile in = new MappedFile(file)) {
+            while (in.remaining() >= 8) {
+                long start = in.position();
+                ByteBuffer header = in.read(8);
+                int length = header.getInt();
+                int checksum = header.getInt();
+                if (length <= 0 || length > in.remaining()) {
+                    LOG.warn("Ignoring incomplete record at " + start + " of " + file);
+                    return;
+                }
+                ByteBuffer buffer = in.read(length);
+                ByteBuffer record = buffer.slice();
+                record.limit(length);
+                buffer.position(buffer.position() + length);
+                CRC32 crc = new CRC32();
+                crc.update(record.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    LOG.warn("Ignoring corrupt record at " + start + " of " + file);
+                    return;
+                }
+                try {
+                    byte type = record.get();
+                    TableName name = readTableName(record);
+                    switch (type) {
+                        case CREATE_TABLE:
+                            factory.create(name, record.getInt());
+                            break;
+                        case TRUNCATE_TABLE:
+                            factory.create(name, 1).clear();
+                            break;
+                        case WRITE_ROW:
+                            byte[] row = readBytes(record);
+                            factory.create(name, 1).restoreRow(row, readBytes(record));
+                            break;
+                        default:
+                            throw new IOException("Unknown record type " + type + " at " + start + " of " + file);
+                    }
+                } catch (BufferUnderflowException | IllegalArgumentException e) {
+                    throw new IOException("Invalid record at " + start + " of " + file, e);
+                }
+            }
+        }
+    }
+
+    /*
+     * Reads a file sequentially through read-only mappings, as a single mapping cannot be
+     * larger than 2 GB.  A new window is mapped from the current position whenever a read
+     * needs more bytes than remain in the current one.
+     */
+    private static class MappedFile implements Closeable {
+        private final FileChannel channel;
+        private final long size;
+        private long windowStart = 0;
+        private ByteBuffer window = ByteBuffer.allocate(0);
+
+        MappedFile(File file) throws IOException {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            this.size = channel.size();
+        }
+
+        long position() {
+            return windowStart + window.position();
+        }
+
+        long remaining() {
+            return size - position();
+        }
+
+        /*
+         * Returns the current window, positioned at the given number of bytes to read.
+         *
+         * @throws BufferUnderflowException if the file does not have that many bytes left
+         */
+        ByteBuffer read(int bytes) throws IOException {
+            if (window.remaining() < bytes) {
+                long position = position();
+                if (size - position < bytes) throw new BufferUnderflowException();
+                window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAX_MAPPED_BYTES, size - position));
+                windowStart = position;
+            }
+            return window;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package io.hdocdb.store;
+
+import io.hdocdb.HValue;
+import io.hdocdb.compile.QueryPlanCache;
+import org.ojai.FieldPath;
+import org.ojai.Value.Type;
+import org.ojai.store.QueryCondition;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A condition whose values are parameters that can be bound to new values
+ * without building a new condition.
+ *
+ * The parameters are the values of the condition, in the order they were added,
+ * except for those of exists and notExists.  They can also be bound by the names
+ * given when preparing the condition, or by their field path if only one value is
+ * compared to that path.
+ *
+ * A value bound to a MATCHES condition must be a valid regular expression, and one
+ * bound to a LIKE condition is a LIKE expression without an escape character, as if
+ * it had been given to {@link HQueryCondition#like(String, String)}.
+ *
+ * The plan chosen the first time the condition is queried is kept with the condition,
+ * and only its index ranges are computed from the bound values when it is queried again.
+ * A new plan is only chosen if the indexes of the collection change, or if a value is
+ * bound to a different type.
+ *
+ * A prepared condition is not thread-safe, and its parameters should not be bound
+ * while a stream from a previous query is still being read.
+ */
+public class PreparedCondition extends HQueryCondition {
+
+    private final List<ConditionLeaf> parameters = new ArrayList<>();
+    private final List<String> names;
+    private String shape;
+    private QueryPlanCache.Key planKey;
+    private QueryPlanCache.Entry plan;
+
+    /**
+     * @param template the condition to prepare, which is copied
+     * @param names    the names of the parameters, in order, if any
+     */
+    public PreparedCondition(QueryCondition template, String... names) {
+        super(getRoot(template));
+        build();
+        collectParameters(getRoot());
+        this.names = names != null ? List.of(names) : Collections.emptyList();
+        if (this.names.size() > parameters.size()) {
+            throw new IllegalArgumentException("Condition has only " + parameters.size() + " parameters");
+        }
+    }
+
+    private static ConditionNode getRoot(QueryCondition template) {
+        if (template == null) throw new IllegalArgumentException("condition is null");
+        if (!template.isBuilt()) throw new IllegalArgumentException("condition is unbuilt");
+        if (template.isEmpty()) throw new IllegalArgumentException("condition is empty");
+        return ((HQueryCondition) template).getRoot().deepCopy();
+    }
+
+    private void collectParameters(ConditionNode node) {
+        if (node.isLeaf()) {
+            ConditionLeaf leaf = (ConditionLeaf) node;
+            // the values of exists and notExists, and type tests, are not parameters
+            if (leaf.getValue() != null && leaf.getValue().getType() != Type.NULL) {
+                parameters.add(leaf);
+            }
+        } else {
+            for (ConditionNode child : ((ConditionParent) node).getChildren()) {
+                collectParameters(child);
+            }
+        }
+    }
+
+    public int getParameterCount() {
+        return parameters.size();
+    }
+
+    /**
+     * Binds the parameter at the given position, starting from 0.
+     *
+     * @return {@code this} for chaining
+     */
+    public PreparedCondition set(int index, Object value) {
+        if (index < 0 || index >= parameters.size()) {
+            throw new IndexOutOfBoundsException("Invalid parameter index: " + index);
+        }
+        bind(parameters.get(index), value);
+        return this;
+    }
+
+    /**
+     * Binds the parameter with the given name, or the only parameter compared to
+     * the given field path.
+     *
+     * @return {@code this} for chaining
+     */
+    public PreparedCondition set(String name, Object value) {
+        int index = names.indexOf(name);
+        if (index >= 0) return set(index, value);
+        FieldPath path = FieldPath.parseFrom(name);
+        ConditionLeaf match = null;
+        for (ConditionLeaf leaf : parameters) {
+            if (leaf.getField().equals(path)) {
+                if (match != null) throw new IllegalArgumentException("Ambiguous parameter: " + name);
+                match = leaf;
+            }
+        }
+        if (match == null) throw new IllegalArgumentException("Unknown parameter: " + name);
+        bind(match, value);
+        return this;
+    }
+
+    private void bind(ConditionLeaf leaf, Object value) {
+        HValue hvalue = HValue.initFromObject(value);
+        ConditionLeaf.CompareOp op = leaf.getOp();
+        if ((op == ConditionLeaf.CompareOp.IN || op == ConditionLeaf.CompareOp.NOT_IN) && hvalue.getType() != Type.ARRAY) {
+            throw new IllegalArgumentException("Parameter of " + op + " must be a list");
+        }
+        switch (op) {
+            case MATCHES:
+            case NOT_MATCHES:
+                if (hvalue.getType() != Type.STRING) {
+                    throw new IllegalArgumentException("Parameter of " + op + " must be a string");
+                }
+                // validate the regular expression, as matches() does
+                ConditionPatterns.getRegexPattern(hvalue.getString());
+                break;
+            case LIKE:
+            case NOT_LIKE:
+                if (hvalue.getType() != Type.STRING) {
+                    throw new IllegalArgumentException("Parameter of " + op + " must be a string");
+                }
+                // stored with '\' as its escape character, as like() does
+                hvalue = new HValue(ConditionPatterns.toLikeExpression(hvalue.getString(), null));
+                break;
+            default:
+                break;
+        }
+        if (hvalue.getType() != leaf.getValue().getType()) {
+            shape = null;
+        }
+        leaf.setValue(hvalue);
+    }
+
+    @Override
+    public String getShape(boolean withTypes) {
+        if (!withTypes) return super.getShape(false);
+        // the shape only changes when a value of a different type is bound
+        if (shape == null) shape = super.getShape(true);
+        return shape;
+    }
+
+    /**
+     * Returns the plan previously chosen for this condition, if it was chosen
+     * for the given key.  Used by the query compiler.
+     */
+    public QueryPlanCache.Entry getPlan(QueryPlanCache.Key key) {
+        return plan != null && planKey.equals(key) ? plan : null;
+    }
+
+    /**
+     * Keeps the plan chosen for this condition.  Used by the query compiler.
+     */
+    public void setPlan(QueryPlanCache.Key key, QueryPlanCache.Entry plan) {
+        this.planKey = key;
+        this.plan = plan;
+    }
+}
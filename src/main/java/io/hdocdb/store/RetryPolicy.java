@@ -0,0 +1,64 @@
+package io.hdocdb.store;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Controls how read-modify-write mutations are retried when the document
+ * has changed between the read and the optimistic check on "_ts".
+ *
+ * Retries are delayed using exponential backoff with full jitter, so that
+ * writers contending for the same document do not retry in lockstep.
+ */
+public class RetryPolicy {
+
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0L, 0L);
+    public static final RetryPolicy DEFAULT = new RetryPolicy(5, 5L, 500L);
+
+    private final int maxAttempts;
+    private final long baseBackoffMs;
+    private final long maxBackoffMs;
+
+    /**
+     * @param maxAttempts   the maximum number of attempts, including the first one
+     * @param baseBackoffMs the backoff cap before the first retry, which doubles with each retry
+     * @param maxBackoffMs  the maximum backoff cap
+     */
+    public RetryPolicy(int maxAttempts, long baseBackoffMs, long maxBackoffMs) {
+        if (maxAttempts < 1) throw new IllegalArgumentException("maxAttempts must be positive");
+        if (baseBackoffMs < 0 || maxBackoffMs < baseBackoffMs) throw new IllegalArgumentException("Invalid backoff");
+        this.maxAttempts = maxAttempts;
+        this.baseBackoffMs = baseBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getBaseBackoffMs() {
+        return baseBackoffMs;
+    }
+
+    public long getMaxBackoffMs() {
+        return maxBackoffMs;
+    }
+
+    /**
+     * Returns whether another attempt should be made after the given attempt failed.
+     *
+     * @param attempt the attempt that failed, starting from 1
+     */
+    public boolean shouldRetry(int attempt) {
+        return attempt < maxAttempts;
+    }
+
+    /**
+     * Returns a random backoff between zero and the cap for the given attempt.
+     *
+     * @param attempt the attempt that failed, starting from 1
+     */
+    public long getBackoffMs(int attempt) {
+        long cap = Math.min(maxBackoffMs, baseBackoffMs << Math.min(attempt - 1, 30));
+        return cap > 0 ? ThreadLocalRandom.current().nextLong(cap + 1) : 0L;
+    }
+}
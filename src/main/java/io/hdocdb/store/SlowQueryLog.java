@@ -0,0 +1,153 @@
+package io.hdocdb.store;
+
+import io.hdocdb.execute.QueryInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.LongSummaryStatistics;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records queries that take longer than a threshold, from planning until their
+ * stream is exhausted or closed.  The most recent entries are kept in memory,
+ * and every entry is also logged.
+ */
+public class SlowQueryLog {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SlowQueryLog.class);
+
+    private final String tableName;
+    private final long thresholdNanos;
+    private final double sampleRate;
+    private final int capacity;
+    private final Deque<Entry> entries;
+
+    /**
+     * @param thresholdMs the minimum elapsed time of a query to be recorded
+     * @param sampleRate  the fraction of slow queries that are recorded, between 0 and 1
+     * @param capacity    the maximum number of entries kept in memory
+     */
+    public SlowQueryLog(String tableName, long thresholdMs, double sampleRate, int capacity) {
+        if (thresholdMs < 0) throw new IllegalArgumentException("thresholdMs must not be negative");
+        if (sampleRate <= 0.0 || sampleRate > 1.0) throw new IllegalArgumentException("sampleRate must be in (0, 1]");
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be positive");
+        this.tableName = tableName;
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMs);
+        this.sampleRate = sampleRate;
+        this.capacity = capacity;
+        this.entries = new ArrayDeque<>(capacity);
+    }
+
+    public long getThresholdMs() {
+        return TimeUnit.NANOSECONDS.toMillis(thresholdNanos);
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Records the given query if it exceeded the threshold and is sampled.
+     */
+    public void record(HQueryCondition condition, String[] paths, QueryInfo plan, long elapsedNanos) {
+        if (elapsedNanos < thresholdNanos) return;
+        if (sampleRate < 1.0 && ThreadLocalRandom.current().nextDouble() >= sampleRate) return;
+        Entry entry = new Entry(System.currentTimeMillis(), condition != null ? condition.getShape() : "",
+                paths != null ? Arrays.asList(paths) : Collections.emptyList(), plan, elapsedNanos);
+        synchronized (entries) {
+            if (entries.size() == capacity) entries.removeFirst();
+            entries.addLast(entry);
+        }
+        LOG.warn("Slow query on {} took {} ms: condition={}, paths={}, plan={}, indexRowsScanned={}, "
+                        + "rowsFetched={}, rowsReturned={}",
+                tableName, TimeUnit.NANOSECONDS.toMillis(elapsedNanos), entry.getShape(), entry.getPaths(),
+                plan.getIndexName() != null ? plan.getIndexName() : plan.getType(),
+                plan.getIndexRowsScanned(), plan.getBaseRowsFetched(), plan.getRowsReturned());
+    }
+
+    /**
+     * Returns the recorded entries, oldest first.
+     */
+    public List<Entry> getEntries() {
+        synchronized (entries) {
+            return new ArrayList<>(entries);
+        }
+    }
+
+    /**
+     * Returns the elapsed times of the recorded entries, grouped by the shape of their
+     * condition and ordered from the largest total time to the smallest.
+     */
+    public Map<String, LongSummaryStatistics> getStatisticsByShape() {
+        Map<String, LongSummaryStatistics> stats = new LinkedHashMap<>();
+        for (Entry entry : getEntries()) {
+            stats.computeIfAbsent(entry.getShape(), k -> new LongSummaryStatistics()).accept(entry.getElapsedNanos());
+        }
+        Map<String, LongSummaryStatistics> sorted = new LinkedHashMap<>();
+        stats.entrySet().stream()
+                .sorted((e1, e2) -> Long.compare(e2.getValue().getSum(), e1.getValue().getSum()))
+                .forEachOrdered(e -> sorted.put(e.getKey(), e.getValue()));
+        return sorted;
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public static class Entry {
+        private final long timestamp;
+        private final String shape;
+        private final List<String> paths;
+        private final QueryInfo plan;
+        private final long elapsedNanos;
+
+        Entry(long timestamp, String shape, List<String> paths, QueryInfo plan, long elapsedNanos) {
+            this.timestamp = timestamp;
+            this.shape = shape;
+            this.paths = paths;
+            this.plan = plan;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Returns the condition with its values replaced by "?".
+         */
+        public String getShape() {
+            return shape;
+        }
+
+        public List<String> getPaths() {
+            return paths;
+        }
+
+        /**
+         * Returns the chosen plan, along with the rows scanned and returned.
+         */
+        public QueryInfo getPlan() {
+            return plan;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+    }
+}
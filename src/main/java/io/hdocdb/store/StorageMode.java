@@ -0,0 +1,72 @@
+package io.hdocdb.store;
+
+import io.hdocdb.HValue;
+import org.ojai.FieldPath;
+import org.ojai.FieldSegment;
+import org.ojai.Value;
+
+import java.util.Iterator;
+
+/**
+ * Controls how the values of a document are laid out in HBase cells.
+ *
+ * Documents written in any mode can be read back regardless of the mode
+ * of the reader, since a packed cell decodes to the same array or map
+ * that the individual cells would have produced.
+ */
+public enum StorageMode {
+    /**
+     * Each leaf value is stored in its own cell, using the path of the leaf as the qualifier.
+     */
+    EXPANDED,
+    /**
+     * Each array is stored in a single cell, using the path of the array as the qualifier.
+     */
+    COMPACT_ARRAYS,
+    /**
+     * Each top-level field, including arrays and sub-documents, is stored in a single cell.
+     */
+    COMPACT_CONTAINERS;
+
+    /**
+     * Returns whether the given value, located at the given path, is stored in a single cell.
+     */
+    public boolean isPacked(HValue value, FieldPath path) {
+        return isPacked(value.getType(), path.asPathString().isEmpty());
+    }
+
+    /**
+     * Returns whether a value of the given type is stored in a single cell.
+     *
+     * @param root whether the value is the document itself, rather than one of its fields
+     */
+    public boolean isPacked(Value.Type type, boolean root) {
+        switch (this) {
+            case COMPACT_ARRAYS:
+                return type == Value.Type.ARRAY;
+            case COMPACT_CONTAINERS:
+                return (type == Value.Type.ARRAY || type == Value.Type.MAP) && !root;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns the path of the packed cell that contains the given path,
+     * or null if the given path is not inside of a packed cell.
+     */
+    public FieldPath getPackedPath(FieldPath path) {
+        if (this == EXPANDED) return null;
+        FieldPath packedPath = FieldPath.EMPTY;
+        Iterator<FieldSegment> segments = path.iterator();
+        while (segments.hasNext()) {
+            FieldSegment segment = segments.next();
+            if (segment.isLastPath()) return null;
+            packedPath = segment.isIndexed()
+                    ? HValue.NULL.getFullPath(packedPath, segment.getIndexSegment().getIndex())
+                    : HValue.NULL.getFullPath(packedPath, segment.getNameSegment().getName());
+            if (this == COMPACT_CONTAINERS || segment.isArray()) return packedPath;
+        }
+        return null;
+    }
+}
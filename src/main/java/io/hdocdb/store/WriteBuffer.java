@@ -0,0 +1,253 @@
+package io.hdocdb.store;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.hdocdb.execute.BatchedMutation;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.ojai.store.exceptions.StoreException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces non-conditional writes from many threads into batches.
+ *
+ * A batch is written once it reaches the maximum batch size, or once the flush
+ * interval has elapsed since its first write.  The index puts of a batch are
+ * written before its row mutations, as with unbatched writes.  Since the mutations
+ * of a single HBase batch may be applied in any order, writes to the same row are
+ * split into successive batches, in the order in which they were submitted.  The
+ * future of each write completes once the batch containing it has been written.
+ */
+public class WriteBuffer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WriteBuffer.class);
+
+    private final Table table;
+    private final Table indexTable;
+    private final int maxBatchSize;
+    private final long flushIntervalMs;
+    private final BlockingQueue<Write> queue;
+    private final ExecutorService executor;
+    private volatile boolean closed = false;
+    // the first failure since the last flush, only accessed by the flushing thread
+    private Throwable failure;
+
+    /**
+     * @param maxBatchSize    the maximum number of writes in a batch
+     * @param flushIntervalMs the maximum time a write waits for other writes to join its batch
+     * @param queueCapacity   the maximum number of pending writes, after which writers block
+     */
+    public WriteBuffer(Table table, Table indexTable, int maxBatchSize, long flushIntervalMs, int queueCapacity) {
+        if (maxBatchSize < 1) throw new IllegalArgumentException("maxBatchSize must be positive");
+        if (queueCapacity < 1) throw new IllegalArgumentException("queueCapacity must be positive");
+        this.table = table;
+        this.indexTable = indexTable;
+        this.maxBatchSize = maxBatchSize;
+        this.flushIntervalMs = flushIntervalMs;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("hdocdb-write-buffer-" + table.getName().getNameAsString())
+                .setDaemon(true)
+                .build());
+        this.executor.submit(this::run);
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public long getFlushIntervalMs() {
+        return flushIntervalMs;
+    }
+
+    /**
+     * Adds a write to the buffer, blocking while the buffer is full.
+     *
+     * @return a future that completes once the write has been applied
+     */
+    public CompletableFuture<Void> submit(BatchedMutation mutation) throws StoreException {
+        return enqueue(new Write(mutation));
+    }
+
+    /**
+     * Writes all pending writes, and waits for them to be applied.
+     *
+     * @throws StoreException if any write failed since the last flush
+     */
+    public void flush() throws StoreException {
+        // the flush completes after all writes that were queued before it
+        join(enqueue(new Write(null)));
+    }
+
+    /**
+     * Flushes all pending writes and stops the buffer.
+     */
+    public void close() throws StoreException {
+        if (closed) return;
+        try {
+            flush();
+        } finally {
+            closed = true;
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Waits for the given future, rethrowing any failure as a {@link StoreException}.
+     */
+    public static void join(CompletableFuture<Void> future) throws StoreException {
+        try {
+            future.join();
+        } catch (Exception e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof StoreException) throw (StoreException) cause;
+            throw new StoreException(cause);
+        }
+    }
+
+    private CompletableFuture<Void> enqueue(Write write) throws StoreException {
+        if (closed) throw new StoreException("Write buffer is closed");
+        try {
+            queue.put(write);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StoreException(e);
+        }
+        return write.future;
+    }
+
+    private void run() {
+        List<Write> batch = new ArrayList<>();
+        while (!closed) {
+            try {
+                Write first = queue.take();
+                batch.add(first);
+                long deadline = System.currentTimeMillis() + flushIntervalMs;
+                while (!first.isFlush() && batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    Write next = remaining > 0 ? queue.poll(remaining, TimeUnit.MILLISECONDS) : queue.poll();
+                    if (next == null) break;
+                    batch.add(next);
+                    if (next.isFlush()) break;
+                }
+                write(batch);
+                batch.clear();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        // fail any writes that can no longer be applied
+        for (Write write : batch) {
+            write.future.completeExceptionally(new StoreException("Write buffer is closed"));
+        }
+        for (Write write : queue) {
+            write.future.completeExceptionally(new StoreException("Write buffer is closed"));
+        }
+    }
+
+    private void write(List<Write> batch) throws InterruptedException {
+        List<Put> indexPuts = new ArrayList<>();
+        List<Write> writes = new ArrayList<>();
+        // the nth write to a row goes into the nth round
+        List<List<Write>> rounds = new ArrayList<>();
+        Map<byte[], Integer> rowWrites = new TreeMap<>(Bytes.BYTES_COMPARATOR);
+        for (Write write : batch) {
+            if (write.isFlush()) continue;
+            indexPuts.addAll(write.mutation.getIndexPuts());
+            writes.add(write);
+            int round = rowWrites.merge(write.mutation.getMutations().getRow(), 1, Integer::sum) - 1;
+            if (round == rounds.size()) rounds.add(new ArrayList<>());
+            rounds.get(round).add(write);
+        }
+        try {
+            if (!indexPuts.isEmpty()) {
+                Object[] results = new Object[indexPuts.size()];
+                indexTable.batch(indexPuts, results);
+                for (Object result : results) {
+                    if (result == null) {
+                        throw new StoreException("Failed to communicate with server");
+                    } else if (result instanceof Throwable) {
+                        throw new StoreException((Throwable) result);
+                    }
+                }
+            }
+            for (List<Write> round : rounds) {
+                writeMutations(round);
+            }
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            for (Write write : writes) {
+                fail(write, e);
+            }
+        }
+        for (Write write : batch) {
+            if (write.isFlush()) {
+                if (failure != null) {
+                    write.future.completeExceptionally(new StoreException("Buffered writes failed", failure));
+                    failure = null;
+                } else {
+                    write.future.complete(null);
+                }
+            }
+        }
+    }
+
+    private void writeMutations(List<Write> writes) throws InterruptedException {
+        List<Row> mutations = new ArrayList<>(writes.size());
+        for (Write write : writes) {
+            mutations.add(write.mutation.getMutations());
+        }
+        Object[] results = new Object[mutations.size()];
+        try {
+            table.batch(mutations, results);
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            // individual failures are reported in the results
+            LOG.warn("Failed to write batch of " + mutations.size(), e);
+        }
+        for (int i = 0; i < writes.size(); i++) {
+            Object result = results[i];
+            if (result == null) {
+                fail(writes.get(i), new StoreException("Failed to communicate with server"));
+            } else if (result instanceof Throwable) {
+                fail(writes.get(i), new StoreException((Throwable) result));
+            } else {
+                writes.get(i).future.complete(null);
+            }
+        }
+    }
+
+    private void fail(Write write, Exception e) {
+        if (failure == null) failure = e;
+        write.future.completeExceptionally(e);
+    }
+
+    private static class Write {
+        private final BatchedMutation mutation;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Write(BatchedMutation mutation) {
+            this.mutation = mutation;
+        }
+
+        boolean isFlush() {
+            return mutation == null;
+        }
+    }
+}
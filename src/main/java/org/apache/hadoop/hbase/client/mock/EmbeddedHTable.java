@@ -0,0 +1,955 @@
+/*
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package org.apache.hadoop.hbase.client.mock;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.Striped;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.DoNotRetryIOException;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Append;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.client.RowMutations;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.client.TableDescriptor;
+import org.apache.hadoop.hbase.filter.CompareFilter;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.io.TimeRange;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * An embedded table for running HDocDB without an HBase cluster, designed for
+ * throughput and footprint rather than for testing like {@link MockHTable}.
+ *
+ * <ul>
+ *     <li>Each row is stored as one immutable byte array holding all of its cells, rather
+ *     than as nested maps with an object for each family, qualifier, version and value.</li>
+ *     <li>Gets and scans do not lock, as a write replaces a row with a new copy.</li>
+ *     <li>Writes to a row are serialized by a striped lock, so that row mutations, increments,
+ *     and check-and-mutate operations are atomic.</li>
+ *     <li>Only the newest versions of each column are kept, up to the maximum versions of the table.</li>
+ * </ul>
+ *
+ * As with {@link MockHTable}, deletes remove cells immediately rather than leaving tombstones.
+ */
+public class EmbeddedHTable implements Table {
+
+    private static final int LOCK_STRIPES = 1024;
+
+    private final TableName tableName;
+    private final List<String> columnFamilies = new ArrayList<>();
+    private final int maxVersions;
+    private final ConcurrentSkipListMap<byte[], RowData> data = new ConcurrentSkipListMap<>(Bytes.BYTES_COMPARATOR);
+    private final Striped<Lock> locks = Striped.lock(LOCK_STRIPES);
+    private volatile Journal journal;
+    private Configuration config;
+
+    /**
+     * Receives every change to a row of the table, such as to make it durable.
+     */
+    public interface Journal {
+
+        /**
+         * Records the new cells of a row, and then runs the given action to make them visible.
+         * Called while holding the lock of the row, so changes to the same row are recorded in order.
+         *
+         * @param cells the encoded cells of the row, or null if the row was removed
+         */
+        void write(EmbeddedHTable table, byte[] row, byte[] cells, Runnable apply) throws IOException;
+    }
+
+    /**
+     * @param maxVersions the maximum number of versions kept for each column
+     */
+    public EmbeddedHTable(TableName tableName, int maxVersions, String... columnFamilies) {
+        if (maxVersions < 1) throw new IllegalArgumentException("maxVersions must be positive");
+        this.tableName = tableName;
+        this.maxVersions = maxVersions;
+        this.columnFamilies.addAll(Arrays.asList(columnFamilies));
+    }
+
+    public void clear() {
+        data.clear();
+    }
+
+    public int getMaxVersions() {
+        return maxVersions;
+    }
+
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Returns a view of the rows of the table, each with its encoded cells as passed to the journal.
+     * Rows that change during iteration may or may not be seen.
+     */
+    public Iterable<Map.Entry<byte[], byte[]>> rows() {
+        return Iterables.transform(data.entrySet(), e -> Maps.immutableEntry(e.getKey(), e.getValue().bytes));
+    }
+
+    /**
+     * Replaces a row with encoded cells previously passed to the journal, without journaling it.
+     *
+     * @param cells the encoded cells of the row, or null to remove the row
+     */
+    public void restoreRow(byte[] row, byte[] cells) {
+        Lock lock = lockRow(row);
+        try {
+            apply(row, cells != null ? RowData.decode(cells) : null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of rows, which takes time proportional to the number of rows.
+     */
+    public int size() {
+        return data.size();
+    }
+
+    @Override
+    public TableName getName() {
+        return tableName;
+    }
+
+    @Override
+    public Configuration getConfiguration() {
+        return config;
+    }
+
+    public EmbeddedHTable setConfiguration(Configuration config) {
+        this.config = config;
+        return this;
+    }
+
+    @Override
+    public TableDescriptor getDescriptor() throws IOException {
+        HTableDescriptor table = new HTableDescriptor(tableName);
+        for (String columnFamily : columnFamilies) {
+            HColumnDescriptor family = new HColumnDescriptor(columnFamily);
+            family.setMaxVersions(maxVersions);
+            table.addFamily(family);
+        }
+        return table;
+    }
+
+    private Lock lockRow(byte[] row) {
+        Lock lock = locks.getAt(Math.floorMod(Bytes.hashCode(row), locks.size()));
+        lock.lock();
+        return lock;
+    }
+
+    @Override
+    public Result get(Get get) throws IOException {
+        byte[] row = get.getRow();
+        RowData rowData = data.get(row);
+        if (rowData == null) {
+            return new Result();
+        }
+        return Result.create(select(row, rowData, get.getFamilyMap(), get.getTimeRange(), get.getMaxVersions(),
+                get.getFilter(), get.getMaxResultsPerColumnFamily()));
+    }
+
+    @Override
+    public Result[] get(List<Get> gets) throws IOException {
+        Result[] results = new Result[gets.size()];
+        for (int i = 0; i < gets.size(); i++) {
+            results[i] = get(gets.get(i));
+        }
+        return results;
+    }
+
+    @Override
+    public boolean exists(Get get) throws IOException {
+        Result result = get(get);
+        return result != null && !result.isEmpty();
+    }
+
+    @Override
+    public boolean[] exists(List<Get> gets) throws IOException {
+        boolean[] result = new boolean[gets.size()];
+        for (int i = 0; i < gets.size(); i++) {
+            result[i] = exists(gets.get(i));
+        }
+        return result;
+    }
+
+    /*
+     * Returns the cells of the row selected by the given families, time range and versions,
+     * and accepted by the filter.
+     */
+    private static List<Cell> select(byte[] row, RowData rowData, Map<byte[], NavigableSet<byte[]>> familyMap,
+                                     TimeRange timeRange, int maxVersions, Filter filter, int maxResultsPerFamily)
+            throws IOException {
+        List<Cell> kvs = new ArrayList<>();
+        int versions = 0;
+        int previous = -1;
+        for (int i = 0; i < rowData.size(); i++) {
+            if (!familyMap.isEmpty()) {
+                NavigableSet<byte[]> qualifiers = familyMap.get(rowData.getFamily(i));
+                if (qualifiers == null && !familyMap.containsKey(rowData.getFamily(i))) continue;
+                if (qualifiers != null && !qualifiers.isEmpty() && !qualifiers.contains(rowData.getQualifier(i))) continue;
+            }
+            if (!timeRange.withinTimeRange(rowData.getTimestamp(i))) continue;
+            if (previous < 0 || !rowData.sameColumn(previous, i)) {
+                versions = 0;
+            }
+            previous = i;
+            if (versions++ < maxVersions) {
+                kvs.add(rowData.toCell(row, i));
+            }
+        }
+        if (filter != null) {
+            kvs = MockHTable.filter(filter, kvs);
+        }
+        if (maxResultsPerFamily >= 0) {
+            List<Cell> limited = new ArrayList<>(kvs.size());
+            int count = 0;
+            for (int i = 0; i < kvs.size(); i++) {
+                if (i > 0 && !CellUtil.matchingFamily(kvs.get(i - 1), kvs.get(i))) count = 0;
+                if (count++ < maxResultsPerFamily) limited.add(kvs.get(i));
+            }
+            kvs = limited;
+        }
+        return kvs;
+    }
+
+    @Override
+    public ResultScanner getScanner(Scan scan) throws IOException {
+        byte[] st = scan.getStartRow();
+        byte[] sp = scan.getStopRow();
+
+        NavigableMap<byte[], RowData> subData = scan.isReversed() ? data.descendingMap() : data;
+
+        if (st == null || st.length == 0) {
+            if (sp != null && sp.length > 0) {
+                subData = subData.headMap(sp, scan.includeStopRow());
+            }
+        } else if (sp == null || sp.length == 0) {
+            subData = subData.tailMap(st, scan.includeStartRow());
+        } else {
+            boolean includeStopRow = scan.includeStopRow();
+            if (Arrays.equals(st, sp)) {
+                includeStopRow = true;
+            }
+            subData = subData.subMap(st, scan.includeStartRow(), sp, includeStopRow);
+        }
+
+        return new MockResultScanner<>(scan, subData.entrySet().iterator(),
+                (row, rowData) -> select(row, rowData, scan.getFamilyMap(), scan.getTimeRange(),
+                        scan.getMaxVersions(), scan.getFilter(), scan.getMaxResultsPerColumnFamily()));
+    }
+
+    @Override
+    public ResultScanner getScanner(byte[] family) throws IOException {
+        Scan scan = new Scan();
+        scan.addFamily(family);
+        return getScanner(scan);
+    }
+
+    @Override
+    public ResultScanner getScanner(byte[] family, byte[] qualifier) throws IOException {
+        Scan scan = new Scan();
+        scan.addColumn(family, qualifier);
+        return getScanner(scan);
+    }
+
+    @Override
+    public void put(Put put) throws IOException {
+        Lock lock = lockRow(put.getRow());
+        try {
+            RowWriter writer = new RowWriter(put.getRow());
+            writer.put(put);
+            writer.commit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(List<Put> puts) throws IOException {
+        for (Put put : puts) {
+            put(put);
+        }
+    }
+
+    @Override
+    public void delete(Delete delete) throws IOException {
+        Lock lock = lockRow(delete.getRow());
+        try {
+            RowWriter writer = new RowWriter(delete.getRow());
+            writer.delete(delete);
+            writer.commit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void delete(List<Delete> deletes) throws IOException {
+        for (Delete delete : deletes) {
+            delete(delete);
+        }
+    }
+
+    @Override
+    public Result mutateRow(RowMutations rm) throws IOException {
+        long maxTs = System.currentTimeMillis();
+        List<Cell> cells = new ArrayList<>();
+        Lock lock = lockRow(rm.getRow());
+        try {
+            // the mutations become visible together
+            RowWriter writer = new RowWriter(rm.getRow());
+            for (Mutation mutation : rm.getMutations()) {
+                if (mutation instanceof Put) {
+                    writer.put((Put) mutation);
+                } else if (mutation instanceof Delete) {
+                    writer.delete((Delete) mutation);
+                } else if (mutation instanceof Increment) {
+                    cells.addAll(writer.increment((Increment) mutation));
+                } else {
+                    throw new DoNotRetryIOException("Unsupported mutation " + mutation.getClass().getSimpleName());
+                }
+                long ts = mutation.getTimestamp();
+                if (ts != HConstants.LATEST_TIMESTAMP && ts > maxTs) maxTs = ts;
+            }
+            writer.commit();
+        } finally {
+            lock.unlock();
+        }
+        long now = System.currentTimeMillis();
+        if (now <= maxTs) {
+            // we have intentionally set the ts in the future, so wait
+            try {
+                Thread.sleep(maxTs - now + 1);
+            } catch (InterruptedException ignored) { }
+        }
+        // results of Increment operations
+        return cells.isEmpty() ? Result.EMPTY_RESULT : Result.create(cells);
+    }
+
+    @Override
+    public Result append(Append append) throws IOException {
+        throw new RuntimeException(this.getClass() + " does NOT implement this method.");
+    }
+
+    @Override
+    public Result increment(Increment increment) throws IOException {
+        Lock lock = lockRow(increment.getRow());
+        try {
+            RowWriter writer = new RowWriter(increment.getRow());
+            List<Cell> cells = writer.increment(increment);
+            writer.commit();
+            return Result.create(cells);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long incrementColumnValue(byte[] row, byte[] family, byte[] qualifier, long amount) throws IOException {
+        Lock lock = lockRow(row);
+        try {
+            RowWriter writer = new RowWriter(row);
+            byte[] newValue = writer.increment(family, qualifier, amount).value;
+            writer.commit();
+            return Bytes.toLong(newValue);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void batch(List<? extends Row> actions, Object[] results) throws IOException, InterruptedException {
+        for (int i = 0; i < actions.size(); i++) {
+            Row r = actions.get(i);
+            Object result;
+            if (r instanceof Delete) {
+                delete((Delete) r);
+                result = new Result();
+            } else if (r instanceof Put) {
+                put((Put) r);
+                result = new Result();
+            } else if (r instanceof Get) {
+                result = get((Get) r);
+            } else if (r instanceof Increment) {
+                result = increment((Increment) r);
+            } else if (r instanceof Append) {
+                result = append((Append) r);
+            } else if (r instanceof RowMutations) {
+                result = mutateRow((RowMutations) r);
+            } else {
+                result = new DoNotRetryIOException("Unsupported action " + r.getClass().getSimpleName());
+            }
+            if (results != null) results[i] = result;
+        }
+    }
+
+    /*
+     * Must be called while holding the lock of the row.
+     */
+    private boolean check(byte[] row, byte[] family, byte[] qualifier, CompareFilter.CompareOp compareOp, byte[] value) {
+        RowData rowData = data.get(row);
+        int latest = rowData != null ? rowData.indexOf(family, qualifier) : -1;
+        if (value == null) return latest < 0;
+        if (latest < 0) return false;
+        return MockHTable.compare(compareOp, Bytes.compareTo(value, 0, value.length,
+                rowData.bytes, rowData.getValueOffset(latest), rowData.getValueLength(latest)));
+    }
+
+    @Override
+    public boolean checkAndPut(byte[] row, byte[] family, byte[] qualifier, byte[] value, Put put) throws IOException {
+        return checkAndPut(row, family, qualifier, CompareFilter.CompareOp.EQUAL, value, put);
+    }
+
+    @Override
+    public boolean checkAndPut(byte[] row, byte[] family, byte[] qualifier, CompareFilter.CompareOp compareOp,
+                               byte[] value, Put put) throws IOException {
+        Lock lock = lockRow(row);
+        try {
+            if (!check(row, family, qualifier, compareOp, value)) return false;
+            put(put);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean checkAndDelete(byte[] row, byte[] family, byte[] qualifier, byte[] value, Delete delete) throws IOException {
+        return checkAndDelete(row, family, qualifier, CompareFilter.CompareOp.EQUAL, value, delete);
+    }
+
+    @Override
+    public boolean checkAndDelete(byte[] row, byte[] family, byte[] qualifier, CompareFilter.CompareOp compareOp,
+                                  byte[] value, Delete delete) throws IOException {
+        Lock lock = lockRow(row);
+        try {
+            if (!check(row, family, qualifier, compareOp, value)) return false;
+            delete(delete);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean checkAndMutate(byte[] row, byte[] family, byte[] qualifier, CompareFilter.CompareOp compareOp,
+                                  byte[] value, RowMutations rm) throws IOException {
+        Lock lock = lockRow(row);
+        try {
+            if (!check(row, family, qualifier, compareOp, value)) return false;
+            // the lock is reentrant, so the mutations are applied under the same lock
+            mutateRow(rm);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    /*
+     * A cell being written, ordered by family, qualifier and descending timestamp.
+     */
+    private static final class MutableCell {
+        private static final Comparator<MutableCell> ORDER = (c1, c2) -> {
+            int compare = Bytes.compareTo(c1.family, c2.family);
+            if (compare != 0) return compare;
+            compare = Bytes.compareTo(c1.qualifier, c2.qualifier);
+            if (compare != 0) return compare;
+            return Long.compare(c2.timestamp, c1.timestamp);
+        };
+
+        private final byte[] family;
+        private final byte[] qualifier;
+        private final long timestamp;
+        private final byte[] value;
+
+        MutableCell(byte[] family, byte[] qualifier, long timestamp, byte[] value) {
+            this.family = family;
+            this.qualifier = qualifier;
+            this.timestamp = timestamp;
+            this.value = value;
+        }
+
+        boolean matches(byte[] family, byte[] qualifier) {
+            return Bytes.equals(this.family, family) && (qualifier == null || Bytes.equals(this.qualifier, qualifier));
+        }
+
+        int getEncodedLength() {
+            return 1 + family.length + Bytes.SIZEOF_INT + qualifier.length + Bytes.SIZEOF_LONG + Bytes.SIZEOF_INT + value.length;
+        }
+
+        /*
+         * Encodes the cell at the given position, as described by RowData, and returns the position after it.
+         */
+        int encode(byte[] bytes, int pos) {
+            bytes[pos++] = (byte) family.length;
+            pos = Bytes.putBytes(bytes, pos, family, 0, family.length);
+            pos = Bytes.putInt(bytes, pos, qualifier.length);
+            pos = Bytes.putBytes(bytes, pos, qualifier, 0, qualifier.length);
+            pos = Bytes.putLong(bytes, pos, timestamp);
+            pos = Bytes.putInt(bytes, pos, value.length);
+            return Bytes.putBytes(bytes, pos, value, 0, value.length);
+        }
+    }
+
+    /*
+     * Applies mutations to a row, which replaces the row when committed.  The cells of puts are
+     * collected, and then sorted and merged into the encoded row in one pass, copying the cells
+     * that they do not replace, before a delete and when committed.
+     * Must be used while holding the lock of the row.
+     */
+    private final class RowWriter {
+        private final byte[] row;
+        private final List<MutableCell> puts = new ArrayList<>();
+        private RowData rowData;
+
+        RowWriter(byte[] row) {
+            this.row = row;
+            RowData current = data.get(row);
+            this.rowData = current != null ? current : RowData.EMPTY;
+        }
+
+        void put(Put put) throws IOException {
+            long now = System.currentTimeMillis();
+            for (Map.Entry<byte[], List<Cell>> entry : put.getFamilyCellMap().entrySet()) {
+                byte[] family = checkFamily(entry.getKey());
+                for (Cell kv : entry.getValue()) {
+                    long ts = kv.getTimestamp();
+                    if (ts == HConstants.LATEST_TIMESTAMP) {
+                        ts = put.getTimestamp();
+                    }
+                    if (ts == HConstants.LATEST_TIMESTAMP) {
+                        ts = now;
+                    }
+                    put(family, CellUtil.cloneQualifier(kv), ts, CellUtil.cloneValue(kv));
+                }
+            }
+        }
+
+        void put(byte[] family, byte[] qualifier, long ts, byte[] value) {
+            puts.add(new MutableCell(family, qualifier, ts, value));
+        }
+
+        void delete(Delete delete) {
+            merge();
+            boolean[] removed = new boolean[rowData.size()];
+            long deleteTs = delete.getTimestamp();
+            if (delete.getFamilyCellMap().isEmpty()) {
+                removeFamily(removed, null, deleteTs, false);
+            }
+            for (Map.Entry<byte[], List<Cell>> entry : delete.getFamilyCellMap().entrySet()) {
+                byte[] family = entry.getKey();
+                if (entry.getValue().isEmpty()) {
+                    removeFamily(removed, family, Long.MAX_VALUE, false);
+                    continue;
+                }
+                for (Cell kv : entry.getValue()) {
+                    byte[] qualifier = CellUtil.cloneQualifier(kv);
+                    long ts = kv.getTimestamp();
+                    switch (kv.getType()) {
+                        case DeleteFamily:
+                            removeFamily(removed, family, ts, false);
+                            break;
+                        case DeleteFamilyVersion:
+                            removeFamily(removed, family, ts, true);
+                            break;
+                        case DeleteColumn:
+                            removeColumn(removed, family, qualifier, ts, false);
+                            break;
+                        default:
+                            if (ts == HConstants.LATEST_TIMESTAMP) {
+                                removeLatest(removed, family, qualifier);
+                            } else {
+                                removeColumn(removed, family, qualifier, ts, true);
+                            }
+                            break;
+                    }
+                }
+            }
+            rowData = rowData.remove(removed);
+        }
+
+        /*
+         * Marks the cells of the family, or of every family if null, with the given timestamp,
+         * or with a timestamp up to the given one.
+         */
+        private void removeFamily(boolean[] removed, byte[] family, long ts, boolean exact) {
+            for (int i = 0; i < removed.length; i++) {
+                if (family != null && !rowData.matches(i, family, null)) continue;
+                long cellTs = rowData.getTimestamp(i);
+                if (exact ? cellTs == ts : cellTs <= ts) removed[i] = true;
+            }
+        }
+
+        private void removeColumn(boolean[] removed, byte[] family, byte[] qualifier, long ts, boolean exact) {
+            int first = rowData.indexOf(family, qualifier);
+            if (first < 0) return;
+            for (int i = first; i < removed.length && rowData.matches(i, family, qualifier); i++) {
+                long cellTs = rowData.getTimestamp(i);
+                if (exact ? cellTs == ts : cellTs <= ts) removed[i] = true;
+            }
+        }
+
+        private void removeLatest(boolean[] removed, byte[] family, byte[] qualifier) {
+            int first = rowData.indexOf(family, qualifier);
+            if (first < 0) return;
+            for (int i = first; i < removed.length && rowData.matches(i, family, qualifier); i++) {
+                // versions are in descending order of timestamp
+                if (!removed[i]) {
+                    removed[i] = true;
+                    return;
+                }
+            }
+        }
+
+        List<Cell> increment(Increment increment) throws IOException {
+            List<Cell> kvs = new ArrayList<>();
+            for (Map.Entry<byte[], NavigableMap<byte[], Long>> ef : increment.getFamilyMapOfLongs().entrySet()) {
+                byte[] family = checkFamily(ef.getKey());
+                for (Map.Entry<byte[], Long> eq : ef.getValue().entrySet()) {
+                    MutableCell cell = increment(family, eq.getKey(), eq.getValue());
+                    kvs.add(new KeyValue(row, family, eq.getKey(), cell.timestamp, cell.value));
+                }
+            }
+            return kvs;
+        }
+
+        MutableCell increment(byte[] family, byte[] qualifier, long amount) throws IOException {
+            MutableCell latest = latest(family, qualifier);
+            long newValue = amount;
+            long ts = System.currentTimeMillis();
+            if (latest != null) {
+                if (latest.value.length != Bytes.SIZEOF_LONG) {
+                    throw new DoNotRetryIOException("Field is not a long, it's " + latest.value.length + " bytes wide");
+                }
+                newValue += Bytes.toLong(latest.value);
+                // never write behind the current version, which may have been written in the future
+                ts = Math.max(ts, latest.timestamp);
+            }
+            MutableCell cell = new MutableCell(family, qualifier, ts, Bytes.toBytes(newValue));
+            puts.add(cell);
+            return cell;
+        }
+
+        /*
+         * Returns the latest version of the column, from the puts that are not merged yet or from the row.
+         */
+        MutableCell latest(byte[] family, byte[] qualifier) {
+            MutableCell latest = null;
+            for (MutableCell cell : puts) {
+                // a later put of the same version replaces an earlier one
+                if (cell.matches(family, qualifier) && (latest == null || cell.timestamp >= latest.timestamp)) {
+                    latest = cell;
+                }
+            }
+            int i = rowData.indexOf(family, qualifier);
+            if (i >= 0 && (latest == null || rowData.getTimestamp(i) > latest.timestamp)) {
+                latest = new MutableCell(family, qualifier, rowData.getTimestamp(i), rowData.getValue(i));
+            }
+            return latest;
+        }
+
+        private byte[] checkFamily(byte[] family) throws IOException {
+            if (!columnFamilies.contains(Bytes.toString(family))) {
+                throw new DoNotRetryIOException("Column family " + Bytes.toString(family) + " does not exist");
+            }
+            return family;
+        }
+
+        /*
+         * Merges the puts into the row, keeping only the newest versions of each column.
+         */
+        private void merge() {
+            if (puts.isEmpty()) return;
+            // the sort is stable, so the last of several puts of the same version comes last
+            puts.sort(MutableCell.ORDER);
+            int capacity = rowData.bytes.length;
+            for (MutableCell cell : puts) {
+                capacity += cell.getEncodedLength();
+            }
+            byte[] bytes = new byte[capacity];
+            int[] offsets = new int[rowData.size() + puts.size()];
+            int count = 0;
+            int pos = 0;
+            int versions = 0;
+            int i = 0;
+            int j = 0;
+            while (i < rowData.size() || j < puts.size()) {
+                if (j + 1 < puts.size() && MutableCell.ORDER.compare(puts.get(j), puts.get(j + 1)) == 0) {
+                    j++;
+                    continue;
+                }
+                int compare = j == puts.size() ? -1 : i == rowData.size() ? 1 : rowData.compareTo(i, puts.get(j));
+                int end;
+                if (compare < 0) {
+                    end = rowData.copyCell(i++, bytes, pos);
+                } else {
+                    // a put of the same version replaces the cell of the row
+                    if (compare == 0) i++;
+                    end = puts.get(j++).encode(bytes, pos);
+                }
+                versions = count > 0 && RowData.sameColumn(bytes, offsets[count - 1], pos) ? versions + 1 : 1;
+                if (versions <= maxVersions) {
+                    offsets[count++] = pos;
+                    pos = end;
+                }
+            }
+            puts.clear();
+            rowData = new RowData(pos < bytes.length ? Arrays.copyOf(bytes, pos) : bytes,
+                    count < offsets.length ? Arrays.copyOf(offsets, count) : offsets);
+        }
+
+        void commit() throws IOException {
+            merge();
+            write(row, rowData.size() > 0 ? rowData : null);
+        }
+    }
+
+    /*
+     * Replaces the row, after passing it to the journal if there is one.
+     * Must be called while holding the lock of the row.
+     */
+    private void write(byte[] row, RowData rowData) throws IOException {
+        Journal journal = this.journal;
+        if (journal != null) {
+            journal.write(this, row, rowData != null ? rowData.bytes : null, () -> apply(row, rowData));
+        } else {
+            apply(row, rowData);
+        }
+    }
+
+    private void apply(byte[] row, RowData rowData) {
+        if (rowData != null) {
+            data.put(row, rowData);
+        } else {
+            data.remove(row);
+        }
+    }
+
+    /*
+     * The cells of a row, sorted by family, qualifier and descending timestamp.  Each cell is
+     * encoded as the family length (1 byte), the family, the qualifier length (4 bytes), the
+     * qualifier, the timestamp (8 bytes), the value length (4 bytes) and the value.
+     */
+    private static final class RowData {
+        private static final RowData EMPTY = new RowData(new byte[0], new int[0]);
+
+        private final byte[] bytes;
+        private final int[] offsets;
+
+        private RowData(byte[] bytes, int[] offsets) {
+            this.bytes = bytes;
+            this.offsets = offsets;
+        }
+
+        static RowData decode(byte[] bytes) {
+            List<Integer> offsets = new ArrayList<>();
+            int pos = 0;
+            while (pos < bytes.length) {
+                offsets.add(pos);
+                pos += 1 + (bytes[pos] & 0xff);
+                pos += Bytes.SIZEOF_INT + Bytes.toInt(bytes, pos) + Bytes.SIZEOF_LONG;
+                pos += Bytes.SIZEOF_INT + Bytes.toInt(bytes, pos);
+            }
+            if (pos != bytes.length) throw new IllegalArgumentException("Invalid encoded row");
+            return new RowData(bytes, Ints.toArray(offsets));
+        }
+
+        /*
+         * Returns the row without the given cells, copying the others.
+         */
+        RowData remove(boolean[] removed) {
+            int length = 0;
+            int count = 0;
+            for (int i = 0; i < offsets.length; i++) {
+                if (!removed[i]) {
+                    length += getEnd(i) - offsets[i];
+                    count++;
+                }
+            }
+            if (count == offsets.length) return this;
+            byte[] copy = new byte[length];
+            int[] copyOffsets = new int[count];
+            int pos = 0;
+            count = 0;
+            for (int i = 0; i < offsets.length; i++) {
+                if (!removed[i]) {
+                    copyOffsets[count++] = pos;
+                    pos = copyCell(i, copy, pos);
+                }
+            }
+            return new RowData(copy, copyOffsets);
+        }
+
+        /*
+         * Copies the encoded cell to the given position, and returns the position after it.
+         */
+        int copyCell(int i, byte[] dest, int pos) {
+            int length = getEnd(i) - offsets[i];
+            System.arraycopy(bytes, offsets[i], dest, pos, length);
+            return pos + length;
+        }
+
+        private int getEnd(int i) {
+            return i + 1 < offsets.length ? offsets[i + 1] : bytes.length;
+        }
+
+        int size() {
+            return offsets.length;
+        }
+
+        private int getFamilyOffset(int i) {
+            return offsets[i] + 1;
+        }
+
+        private int getFamilyLength(int i) {
+            return bytes[offsets[i]] & 0xff;
+        }
+
+        private int getQualifierOffset(int i) {
+            return getFamilyOffset(i) + getFamilyLength(i) + Bytes.SIZEOF_INT;
+        }
+
+        private int getQualifierLength(int i) {
+            return Bytes.toInt(bytes, getFamilyOffset(i) + getFamilyLength(i));
+        }
+
+        private int getTimestampOffset(int i) {
+            return getQualifierOffset(i) + getQualifierLength(i);
+        }
+
+        int getValueOffset(int i) {
+            return getTimestampOffset(i) + Bytes.SIZEOF_LONG + Bytes.SIZEOF_INT;
+        }
+
+        int getValueLength(int i) {
+            return Bytes.toInt(bytes, getTimestampOffset(i) + Bytes.SIZEOF_LONG);
+        }
+
+        byte[] getFamily(int i) {
+            return Arrays.copyOfRange(bytes, getFamilyOffset(i), getFamilyOffset(i) + getFamilyLength(i));
+        }
+
+        byte[] getQualifier(int i) {
+            return Arrays.copyOfRange(bytes, getQualifierOffset(i), getQualifierOffset(i) + getQualifierLength(i));
+        }
+
+        long getTimestamp(int i) {
+            return Bytes.toLong(bytes, getTimestampOffset(i));
+        }
+
+        byte[] getValue(int i) {
+            return Arrays.copyOfRange(bytes, getValueOffset(i), getValueOffset(i) + getValueLength(i));
+        }
+
+        boolean sameColumn(int i, int j) {
+            return sameColumn(bytes, offsets[i], offsets[j]);
+        }
+
+        /*
+         * Returns whether the cells encoded at the given positions are of the same column.
+         */
+        static boolean sameColumn(byte[] bytes, int cell1, int cell2) {
+            int familyLength1 = bytes[cell1] & 0xff;
+            int familyLength2 = bytes[cell2] & 0xff;
+            if (!Bytes.equals(bytes, cell1 + 1, familyLength1, bytes, cell2 + 1, familyLength2)) return false;
+            int qualifier1 = cell1 + 1 + familyLength1;
+            int qualifier2 = cell2 + 1 + familyLength2;
+            return Bytes.equals(bytes, qualifier1 + Bytes.SIZEOF_INT, Bytes.toInt(bytes, qualifier1),
+                    bytes, qualifier2 + Bytes.SIZEOF_INT, Bytes.toInt(bytes, qualifier2));
+        }
+
+        /*
+         * Returns whether the cell is of the given family, and of the given qualifier unless it is null.
+         */
+        boolean matches(int i, byte[] family, byte[] qualifier) {
+            return Bytes.equals(bytes, getFamilyOffset(i), getFamilyLength(i), family, 0, family.length)
+                    && (qualifier == null || Bytes.equals(bytes, getQualifierOffset(i), getQualifierLength(i),
+                    qualifier, 0, qualifier.length));
+        }
+
+        /*
+         * Compares the cell to the given one, by family, qualifier and descending timestamp.
+         */
+        int compareTo(int i, MutableCell cell) {
+            int compare = compareColumn(i, cell.family, cell.qualifier);
+            return compare != 0 ? compare : Long.compare(cell.timestamp, getTimestamp(i));
+        }
+
+        private int compareColumn(int i, byte[] family, byte[] qualifier) {
+            int compare = Bytes.compareTo(bytes, getFamilyOffset(i), getFamilyLength(i), family, 0, family.length);
+            if (compare != 0) return compare;
+            return Bytes.compareTo(bytes, getQualifierOffset(i), getQualifierLength(i), qualifier, 0, qualifier.length);
+        }
+
+        /*
+         * Returns the position of the latest version of the given column, or -1.
+         */
+        int indexOf(byte[] family, byte[] qualifier) {
+            // the first cell that is not before the column, which is its latest version
+            int low = 0;
+            int high = offsets.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (compareColumn(mid, family, qualifier) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low < offsets.length && compareColumn(low, family, qualifier) == 0 ? low : -1;
+        }
+
+        Cell toCell(byte[] row, int i) {
+            return new KeyValue(row, 0, row.length,
+                    bytes, getFamilyOffset(i), getFamilyLength(i),
+                    bytes, getQualifierOffset(i), getQualifierLength(i),
+                    getTimestamp(i), KeyValue.Type.Put,
+                    bytes, getValueOffset(i), getValueLength(i));
+        }
+    }
+}
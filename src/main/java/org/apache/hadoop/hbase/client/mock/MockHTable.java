@@ -12,12 +12,14 @@
 
 package org.apache.hadoop.hbase.client.mock;
 
+import com.google.common.util.concurrent.Striped;
 import com.google.protobuf.Descriptors;
 import com.google.protobuf.Message;
 import com.google.protobuf.Service;
 import com.google.protobuf.ServiceException;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.DoNotRetryIOException;
 import org.apache.hadoop.hbase.CellUtil;
 import org.apache.hadoop.hbase.HColumnDescriptor;
 import org.apache.hadoop.hbase.HConstants;
@@ -43,7 +45,6 @@ import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.client.Table;
 import org.apache.hadoop.hbase.client.TableDescriptor;
 import org.apache.hadoop.hbase.client.coprocessor.Batch;
-import org.apache.hadoop.hbase.client.metrics.ScanMetrics;
 import org.apache.hadoop.hbase.filter.CompareFilter;
 import org.apache.hadoop.hbase.filter.Filter;
 import org.apache.hadoop.hbase.io.TimeRange;
@@ -58,13 +59,12 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.NavigableSet;
-import java.util.NoSuchElementException;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.Lock;
 
 import static org.mockito.AdditionalAnswers.delegatesTo;
 
@@ -86,17 +86,22 @@ import static org.mockito.AdditionalAnswers.delegatesTo;
  *     <li>implement getTableDescriptor()</li>
  *     <li>throws RuntimeException when unimplemented method was called.</li>
  *     <li>remove some methods for loading data, checking values ...</li>
+ *     <li>lock rows, so that check-and-mutate operations and increments are atomic</li>
  * </ul>
  */
 public class MockHTable implements Table {
     private static final Logger LOG = LoggerFactory.getLogger(MockHTable.class);
 
+    private static final int LOCK_STRIPES = 256;
+
     private final TableName tableName;
     private final List<String> columnFamilies = new ArrayList<>();
     private Configuration config;
 
     private final NavigableMap<byte[], NavigableMap<byte[], NavigableMap<byte[], NavigableMap<Long, byte[]>>>> data =
         new ConcurrentSkipListMap<>(Bytes.BYTES_COMPARATOR);
+    /* Serializes writes to a row; reentrant, so compound operations can reuse the single-row ones */
+    private final Striped<Lock> locks = Striped.lock(LOCK_STRIPES);
 
     @SuppressWarnings("WeakerAccess")
     public MockHTable(TableName tableName) {
@@ -118,6 +123,12 @@ public class MockHTable implements Table {
         data.clear();
     }
 
+    private Lock lockRow(byte[] row) {
+        Lock lock = locks.getAt(Math.floorMod(Bytes.hashCode(row), locks.size()));
+        lock.lock();
+        return lock;
+    }
+
     public byte[] getTableName() {
         return getName().getName();
     }
@@ -160,16 +171,24 @@ public class MockHTable implements Table {
      */
     @Override
     public Result mutateRow(RowMutations rm) throws IOException {
-        // currently only support Put and Delete
+        // currently only support Put, Delete, and Increment
         long maxTs = System.currentTimeMillis();
-        for (Mutation mutation : rm.getMutations()) {
-            if (mutation instanceof Put) {
-                put((Put) mutation);
-            } else if (mutation instanceof Delete) {
-                delete((Delete) mutation);
+        List<Cell> cells = new ArrayList<>();
+        Lock lock = lockRow(rm.getRow());
+        try {
+            for (Mutation mutation : rm.getMutations()) {
+                if (mutation instanceof Put) {
+                    put((Put) mutation);
+                } else if (mutation instanceof Delete) {
+                    delete((Delete) mutation);
+                } else if (mutation instanceof Increment) {
+                    cells.addAll(increment((Increment) mutation).listCells());
+                }
+                long ts = mutation.getTimestamp();
+                if (ts != HConstants.LATEST_TIMESTAMP && ts > maxTs) maxTs = ts;
             }
-            long ts = mutation.getTimestamp();
-            if (ts != HConstants.LATEST_TIMESTAMP && ts > maxTs) maxTs = ts;
+        } finally {
+            lock.unlock();
         }
         long now = System.currentTimeMillis();
         if (now <= maxTs) {
@@ -178,8 +197,8 @@ public class MockHTable implements Table {
                 Thread.sleep(maxTs - now + 1);
             } catch (InterruptedException ignored) { }
         }
-        // results of Increment/Append operations, which are currently not supported
-        return Result.EMPTY_RESULT;
+        // results of Increment operations
+        return cells.isEmpty() ? Result.EMPTY_RESULT : Result.create(cells);
     }
 
     /**
@@ -269,6 +288,10 @@ public class MockHTable implements Table {
                 Result result = append((Append) r);
                 results[i] = result;
             }
+            if (r instanceof RowMutations) {
+                Result result = mutateRow((RowMutations) r);
+                results[i] = result;
+            }
         }
         return results;
     }
@@ -352,11 +375,8 @@ public class MockHTable implements Table {
      */
     @Override
     public ResultScanner getScanner(Scan scan) throws IOException {
-        final List<Result> ret = new ArrayList<>();
         byte[] st = scan.getStartRow();
         byte[] sp = scan.getStopRow();
-        Filter filter = scan.getFilter();
-        int maxResults = scan.getMaxResultsPerColumnFamily();
 
         NavigableMap<byte[], NavigableMap<byte[], NavigableMap<byte[], NavigableMap<Long, byte[]>>>> subData =
             scan.isReversed() ? data.descendingMap() : data;
@@ -375,98 +395,57 @@ public class MockHTable implements Table {
             subData = subData.subMap(st, scan.includeStartRow(), sp, includeStopRow);
         }
 
-        for (byte[] row : subData.keySet()) {
-            NavigableMap<byte[], NavigableMap<byte[], NavigableMap<Long, byte[]>>> rowData = subData.get(row);
-            List<Cell> kvs;
-            if (!scan.hasFamilies()) {
-                kvs = toKeyValue(row, rowData, scan.getTimeRange(), scan.getMaxVersions());
-                if (filter != null) {
-                    kvs = filter(filter, kvs);
-                }
-                if (maxResults >= 0 && kvs.size() > maxResults) {
-                    kvs = kvs.subList(0, maxResults);
-                }
-            } else {
-                kvs = new ArrayList<>();
-                for (byte[] family : scan.getFamilyMap().keySet()) {
-                    if (rowData.get(family) == null)
+        return new MockResultScanner<>(scan, subData.entrySet().iterator(),
+                (row, rowData) -> scanRow(scan, scan.getFilter(), row, rowData));
+    }
+
+    private List<Cell> scanRow(Scan scan, Filter filter, byte[] row,
+                               NavigableMap<byte[], NavigableMap<byte[], NavigableMap<Long, byte[]>>> rowData)
+            throws IOException {
+        int maxResults = scan.getMaxResultsPerColumnFamily();
+        List<Cell> kvs;
+        if (!scan.hasFamilies()) {
+            kvs = toKeyValue(row, rowData, scan.getTimeRange(), scan.getMaxVersions());
+            if (filter != null) {
+                kvs = filter(filter, kvs);
+            }
+            if (maxResults >= 0 && kvs.size() > maxResults) {
+                kvs = kvs.subList(0, maxResults);
+            }
+        } else {
+            kvs = new ArrayList<>();
+            for (byte[] family : scan.getFamilyMap().keySet()) {
+                if (rowData.get(family) == null)
+                    continue;
+                NavigableSet<byte[]> qualifiers = scan.getFamilyMap().get(family);
+                if (qualifiers == null || qualifiers.isEmpty())
+                    qualifiers = rowData.get(family).navigableKeySet();
+                List<Cell> familyKvs = new ArrayList<>();
+                for (byte[] qualifier : qualifiers) {
+                    if (rowData.get(family).get(qualifier) == null)
                         continue;
-                    NavigableSet<byte[]> qualifiers = scan.getFamilyMap().get(family);
-                    if (qualifiers == null || qualifiers.isEmpty())
-                        qualifiers = rowData.get(family).navigableKeySet();
-                    List<Cell> familyKvs = new ArrayList<>();
-                    for (byte[] qualifier : qualifiers) {
-                        if (rowData.get(family).get(qualifier) == null)
+                    List<KeyValue> tsKvs = new ArrayList<>();
+                    for (Long timestamp : rowData.get(family).get(qualifier).descendingKeySet()) {
+                        if (timestamp < scan.getTimeRange().getMin() || timestamp > scan.getTimeRange().getMax())
                             continue;
-                        List<KeyValue> tsKvs = new ArrayList<>();
-                        for (Long timestamp : rowData.get(family).get(qualifier).descendingKeySet()) {
-                            if (timestamp < scan.getTimeRange().getMin() || timestamp > scan.getTimeRange().getMax())
-                                continue;
-                            byte[] value = rowData.get(family).get(qualifier).get(timestamp);
-                            tsKvs.add(new KeyValue(row, family, qualifier, timestamp, value));
-                            if (tsKvs.size() == scan.getMaxVersions()) {
-                                break;
-                            }
+                        byte[] value = rowData.get(family).get(qualifier).get(timestamp);
+                        tsKvs.add(new KeyValue(row, family, qualifier, timestamp, value));
+                        if (tsKvs.size() == scan.getMaxVersions()) {
+                            break;
                         }
-                        familyKvs.addAll(tsKvs);
                     }
-                    if (filter != null) {
-                        familyKvs = filter(filter, familyKvs);
-                    }
-                    if (maxResults >= 0 && familyKvs.size() > maxResults) {
-                        familyKvs = familyKvs.subList(0, maxResults);
-                    }
-                    kvs.addAll(familyKvs);
+                    familyKvs.addAll(tsKvs);
                 }
-            }
-            if (!kvs.isEmpty()) {
-                ret.add(Result.create(kvs));
-            }
-            // Check for early out optimization
-            if (filter != null && filter.filterAllRemaining()) {
-                break;
-            }
-        }
-
-        return new ResultScanner() {
-            private final Iterator<Result> iterator = ret.iterator();
-
-            public Iterator<Result> iterator() {
-                return iterator;
-            }
-
-            public Result[] next(int nbRows) throws IOException {
-                ArrayList<Result> resultSets = new ArrayList<>(nbRows);
-                for (int i = 0; i < nbRows; i++) {
-                    Result next = next();
-                    if (next != null) {
-                        resultSets.add(next);
-                    } else {
-                        break;
-                    }
+                if (filter != null) {
+                    familyKvs = filter(filter, familyKvs);
                 }
-                return resultSets.toArray(new Result[0]);
-            }
-
-            public Result next() throws IOException {
-                try {
-                    return iterator().next();
-                } catch (NoSuchElementException e) {
-                    return null;
+                if (maxResults >= 0 && familyKvs.size() > maxResults) {
+                    familyKvs = familyKvs.subList(0, maxResults);
                 }
+                kvs.addAll(familyKvs);
             }
-
-            public void close() {
-            }
-
-            public ScanMetrics getScanMetrics() {
-                return null;
-            }
-
-            public boolean renewLease() {
-                return false;
-            }
-        };
+        }
+        return kvs;
     }
 
     /**
@@ -476,7 +455,7 @@ public class MockHTable implements Table {
      * @param kvs    List of a row's KeyValues
      * @return List of KeyValues that were not filtered.
      */
-    private List<Cell> filter(Filter filter, List<Cell> kvs) throws IOException {
+    static List<Cell> filter(Filter filter, List<Cell> kvs) throws IOException {
         filter.reset();
 
         List<Cell> tmp = new ArrayList<>(kvs.size());
@@ -543,6 +522,15 @@ public class MockHTable implements Table {
      */
     @Override
     public void put(Put put) throws IOException {
+        Lock lock = lockRow(put.getRow());
+        try {
+            doPut(put);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void doPut(Put put) {
         byte[] row = put.getRow();
         NavigableMap<byte[], NavigableMap<byte[], NavigableMap<Long, byte[]>>> rowData =
             data.computeIfAbsent(row, k -> new ConcurrentSkipListMap<>(Bytes.BYTES_COMPARATOR));
@@ -590,28 +578,31 @@ public class MockHTable implements Table {
                 !rowData.get(family).get(qualifier).isEmpty()) {
 
             byte[] oldValue = rowData.get(family).get(qualifier).lastEntry().getValue();
-            int compareResult = Bytes.compareTo(value, oldValue);
-            switch (compareOp) {
-                case LESS:
-                    return compareResult < 0;
-                case LESS_OR_EQUAL:
-                    return compareResult <= 0;
-                case EQUAL:
-                    return compareResult == 0;
-                case NOT_EQUAL:
-                    return compareResult != 0;
-                case GREATER_OR_EQUAL:
-                    return compareResult >= 0;
-                case GREATER:
-                    return compareResult > 0;
-                default:
-                    throw new RuntimeException("Unknown Compare op " + compareOp.name());
-            }
+            return compare(compareOp, Bytes.compareTo(value, oldValue));
         } else {
             return false;
         }
     }
 
+    static boolean compare(CompareFilter.CompareOp compareOp, int compareResult) {
+        switch (compareOp) {
+            case LESS:
+                return compareResult < 0;
+            case LESS_OR_EQUAL:
+                return compareResult <= 0;
+            case EQUAL:
+                return compareResult == 0;
+            case NOT_EQUAL:
+                return compareResult != 0;
+            case GREATER_OR_EQUAL:
+                return compareResult >= 0;
+            case GREATER:
+                return compareResult > 0;
+            default:
+                throw new RuntimeException("Unknown Compare op " + compareOp.name());
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -625,15 +616,29 @@ public class MockHTable implements Table {
      */
     @Override
     public boolean checkAndPut(byte[] row, byte[] family, byte[] qualifier, CompareFilter.CompareOp compareOp, byte[] value, Put put) throws IOException {
-        if (check(row, family, qualifier, compareOp, value)) {
-            put(put);
-            return true;
+        Lock lock = lockRow(row);
+        try {
+            if (check(row, family, qualifier, compareOp, value)) {
+                put(put);
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
         }
-        return false;
     }
 
     @Override
     public void delete(Delete delete) throws IOException {
+        Lock lock = lockRow(delete.getRow());
+        try {
+            doDelete(delete);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void doDelete(Delete delete) {
         byte[] row = delete.getRow();
         NavigableMap<byte[], NavigableMap<byte[], NavigableMap<Long, byte[]>>> rowData = data.get(row);
         if (rowData == null)
@@ -697,11 +702,16 @@ public class MockHTable implements Table {
      */
     @Override
     public boolean checkAndDelete(byte[] row, byte[] family, byte[] qualifier, CompareFilter.CompareOp compareOp, byte[] value, Delete delete) throws IOException {
-        if (check(row, family, qualifier, compareOp, value)) {
-            delete(delete);
-            return true;
+        Lock lock = lockRow(row);
+        try {
+            if (check(row, family, qualifier, compareOp, value)) {
+                delete(delete);
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
         }
-        return false;
     }
 
     /**
@@ -709,11 +719,16 @@ public class MockHTable implements Table {
      */
     @Override
     public boolean checkAndMutate(byte[] row, byte[] family, byte[] qualifier, CompareFilter.CompareOp compareOp, byte[] value, RowMutations rm) throws IOException {
-        if (check(row, family, qualifier, compareOp, value)) {
-            mutateRow(rm);
-            return true;
+        Lock lock = lockRow(row);
+        try {
+            if (check(row, family, qualifier, compareOp, value)) {
+                mutateRow(rm);
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
         }
-        return false;
     }
 
     /**
@@ -721,13 +736,22 @@ public class MockHTable implements Table {
      */
     @Override
     public Result increment(Increment increment) throws IOException {
+        Lock lock = lockRow(increment.getRow());
+        try {
+            return doIncrement(increment);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Result doIncrement(Increment increment) throws IOException {
         List<Cell> kvs = new ArrayList<>();
         Map<byte[], NavigableMap<byte[], Long>> famToVal = increment.getFamilyMapOfLongs();
         for (Map.Entry<byte[], NavigableMap<byte[], Long>> ef : famToVal.entrySet()) {
             byte[] family = ef.getKey();
             NavigableMap<byte[], Long> qToVal = ef.getValue();
             for (Map.Entry<byte[], Long> eq : qToVal.entrySet()) {
-                long newValue = incrementColumnValue(increment.getRow(), family, eq.getKey(), eq.getValue());
+                long newValue = doIncrementColumnValue(increment.getRow(), family, eq.getKey(), eq.getValue());
                 Map.Entry<Long, byte[]> timestampAndValue = data.get(increment.getRow()).get(family).get(eq.getKey()).lastEntry();
                 kvs.add(new KeyValue(increment.getRow(), family, eq.getKey(), timestampAndValue.getKey(), timestampAndValue.getValue()));
             }
@@ -740,6 +764,15 @@ public class MockHTable implements Table {
      */
     @Override
     public long incrementColumnValue(byte[] row, byte[] family, byte[] qualifier, long amount) throws IOException {
+        Lock lock = lockRow(row);
+        try {
+            return doIncrementColumnValue(row, family, qualifier, amount);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long doIncrementColumnValue(byte[] row, byte[] family, byte[] qualifier, long amount) throws IOException {
         if (check(row, family, qualifier, CompareFilter.CompareOp.EQUAL, null)) {
             Put put = new Put(row);
             put.addColumn(family, qualifier, Bytes.toBytes(amount));
@@ -747,8 +780,15 @@ public class MockHTable implements Table {
             return amount;
         }
         NavigableMap<byte[], NavigableMap<byte[], NavigableMap<Long, byte[]>>> rowData = data.get(row);
-        long newValue = Bytes.toLong(rowData.get(family).get(qualifier).lastEntry().getValue()) + amount;
-        rowData.get(family).get(qualifier).put(System.currentTimeMillis(), Bytes.toBytes(newValue));
+        Map.Entry<Long, byte[]> lastEntry = rowData.get(family).get(qualifier).lastEntry();
+        byte[] oldValue = lastEntry.getValue();
+        if (oldValue.length != Bytes.SIZEOF_LONG) {
+            throw new DoNotRetryIOException("Field is not a long, it's " + oldValue.length + " bytes wide");
+        }
+        long newValue = Bytes.toLong(oldValue) + amount;
+        // never write behind the current version, which may have been written in the future
+        long ts = Math.max(System.currentTimeMillis(), lastEntry.getKey());
+        rowData.get(family).get(qualifier).put(ts, Bytes.toBytes(newValue));
         return newValue;
     }
 
@@ -0,0 +1,143 @@
+/*
+ * This file is licensed to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package org.apache.hadoop.hbase.client.mock;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.metrics.ScanMetrics;
+import org.apache.hadoop.hbase.filter.Filter;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A scanner that reads the rows of an in-memory table as it is iterated, rather than
+ * collecting every result up front.  At most a scan's caching (or one) rows are
+ * read ahead, as with the RPCs of a real scanner.
+ *
+ * @param <R> the data of a row, as stored by the table
+ */
+class MockResultScanner<R> implements ResultScanner {
+
+    /**
+     * Returns the cells of a row that are selected by the scan and not filtered.
+     */
+    interface RowReader<R> {
+        List<Cell> read(byte[] row, R rowData) throws IOException;
+    }
+
+    private final Filter filter;
+    private final int limit;
+    private final int caching;
+    private final int batch;
+    private final RowReader<R> reader;
+    private Iterator<Map.Entry<byte[], R>> rows;
+    private final Deque<Result> buffer = new ArrayDeque<>();
+    private int rowCount = 0;
+
+    MockResultScanner(Scan scan, Iterator<Map.Entry<byte[], R>> rows, RowReader<R> reader) {
+        this.filter = scan.getFilter();
+        this.limit = scan.getLimit();
+        this.caching = Math.max(scan.getCaching(), 1);
+        this.batch = scan.getBatch();
+        this.reader = reader;
+        this.rows = rows;
+    }
+
+    public Iterator<Result> iterator() {
+        return new Iterator<Result>() {
+            private Result next;
+
+            public boolean hasNext() {
+                if (next == null) {
+                    try {
+                        next = MockResultScanner.this.next();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return next != null;
+            }
+
+            public Result next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                Result result = next;
+                next = null;
+                return result;
+            }
+        };
+    }
+
+    public Result[] next(int nbRows) throws IOException {
+        List<Result> results = new ArrayList<>(nbRows);
+        for (int i = 0; i < nbRows; i++) {
+            Result next = next();
+            if (next == null) break;
+            results.add(next);
+        }
+        return results.toArray(new Result[0]);
+    }
+
+    public Result next() throws IOException {
+        if (buffer.isEmpty()) fill();
+        return buffer.pollFirst();
+    }
+
+    private void fill() throws IOException {
+        int rowsRead = 0;
+        while (rows != null && rowsRead < caching && rows.hasNext()) {
+            if (limit > 0 && rowCount >= limit) {
+                rows = null;
+                break;
+            }
+            Map.Entry<byte[], R> entry = rows.next();
+            List<Cell> kvs = reader.read(entry.getKey(), entry.getValue());
+            if (!kvs.isEmpty()) {
+                rowCount++;
+                rowsRead++;
+                if (batch > 0 && kvs.size() > batch) {
+                    // return a partial result for every batch of cells
+                    for (int i = 0; i < kvs.size(); i += batch) {
+                        buffer.addLast(Result.create(kvs.subList(i, Math.min(i + batch, kvs.size()))));
+                    }
+                } else {
+                    buffer.addLast(Result.create(kvs));
+                }
+            }
+            // Check for early out optimization
+            if (filter != null && filter.filterAllRemaining()) {
+                rows = null;
+            }
+        }
+    }
+
+    public void close() {
+        rows = null;
+        buffer.clear();
+    }
+
+    public ScanMetrics getScanMetrics() {
+        return null;
+    }
+
+    public boolean renewLease() {
+        return false;
+    }
+}
@@ -1,10 +1,20 @@
 package io.hdocdb.store;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.collect.ImmutableList;
 import io.hdocdb.HDocument;
 import io.hdocdb.HDocumentBuilder;
 import io.hdocdb.HDocumentStream;
 import io.hdocdb.HValue;
+import io.hdocdb.HValueHolder;
+import io.hdocdb.metrics.DropwizardMetricsRegistry;
+import io.hdocdb.util.Codec;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.junit.AfterClass;
 import org.junit.Assert;
 import org.junit.BeforeClass;
@@ -16,6 +26,7 @@ import org.ojai.Value;
 import org.ojai.Value.Type;
 import org.ojai.store.DocumentMutation;
 import org.ojai.store.QueryCondition;
+import org.ojai.store.exceptions.StoreException;
 import org.ojai.types.ODate;
 import org.ojai.types.OTime;
 import org.ojai.types.OTimestamp;
@@ -24,6 +35,13 @@ import java.io.IOException;
 import java.math.BigDecimal;
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class HDocumentDBAdvancedTest extends HDocumentDBTest {
 
@@ -1069,6 +1087,532 @@ public class HDocumentDBAdvancedTest extends HDocumentDBTest {
         closeDocumentCollection(coll);
     }
 
+    @Test
+    public void compactArraysTest() throws Exception {
+        HDocumentCollection coll = getTempDocumentCollection();
+        coll.setStorageMode(StorageMode.COMPACT_ARRAYS);
+        Document r = new HDocument().set("a.b", 1).setArray("a.c", new int[]{10, 20, 30}).setArray("d", new int[]{1, 2, 3});
+        coll.insertOrReplace(new HValue("compact"), r);
+        // _id, _ts, a.b, a.c, d
+        Assert.assertEquals(5, getRow(TABLE_TEMP, new HValue("compact")).size());
+
+        DocumentMutation m = new HDocumentMutation()
+                .append("a.c", Arrays.asList(new Object[]{40}))
+                .setOrReplace("d[1]", 99);
+        coll.update(new HValue("compact"), m);
+        Document r2 = coll.findById(new HValue("compact"));
+        Assert.assertEquals(4, r2.getList("a.c").size());
+        Assert.assertEquals(40, r2.getInt("a.c[3]"));
+        Assert.assertEquals(99, r2.getInt("d[1]"));
+        Assert.assertEquals(3, r2.getInt("d[2]"));
+        Assert.assertEquals(5, getRow(TABLE_TEMP, new HValue("compact")).size());
+
+        // projections inside of a packed cell
+        Document r3 = coll.findById(new HValue("compact"), "a.c[1]");
+        Assert.assertEquals(20, r3.getInt("a.c[1]"));
+        Assert.assertNull(r3.getValue("d"));
+
+        coll.update(new HValue("compact"), new HDocumentMutation().delete("d[0]"));
+        Document r4 = coll.findById(new HValue("compact"));
+        Assert.assertEquals(2, r4.getList("d").size());
+        Assert.assertEquals(99, r4.getInt("d[0]"));
+
+        // an array written in expanded mode is repacked when it is next updated
+        coll.setStorageMode(StorageMode.EXPANDED);
+        coll.insertOrReplace(new HValue("expanded"), r);
+        Assert.assertEquals(9, getRow(TABLE_TEMP, new HValue("expanded")).size());
+        coll.setStorageMode(StorageMode.COMPACT_ARRAYS);
+        coll.update(new HValue("expanded"), new HDocumentMutation().append("d", Arrays.asList(new Object[]{4})));
+        Assert.assertEquals(7, getRow(TABLE_TEMP, new HValue("expanded")).size());
+        Document r5 = coll.findById(new HValue("expanded"));
+        Assert.assertEquals(4, r5.getList("d").size());
+        Assert.assertEquals(3, r5.getList("a.c").size());
+
+        // the mode is shared by every instance of the collection
+        HDocumentCollection other = hdocdb.getCollection(TABLE_TEMP);
+        Assert.assertEquals(StorageMode.COMPACT_ARRAYS, other.getStorageMode());
+        other.update(new HValue("compact"), new HDocumentMutation().delete("d[0]"));
+        Assert.assertEquals(1, coll.findById(new HValue("compact")).getList("d").size());
+        closeDocumentCollection(coll);
+
+        // and is forgotten when the collection is dropped
+        coll = getTempDocumentCollection();
+        Assert.assertEquals(StorageMode.EXPANDED, coll.getStorageMode());
+        closeDocumentCollection(coll);
+    }
+
+    @Test
+    public void counterTest() throws Exception {
+        HDocumentCollection coll = getTempDocumentCollection();
+        coll.setCounterFields("hits", "stats.views");
+        coll.insertOrReplace(new HValue("counter"), new HDocument().set("name", "abc").set("hits", 5));
+
+        // the first increment converts the value to a counter
+        coll.increment(new HValue("counter"), "hits", 3);
+        Document r = coll.findById(new HValue("counter"));
+        Assert.assertEquals(8L, r.getLong("hits"));
+        Assert.assertEquals("abc", r.getString("name"));
+        byte[] hits = getRow(TABLE_TEMP, new HValue("counter")).getValue(Bytes.toBytes(HDocumentDB.DEFAULT_FAMILY), Bytes.toBytes("hits"));
+        Assert.assertEquals(Bytes.SIZEOF_LONG, hits.length);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(executor.submit(() -> {
+                for (int j = 0; j < 250; j++) {
+                    coll.increment(new HValue("counter"), "hits", 1L);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        Assert.assertEquals(1008L, coll.findById(new HValue("counter")).getLong("hits"));
+
+        // increments create the document and its counters
+        coll.update(new HValue("counter2"), new HDocumentMutation().increment("stats.views", 2).increment("hits", (byte) 1));
+        coll.update(new HValue("counter2"), new HDocumentMutation().increment("stats.views", 3L));
+        Document r2 = coll.findById(new HValue("counter2"));
+        Assert.assertEquals(5L, r2.getLong("stats.views"));
+        Assert.assertEquals(1L, r2.getLong("hits"));
+
+        // other updates still apply to a document with counters
+        coll.update(new HValue("counter2"), new HDocumentMutation().set("name", "def"));
+        Assert.assertEquals("def", coll.findById(new HValue("counter2")).getString("name"));
+
+        // the counter fields are shared by every instance of the collection
+        HDocumentCollection other = hdocdb.getCollection(TABLE_TEMP);
+        Assert.assertEquals(coll.getCounterFields(), other.getCounterFields());
+        other.increment(new HValue("counter"), "hits", 2L);
+        Assert.assertEquals(1010L, coll.findById(new HValue("counter")).getLong("hits"));
+        hits = getRow(TABLE_TEMP, new HValue("counter")).getValue(Bytes.toBytes(HDocumentDB.DEFAULT_FAMILY), Bytes.toBytes("hits"));
+        Assert.assertEquals(Bytes.SIZEOF_LONG, hits.length);
+        closeDocumentCollection(coll);
+    }
+
+    @Test
+    public void readModifyWriteTest() throws Exception {
+        RetryPolicy policy = new RetryPolicy(3, 10L, 40L);
+        Assert.assertTrue(policy.shouldRetry(2));
+        Assert.assertFalse(policy.shouldRetry(3));
+        for (int attempt = 1; attempt < 10; attempt++) {
+            long backoff = policy.getBackoffMs(attempt);
+            Assert.assertTrue(backoff >= 0L && backoff <= Math.min(40L, 10L << (attempt - 1)));
+        }
+
+        HDocumentCollection coll = getTempDocumentCollection();
+        coll.setRetryPolicy(policy);
+        Document r = new HDocument().set("a", 5).set("b.c", 1).set("b.d", "abc").setArray("e", new int[]{1, 2, 3});
+        coll.insertOrReplace(new HValue("rmw"), r);
+
+        coll.update(new HValue("rmw"), new HDocumentMutation().increment("b.c", 2).append("e", Arrays.asList(new Object[]{4})));
+        Document r2 = coll.findById(new HValue("rmw"));
+        Assert.assertEquals(3, r2.getInt("b.c"));
+        Assert.assertEquals("abc", r2.getString("b.d"));
+        Assert.assertEquals(4, r2.getList("e").size());
+        Assert.assertEquals(5, r2.getInt("a"));
+
+        // the type of an existing parent is still checked
+        try {
+            coll.update(new HValue("rmw"), new HDocumentMutation().set("a.b", 1));
+            Assert.fail();
+        } catch (StoreException e) {
+            // expected
+        }
+        Assert.assertEquals(5, coll.findById(new HValue("rmw")).getInt("a"));
+        Assert.assertEquals(0L, coll.getConflictCount());
+        closeDocumentCollection(coll);
+    }
+
+    @Test
+    public void readModifyWriteConflictTest() throws Exception {
+        int threads = 8;
+        int perThread = 50;
+        HDocumentCollection coll = getTempDocumentCollection();
+        coll.insertOrReplace(new HValue("rmw"), new HDocument().set("n", 0L).setArray("e", new int[0]));
+
+        // every conflicting update is retried until it lands
+        coll.setRetryPolicy(new RetryPolicy(Integer.MAX_VALUE, 1L, 5L));
+        runConcurrently(threads, () -> {
+            for (int j = 0; j < perThread; j++) {
+                coll.update(new HValue("rmw"), new HDocumentMutation()
+                        .increment("n", 1L)
+                        .append("e", Arrays.asList(new Object[]{j})));
+            }
+            return null;
+        });
+        Document r = coll.findById(new HValue("rmw"));
+        Assert.assertEquals(threads * perThread, r.getLong("n"));
+        Assert.assertEquals(threads * perThread, r.getList("e").size());
+        Assert.assertTrue(coll.getConflictCount() > 0);
+        Assert.assertEquals(0L, coll.getRetriesExhaustedCount());
+
+        // without retries, an update fails on its first conflict
+        coll.setRetryPolicy(RetryPolicy.NONE);
+        AtomicLong applied = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        runConcurrently(threads, () -> {
+            for (int j = 0; j < perThread; j++) {
+                try {
+                    coll.update(new HValue("rmw"), new HDocumentMutation().increment("n", 1L));
+                    applied.incrementAndGet();
+                } catch (StoreException e) {
+                    failed.incrementAndGet();
+                }
+            }
+            return null;
+        });
+        Assert.assertTrue(failed.get() > 0);
+        Assert.assertEquals(failed.get(), coll.getRetriesExhaustedCount());
+        Assert.assertEquals(threads * perThread + applied.get(), coll.findById(new HValue("rmw")).getLong("n"));
+        closeDocumentCollection(coll);
+    }
+
+    @Test
+    public void partialReadTest() throws Exception {
+        HDocumentCollection coll = getTempDocumentCollection();
+        Document r = new HDocument().set("a", 5).set("b.c", 1).set("b.d", "abc").set("f", "xyz");
+        coll.insertOrReplace(new HValue("partial"), r);
+
+        // only the projected cells, their ancestors, and _ts are read
+        Codec<HValueHolder> codec = new Codec<>();
+        Get get = new Get(codec.encode(new HValueHolder(new HValue("partial"))));
+        get.setFilter(new HDocumentFilter(null, true, "a.x", "b.c"));
+        Result result = hdocdb.getTable(TABLE_TEMP).get(get);
+        Assert.assertEquals(3, result.size());
+        Assert.assertNotNull(result.getValue(Bytes.toBytes(HDocumentDB.DEFAULT_FAMILY), Bytes.toBytes("a")));
+        Assert.assertNull(result.getValue(Bytes.toBytes(HDocumentDB.DEFAULT_FAMILY), Bytes.toBytes("b.d")));
+
+        boolean success = coll.checkAndMutate(new HValue("partial"),
+                new HQueryCondition().is("f", QueryCondition.Op.EQUAL, "xyz").build(),
+                new HDocumentMutation().increment("b.c", 1));
+        Assert.assertTrue(success);
+        success = coll.checkAndDelete(new HValue("partial"),
+                new HQueryCondition().is("b.c", QueryCondition.Op.EQUAL, 1).build());
+        Assert.assertFalse(success);
+        Document r2 = coll.findById(new HValue("partial"));
+        Assert.assertEquals(2, r2.getInt("b.c"));
+        Assert.assertEquals("abc", r2.getString("b.d"));
+        Assert.assertEquals(5, r2.getInt("a"));
+        success = coll.checkAndReplace(new HValue("partial"),
+                new HQueryCondition().is("b.c", QueryCondition.Op.EQUAL, 2).build(),
+                new HDocument().set("g", 1));
+        Assert.assertTrue(success);
+        Document r3 = coll.findById(new HValue("partial"));
+        Assert.assertEquals(1, r3.getInt("g"));
+        Assert.assertNull(r3.getValue("a"));
+        closeDocumentCollection(coll);
+    }
+
+    @Test
+    public void writeBufferTest() throws Exception {
+        HDocumentCollection coll = getTempDocumentCollection();
+        coll.enableWriteBuffer(16, 5L, 64);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            final int thread = i;
+            futures.add(executor.submit(() -> {
+                for (int j = 0; j < 25; j++) {
+                    coll.insertOrReplace(new HValue("buffered" + thread + "_" + j), new HDocument().set("n", j));
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        Assert.assertEquals(24, coll.findById(new HValue("buffered3_24")).getInt("n"));
+
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            writes.add(coll.updateAsync(new HValue("buffered0_" + i), new HDocumentMutation().setOrReplace("m", i)));
+        }
+        coll.flush();
+        for (CompletableFuture<Void> write : writes) {
+            Assert.assertTrue(write.isDone());
+        }
+        Assert.assertEquals(9, coll.findById(new HValue("buffered0_9")).getInt("m"));
+        Assert.assertEquals(9, coll.findById(new HValue("buffered0_9")).getInt("n"));
+        Assert.assertEquals(100, ((HDocumentStream)coll.find()).count());
+
+        // read-modify-write updates are applied directly
+        coll.update(new HValue("buffered0_9"), new HDocumentMutation().increment("n", 1));
+        Assert.assertEquals(10, coll.findById(new HValue("buffered0_9")).getInt("n"));
+        coll.disableWriteBuffer();
+        Assert.assertNull(coll.getWriteBuffer());
+        closeDocumentCollection(coll);
+    }
+
+    @Test
+    public void writeBufferOrderTest() throws Exception {
+        HDocumentCollection coll = getTempDocumentCollection();
+        coll.update(new HValue("ordered"), new HDocumentMutation().setOrReplace("a", 0).setOrReplace("b", 0));
+        // a long flush interval, so that all of the writes share one flush
+        coll.enableWriteBuffer(64, 60000L, 64);
+
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            writes.add(coll.updateAsync(new HValue("ordered"), new HDocumentMutation().setOrReplace("a", i)));
+        }
+        writes.add(coll.updateAsync(new HValue("ordered"), new HDocumentMutation().delete("b")));
+        writes.add(coll.updateAsync(new HValue("other"), new HDocumentMutation().setOrReplace("a", 1)));
+        writes.add(coll.updateAsync(new HValue("ordered"), new HDocumentMutation().setOrReplace("c", 1)));
+        coll.flush();
+        for (CompletableFuture<Void> write : writes) {
+            Assert.assertTrue(write.isDone());
+        }
+
+        Document r = coll.findById(new HValue("ordered"));
+        Assert.assertEquals(5, r.getInt("a"));
+        Assert.assertNull(r.getValue("b"));
+        Assert.assertEquals(1, r.getInt("c"));
+        Assert.assertEquals(1, coll.findById(new HValue("other")).getInt("a"));
+        coll.disableWriteBuffer();
+        closeDocumentCollection(coll);
+    }
+
+    @Test
+    public void existsByIdTest() throws Exception {
+        HDocumentCollection coll = getTempDocumentCollection();
+        coll.insertOrReplace(new HValue("e1"), new HDocument().set("a", 1L));
+        coll.insertOrReplace(new HValue("e2"), new HDocument().set("a", 2L));
+        // an upsert creates a document without an _id cell
+        coll.update(new HValue("e3"), new HDocumentMutation().setOrReplace("a", 3L));
+        coll.delete("e2");
+
+        Assert.assertTrue(coll.exists("e1"));
+        Assert.assertFalse(coll.exists("e2"));
+        Assert.assertTrue(coll.exists(new HValue("e3")));
+        Assert.assertFalse(coll.exists("e4"));
+        boolean[] exists = coll.existsAll(ImmutableList.of(new HValue("e4"), new HValue("e3"),
+                new HValue("e2"), new HValue("e1")));
+        Assert.assertArrayEquals(new boolean[]{false, true, false, true}, exists);
+        Assert.assertEquals(0, coll.existsAll(Collections.<Value>emptyList()).length);
+        closeDocumentCollection(coll);
+    }
+
+    @Test
+    public void findByIdsTest() throws Exception {
+        HDocumentCollection coll = getTempDocumentCollection();
+        for (int i = 0; i < 250; i++) {
+            coll.insertOrReplace(new HValue("k" + i), new HDocument()
+                    .set("n", (long) i)
+                    .set("s", "v" + i)
+                    .set("m.x", (long) i * 2));
+        }
+
+        // more ids than fit in one batch, in descending order, with some missing
+        List<Value> ids = new ArrayList<>();
+        for (int i = 259; i >= 0; i -= 2) {
+            ids.add(new HValue("k" + i));
+        }
+        List<String> found = new ArrayList<>();
+        try (DocumentStream stream = coll.findByIds(ids)) {
+            for (Document doc : stream) {
+                found.add(doc.getIdString());
+                Assert.assertEquals("v" + doc.getLong("n"), doc.getString("s"));
+            }
+        }
+        List<String> expected = new ArrayList<>();
+        for (int i = 249; i >= 0; i -= 2) {
+            expected.add("k" + i);
+        }
+        Assert.assertEquals(expected, found);
+
+        // a projection returns only the requested paths
+        Iterator<Document> docs = coll.findByIds(ImmutableList.of(new HValue("k7"), new HValue("k3")), "m.x").iterator();
+        Document doc = docs.next();
+        Assert.assertEquals("k7", doc.getIdString());
+        Assert.assertEquals(14L, doc.getLong("m.x"));
+        Assert.assertNull(doc.getValue("s"));
+        Assert.assertEquals("k3", docs.next().getIdString());
+        Assert.assertFalse(docs.hasNext());
+
+        Assert.assertFalse(coll.findByIds(Collections.<Value>emptyList()).iterator().hasNext());
+        closeDocumentCollection(coll);
+    }
+
+    @Test
+    public void concurrentCheckAndMutateTest() throws Exception {
+        int threads = 8;
+        int perThread = 50;
+        HDocumentCollection coll = getTempDocumentCollection();
+
+        // compare-and-set loops on a raw cell, where each value must be replaced exactly once
+        Table table = hdocdb.getTable(TABLE_TEMP);
+        byte[] row = Bytes.toBytes("cas");
+        byte[] family = Bytes.toBytes(HDocumentDB.DEFAULT_FAMILY);
+        byte[] qualifier = Bytes.toBytes("v");
+        Set<Long> replaced = Collections.synchronizedSet(new HashSet<>());
+        runConcurrently(threads, () -> {
+            for (int j = 0; j < perThread; j++) {
+                while (true) {
+                    byte[] old = table.get(new Get(row)).getValue(family, qualifier);
+                    long n = old != null ? Bytes.toLong(old) : 0;
+                    if (table.checkAndPut(row, family, qualifier, old, new Put(row).addColumn(family, qualifier, Bytes.toBytes(n + 1)))) {
+                        Assert.assertTrue("value " + n + " replaced twice", replaced.add(n));
+                        break;
+                    }
+                }
+            }
+            return null;
+        });
+        Assert.assertEquals(threads * perThread, Bytes.toLong(table.get(new Get(row)).getValue(family, qualifier)));
+        Assert.assertEquals(threads * perThread, replaced.size());
+
+        // conditional replaces of a document, each of which must see the previous one
+        coll.insertOrReplace(new HValue("cas"), new HDocument().set("n", 0));
+        Set<Integer> seen = Collections.synchronizedSet(new HashSet<>());
+        runConcurrently(threads, () -> {
+            for (int j = 0; j < perThread; j++) {
+                while (true) {
+                    int n = coll.findById(new HValue("cas")).getInt("n");
+                    if (coll.checkAndReplace(new HValue("cas"),
+                            new HQueryCondition().is("n", QueryCondition.Op.EQUAL, n).build(),
+                            new HDocument().set("n", n + 1))) {
+                        Assert.assertTrue("value " + n + " replaced twice", seen.add(n));
+                        break;
+                    }
+                }
+            }
+            return null;
+        });
+        Assert.assertEquals(threads * perThread, coll.findById(new HValue("cas")).getInt("n"));
+        Assert.assertEquals(threads * perThread, seen.size());
+        closeDocumentCollection(coll);
+    }
+
+    /*
+     * Runs the task on the given number of threads at once, and waits for all of them to finish.
+     */
+    private static void runConcurrently(int threads, Callable<Void> task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                return task.call();
+            }));
+        }
+        start.countDown();
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void metricsTest() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        hdocdb.setMetricsRegistry(new DropwizardMetricsRegistry(registry));
+        try {
+            HDocumentCollection coll = getTempDocumentCollection();
+            String prefix = "hdocdb." + TABLE_TEMP.getNameAsString() + ".";
+            for (int i = 0; i < 3; i++) {
+                coll.insert(new HValue("m" + i), new HDocument().set("a", i));
+            }
+            Assert.assertEquals(3, registry.timer(prefix + "insert").getCount());
+
+            try (DocumentStream stream = coll.find(new HQueryCondition().is("a", QueryCondition.Op.GREATER_OR_EQUAL, 1))) {
+                Assert.assertEquals(2, ((HDocumentStream)stream).count());
+            }
+            Assert.assertEquals(1, registry.timer(prefix + "find").getCount());
+            Assert.assertEquals(1, registry.counter(prefix + "find.fullTableScan").getCount());
+            Assert.assertEquals(2, registry.counter(prefix + "find.returned").getCount());
+            Assert.assertTrue(registry.counter(prefix + "find.scanned").getCount() >= 2);
+            Assert.assertTrue(registry.counter(prefix + "find.bytesRead").getCount() > 0);
+
+            Assert.assertFalse(coll.checkAndMutate(new HValue("m0"),
+                    new HQueryCondition().is("a", QueryCondition.Op.EQUAL, 5), new HDocumentMutation().set("b", 1)));
+            Assert.assertEquals(1, registry.timer(prefix + "checkAndMutate").getCount());
+            closeDocumentCollection(coll);
+        } finally {
+            hdocdb.setMetricsRegistry(null);
+        }
+    }
+
+    @Test
+    public void slowQueryLogTest() throws Exception {
+        HDocumentCollection coll = getTempDocumentCollection();
+        for (int i = 0; i < 5; i++) {
+            coll.insert(new HValue("q" + i), new HDocument().set("a", i).set("b", "x"));
+        }
+        coll.enableSlowQueryLog(0L, 1.0, 3);
+
+        for (int i = 0; i < 3; i++) {
+            try (DocumentStream stream = coll.find(new HQueryCondition().is("a", QueryCondition.Op.GREATER_OR_EQUAL, i), "a")) {
+                for (Document ignored : stream) {
+                }
+            }
+        }
+        ((HDocumentStream) coll.find(new HQueryCondition().and()
+                .is("b", QueryCondition.Op.EQUAL, "x").is("a", QueryCondition.Op.LESS, 1).close())).count();
+
+        List<SlowQueryLog.Entry> entries = coll.getSlowQueryLog().getEntries();
+        Assert.assertEquals(3, entries.size());
+        Assert.assertEquals("(a >= ?)", entries.get(0).getShape());
+        Assert.assertEquals(ImmutableList.of("a"), entries.get(0).getPaths());
+        Assert.assertEquals(4, entries.get(0).getPlan().getRowsReturned());
+        Assert.assertEquals(3, entries.get(1).getPlan().getRowsReturned());
+        Assert.assertEquals("AND((a < ?), (b = ?))", entries.get(2).getShape());
+        Assert.assertEquals(1, entries.get(2).getPlan().getRowsReturned());
+
+        Map<String, LongSummaryStatistics> stats = coll.getSlowQueryLog().getStatisticsByShape();
+        Assert.assertEquals(2, stats.get("(a >= ?)").getCount());
+        Assert.assertEquals(1, stats.get("AND((a < ?), (b = ?))").getCount());
+
+        coll.disableSlowQueryLog();
+        Assert.assertNull(coll.getSlowQueryLog());
+        closeDocumentCollection(coll);
+    }
+
+    @Test
+    public void compiledConditionTest() throws Exception {
+        List<HDocument> docs = ImmutableList.of(
+                new HDocument().set("a", 1).set("b.c", "abc").set("d", 1.5),
+                new HDocument().set("a", 5).set("b.c", "xyz").set("d", -2.0),
+                new HDocument().set("a", 3L).set("b.c", 7),
+                new HDocument().set("a", ImmutableList.of(0, 9)).set("b.c", "abd"),
+                new HDocument().set("_id", "id1"),
+                new HDocument());
+        List<HQueryCondition> conditions = ImmutableList.of(
+                new HQueryCondition().is("a", QueryCondition.Op.EQUAL, 1).build(),
+                new HQueryCondition().is("a", QueryCondition.Op.NOT_EQUAL, 1).build(),
+                new HQueryCondition().and()
+                        .is("a", QueryCondition.Op.GREATER_OR_EQUAL, 1)
+                        .is("a", QueryCondition.Op.GREATER, 1)
+                        .is("a", QueryCondition.Op.LESS, 9)
+                        .close().build(),
+                new HQueryCondition().is("b.c", QueryCondition.Op.LESS_OR_EQUAL, "abd").build(),
+                new HQueryCondition().is("d", QueryCondition.Op.GREATER, 0.0).build(),
+                new HQueryCondition().in("b.c", ImmutableList.of("abc", "xyz", 7)).build(),
+                new HQueryCondition().notIn("b.c", Arrays.asList("abc", null)).build(),
+                new HQueryCondition().or()
+                        .exists("d")
+                        .is("_id", QueryCondition.Op.EQUAL, "id1")
+                        .typeOf("b.c", Type.INT)
+                        .close().build(),
+                new HQueryCondition().and().close().build());
+        for (HQueryCondition condition : conditions) {
+            CompiledCondition compiled = condition.compile();
+            for (HDocument doc : docs) {
+                Assert.assertEquals(condition + " on " + doc, condition.evaluate(doc), compiled.evaluate(doc));
+            }
+        }
+    }
+
+    private Result getRow(TableName tableName, HValue id) throws Exception {
+        Codec<HValueHolder> codec = new Codec<>();
+        return hdocdb.getTable(tableName).get(new Get(codec.encode(new HValueHolder(id))));
+    }
+
     @Test
     public void existsTest() throws Exception {
         HDocumentCollection coll = getTempDocumentCollection();
@@ -0,0 +1,24 @@
+package io.hdocdb.store;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+
+import java.io.IOException;
+
+/**
+ * Runs the index tests against the embedded table engine.
+ */
+public class HDocumentDBEmbeddedTest extends HDocumentDBIndexTest {
+
+    @BeforeClass
+    public static void setup() throws IOException {
+        useEmbedded = true;
+        HDocumentDBTest.setup();
+    }
+
+    @AfterClass
+    public static void teardown() throws IOException {
+        HDocumentDBTest.teardown();
+        useEmbedded = false;
+    }
+}
@@ -1,9 +1,16 @@
 package io.hdocdb.store;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.testing.FakeTicker;
 import io.hdocdb.HDocument;
 import io.hdocdb.HDocumentStream;
 import io.hdocdb.HValue;
+import io.hdocdb.execute.QueryInfo;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -12,12 +19,21 @@ import org.ojai.DocumentStream;
 import org.ojai.Value;
 import org.ojai.store.DocumentMutation;
 import org.ojai.store.QueryCondition;
+import org.ojai.store.exceptions.StoreException;
 import org.ojai.types.OTimestamp;
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.PatternSyntaxException;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class HDocumentDBIndexTest extends HDocumentDBTest {
 
@@ -783,4 +799,450 @@ public class HDocumentDBIndexTest extends HDocumentDBTest {
 
         closeDocumentCollection(coll);
     }
+
+    @Test
+    public void testIndexExplainAnalyze() throws Exception {
+        HDocumentCollection coll;
+        coll = getTempDocumentCollection();
+
+        coll.createIndex("a", "a", Value.Type.INT, Order.ASCENDING, false);
+        coll.createIndex("b", "b", Value.Type.INT, Order.ASCENDING, false);
+
+        coll.insert(new HValue("d1"), new HDocument().set("a", 1).set("b", 1).set("c", "x"));
+        coll.insert(new HValue("d2"), new HDocument().set("a", 1).set("b", 2).set("c", "y"));
+        coll.insert(new HValue("d3"), new HDocument().set("a", 2).set("b", 2).set("c", "x"));
+
+        QueryCondition condition = new HQueryCondition().and().is("a", QueryCondition.Op.EQUAL, 1)
+                .is("c", QueryCondition.Op.EQUAL, "x").close();
+        QueryInfo info = coll.explain(condition);
+        assertEquals("a", info.getIndexName());
+        assertEquals(1, info.getCandidates().size());
+        assertEquals("a", info.getCandidates().get(0).getIndexName());
+        assertEquals(2, info.getIndexRowsScanned());
+        assertEquals(0, info.getBaseRowsFetched());
+
+        info = coll.explainAnalyze(condition);
+        assertEquals(2, info.getIndexRowsScanned());
+        assertEquals(2, info.getBaseRowsFetched());
+        assertEquals(1, info.getRowsRejected());
+        assertEquals(1, info.getRowsReturned());
+        assertEquals(0, info.getStaleIndexesFound());
+        assertTrue(info.getBytesRead() > 0);
+
+        info = coll.explain(new HQueryCondition().is("c", QueryCondition.Op.EQUAL, "x"));
+        assertEquals(QueryInfo.QueryType.FULL_TABLE_SCAN, info.getType());
+        assertEquals(0, info.getCandidates().size());
+        assertEquals("no active index matches the condition", info.getReason());
+
+        closeDocumentCollection(coll);
+    }
+
+    @Test
+    public void testIndexPlanCache() throws Exception {
+        HDocumentCollection coll;
+        coll = getTempDocumentCollection();
+        coll.setPlanCacheSize(10);
+
+        coll.createIndex("a", "a", Value.Type.INT, Order.ASCENDING, false);
+        for (int i = 0; i < 3; i++) {
+            coll.insert(new HValue("d" + i), new HDocument().set("a", i).set("b", i));
+        }
+
+        for (int i = 0; i < 3; i++) {
+            try (DocumentStream documentStream = coll.find(new HQueryCondition().is("a", QueryCondition.Op.EQUAL, i))) {
+                QueryInfo info = ((HDocumentStream)documentStream).explain();
+                assertEquals("a", info.getIndexName());
+                assertEquals(i > 0, info.getReason().startsWith("cached: "));
+                assertEquals(1, ((HDocumentStream)documentStream).count());
+            }
+        }
+        assertEquals(2, coll.getPlanCache().getHitCount());
+        assertEquals(1, coll.getPlanCache().getMissCount());
+
+        // a change to the indexes is planned separately
+        coll.dropIndex("a", false);
+        try (DocumentStream documentStream = coll.find(new HQueryCondition().is("a", QueryCondition.Op.EQUAL, 1))) {
+            assertNull(((HDocumentStream)documentStream).explain().getIndexName());
+            assertEquals(1, ((HDocumentStream)documentStream).count());
+        }
+        assertEquals(2, coll.getPlanCache().getMissCount());
+
+        closeDocumentCollection(coll);
+    }
+
+    @Test
+    public void testIndexPreparedCondition() throws Exception {
+        HDocumentCollection coll;
+        coll = getTempDocumentCollection();
+        coll.setPlanCacheSize(0);
+
+        coll.createIndex("a", "a", Value.Type.INT, Order.ASCENDING, false);
+        for (int i = 0; i < 5; i++) {
+            coll.insert(new HValue("d" + i), new HDocument().set("a", i).set("b", i % 2));
+        }
+
+        PreparedCondition condition = new PreparedCondition(new HQueryCondition()
+                .and()
+                .is("a", QueryCondition.Op.GREATER_OR_EQUAL, 0)
+                .is("a", QueryCondition.Op.LESS, 0)
+                .is("b", QueryCondition.Op.EQUAL, 0)
+                .close()
+                .build(), "min", "max");
+        assertEquals(3, condition.getParameterCount());
+
+        condition.set("min", 1).set("max", 4).set("b", 1);
+        try (DocumentStream documentStream = coll.find(condition)) {
+            QueryInfo info = ((HDocumentStream)documentStream).explain();
+            assertEquals("a", info.getIndexName());
+            assertFalse(info.getReason().startsWith("prepared: "));
+            assertEquals(2, ((HDocumentStream)documentStream).count());
+        }
+
+        // the plan is kept with the condition, and the ranges come from the new values
+        condition.set(0, 0).set(1, 5).set(2, 0);
+        try (DocumentStream documentStream = coll.find(condition)) {
+            QueryInfo info = ((HDocumentStream)documentStream).explain();
+            assertEquals("a", info.getIndexName());
+            assertTrue(info.getReason().startsWith("prepared: "));
+            assertEquals(3, ((HDocumentStream)documentStream).count());
+        }
+
+        try {
+            condition.set("a", 1);
+            fail("Expected ambiguous parameter");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        closeDocumentCollection(coll);
+    }
+
+    @Test
+    public void testIndexPrefixPatterns() throws Exception {
+        HDocumentCollection coll;
+        coll = getTempDocumentCollection();
+
+        coll.createIndex("name", "name", Value.Type.STRING, Order.ASCENDING, false);
+        String[] names = { "abc", "abd", "ab_x", "abz", "b", "xab" };
+        for (int i = 0; i < names.length; i++) {
+            coll.insert(new HValue("d" + i), new HDocument().set("name", names[i]));
+        }
+
+        try (DocumentStream documentStream = coll.find(new HQueryCondition().like("name", "ab%").build())) {
+            QueryInfo info = ((HDocumentStream)documentStream).explain();
+            assertEquals("name", info.getIndexName());
+            assertEquals("[ab..ac)", info.getIndexBounds().get("name"));
+            assertEquals(4, ((HDocumentStream)documentStream).count());
+        }
+        try (DocumentStream documentStream = coll.find(new HQueryCondition().matches("name", "^ab[cd]").build())) {
+            QueryInfo info = ((HDocumentStream)documentStream).explain();
+            assertEquals("[ab..ac)", info.getIndexBounds().get("name"));
+            assertEquals(2, ((HDocumentStream)documentStream).count());
+        }
+        try (DocumentStream documentStream = coll.find(new HQueryCondition().like("name", "ab!_%", '!').build())) {
+            assertEquals(1, ((HDocumentStream)documentStream).count());
+        }
+        try (DocumentStream documentStream = coll.find(new HQueryCondition().notLike("name", "%ab%").build())) {
+            assertEquals(1, ((HDocumentStream)documentStream).count());
+        }
+
+        // bound patterns are converted and validated as literal ones are
+        PreparedCondition condition = new PreparedCondition(new HQueryCondition().like("name", "x%").build());
+        condition.set(0, "ab\\_%");
+        try (DocumentStream documentStream = coll.find(condition)) {
+            assertEquals(0, ((HDocumentStream)documentStream).count());
+        }
+        condition.set(0, "ab_%");
+        try (DocumentStream documentStream = coll.find(condition)) {
+            assertEquals(4, ((HDocumentStream)documentStream).count());
+        }
+        condition = new PreparedCondition(new HQueryCondition().matches("name", "x").build());
+        try {
+            condition.set(0, "ab[");
+            fail("Expected invalid regular expression");
+        } catch (PatternSyntaxException e) {
+            // expected
+        }
+
+        closeDocumentCollection(coll);
+    }
+
+    @Test
+    public void testIndexSparsePartial() throws Exception {
+        HDocumentCollection coll;
+        coll = getTempDocumentCollection();
+
+        coll.newIndexBuilder("a")
+                .add("a", Value.Type.INT, Order.ASCENDING)
+                .setSparse(true)
+                .setAsync(false)
+                .build();
+        coll.newIndexBuilder("active")
+                .add("c", Value.Type.INT, Order.ASCENDING)
+                .setFilter(new HQueryCondition().is("status", QueryCondition.Op.EQUAL, "active").build())
+                .setAsync(false)
+                .build();
+
+        coll.insert(new HValue("d0"), new HDocument().set("a", 1).set("c", 1).set("status", "active"));
+        coll.insert(new HValue("d1"), new HDocument().set("b", 1).set("c", 1));
+        coll.insert(new HValue("d2"), new HDocument().set("a", 2).set("c", 2).set("status", "active"));
+        coll.insert(new HValue("d3"), new HDocument().set("a", 3).set("c", 2).set("status", "inactive"));
+
+        // a range implies that the field exists
+        try (DocumentStream documentStream = coll.find(new HQueryCondition().is("a", QueryCondition.Op.GREATER_OR_EQUAL, 1))) {
+            assertEquals("a", ((HDocumentStream)documentStream).explain().getIndexName());
+            assertEquals(3, ((HDocumentStream)documentStream).count());
+        }
+        // the sparse index has no entry for d1
+        try (DocumentStream documentStream = coll.find(new HQueryCondition().is("a", QueryCondition.Op.NOT_EQUAL, 2))) {
+            assertNull(((HDocumentStream)documentStream).explain().getIndexName());
+            assertEquals(3, ((HDocumentStream)documentStream).count());
+        }
+
+        // the partial index can only be used if the condition implies its filter
+        try (DocumentStream documentStream = coll.find(new HQueryCondition().is("c", QueryCondition.Op.EQUAL, 2))) {
+            assertNull(((HDocumentStream)documentStream).explain().getIndexName());
+            assertEquals(2, ((HDocumentStream)documentStream).count());
+        }
+        try (DocumentStream documentStream = coll.findWithIndex("active", new HQueryCondition().is("c", QueryCondition.Op.EQUAL, 2))) {
+            assertNull(((HDocumentStream)documentStream).explain().getIndexName());
+            assertEquals(2, ((HDocumentStream)documentStream).count());
+        }
+        QueryCondition condition = new HQueryCondition().and()
+                .is("c", QueryCondition.Op.EQUAL, 2)
+                .is("status", QueryCondition.Op.EQUAL, "active")
+                .close();
+        try (DocumentStream documentStream = coll.find(condition)) {
+            assertEquals("active", ((HDocumentStream)documentStream).explain().getIndexName());
+            assertEquals(1, ((HDocumentStream)documentStream).count());
+        }
+
+        // updates that change whether the filter matches
+        DocumentMutation mutation = new HDocumentMutation();
+        mutation.setOrReplace("status", "active");
+        coll.update(new HValue("d3"), mutation);
+        mutation = new HDocumentMutation();
+        mutation.setOrReplace("status", "inactive");
+        coll.update(new HValue("d2"), mutation);
+        try (DocumentStream documentStream = coll.find(condition)) {
+            assertEquals("active", ((HDocumentStream)documentStream).explain().getIndexName());
+            for (Document doc : documentStream) {
+                assertEquals("d3", doc.getIdString());
+            }
+        }
+
+        closeDocumentCollection(coll);
+    }
+
+    @Test
+    public void testIndexPartialUpdate() throws Exception {
+        HDocumentCollection coll;
+        coll = getTempDocumentCollection();
+
+        coll.newIndexBuilder("active")
+                .add("c", Value.Type.INT, Order.ASCENDING)
+                .setFilter(new HQueryCondition().is("status", QueryCondition.Op.EQUAL, "active").build())
+                .setAsync(false)
+                .build();
+        coll.insert(new HValue("d0"), new HDocument().set("c", 1).set("status", "active"));
+        coll.insert(new HValue("d1"), new HDocument().set("c", 1));
+        coll.insert(new HValue("d2"), new HDocument().set("c", 2).set("status", "inactive"));
+        assertEquals(1, countRows(IDX_TABLE_TEMP));
+
+        // updates of the indexed field only write entries for documents that match the filter
+        DocumentMutation mutation = new HDocumentMutation();
+        mutation.setOrReplace("c", 5);
+        coll.update(new HValue("d1"), mutation);
+        mutation = new HDocumentMutation();
+        mutation.increment("c", 1);
+        coll.update(new HValue("d2"), mutation);
+        assertEquals(1, countRows(IDX_TABLE_TEMP));
+        coll.update(new HValue("d0"), mutation);
+        assertEquals(2, countRows(IDX_TABLE_TEMP));
+
+        QueryCondition condition = new HQueryCondition().and()
+                .is("c", QueryCondition.Op.EQUAL, 2)
+                .is("status", QueryCondition.Op.EQUAL, "active")
+                .close();
+        try (DocumentStream documentStream = coll.find(condition)) {
+            assertEquals("active", ((HDocumentStream)documentStream).explain().getIndexName());
+            assertEquals(1, ((HDocumentStream)documentStream).count());
+        }
+
+        closeDocumentCollection(coll);
+    }
+
+    private static int countRows(TableName name) throws IOException {
+        int count = 0;
+        try (ResultScanner scanner = hdocdb.getTable(name).getScanner(new Scan())) {
+            for (Result result : scanner) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testIndexMultikey() throws Exception {
+        HDocumentCollection coll;
+        coll = getTempDocumentCollection();
+
+        coll.newIndexBuilder("tags")
+                .add("tags", Value.Type.STRING)
+                .setMultikey(true)
+                .setAsync(false)
+                .build();
+        Index names = coll.newIndexBuilder("names")
+                .add("items[].name", Value.Type.STRING)
+                .setAsync(false)
+                .build();
+        assertTrue(names.isMultikey());
+
+        coll.insert(new HValue("d0"), new HDocument()
+                .set("tags", ImmutableList.of("x", "y", "x"))
+                .set("items", ImmutableList.of(ImmutableMap.of("name", "a"), ImmutableMap.of("name", "b"))));
+        coll.insert(new HValue("d1"), new HDocument().set("tags", ImmutableList.of("y")));
+        coll.insert(new HValue("d2"), new HDocument().set("tags", "x"));
+        coll.insert(new HValue("d3"), new HDocument().set("tags", ImmutableList.of()));
+        coll.insert(new HValue("d4"), new HDocument().set("other", 1));
+
+        try (DocumentStream documentStream = coll.find(new HQueryCondition().is("tags", QueryCondition.Op.EQUAL, "x"))) {
+            assertEquals("tags", ((HDocumentStream)documentStream).explain().getIndexName());
+            assertEquals(2, ((HDocumentStream)documentStream).count());
+        }
+        // d0 has an entry for both values but is only returned once
+        try (DocumentStream documentStream = coll.find(new HQueryCondition().in("tags", ImmutableList.of("x", "y")))) {
+            assertEquals("tags", ((HDocumentStream)documentStream).explain().getIndexName());
+            assertEquals(3, ((HDocumentStream)documentStream).count());
+        }
+        // each condition may be matched by a different element, so only one bounds the scan
+        try (DocumentStream documentStream = coll.find(new HQueryCondition().and()
+                .is("tags", QueryCondition.Op.GREATER_OR_EQUAL, "y")
+                .is("tags", QueryCondition.Op.LESS_OR_EQUAL, "x")
+                .close())) {
+            QueryInfo info = ((HDocumentStream)documentStream).explain();
+            assertEquals("tags", info.getIndexName());
+            assertEquals("[y..+∞)", info.getIndexBounds().get("tags"));
+            assertEquals(1, ((HDocumentStream)documentStream).count());
+        }
+        // a negation cannot use a multikey index
+        try (DocumentStream documentStream = coll.find(new HQueryCondition().is("tags", QueryCondition.Op.NOT_EQUAL, "x"))) {
+            assertNull(((HDocumentStream)documentStream).explain().getIndexName());
+            assertEquals(3, ((HDocumentStream)documentStream).count());
+        }
+        try (DocumentStream documentStream = coll.find(new HQueryCondition().is("items[].name", QueryCondition.Op.EQUAL, "b"))) {
+            assertEquals("names", ((HDocumentStream)documentStream).explain().getIndexName());
+            assertEquals(1, ((HDocumentStream)documentStream).count());
+        }
+
+        closeDocumentCollection(coll);
+    }
+
+    @Test
+    public void testIndexCatalogVersion() throws Exception {
+        HDocumentCollection coll;
+        coll = getTempDocumentCollection();
+        HDocumentCollection catalog = hdocdb.getCollection(TableName.valueOf(HDocumentDB.CATALOG_TABLE), null);
+
+        long version = getCatalogVersion(catalog);
+        coll.createIndex("testindex", "z.a", Value.Type.INT, Order.ASCENDING, false);
+        // created, then BUILDING, then ACTIVE
+        assertEquals(version + 3, getCatalogVersion(catalog));
+
+        coll.dropIndex("testindex", false);
+        // INACTIVE, then DROPPED
+        assertEquals(version + 5, getCatalogVersion(catalog));
+
+        // this client has acknowledged the latest version
+        Document acks = catalog.findById(HDocumentDB.ACKS_PREFIX + TABLE_TEMP.toString());
+        Map<String, Object> clients = acks.getMap(HDocumentDB.CLIENTS_PATH);
+        assertEquals(1, clients.size());
+        Map<String, Object> ack = (Map<String, Object>) clients.values().iterator().next();
+        assertEquals(version + 5, ack.get(HDocumentDB.VERSION_PATH));
+        assertTrue((Long) ack.get(HDocumentDB.EXPIRES_PATH) > System.currentTimeMillis());
+
+        // the version is kept when the collection is dropped
+        closeDocumentCollection(coll);
+        assertEquals(version + 6, getCatalogVersion(catalog));
+    }
+
+    @Test
+    public void testUnacknowledgedIndexStateChange() throws Exception {
+        HDocumentCollection coll = getTempDocumentCollection();
+        HDocumentCollection catalog = hdocdb.getCollection(TableName.valueOf(HDocumentDB.CATALOG_TABLE), null);
+        coll.createIndex("testindex", "z.a", Value.Type.INT, Order.ASCENDING, false);
+
+        // a client that holds a lease but never acknowledges
+        String acksId = HDocumentDB.ACKS_PREFIX + TABLE_TEMP.toString();
+        String stale = HDocumentDB.CLIENTS_PATH + ".stale";
+        catalog.update(acksId, new HDocumentMutation().setOrReplace(stale, new HDocument()
+                .set(HDocumentDB.VERSION_PATH, 0L)
+                .set(HDocumentDB.EXPIRES_PATH, System.currentTimeMillis() + 60000L)));
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        executor.schedule(() -> ((FakeTicker) ticker).advance(HDocumentDB.CLIENT_LEASE_SECS + 1, TimeUnit.SECONDS),
+                200, TimeUnit.MILLISECONDS);
+        try {
+            coll.dropIndex("testindex", false);
+            fail();
+        } catch (StoreException e) {
+            // expected
+        } finally {
+            executor.shutdown();
+        }
+        // the index is left inactive, and can be dropped once the client is gone
+        assertEquals(Index.State.INACTIVE, coll.getIndex("testindex").getState());
+        catalog.update(acksId, new HDocumentMutation().delete(stale));
+        coll.dropIndex("testindex", false);
+        assertEquals(Index.State.DROPPED, coll.getIndex("testindex").getState());
+        closeDocumentCollection(coll);
+    }
+
+    @Test
+    public void testUnacknowledgedAsyncIndexStateChange() throws Exception {
+        HDocumentCollection coll = getTempDocumentCollection();
+        HDocumentCollection catalog = hdocdb.getCollection(TableName.valueOf(HDocumentDB.CATALOG_TABLE), null);
+        coll.insert(new HValue("d1"), new HDocument().set("a", 1));
+
+        // a client that holds a lease but never acknowledges
+        String acksId = HDocumentDB.ACKS_PREFIX + TABLE_TEMP.toString();
+        String stale = HDocumentDB.CLIENTS_PATH + ".stale";
+        Document staleAck = new HDocument()
+                .set(HDocumentDB.VERSION_PATH, 0L)
+                .set(HDocumentDB.EXPIRES_PATH, System.currentTimeMillis() + 60000L);
+        catalog.update(acksId, new HDocumentMutation().setOrReplace(stale, staleAck));
+
+        // every attempt to build the index gives up after a lease
+        coll.createIndex("testindex", "a", Value.Type.INT, Order.ASCENDING, true);
+        for (int i = 0; i < HDocumentCollection.INDEX_COMMAND_ATTEMPTS; i++) {
+            Thread.sleep(300);
+            ((FakeTicker) ticker).advance(HDocumentDB.CLIENT_LEASE_SECS + 1, TimeUnit.SECONDS);
+        }
+        Thread.sleep(300);
+        catalog.update(acksId, new HDocumentMutation().delete(stale));
+        Thread.sleep(300);
+        // the index is left building, and can be built again once the client is gone
+        assertEquals(Index.State.BUILDING, coll.getIndex("testindex").getState());
+        coll.populateIndex("testindex", false);
+        assertEquals(Index.State.ACTIVE, coll.getIndex("testindex").getState());
+
+        // a drop is retried, and succeeds once the client is gone
+        catalog.update(acksId, new HDocumentMutation().setOrReplace(stale, staleAck));
+        coll.dropIndex("testindex", true);
+        Thread.sleep(300);
+        ((FakeTicker) ticker).advance(HDocumentDB.CLIENT_LEASE_SECS + 1, TimeUnit.SECONDS);
+        Thread.sleep(300);
+        catalog.update(acksId, new HDocumentMutation().delete(stale));
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (coll.getIndex("testindex").getState() != Index.State.DROPPED && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertEquals(Index.State.DROPPED, coll.getIndex("testindex").getState());
+        closeDocumentCollection(coll);
+    }
+
+    private long getCatalogVersion(HDocumentCollection catalog) {
+        Document doc = catalog.findById(TABLE_TEMP.toString());
+        return doc != null && doc.getValue(HDocumentDB.VERSION_PATH) != null
+                ? doc.getLong(HDocumentDB.VERSION_PATH) : 0L;
+    }
 }
@@ -0,0 +1,263 @@
+package io.hdocdb.store;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import io.hdocdb.HDocument;
+import io.hdocdb.HDocumentStream;
+import io.hdocdb.HValue;
+import io.hdocdb.HValueHolder;
+import io.hdocdb.util.Codec;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.ojai.Document;
+import org.ojai.DocumentReader;
+import org.ojai.DocumentStream;
+import org.ojai.Value.Type;
+import org.ojai.json.JsonOptions;
+import org.ojai.store.QueryCondition;
+import org.ojai.types.ODate;
+import org.ojai.types.OTimestamp;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests loading and writing documents as JSON, reading them as events, and bulk loading them,
+ * in each storage mode.
+ */
+@RunWith(Parameterized.class)
+public class HDocumentDBJsonTest extends HDocumentDBTest {
+
+    @Parameterized.Parameters
+    public static Collection<Object[]> storageModes() {
+        List<Object[]> modes = new ArrayList<>();
+        for (StorageMode mode : StorageMode.values()) {
+            modes.add(new Object[]{mode});
+        }
+        return modes;
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final StorageMode mode;
+
+    public HDocumentDBJsonTest(StorageMode mode) {
+        this.mode = mode;
+    }
+
+    @BeforeClass
+    public static void setup() throws IOException {
+        HDocumentDBTest.setup();
+    }
+
+    @AfterClass
+    public static void teardown() throws IOException {
+        HDocumentDBTest.teardown();
+    }
+
+    /*
+     * Returns an empty collection in the storage mode under test, with a synchronous index on the given path.
+     */
+    private HDocumentCollection getTempDocumentCollection(String indexedPath) {
+        HDocumentCollection coll = getTempDocumentCollection();
+        coll.setStorageMode(mode);
+        coll.newIndexBuilder(indexedPath).add(indexedPath, Type.LONG).setAsync(false).build();
+        return coll;
+    }
+
+    @Test
+    public void testLoadJson() throws Exception {
+        // scalars are encoded exactly as the codec would encode them
+        Codec<HValueHolder> codec = new Codec<>();
+        String large = Strings.repeat("x", 3000);
+        assertArrayEquals(codec.encode(new HValueHolder(new HValue("abc"))),
+                HValueHolder.encode(Type.STRING, Bytes.toBytes("abc")));
+        assertArrayEquals(codec.encode(new HValueHolder(new HValue(large))),
+                HValueHolder.encode(Type.STRING, Bytes.toBytes(large)));
+
+        String json = "{\"_id\": \"j1\", \"a\": 1, \"b\": {\"c\": \"x\", \"d\": [1, 2.5, true]}, \"e\": {\"$dateDay\": \"2016-03-01\"}}\n"
+                + "{\"_id\": \"j2\", \"a\": 2, \"b\": {\"c\": null}}\n"
+                + "{\"a\": 1, \"_id\": \"j3\", \"f\": [{\"g\": 1}, {\"g\": 2}]}\n";
+        HDocumentCollection coll = getTempDocumentCollection("a");
+        assertEquals(3L, coll.loadJson(new ByteArrayInputStream(Bytes.toBytes(json)), "_id", 2));
+
+        Document j1 = coll.findById("j1");
+        assertEquals(1L, j1.getLong("a"));
+        assertEquals("x", j1.getString("b.c"));
+        assertEquals(2.5, j1.getDouble("b.d[1]"), 0.0);
+        assertTrue(j1.getBoolean("b.d[2]"));
+        assertEquals(ODate.parse("2016-03-01"), j1.getDate("e"));
+        assertEquals(Type.NULL, coll.findById("j2").getValue("b.c").getType());
+        assertEquals(2L, coll.findById("j3").getLong("f[1].g"));
+
+        try (DocumentStream stream = coll.find(new HQueryCondition().is("a", QueryCondition.Op.EQUAL, 1L))) {
+            assertEquals("a", ((HDocumentStream) stream).explain().getIndexName());
+            assertEquals(2, ((HDocumentStream) stream).count());
+        }
+        closeDocumentCollection(coll);
+    }
+
+    @Test
+    public void testWriteJson() throws Exception {
+        List<Object> longs = new ArrayList<>();
+        for (long i = 0; i < 12; i++) longs.add(i);
+        HDocumentCollection coll = getTempDocumentCollection("n");
+        HDocument doc = new HDocument();
+        doc.set("n", 1L);
+        doc.set("i", 7);
+        doc.set("s", "abc");
+        doc.set("longs", longs);
+        doc.set("m.x.y", "z");
+        doc.set("maps", ImmutableList.of(Collections.singletonMap("g", 1L), Collections.singletonMap("g", 2L)));
+        doc.set("date", ODate.parse("2016-03-01"));
+        doc.set("ts", OTimestamp.parse("2016-03-01T10:11:12.123Z"));
+        doc.set("bin", ByteBuffer.wrap(new byte[]{1, 2, 3}));
+        doc.set("dec", new BigDecimal("12.34"));
+        doc.setNull("nothing");
+        coll.insertOrReplace(new HValue("w1"), doc);
+        coll.insertOrReplace(new HValue("w2"), new HDocument().set("n", 2L));
+        Document expected = coll.findById("w1");
+
+        // written from the cells of each row
+        StringWriter writer = new StringWriter();
+        try (DocumentStream stream = coll.find()) {
+            assertEquals(2L, ((HDocumentStream) stream).writeJson(writer, JsonOptions.DEFAULT, true));
+        }
+        String[] lines = writer.toString().split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].contains("\"longs\":[0,1,2,3,4,5,6,7,8,9,10,11]"));
+
+        // written from the documents found through an index
+        writer = new StringWriter();
+        try (DocumentStream stream = coll.find(new HQueryCondition().is("n", QueryCondition.Op.EQUAL, 1L))) {
+            assertEquals("n", ((HDocumentStream) stream).explain().getIndexName());
+            assertEquals(1L, ((HDocumentStream) stream).writeJson(writer, JsonOptions.DEFAULT, true));
+        }
+        assertEquals(lines[0], writer.toString().trim());
+
+        writer = new StringWriter();
+        try (DocumentStream stream = coll.find()) {
+            ((HDocumentStream) stream).writeJson(writer, JsonOptions.DEFAULT, false);
+        }
+        assertEquals("[" + lines[0] + lines[1] + "]", writer.toString());
+        closeDocumentCollection(coll);
+
+        // the output reads back into the same documents
+        coll = getTempDocumentCollection();
+        assertEquals(1L, coll.loadJson(new ByteArrayInputStream(Bytes.toBytes(lines[0]))));
+        assertEquals(expected, coll.findById("w1"));
+        closeDocumentCollection(coll);
+    }
+
+    @Test
+    public void testDocumentReaders() throws Exception {
+        List<Object> longs = new ArrayList<>();
+        for (long i = 0; i < 12; i++) longs.add(i);
+        HDocumentCollection coll = getTempDocumentCollection("n");
+        HDocument doc = new HDocument();
+        doc.set("n", 1L);
+        doc.set("i", 7);
+        doc.set("s", "abc");
+        doc.set("longs", longs);
+        doc.set("m.x.y", "z");
+        doc.set("maps", ImmutableList.of(Collections.singletonMap("g", 1L), Collections.singletonMap("g", 2L)));
+        coll.insertOrReplace(new HValue("r1"), doc);
+        List<String> expected = readEvents(coll.findById("r1").asReader());
+
+        // read from the cells of each row
+        try (DocumentStream stream = coll.find()) {
+            Iterator<DocumentReader> readers = stream.documentReaders().iterator();
+            assertEquals(expected, readEvents(readers.next()));
+            assertFalse(readers.hasNext());
+            assertEquals(1L, ((HDocumentStream) stream).getReturnedCount());
+        }
+
+        // read from the documents found through an index
+        try (DocumentStream stream = coll.find(new HQueryCondition().is("n", QueryCondition.Op.EQUAL, 1L))) {
+            assertEquals("n", ((HDocumentStream) stream).explain().getIndexName());
+            assertEquals(expected, readEvents(stream.documentReaders().iterator().next()));
+        }
+        closeDocumentCollection(coll);
+    }
+
+    private static List<String> readEvents(DocumentReader reader) {
+        List<String> events = new ArrayList<>();
+        DocumentReader.EventType event;
+        while ((event = reader.next()) != null) {
+            StringBuilder sb = new StringBuilder(event.toString());
+            if (event != DocumentReader.EventType.END_MAP && event != DocumentReader.EventType.END_ARRAY) {
+                sb.append(reader.inMap() ? " " + reader.getFieldName() : " [" + reader.getArrayIndex() + "]");
+            }
+            switch (event) {
+                case STRING:
+                    sb.append(" = ").append(reader.getString());
+                    break;
+                case LONG:
+                    sb.append(" = ").append(reader.getLong());
+                    break;
+                case INT:
+                    sb.append(" = ").append(reader.getInt());
+                    break;
+                default:
+                    break;
+            }
+            events.add(sb.toString());
+        }
+        return events;
+    }
+
+    @Test
+    public void testBulkLoad() throws Exception {
+        HDocumentCollection coll = getTempDocumentCollection("n");
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            json.append("{\"_id\": \"j").append(i).append("\", \"n\": ").append(i % 10).append("}\n");
+        }
+        // a small spill size so that the cells are merged from several sorted runs
+        try (BulkLoader loader = coll.newBulkLoader(folder.newFolder(), 4096)) {
+            for (int i = 0; i < 200; i++) {
+                HDocument doc = new HDocument();
+                doc.set("n", (long) (i % 10));
+                doc.set("a", ImmutableList.of((long) i, "x" + i));
+                doc.set("m.s", "s" + i);
+                loader.add(new HValue("d" + i), doc);
+            }
+            assertEquals(50L, loader.addJson(new ByteArrayInputStream(Bytes.toBytes(json.toString())), "_id"));
+            assertEquals(250L, loader.finish());
+        }
+
+        Document d7 = coll.findById("d7");
+        assertEquals(7L, d7.getLong("n"));
+        assertEquals("x7", d7.getString("a[1]"));
+        assertEquals("s7", d7.getString("m.s"));
+        assertEquals(3L, coll.findById("j13").getLong("n"));
+        try (DocumentStream stream = coll.find()) {
+            assertEquals(250, ((HDocumentStream) stream).count());
+        }
+        try (DocumentStream stream = coll.find(new HQueryCondition().is("n", QueryCondition.Op.EQUAL, 3L))) {
+            assertEquals("n", ((HDocumentStream) stream).explain().getIndexName());
+            assertEquals(25, ((HDocumentStream) stream).count());
+        }
+        closeDocumentCollection(coll);
+    }
+}
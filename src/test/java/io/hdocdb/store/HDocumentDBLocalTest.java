@@ -0,0 +1,75 @@
+package io.hdocdb.store;
+
+import io.hdocdb.HDocument;
+import io.hdocdb.HDocumentStream;
+import io.hdocdb.HValue;
+import org.apache.hadoop.hbase.TableName;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.ojai.Document;
+import org.ojai.DocumentStream;
+import org.ojai.Value;
+import org.ojai.store.QueryCondition;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class HDocumentDBLocalTest {
+
+    private static final TableName TABLE_LOCAL = TableName.valueOf("testlocal");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRecovery() throws Exception {
+        File dir = folder.newFolder();
+        try (LocalHDocumentDB db = new LocalHDocumentDB(dir)) {
+            HDocumentCollection coll = db.getCollection(TABLE_LOCAL);
+            coll.newIndexBuilder("a").add("a", Value.Type.INT).setAsync(false).build();
+            for (int i = 0; i < 10; i++) {
+                coll.insert(new HValue("d" + i), new HDocument().set("a", i).set("b", "v" + i));
+            }
+            coll.delete("d9");
+            coll.increment("d0", "a", 5);
+        }
+
+        // recover from the log
+        try (LocalHDocumentDB db = new LocalHDocumentDB(dir)) {
+            HDocumentCollection coll = db.getCollection(TABLE_LOCAL);
+            assertEquals(5, coll.findById("d0").getInt("a"));
+            assertEquals("v8", coll.findById("d8").getString("b"));
+            assertNull(coll.findById("d9"));
+            assertEquals(1, count(coll, 5));
+            db.snapshot();
+            coll.insert(new HValue("d10"), new HDocument().set("a", 10));
+        }
+
+        // recover from the snapshot and the log after it
+        try (LocalHDocumentDB db = new LocalHDocumentDB(dir)) {
+            HDocumentCollection coll = db.getCollection(TABLE_LOCAL);
+            assertEquals(5, coll.findById("d0").getInt("a"));
+            assertEquals(10, coll.findById("d10").getInt("a"));
+            assertEquals(1, count(coll, 10));
+            db.dropCollection(TABLE_LOCAL);
+        }
+
+        try (LocalHDocumentDB db = new LocalHDocumentDB(dir)) {
+            assertNull(db.getCollection(TABLE_LOCAL).findById("d0"));
+        }
+    }
+
+    private static int count(HDocumentCollection coll, int a) {
+        int cnt = 0;
+        try (DocumentStream documentStream = coll.find(new HQueryCondition().is("a", QueryCondition.Op.EQUAL, a))) {
+            assertEquals("a", ((HDocumentStream) documentStream).explain().getIndexName());
+            for (Document doc : documentStream) {
+                cnt++;
+            }
+        }
+        return cnt;
+    }
+}
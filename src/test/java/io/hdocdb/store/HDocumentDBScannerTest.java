@@ -0,0 +1,146 @@
+package io.hdocdb.store;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.client.mock.EmbeddedHTable;
+import org.apache.hadoop.hbase.client.mock.MockHTable;
+import org.apache.hadoop.hbase.filter.FilterBase;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests the scanner of the in-memory tables.
+ */
+@RunWith(Parameterized.class)
+public class HDocumentDBScannerTest {
+
+    private static final byte[] FAMILY = Bytes.toBytes(HDocumentDB.DEFAULT_FAMILY);
+    private static final TableName TABLE = TableName.valueOf("testscanner");
+
+    @Parameterized.Parameters
+    public static Collection<Object[]> tables() {
+        return Arrays.asList(new Object[]{false}, new Object[]{true});
+    }
+
+    private final boolean embedded;
+    private Table table;
+
+    public HDocumentDBScannerTest(boolean embedded) {
+        this.embedded = embedded;
+    }
+
+    @Before
+    public void setup() throws IOException {
+        table = embedded
+                ? new EmbeddedHTable(TABLE, 1, HDocumentDB.DEFAULT_FAMILY)
+                : new MockHTable(TABLE, HDocumentDB.DEFAULT_FAMILY);
+        for (int i = 0; i < 10; i++) {
+            Put put = new Put(Bytes.toBytes("r" + i));
+            for (int j = 0; j < 5; j++) {
+                put.addColumn(FAMILY, Bytes.toBytes("q" + j), Bytes.toBytes(i * 10 + j));
+            }
+            table.put(put);
+        }
+    }
+
+    @Test
+    public void testLimit() throws IOException {
+        // the limit spans several rounds of caching
+        List<Result> results = scan(new Scan().setLimit(3).setCaching(2));
+        assertEquals(3, results.size());
+        assertEquals("r2", Bytes.toString(results.get(2).getRow()));
+
+        assertEquals(10, scan(new Scan().setCaching(3)).size());
+        assertEquals(10, scan(new Scan().setLimit(20)).size());
+    }
+
+    @Test
+    public void testBatch() throws IOException {
+        List<Result> results = scan(new Scan().withStartRow(Bytes.toBytes("r4")).setBatch(2).setLimit(2));
+        // each of the two rows is split into results of 2, 2, and 1 cells
+        assertEquals(6, results.size());
+        int[] sizes = {2, 2, 1, 2, 2, 1};
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(sizes[i], results.get(i).size());
+            assertEquals(i < 3 ? "r4" : "r5", Bytes.toString(results.get(i).getRow()));
+        }
+        assertEquals(40, Bytes.toInt(results.get(0).getValue(FAMILY, Bytes.toBytes("q0"))));
+        assertEquals(44, Bytes.toInt(results.get(2).getValue(FAMILY, Bytes.toBytes("q4"))));
+
+        // a row that fits in a batch is returned whole
+        assertEquals(10, scan(new Scan().setBatch(5)).size());
+    }
+
+    @Test
+    public void testFilterAllRemaining() throws IOException {
+        StopAfterRowsFilter filter = new StopAfterRowsFilter(3);
+        List<Result> results = scan(new Scan().setFilter(filter).setCaching(100));
+        assertEquals(3, results.size());
+        assertEquals("r2", Bytes.toString(results.get(2).getRow()));
+        // no rows are read once the filter is done
+        assertEquals(3, filter.rowsSeen);
+    }
+
+    @Test
+    public void testClose() throws IOException {
+        ResultScanner scanner = table.getScanner(new Scan().setCaching(5));
+        assertEquals("r0", Bytes.toString(scanner.next().getRow()));
+        scanner.close();
+        assertNull(scanner.next());
+    }
+
+    private List<Result> scan(Scan scan) throws IOException {
+        List<Result> results = new ArrayList<>();
+        try (ResultScanner scanner = table.getScanner(scan)) {
+            for (Result result : scanner) {
+                results.add(result);
+            }
+        }
+        return results;
+    }
+
+    /*
+     * Includes every cell, and stops the scan once it has seen the given number of rows.
+     */
+    private static class StopAfterRowsFilter extends FilterBase {
+        private final int maxRows;
+        private int rowsSeen = 0;
+
+        StopAfterRowsFilter(int maxRows) {
+            this.maxRows = maxRows;
+        }
+
+        @Override
+        public void reset() {
+            // the filter is reset at the start of every row
+            rowsSeen++;
+        }
+
+        @Override
+        public ReturnCode filterCell(Cell c) {
+            return ReturnCode.INCLUDE;
+        }
+
+        @Override
+        public boolean filterAllRemaining() {
+            return rowsSeen >= maxRows;
+        }
+    }
+}
@@ -19,6 +19,7 @@ public class HDocumentDBTest {
     protected static HDocumentCollection mainColl;
 
     protected static boolean useMock = true;
+    protected static boolean useEmbedded = false;
 
     public static void setup() throws IOException {
         ticker = new FakeTicker();
@@ -27,6 +28,8 @@ public class HDocumentDBTest {
             config.set("hbase.zookeeper.quorum", "127.0.0.1");
             config.set("zookeeper.znode.parent", "/hbase-unsecure");
             hdocdb = new HDocumentDB(config, ticker);
+        } else if (useEmbedded) {
+            hdocdb = new EmbeddedHDocumentDB(ticker);
         } else {
             hdocdb = new InMemoryHDocumentDB(ticker);
         }
@@ -50,5 +53,6 @@ public class HDocumentDBTest {
 
     public static void teardown() throws IOException {
         closeDocumentCollection(mainColl);
+        hdocdb.close();
     }
 }